@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.content.pm;
+
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compares {@link PackageParser#parsePackage(File, int, boolean)} with the parse cache
+ * disabled, with a cold cache (entry written by the parse) and with a warm cache.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class PackageParserPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                { "/system/framework/framework-res.apk" },
+                { "/system/priv-app/SettingsProvider/SettingsProvider.apk" },
+                { "/system/priv-app/SystemUI/SystemUI.apk" },
+        });
+    }
+
+    private final File mPackageFile;
+    private File mCacheDir;
+
+    public PackageParserPerfTest(String packagePath) {
+        mPackageFile = new File(packagePath);
+    }
+
+    @Before
+    public void setUp() {
+        mCacheDir = IoUtils.createTemporaryDirectory("PackageParserPerfTest");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mCacheDir);
+    }
+
+    @Test
+    public void timeParse_noCache() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new PackageParser().parsePackage(mPackageFile, 0 /* parseFlags */,
+                    false /* useCaches */);
+        }
+    }
+
+    @Test
+    public void timeParse_coldCache() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            FileUtils.deleteContents(mCacheDir);
+            final PackageParser pp = new PackageParser();
+            pp.setCacheDir(mCacheDir);
+            state.resumeTiming();
+
+            pp.parsePackage(mPackageFile, 0 /* parseFlags */, true /* useCaches */);
+        }
+    }
+
+    @Test
+    public void timeParse_warmCache() throws Exception {
+        final PackageParser warmup = new PackageParser();
+        warmup.setCacheDir(mCacheDir);
+        warmup.parsePackage(mPackageFile, 0 /* parseFlags */, true /* useCaches */);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final PackageParser pp = new PackageParser();
+            pp.setCacheDir(mCacheDir);
+            pp.parsePackage(mPackageFile, 0 /* parseFlags */, true /* useCaches */);
+        }
+    }
+}
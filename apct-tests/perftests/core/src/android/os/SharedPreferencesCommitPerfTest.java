@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Measures the latency of committing a single key change against preference files of
+ * various sizes, with and without {@link Context#MODE_JOURNALED_PREFERENCES}.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class SharedPreferencesCommitPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "size={0}, journaled={1}")
+    public static Collection<Object[]> data() {
+        final ArrayList<Object[]> params = new ArrayList<>();
+        for (int size : new int[] { 10, 100, 1000, 5000 }) {
+            params.add(new Object[] { size, false });
+            params.add(new Object[] { size, true });
+        }
+        return params;
+    }
+
+    private final int mSize;
+    private final boolean mJournaled;
+
+    private Context mContext;
+    private String mName;
+    private SharedPreferences mPrefs;
+
+    public SharedPreferencesCommitPerfTest(int size, boolean journaled) {
+        mSize = size;
+        mJournaled = journaled;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mName = "commit_perf_" + mSize + (mJournaled ? "_journaled" : "");
+        mContext.deleteSharedPreferences(mName);
+
+        final int mode = Context.MODE_PRIVATE
+                | (mJournaled ? Context.MODE_JOURNALED_PREFERENCES : 0);
+        mPrefs = mContext.getSharedPreferences(mName, mode);
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        for (int i = 0; i < mSize; i++) {
+            editor.putString("key" + i, "value of a moderately sized preference " + i);
+        }
+        editor.commit();
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteSharedPreferences(mName);
+    }
+
+    @Test
+    public void timeCommitSingleKey() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mPrefs.edit().putInt("counter", i++).commit();
+        }
+    }
+
+    @Test
+    public void timeApplySingleKey() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mPrefs.edit().putInt("counter", i++).apply();
+        }
+        // Include the cost of flushing, as seen by QueuedWork.waitToFinish() on activity pause.
+        mPrefs.edit().commit();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.Context;
+import android.content.Intent;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of a cold activity start, from the start request to the first frame of
+ * the new process, with the zygote's process pool disabled and enabled.
+ * <p>
+ * The pool size is a persistent system property, so the test must run as root
+ * ({@code adb root}) to change it; the previous value is restored afterwards.
+ * </p>
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class ZygotePoolStartPerfTest {
+    private static final String POOL_SIZE_PROPERTY = "persist.sys.zygote.pool_size";
+    private static final String DEFAULT_POOL_SIZE = "3";
+    private static final String PROCESS_SUFFIX = ":coldstart";
+    private static final String EXTRA_RECEIVER = "receiver";
+
+    private static final long START_TIMEOUT_MILLIS = 10000;
+    /** Time left to the zygote to refill its pool between two starts. */
+    private static final long SETTLE_MILLIS = 500;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "poolSize={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { { 0 }, { 3 } });
+    }
+
+    private final int mPoolSize;
+
+    private Context mContext;
+    private String mProcessName;
+    private String mPreviousPoolSize;
+
+    public ZygotePoolStartPerfTest(int poolSize) {
+        mPoolSize = poolSize;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mProcessName = mContext.getPackageName() + PROCESS_SUFFIX;
+        mPreviousPoolSize = SystemProperties.get(POOL_SIZE_PROPERTY);
+        setPoolSize(Integer.toString(mPoolSize));
+        waitForProcessGone();
+        SystemClock.sleep(SETTLE_MILLIS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        // Shell commands are not run through a shell, so an unset property can't be restored;
+        // fall back to the zygote's default size then.
+        setPoolSize(mPreviousPoolSize.isEmpty() ? DEFAULT_POOL_SIZE : mPreviousPoolSize);
+    }
+
+    @Test
+    public void timeColdStart() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final CountDownLatch drawn = new CountDownLatch(1);
+            final Intent intent = new Intent(mContext, ColdStartActivity.class)
+                    .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+                    .putExtra(EXTRA_RECEIVER, new ResultReceiver(null) {
+                        @Override
+                        protected void onReceiveResult(int resultCode, Bundle resultData) {
+                            drawn.countDown();
+                        }
+                    });
+            mContext.startActivity(intent);
+            assertTrue("Activity never drew",
+                    drawn.await(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            state.pauseTiming();
+            waitForProcessGone();
+            SystemClock.sleep(SETTLE_MILLIS);
+            state.resumeTiming();
+        }
+    }
+
+    private void waitForProcessGone() throws InterruptedException {
+        final ActivityManager am = mContext.getSystemService(ActivityManager.class);
+        final long deadline = SystemClock.uptimeMillis() + START_TIMEOUT_MILLIS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            final List<RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+            boolean running = false;
+            for (int i = 0; processes != null && i < processes.size(); i++) {
+                running |= mProcessName.equals(processes.get(i).processName);
+            }
+            if (!running) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        throw new IllegalStateException(mProcessName + " is still running");
+    }
+
+    private static void setPoolSize(String value) throws IOException {
+        final ParcelFileDescriptor pfd = InstrumentationRegistry.getInstrumentation()
+                .getUiAutomation().executeShellCommand("setprop " + POOL_SIZE_PROPERTY + " "
+                        + value);
+        // Drain the output so that the command has completed when we return.
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            final byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+            }
+        }
+    }
+
+    /**
+     * Runs in its own process, reports its first frame and goes away so that the next start is
+     * cold again.
+     */
+    public static class ColdStartActivity extends Activity {
+        @Override
+        protected void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            final View decor = getWindow().getDecorView();
+            decor.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+                private boolean mReported;
+
+                @Override
+                public void onDraw() {
+                    if (mReported) {
+                        return;
+                    }
+                    mReported = true;
+                    // Let the frame finish before reporting it.
+                    decor.post(() -> {
+                        final ResultReceiver receiver =
+                                getIntent().getParcelableExtra(EXTRA_RECEIVER);
+                        receiver.send(0, null);
+                        finish();
+                        Process.killProcess(Process.myPid());
+                    });
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.os.Debug;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares reading the secure and system settings a process typically reads while starting up
+ * through {@link Settings.Secure#getString} and {@link Settings.System#getString} one at a time
+ * with prefetching them first through {@code prefetchStrings}, and counts the binder
+ * transactions each way takes. The local settings caches are cleared before every pass, as the
+ * first reads of a freshly started process find them empty. Global settings are left out: they
+ * are served from the provider's snapshot, which one call already fetches all of.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsBatchReadPerfTest {
+    private static final String TAG = "SettingsBatchReadPerfTest";
+
+    private static final String[] STARTUP_SECURE_SETTINGS = {
+            Settings.Secure.ACCESSIBILITY_ENABLED,
+            Settings.Secure.ENABLED_ACCESSIBILITY_SERVICES,
+            Settings.Secure.TOUCH_EXPLORATION_ENABLED,
+            Settings.Secure.ACCESSIBILITY_DISPLAY_MAGNIFICATION_ENABLED,
+            Settings.Secure.DEFAULT_INPUT_METHOD,
+            Settings.Secure.ENABLED_INPUT_METHODS,
+            Settings.Secure.SELECTED_INPUT_METHOD_SUBTYPE,
+            Settings.Secure.SHOW_IME_WITH_HARD_KEYBOARD,
+            Settings.Secure.LOCK_SCREEN_SHOW_NOTIFICATIONS,
+            Settings.Secure.LOCK_SCREEN_ALLOW_PRIVATE_NOTIFICATIONS,
+            Settings.Secure.LOCK_SCREEN_ALLOW_REMOTE_INPUT,
+            Settings.Secure.USER_SETUP_COMPLETE,
+            Settings.Secure.DOZE_ENABLED,
+            Settings.Secure.SCREENSAVER_ENABLED,
+            Settings.Secure.SCREENSAVER_ACTIVATE_ON_DOCK,
+            Settings.Secure.NIGHT_DISPLAY_ACTIVATED,
+            Settings.Secure.LONG_PRESS_TIMEOUT,
+    };
+
+    private static final String[] STARTUP_SYSTEM_SETTINGS = {
+            Settings.System.SCREEN_BRIGHTNESS,
+            Settings.System.SCREEN_BRIGHTNESS_MODE,
+            Settings.System.SCREEN_OFF_TIMEOUT,
+            Settings.System.FONT_SCALE,
+            Settings.System.ACCELEROMETER_ROTATION,
+            Settings.System.USER_ROTATION,
+            Settings.System.HAPTIC_FEEDBACK_ENABLED,
+            Settings.System.SOUND_EFFECTS_ENABLED,
+            Settings.System.TEXT_SHOW_PASSWORD,
+            Settings.System.TIME_12_24,
+            Settings.System.DTMF_TONE_WHEN_DIALING,
+            Settings.System.VIBRATE_WHEN_RINGING,
+            Settings.System.POINTER_SPEED,
+            Settings.System.SHOW_TOUCHES,
+            Settings.System.END_BUTTON_BEHAVIOR,
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        // Bind the provider up front so that only the reads themselves cost transactions.
+        Settings.Secure.getString(mResolver, STARTUP_SECURE_SETTINGS[0]);
+    }
+
+    @Test
+    public void timeReadIndividually() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            clearCaches();
+            state.resumeTiming();
+            readIndividually();
+        }
+    }
+
+    @Test
+    public void timeReadPrefetched() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            clearCaches();
+            state.resumeTiming();
+            readPrefetched();
+        }
+    }
+
+    @Test
+    public void testBinderTransactions() {
+        clearCaches();
+        int start = Debug.getBinderSentTransactions();
+        readIndividually();
+        final int individual = Debug.getBinderSentTransactions() - start;
+
+        clearCaches();
+        start = Debug.getBinderSentTransactions();
+        readPrefetched();
+        final int prefetched = Debug.getBinderSentTransactions() - start;
+
+        Log.i(TAG, "Binder transactions for "
+                + (STARTUP_SECURE_SETTINGS.length + STARTUP_SYSTEM_SETTINGS.length)
+                + " settings: individual=" + individual + " prefetched=" + prefetched);
+        if (individual >= 0) {
+            // Counting is not available on all kernels, only check when it is.
+            assertTrue(prefetched <= individual);
+        }
+    }
+
+    private static void clearCaches() {
+        Settings.Secure.clearCacheForTest();
+        Settings.System.clearCacheForTest();
+    }
+
+    private void readIndividually() {
+        for (String name : STARTUP_SECURE_SETTINGS) {
+            Settings.Secure.getString(mResolver, name);
+        }
+        for (String name : STARTUP_SYSTEM_SETTINGS) {
+            Settings.System.getString(mResolver, name);
+        }
+    }
+
+    private void readPrefetched() {
+        Settings.Secure.prefetchStrings(mResolver, STARTUP_SECURE_SETTINGS);
+        Settings.System.prefetchStrings(mResolver, STARTUP_SYSTEM_SETTINGS);
+        for (String name : STARTUP_SECURE_SETTINGS) {
+            Settings.Secure.getString(mResolver, name);
+        }
+        for (String name : STARTUP_SYSTEM_SETTINGS) {
+            Settings.System.getString(mResolver, name);
+        }
+    }
+}
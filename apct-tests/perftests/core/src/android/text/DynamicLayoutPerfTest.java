@@ -31,6 +31,9 @@ import android.support.test.rule.ActivityTestRule;
 import android.support.test.runner.AndroidJUnit4;
 import android.text.style.ReplacementSpan;
 import android.util.ArraySet;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
+import android.widget.TextView;
 
 import static android.text.Layout.Alignment.ALIGN_NORMAL;
 
@@ -89,6 +92,8 @@ public class DynamicLayoutPerfTest {
 
     private final static String ALPHABETS = "abcdefghijklmnopqrstuvwxyz";
 
+    private static final int TEXT_VIEW_WIDTH = 1000;
+
     private SpannableStringBuilder getText() {
         final long seed = 1234567890;
         final Random r = new Random(seed);
@@ -139,4 +144,46 @@ public class DynamicLayoutPerfTest {
             }
         }
     }
+
+    @Test
+    public void testSetTextAndMeasure() {
+        final SpannableStringBuilder text = getText();
+        final TextView textView = createTextView();
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Cleared first so that each iteration lays the text out again.
+            textView.setText(null);
+            textView.setText(text);
+            measure(textView);
+        }
+    }
+
+    @Test
+    public void testPrecomputeSetTextAndMeasure() {
+        final SpannableStringBuilder text = getText();
+        final TextView textView = createTextView();
+        final PrecomputedText.Params params = textView.getPrecomputedTextParams();
+        final int width = TEXT_VIEW_WIDTH - textView.getCompoundPaddingLeft()
+                - textView.getCompoundPaddingRight();
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            textView.setText(null);
+            textView.setText(PrecomputedText.create(text, params, width));
+            measure(textView);
+        }
+    }
+
+    private TextView createTextView() {
+        final TextView textView = new TextView(mActivityRule.getActivity());
+        textView.setLayoutParams(new ViewGroup.LayoutParams(TEXT_VIEW_WIDTH,
+                ViewGroup.LayoutParams.WRAP_CONTENT));
+        return textView;
+    }
+
+    private static void measure(TextView textView) {
+        textView.measure(MeasureSpec.makeMeasureSpec(TEXT_VIEW_WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+    }
 }
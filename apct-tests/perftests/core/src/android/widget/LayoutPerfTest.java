@@ -51,10 +51,13 @@ public class LayoutPerfTest {
     @Parameterized.Parameters(name = "{0}")
     public static Collection measureSpecs() {
         return Arrays.asList(new Object[][] {
-                { "relative", R.layout.test_relative_layout, R.id.relative_layout_root },
-                { "linear", R.layout.test_linear_layout, R.id.linear_layout_root },
+                { "relative", R.layout.test_relative_layout, R.id.relative_layout_root, false },
+                { "linear", R.layout.test_linear_layout, R.id.linear_layout_root, false },
                 { "linear_weighted", R.layout.test_linear_layout_weighted,
-                        R.id.linear_layout_weighted_root },
+                        R.id.linear_layout_weighted_root, false },
+                { "text_list", R.layout.test_text_list_layout, R.id.text_list_root, false },
+                { "text_list_parallel", R.layout.test_text_list_layout, R.id.text_list_root,
+                        true },
         });
     }
 
@@ -62,11 +65,13 @@ public class LayoutPerfTest {
 
     private int mLayoutId;
     private int mViewId;
+    private boolean mParallel;
 
-    public LayoutPerfTest(String key, int layoutId, int viewId) {
+    public LayoutPerfTest(String key, int layoutId, int viewId, boolean parallel) {
         // key is used in the final report automatically.
         mLayoutId = layoutId;
         mViewId = viewId;
+        mParallel = parallel;
     }
 
     @Rule
@@ -89,6 +94,7 @@ public class LayoutPerfTest {
             activity.setContentView(mLayoutId);
 
             ViewGroup viewGroup = (ViewGroup) activity.findViewById(mViewId);
+            viewGroup.setMeasureChildrenInParallel(mParallel);
 
             List<View> allNodes = gatherViewTree(viewGroup);
             BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
@@ -105,4 +111,33 @@ public class LayoutPerfTest {
             }
         });
     }
+
+    /**
+     * Measures and lays out the view as the content of a vertically scrolling parent as wide as
+     * the display, the way list items are, which is where measuring children in parallel helps.
+     */
+    @Test
+    @UiThreadTest
+    public void testScrollingLayoutPerf() throws Throwable {
+        mActivityRule.runOnUiThread(() -> {
+            Activity activity = mActivityRule.getActivity();
+            activity.setContentView(mLayoutId);
+
+            ViewGroup viewGroup = (ViewGroup) activity.findViewById(mViewId);
+            viewGroup.setMeasureChildrenInParallel(mParallel);
+
+            List<View> allNodes = gatherViewTree(viewGroup);
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+
+            final int widthMeasureSpec = View.MeasureSpec.makeMeasureSpec(
+                    activity.getResources().getDisplayMetrics().widthPixels, EXACTLY);
+            final int heightMeasureSpec = View.MeasureSpec.makeMeasureSpec(0, UNSPECIFIED);
+            while (state.keepRunning()) {
+                requestLayoutForAllNodes(allNodes);
+
+                viewGroup.measure(widthMeasureSpec, heightMeasureSpec);
+                viewGroup.layout(0, 0, viewGroup.getMeasuredWidth(), viewGroup.getMeasuredHeight());
+            }
+        });
+    }
 }
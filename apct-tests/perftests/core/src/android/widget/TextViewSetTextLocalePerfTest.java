@@ -27,10 +27,15 @@ import android.support.test.filters.LargeTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.support.test.rule.ActivityTestRule;
 import android.support.test.InstrumentationRegistry;
+import android.text.PrecomputedText;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
 
 import java.util.Locale;
 import java.util.Collection;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 import org.junit.Rule;
@@ -49,6 +54,15 @@ public class TextViewSetTextLocalePerfTest {
         });
     }
 
+    private static final int WIDTH = 500;
+
+    private static final String[] TEXTS = {
+        "The quick brown fox jumps over the lazy dog, then runs back across the field "
+                + "and jumps over the dog once more.",
+        "Pack my box with five dozen liquor jugs, and send it on to the address printed "
+                + "on the label below.",
+    };
+
     private String mMetricKey;
     private Locale mFirstLocale;
     private Locale mSecondLocale;
@@ -77,4 +91,58 @@ public class TextViewSetTextLocalePerfTest {
             textView.setTextLocale(mSecondLocale);
         }
     }
+
+    @Test
+    public void testSetTextAndLayout() {
+        final TextView textView = createTextView();
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            textView.setText(TEXTS[i++ % TEXTS.length]);
+            measureAndLayout(textView);
+        }
+    }
+
+    @Test
+    public void testSetPrecomputedTextAndLayout() throws Exception {
+        final TextView textView = createTextView();
+
+        // Precomputed on another thread as a list would while loading its items.
+        final PrecomputedText.Params params = textView.getPrecomputedTextParams();
+        final int width = WIDTH - textView.getCompoundPaddingLeft()
+                - textView.getCompoundPaddingRight();
+        final PrecomputedText[] texts = new PrecomputedText[TEXTS.length];
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < TEXTS.length; i++) {
+                final String text = TEXTS[i];
+                texts[i] = executor.submit(() -> PrecomputedText.create(text, params, width))
+                        .get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            textView.setText(texts[i++ % texts.length]);
+            measureAndLayout(textView);
+        }
+    }
+
+    private TextView createTextView() {
+        final TextView textView = new TextView(mActivityRule.getActivity());
+        textView.setLayoutParams(new ViewGroup.LayoutParams(WIDTH,
+                ViewGroup.LayoutParams.WRAP_CONTENT));
+        textView.setTextLocale(mFirstLocale);
+        return textView;
+    }
+
+    private static void measureAndLayout(TextView textView) {
+        textView.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        textView.layout(0, 0, textView.getMeasuredWidth(), textView.getMeasuredHeight());
+    }
 }
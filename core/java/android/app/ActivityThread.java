@@ -115,6 +115,7 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.app.IVoiceInteractor;
 import com.android.internal.content.ReferrerIntent;
 import com.android.internal.os.BinderInternal;
+import com.android.internal.os.ClassPreloadRecorder;
 import com.android.internal.os.RuntimeInit;
 import com.android.internal.os.SamplingProfilerIntegration;
 import com.android.internal.os.SomeArgs;
@@ -954,6 +955,19 @@ public final class ActivityThread {
                     sticky, sendingUser);
         }
 
+        // Same as scheduleRegisteredReceiver() for several receivers at once, delivered
+        // in list order.
+        @Override
+        public void scheduleRegisteredReceiverList(List<ReceiverInfo> receivers,
+                int processState) throws RemoteException {
+            updateProcessState(processState, false);
+            for (int i = 0; i < receivers.size(); i++) {
+                final ReceiverInfo info = receivers.get(i);
+                info.mReceiver.performReceive(info.mIntent, info.mResultCode, info.mData,
+                        info.mExtras, info.mOrdered, info.mSticky, info.mSendingUser);
+            }
+        }
+
         @Override
         public void scheduleLowMemory() {
             sendMessage(H.LOW_MEMORY, null);
@@ -5133,6 +5147,7 @@ public final class ActivityThread {
 
         // Note when this process has started.
         Process.setStartTimes(SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
+        ColdStartPhases.start();
 
         mBoundApplication = data;
         mConfiguration = new Configuration(data.config);
@@ -5432,6 +5447,7 @@ public final class ActivityThread {
 
             // don't bring up providers in restricted mode; they may depend on the
             // app's custom Application class
+            ColdStartPhases.note(ColdStartPhases.PROVIDERS_START);
             if (!data.restrictedBackupMode) {
                 if (!ArrayUtils.isEmpty(data.providers)) {
                     installContentProviders(app, data.providers);
@@ -5440,6 +5456,7 @@ public final class ActivityThread {
                     mH.sendEmptyMessageDelayed(H.ENABLE_JIT, 10*1000);
                 }
             }
+            ColdStartPhases.note(ColdStartPhases.PROVIDERS_END);
 
             // Do this after providers, since instrumentation tests generally start their
             // test thread at this point, and we don't want that racing.
@@ -5461,6 +5478,8 @@ public final class ActivityThread {
                         + ": " + e.toString(), e);
                 }
             }
+            ColdStartPhases.note(ColdStartPhases.APPLICATION_CREATED);
+            ClassPreloadRecorder.scheduleReport();
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
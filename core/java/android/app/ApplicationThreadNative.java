@@ -406,6 +406,14 @@ public abstract class ApplicationThreadNative extends Binder
             return true;
         }
 
+        case SCHEDULE_REGISTERED_RECEIVER_LIST_TRANSACTION: {
+            data.enforceInterface(IApplicationThread.descriptor);
+            List<ReceiverInfo> receivers = data.createTypedArrayList(ReceiverInfo.CREATOR);
+            int processState = data.readInt();
+            scheduleRegisteredReceiverList(receivers, processState);
+            return true;
+        }
+
         case SCHEDULE_LOW_MEMORY_TRANSACTION:
         {
             data.enforceInterface(IApplicationThread.descriptor);
@@ -1211,6 +1219,20 @@ class ApplicationThreadProxy implements IApplicationThread {
         data.recycle();
     }
 
+    public void scheduleRegisteredReceiverList(List<ReceiverInfo> receivers, int processState)
+            throws RemoteException {
+        Parcel data = Parcel.obtain();
+        data.writeInterfaceToken(IApplicationThread.descriptor);
+        data.writeTypedList(receivers);
+        data.writeInt(processState);
+        try {
+            mRemote.transact(SCHEDULE_REGISTERED_RECEIVER_LIST_TRANSACTION, data, null,
+                    IBinder.FLAG_ONEWAY);
+        } finally {
+            data.recycle();
+        }
+    }
+
     @Override
     public final void scheduleLowMemory() throws RemoteException {
         Parcel data = Parcel.obtain();
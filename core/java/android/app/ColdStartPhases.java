@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Records when an application process reaches each phase of its start up to its first frame,
+ * and reports them once to the activity manager, which lines them up with its own side of the
+ * launch that started the process.
+ * <p>
+ * Recording starts when the process binds its application and stops after the first frame
+ * drawn by any window of the process. Processes that never draw keep nothing but a flag.
+ * </p>
+ *
+ * @hide
+ */
+public final class ColdStartPhases {
+    /** Content providers are about to be installed. */
+    public static final int PROVIDERS_START = 0;
+    /** Content providers are installed, {@link Application#onCreate} is next. */
+    public static final int PROVIDERS_END = 1;
+    /** {@link Application#onCreate} returned. */
+    public static final int APPLICATION_CREATED = 2;
+    /** The first view traversal started. */
+    public static final int FIRST_TRAVERSAL = 3;
+    /** The first frame started drawing. */
+    public static final int FIRST_DRAW_START = 4;
+    /** The first frame was drawn. */
+    public static final int FIRST_DRAW_END = 5;
+    public static final int CHECKPOINT_COUNT = 6;
+
+    private static final Object sLock = new Object();
+
+    /** Uptime millis at which each checkpoint was reached, 0 if not yet. */
+    private static final long[] sCheckpoints = new long[CHECKPOINT_COUNT];
+
+    /** Whether checkpoints are being recorded; checked first so others cost one read. */
+    private static volatile boolean sRecording;
+
+    private ColdStartPhases() {
+    }
+
+    /**
+     * Starts recording; called when the process binds its application.
+     */
+    public static void start() {
+        sRecording = true;
+    }
+
+    /**
+     * Notes that the given checkpoint was reached now, unless it already was earlier.
+     */
+    public static void note(int checkpoint) {
+        if (!sRecording) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long[] report;
+        synchronized (sLock) {
+            if (!sRecording || sCheckpoints[checkpoint] != 0) {
+                return;
+            }
+            sCheckpoints[checkpoint] = now;
+            if (checkpoint != FIRST_DRAW_END) {
+                return;
+            }
+            sRecording = false;
+            report = sCheckpoints.clone();
+        }
+        try {
+            ActivityManager.getService().reportColdStartPhases(Process.myPid(), report);
+        } catch (RemoteException e) {
+            // Only used for stats, nothing to do if the system is gone.
+        }
+    }
+}
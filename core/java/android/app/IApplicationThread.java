@@ -116,6 +116,8 @@ public interface IApplicationThread extends IInterface {
     void scheduleRegisteredReceiver(IIntentReceiver receiver, Intent intent,
             int resultCode, String data, Bundle extras, boolean ordered,
             boolean sticky, int sendingUser, int processState) throws RemoteException;
+    void scheduleRegisteredReceiverList(List<ReceiverInfo> receivers, int processState)
+            throws RemoteException;
     void scheduleLowMemory() throws RemoteException;
     void scheduleActivityConfigurationChanged(IBinder token, Configuration overrideConfig,
             boolean reportToActivity) throws RemoteException;
@@ -227,4 +229,5 @@ public interface IApplicationThread extends IInterface {
     int SCHEDULE_PICTURE_IN_PICTURE_CHANGED_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION+59;
     int SCHEDULE_LOCAL_VOICE_INTERACTION_STARTED_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION+60;
     int ATTACH_AGENT_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION+61;
+    int SCHEDULE_REGISTERED_RECEIVER_LIST_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION+62;
 }
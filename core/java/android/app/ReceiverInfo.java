@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One delivery to a registered receiver, as batched by
+ * {@link IApplicationThread#scheduleRegisteredReceiverList}.
+ *
+ * {@hide}
+ */
+public class ReceiverInfo implements Parcelable {
+    public final IIntentReceiver mReceiver;
+    public final Intent mIntent;
+    public final int mResultCode;
+    public final String mData;
+    public final Bundle mExtras;
+    public final boolean mOrdered;
+    public final boolean mSticky;
+    public final int mSendingUser;
+
+    public ReceiverInfo(IIntentReceiver receiver, Intent intent, int resultCode, String data,
+            Bundle extras, boolean ordered, boolean sticky, int sendingUser) {
+        mReceiver = receiver;
+        mIntent = intent;
+        mResultCode = resultCode;
+        mData = data;
+        mExtras = extras;
+        mOrdered = ordered;
+        mSticky = sticky;
+        mSendingUser = sendingUser;
+    }
+
+    public String toString() {
+        return "ReceiverInfo{receiver=" + mReceiver + ", intent=" + mIntent
+            + ", ordered=" + mOrdered + ", sticky=" + mSticky + "}";
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeStrongBinder(mReceiver.asBinder());
+        mIntent.writeToParcel(out, 0);
+        out.writeInt(mResultCode);
+        out.writeString(mData);
+        out.writeBundle(mExtras);
+        out.writeInt(mOrdered ? 1 : 0);
+        out.writeInt(mSticky ? 1 : 0);
+        out.writeInt(mSendingUser);
+    }
+
+    public static final Parcelable.Creator<ReceiverInfo> CREATOR
+            = new Parcelable.Creator<ReceiverInfo>() {
+        public ReceiverInfo createFromParcel(Parcel in) {
+            return new ReceiverInfo(in);
+        }
+
+        public ReceiverInfo[] newArray(int size) {
+            return new ReceiverInfo[size];
+        }
+    };
+
+    public ReceiverInfo(Parcel in) {
+        mReceiver = IIntentReceiver.Stub.asInterface(in.readStrongBinder());
+        mIntent = Intent.CREATOR.createFromParcel(in);
+        mResultCode = in.readInt();
+        mData = in.readString();
+        mExtras = in.readBundle();
+        mOrdered = in.readInt() != 0;
+        mSticky = in.readInt() != 0;
+        mSendingUser = in.readInt();
+    }
+}
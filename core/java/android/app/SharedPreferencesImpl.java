@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -37,11 +38,18 @@ import libcore.io.IoUtils;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -50,6 +58,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
 
 final class SharedPreferencesImpl implements SharedPreferences {
     private static final String TAG = "SharedPreferencesImpl";
@@ -59,13 +68,31 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * The journal is folded back into the base file once it grows beyond both this size and the
+     * size of the base file, which keeps compaction cost amortized over many small commits.
+     */
+    private static final long JOURNAL_COMPACTION_MIN_BYTES = 32 * 1024;
+
+    private static final int JOURNAL_MAGIC = 0x53504a31; // "SPJ1"
+
+    private static final byte JOURNAL_TYPE_REMOVE = 0;
+    private static final byte JOURNAL_TYPE_STRING = 1;
+    private static final byte JOURNAL_TYPE_INT = 2;
+    private static final byte JOURNAL_TYPE_LONG = 3;
+    private static final byte JOURNAL_TYPE_FLOAT = 4;
+    private static final byte JOURNAL_TYPE_BOOLEAN = 5;
+    private static final byte JOURNAL_TYPE_STRING_SET = 6;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mJournalFile;
     private final int mMode;
+    private final boolean mJournaled;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -86,6 +113,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    /** Size of the journal as last seen by this process, 0 if there is none */
+    @GuardedBy("mLock")
+    private long mJournalStatSize;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -106,7 +137,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
     SharedPreferencesImpl(File file, int mode) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mJournalFile = makeJournalFile(file);
         mMode = mode;
+        mJournaled = (mode & Context.MODE_JOURNALED_PREFERENCES) != 0;
         mLoaded = false;
         mMap = null;
         mThrowable = null;
@@ -164,6 +197,17 @@ final class SharedPreferencesImpl implements SharedPreferences {
             thrown = t;
         }
 
+        // Replay any edits appended since the base file was last written. This is done even when
+        // journaling is not requested for this instance so that switching the mode off never
+        // loses data; the next full write removes the journal.
+        long journalSize = 0;
+        if (thrown == null && mJournalFile.exists()) {
+            if (map == null) {
+                map = new HashMap<>();
+            }
+            journalSize = replayJournal(mJournalFile, map);
+        }
+
         synchronized (mLock) {
             mLoaded = true;
             mThrowable = thrown;
@@ -175,8 +219,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 if (thrown == null) {
                     if (map != null) {
                         mMap = map;
-                        mStatTimestamp = stat.st_mtim;
-                        mStatSize = stat.st_size;
+                        if (stat != null) {
+                            mStatTimestamp = stat.st_mtim;
+                            mStatSize = stat.st_size;
+                        }
+                        mJournalStatSize = journalSize;
                     } else {
                         mMap = new HashMap<>();
                     }
@@ -195,6 +242,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return new File(prefsFile.getPath() + ".bak");
     }
 
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
     void startReloadIfChangedUnexpectedly() {
         synchronized (mLock) {
             // TODO: wait for any pending writes to disk?
@@ -227,9 +278,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
         } catch (ErrnoException e) {
             return true;
         }
+        final long journalSize = mJournaled ? mJournalFile.length() : 0;
 
         synchronized (mLock) {
-            return !stat.st_mtim.equals(mStatTimestamp) || mStatSize != stat.st_size;
+            return !stat.st_mtim.equals(mStatTimestamp) || mStatSize != stat.st_size
+                    || (mJournaled && mJournalStatSize != journalSize);
         }
     }
 
@@ -358,6 +411,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** Whether the map was cleared before applying {@link #journalDelta} */
+        final boolean journalCleared;
+        /** Changed keys and their new values ({@code null} for removals), or null if unused */
+        @Nullable final Map<String, Object> journalDelta;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -366,11 +423,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, boolean journalCleared,
+                @Nullable Map<String, Object> journalDelta) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.journalCleared = journalCleared;
+            this.journalDelta = journalDelta;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -495,6 +555,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            boolean journalCleared = false;
+            Map<String, Object> journalDelta = mJournaled ? new HashMap<>() : null;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
@@ -522,6 +584,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     if (mClear) {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
+                            journalCleared = true;
                             mapToWriteToDisk.clear();
                         }
                         mClear = false;
@@ -552,6 +615,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (journalDelta != null) {
+                            journalDelta.put(k, mapToWriteToDisk.get(k));
+                        }
                     }
 
                     mModified.clear();
@@ -564,7 +630,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, journalCleared, journalDelta);
         }
 
         @Override
@@ -691,6 +757,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     @GuardedBy("mWritingToDiskLock")
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        // In journal mode every state change is appended in order; intermediate states cannot be
+        // skipped as the journal only holds deltas. Fall back to a full write when there is no
+        // base file yet, when the journal is due for compaction or when appending failed.
+        boolean forceWrite = false;
+        if (mJournaled && mcr.journalDelta != null
+                && mDiskStateGeneration < mcr.memoryStateGeneration
+                && mFile.exists() && !shouldCompactJournal()) {
+            if (appendToJournal(mcr)) {
+                return;
+            }
+            // The delta of this commit is not on disk, and a later commit only appends its own
+            // delta, so this state has to be written in full even if a newer one is pending.
+            forceWrite = true;
+        }
+
         long startTime = 0;
         long existsTime = 0;
         long backupExistsTime = 0;
@@ -720,7 +801,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
             // Only need to write if the disk state is older than this commit
             if (mDiskStateGeneration < mcr.memoryStateGeneration) {
-                if (isFromSyncCommit) {
+                if (isFromSyncCommit || forceWrite) {
                     needsWrite = true;
                 } else {
                     synchronized (mLock) {
@@ -802,6 +883,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // The base file now contains every journaled edit.
+            if (mJournalFile.exists()) {
+                mJournalFile.delete();
+            }
+            synchronized (mLock) {
+                mJournalStatSize = 0;
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -844,4 +933,271 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    @GuardedBy("mWritingToDiskLock")
+    private boolean shouldCompactJournal() {
+        final long baseSize;
+        synchronized (mLock) {
+            baseSize = mStatSize;
+        }
+        return mJournalFile.length() > Math.max(JOURNAL_COMPACTION_MIN_BYTES, baseSize);
+    }
+
+    /**
+     * Append the delta of a commit to the journal and fsync it.
+     *
+     * @return true if the record is durably on disk, false if the caller should fall back to
+     *   rewriting the whole file
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean appendToJournal(MemoryCommitResult mcr) {
+        final byte[] record;
+        try {
+            record = encodeJournalRecord(mcr.journalCleared, mcr.journalDelta);
+        } catch (IOException e) {
+            Log.w(TAG, "appendToJournal: Cannot encode record:", e);
+            return false;
+        }
+
+        final boolean isNewJournal = !mJournalFile.exists();
+        final long previousLength = isNewJournal ? 0 : mJournalFile.length();
+        FileOutputStream str = null;
+        try {
+            str = new FileOutputStream(mJournalFile, true);
+            if (isNewJournal) {
+                DataOutputStream header = new DataOutputStream(str);
+                header.writeInt(JOURNAL_MAGIC);
+                header.flush();
+            }
+            str.write(record);
+
+            final long writeTime = System.currentTimeMillis();
+            FileUtils.sync(str);
+            final long fsyncDuration = System.currentTimeMillis() - writeTime;
+
+            str.close();
+            str = null;
+            if (isNewJournal) {
+                ContextImpl.setFilePermissionsFromMode(mJournalFile.getPath(), mMode, 0);
+            }
+
+            final long journalSize = mJournalFile.length();
+            synchronized (mLock) {
+                mJournalStatSize = journalSize;
+            }
+
+            mDiskStateGeneration = mcr.memoryStateGeneration;
+            mcr.setDiskWriteResult(true, true);
+
+            mSyncTimes.add((int) fsyncDuration);
+            mNumSync++;
+
+            if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mJournalFile + ": ");
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "appendToJournal: Got exception:", e);
+        } finally {
+            IoUtils.closeQuietly(str);
+        }
+
+        // A partially appended record would hide every later one during replay, so cut it off
+        // and keep the records before it; the caller rewrites the complete state into the base
+        // file, which then replaces the journal.
+        truncateJournal(previousLength);
+        return false;
+    }
+
+    /**
+     * Cut the journal back to the given length, deleting it when it is emptied or cannot be
+     * truncated.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void truncateJournal(long length) {
+        if (length > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw")) {
+                raf.setLength(length);
+                raf.getFD().sync();
+                synchronized (mLock) {
+                    mJournalStatSize = length;
+                }
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "truncateJournal: Got exception:", e);
+            }
+        }
+        mJournalFile.delete();
+        synchronized (mLock) {
+            mJournalStatSize = 0;
+        }
+    }
+
+    /**
+     * Encode one journal record as {@code length, crc32, payload}. The payload is the clear flag
+     * followed by the changed entries.
+     */
+    private static byte[] encodeJournalRecord(boolean cleared, Map<String, Object> delta)
+            throws IOException {
+        final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeBoolean(cleared);
+        payload.writeInt(delta.size());
+        for (Map.Entry<String, Object> e : delta.entrySet()) {
+            writeJournalString(payload, e.getKey());
+            final Object v = e.getValue();
+            if (v == null) {
+                payload.writeByte(JOURNAL_TYPE_REMOVE);
+            } else if (v instanceof String) {
+                payload.writeByte(JOURNAL_TYPE_STRING);
+                writeJournalString(payload, (String) v);
+            } else if (v instanceof Integer) {
+                payload.writeByte(JOURNAL_TYPE_INT);
+                payload.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                payload.writeByte(JOURNAL_TYPE_LONG);
+                payload.writeLong((Long) v);
+            } else if (v instanceof Float) {
+                payload.writeByte(JOURNAL_TYPE_FLOAT);
+                payload.writeFloat((Float) v);
+            } else if (v instanceof Boolean) {
+                payload.writeByte(JOURNAL_TYPE_BOOLEAN);
+                payload.writeBoolean((Boolean) v);
+            } else if (v instanceof Set) {
+                final Set<String> set = (Set<String>) v;
+                payload.writeByte(JOURNAL_TYPE_STRING_SET);
+                payload.writeInt(set.size());
+                for (String item : set) {
+                    writeJournalString(payload, item);
+                }
+            } else {
+                throw new IOException("Unsupported value type for key " + e.getKey() + ": "
+                        + v.getClass().getName());
+            }
+        }
+        payload.flush();
+
+        final byte[] bytes = payloadBytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(bytes.length + 8);
+        final DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(bytes.length);
+        record.writeInt((int) crc.getValue());
+        record.write(bytes);
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    /**
+     * Apply all complete records of a journal to {@code map}. Reading stops at the first truncated
+     * or corrupt record, which can only be the tail left by an interrupted append.
+     *
+     * @return the size of the journal file
+     */
+    private static long replayJournal(File journalFile, Map<String, Object> map) {
+        DataInputStream in = null;
+        int numRecords = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journalFile), 16 * 1024));
+            if (in.readInt() != JOURNAL_MAGIC) {
+                Log.w(TAG, "Ignoring journal with unknown format " + journalFile);
+                return journalFile.length();
+            }
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final int expectedCrc = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+
+                final CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Checksum mismatch in record " + numRecords);
+                }
+                applyJournalRecord(new DataInputStream(new ByteArrayInputStream(bytes)),
+                        map);
+                numRecords++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Stopped replaying " + journalFile + " after " + numRecords
+                    + " records: " + e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Replayed " + numRecords + " records from " + journalFile);
+        }
+        return journalFile.length();
+    }
+
+    private static void applyJournalRecord(DataInputStream record, Map<String, Object> map)
+            throws IOException {
+        if (record.readBoolean()) {
+            map.clear();
+        }
+        final int count = record.readInt();
+        for (int i = 0; i < count; i++) {
+            final String key = readJournalString(record);
+            final byte type = record.readByte();
+            switch (type) {
+                case JOURNAL_TYPE_REMOVE:
+                    map.remove(key);
+                    break;
+                case JOURNAL_TYPE_STRING:
+                    map.put(key, readJournalString(record));
+                    break;
+                case JOURNAL_TYPE_INT:
+                    map.put(key, record.readInt());
+                    break;
+                case JOURNAL_TYPE_LONG:
+                    map.put(key, record.readLong());
+                    break;
+                case JOURNAL_TYPE_FLOAT:
+                    map.put(key, record.readFloat());
+                    break;
+                case JOURNAL_TYPE_BOOLEAN:
+                    map.put(key, record.readBoolean());
+                    break;
+                case JOURNAL_TYPE_STRING_SET: {
+                    final int size = record.readInt();
+                    final Set<String> set = new HashSet<>(size);
+                    for (int j = 0; j < size; j++) {
+                        set.add(readJournalString(record));
+                    }
+                    map.put(key, set);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown value type " + type + " for key " + key);
+            }
+        }
+    }
+
+    // DataOutputStream#writeUTF is limited to 64k, which is not enough for preference values.
+    private static void writeJournalString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
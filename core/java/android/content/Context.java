@@ -183,6 +183,18 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading mode: when set, committed edits are appended to
+     * a small journal next to the preferences file instead of rewriting the
+     * whole file, which is compacted back into the file once the journal grows
+     * large enough. Only honored the first time a given preferences file is
+     * opened in a process.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_JOURNALED_PREFERENCES = 0x0020;
+
     /**
      * @hide
      */
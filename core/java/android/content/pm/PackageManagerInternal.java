@@ -383,4 +383,11 @@ public abstract class PackageManagerInternal {
      * Updates a package last used time.
      */
     public abstract void notifyPackageUse(String packageName, int reason);
+
+    /**
+     * Returns a counter that changes whenever the receivers or services matched by intent
+     * queries may have changed, for any user. Callers caching such queries must drop results
+     * taken at another generation.
+     */
+    public abstract int getComponentStateGeneration();
 }
@@ -85,6 +85,18 @@ public final class SharedMemory implements Parcelable, Closeable {
         return new SharedMemory(nCreate(name, size));
     }
 
+    /**
+     * Returns a new SharedMemory for the same region, backed by a duplicate of the file
+     * descriptor. Either instance can be closed without affecting the other.
+     *
+     * @throws ErrnoException if the file descriptor cannot be duplicated.
+     * @hide
+     */
+    public @NonNull SharedMemory dup() throws ErrnoException {
+        checkOpen();
+        return new SharedMemory(Os.dup(mFileDescriptor));
+    }
+
     private void checkOpen() {
         if (!mFileDescriptor.valid()) {
             throw new IllegalStateException("SharedMemory is closed");
@@ -51,9 +51,11 @@ import android.os.LocaleList;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.os.Build.VERSION_CODES;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.AndroidException;
 import android.util.ArrayMap;
@@ -62,12 +64,14 @@ import android.util.Log;
 import android.util.MemoryIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.widget.ILockSettings;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
@@ -1368,6 +1372,29 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow would like a
+     * snapshot of the whole table. If this key is mapped to a <code>null</code> string extra
+     * in the request bundle, the response bundle may contain the same key mapped to a
+     * {@link android.os.SharedMemory} holding a {@link SettingsSnapshot}. The snapshot can
+     * serve reads as long as its generation matches the one tracked through
+     * {@link #CALL_METHOD_TRACK_GENERATION_KEY}.
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
+    /**
+     * @hide - Names of further settings to read in the same fast-path call()-based request,
+     * as a string array extra. The response bundle will contain their values as a string
+     * array mapped to {@link #CALL_METHOD_VALUES_KEY}, in the same order.
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide Key with the values of the settings requested through
+     * {@link #CALL_METHOD_NAMES_KEY}. The value is a string array.
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1525,6 +1552,10 @@ public final class Settings {
             mCurrentGeneration = generation;
         }
 
+        public int getCurrentGeneration() {
+            return mCurrentGeneration;
+        }
+
         public boolean isGenerationChanged() {
             final int currentGeneration = readCurrentGeneration();
             if (currentGeneration >= 0) {
@@ -1570,6 +1601,9 @@ public final class Settings {
             new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
+        // Must match the limit of batched reads in the settings provider.
+        private static final int MAX_PREFETCH_NAMES = 256;
+
         // Must synchronize on 'this' to access mValues and mValuesVersion.
         private final HashMap<String, String> mValues = new HashMap<String, String>();
 
@@ -1584,10 +1618,63 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Whether to ask the provider for a snapshot of the whole table, which serves cache
+        // misses without a binder call for as long as the generation does not change.
+        private final boolean mUseSnapshot;
+
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand) {
+            this(uri, getCommand, setCommand, false);
+        }
+
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                boolean useSnapshot) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mUseSnapshot = useSnapshot;
+        }
+
+        @GuardedBy("this")
+        private boolean isSnapshotCurrentLocked() {
+            return mSnapshot != null && mGenerationTracker != null
+                    && mSnapshot.getGeneration() == mGenerationTracker.getCurrentGeneration();
+        }
+
+        @GuardedBy("this")
+        private void dropSnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+
+        @GuardedBy("this")
+        private void setGenerationTrackerLocked(Bundle b, ContentResolver cr) {
+            MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (array != null && index >= 0) {
+                final int generation = b.getInt(CALL_METHOD_GENERATION_KEY, 0);
+                if (DEBUG) {
+                    Log.i(TAG, "Received generation tracker for type:" + mUri.getPath()
+                            + " in package:" + cr.getPackageName() + " and user:"
+                            + UserHandle.myUserId() + " with index:" + index);
+                }
+                mGenerationTracker = new GenerationTracker(array, index, generation, () -> {
+                    synchronized (NameValueCache.this) {
+                        Log.e(TAG, "Error accessing generation tracker - removing");
+                        if (mGenerationTracker != null) {
+                            GenerationTracker generationTracker = mGenerationTracker;
+                            mGenerationTracker = null;
+                            generationTracker.destroy();
+                            mValues.clear();
+                            dropSnapshotLocked();
+                        }
+                    }
+                });
+            }
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
@@ -1616,6 +1703,91 @@ public final class Settings {
             return true;
         }
 
+        /**
+         * Reads all of the given settings of the calling user that are not cached yet in a
+         * single call into the provider, so that the following reads are served locally.
+         * Names the provider refuses to batch are left for individual reads, as are names
+         * contained in any of {@code movedNames}, which the table forwards elsewhere. Tables
+         * read through a snapshot have no use for this, one call already fetches all of them.
+         */
+        @SafeVarargs
+        public final void prefetchStrings(ContentResolver cr, String[] names,
+                Set<String>... movedNames) {
+            if (mCallGetCommand == null || names.length == 0) {
+                return;
+            }
+            final ArrayList<String> missing = new ArrayList<>(names.length);
+            boolean needsGenerationTracker = false;
+            synchronized (NameValueCache.this) {
+                if (mGenerationTracker != null && mGenerationTracker.isGenerationChanged()) {
+                    mValues.clear();
+                    dropSnapshotLocked();
+                }
+                nextName:
+                for (String name : names) {
+                    for (Set<String> moved : movedNames) {
+                        if (moved.contains(name)) {
+                            continue nextName;
+                        }
+                    }
+                    if (mGenerationTracker != null && mValues.containsKey(name)) {
+                        continue;
+                    }
+                    missing.add(name);
+                }
+                needsGenerationTracker = mGenerationTracker == null;
+            }
+
+            final IContentProvider cp = lazyGetProvider(cr);
+            for (int start = 0; start < missing.size(); start += MAX_PREFETCH_NAMES) {
+                final String[] batch = missing.subList(start,
+                        Math.min(missing.size(), start + MAX_PREFETCH_NAMES))
+                        .toArray(new String[0]);
+                final Bundle args = new Bundle();
+                args.putStringArray(CALL_METHOD_NAMES_KEY, batch);
+                if (needsGenerationTracker) {
+                    args.putString(CALL_METHOD_TRACK_GENERATION_KEY, null);
+                }
+                final Bundle b;
+                try {
+                    b = cp.call(cr.getPackageName(), mCallGetCommand, batch[0], args);
+                } catch (RemoteException | SecurityException e) {
+                    // Fall back to reading the settings one at a time.
+                    Log.w(TAG, "Can't prefetch " + batch.length + " keys from " + mUri, e);
+                    return;
+                }
+                final String[] values = (b != null)
+                        ? b.getStringArray(CALL_METHOD_VALUES_KEY) : null;
+                if (values == null || values.length != batch.length) {
+                    // Provider without batched reads, don't try again.
+                    return;
+                }
+                synchronized (NameValueCache.this) {
+                    if (needsGenerationTracker && mGenerationTracker == null) {
+                        setGenerationTrackerLocked(b, cr);
+                    }
+                    needsGenerationTracker = false;
+                    // Values can only be cached while their generation is tracked.
+                    if (mGenerationTracker == null) {
+                        return;
+                    }
+                    for (int i = 0; i < batch.length; i++) {
+                        mValues.put(batch[i], values[i]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Forgets the cached values and snapshot, so that the next reads go to the provider.
+         */
+        public void clearCacheForTest() {
+            synchronized (NameValueCache.this) {
+                mValues.clear();
+                dropSnapshotLocked();
+            }
+        }
+
         public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
             final boolean isSelf = (userHandle == UserHandle.myUserId());
             if (isSelf) {
@@ -1628,8 +1800,18 @@ public final class Settings {
                                         + cr.getPackageName() +" and user:" + userHandle);
                             }
                             mValues.clear();
+                            dropSnapshotLocked();
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
+                        } else if (isSnapshotCurrentLocked()) {
+                            try {
+                                final String value = mSnapshot.getString(name);
+                                mValues.put(name, value);
+                                return value;
+                            } catch (IndexOutOfBoundsException e) {
+                                Log.e(TAG, "Corrupt settings snapshot for " + mUri, e);
+                                dropSnapshotLocked();
+                            }
                         }
                     }
                 }
@@ -1652,6 +1834,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -1665,6 +1848,13 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && mUseSnapshot && !isSnapshotCurrentLocked()) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
                     if (b != null) {
@@ -1673,33 +1863,22 @@ public final class Settings {
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
                                 if (needsGenerationTracker) {
-                                    MemoryIntArray array = b.getParcelable(
-                                            CALL_METHOD_TRACK_GENERATION_KEY);
-                                    final int index = b.getInt(
-                                            CALL_METHOD_GENERATION_INDEX_KEY, -1);
-                                    if (array != null && index >= 0) {
-                                        final int generation = b.getInt(
-                                                CALL_METHOD_GENERATION_KEY, 0);
-                                        if (DEBUG) {
-                                            Log.i(TAG, "Received generation tracker for type:"
-                                                    + mUri.getPath() + " in package:"
-                                                    + cr.getPackageName() + " and user:"
-                                                    + userHandle + " with index:" + index);
+                                    setGenerationTrackerLocked(b, cr);
+                                }
+                                if (needsSnapshot) {
+                                    final SharedMemory memory = b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY);
+                                    if (memory != null) {
+                                        try {
+                                            final SettingsSnapshot snapshot =
+                                                    SettingsSnapshot.map(memory);
+                                            dropSnapshotLocked();
+                                            mSnapshot = snapshot;
+                                        } catch (ErrnoException | IllegalArgumentException e) {
+                                            Log.e(TAG, "Cannot map settings snapshot for "
+                                                    + mUri, e);
+                                            memory.close();
                                         }
-                                        mGenerationTracker = new GenerationTracker(array, index,
-                                                generation, () -> {
-                                            synchronized (NameValueCache.this) {
-                                                Log.e(TAG, "Error accessing generation"
-                                                        + " tracker - removing");
-                                                if (mGenerationTracker != null) {
-                                                    GenerationTracker generationTracker =
-                                                            mGenerationTracker;
-                                                    mGenerationTracker = null;
-                                                    generationTracker.destroy();
-                                                    mValues.clear();
-                                                }
-                                            }
-                                        });
                                     }
                                 }
                                 mValues.put(name, value);
@@ -1954,6 +2133,27 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads the given settings of the calling user with a single call into the settings
+         * provider and caches them, so that following reads of them are served locally.
+         * Processes use this to warm up the settings they read at startup. Settings that moved to
+         * another table are not prefetched.
+         * @hide
+         */
+        public static void prefetchStrings(ContentResolver resolver, String... names) {
+            sNameValueCache.prefetchStrings(resolver, names, MOVED_TO_SECURE, MOVED_TO_GLOBAL,
+                    MOVED_TO_SECURE_THEN_GLOBAL);
+        }
+
+        /**
+         * Drops the locally cached system settings, so that the next reads go to the provider.
+         * @hide
+         */
+        @VisibleForTesting
+        public static void clearCacheForTest() {
+            sNameValueCache.clearCacheForTest();
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -4325,6 +4525,27 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads the given settings of the calling user with a single call into the settings
+         * provider and caches them, so that following reads of them are served locally.
+         * Processes use this to warm up the settings they read at startup. Settings that moved to
+         * another table or to lock settings are not prefetched.
+         * @hide
+         */
+        public static void prefetchStrings(ContentResolver resolver, String... names) {
+            sNameValueCache.prefetchStrings(resolver, names, MOVED_TO_GLOBAL,
+                    MOVED_TO_LOCK_SETTINGS);
+        }
+
+        /**
+         * Drops the locally cached secure settings, so that the next reads go to the provider.
+         * @hide
+         */
+        @VisibleForTesting
+        public static void clearCacheForTest() {
+            sNameValueCache.clearCacheForTest();
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -9140,7 +9361,8 @@ public final class Settings {
         private static NameValueCache sNameValueCache = new NameValueCache(
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
-                    CALL_METHOD_PUT_GLOBAL);
+                    CALL_METHOD_PUT_GLOBAL,
+                    true /* useSnapshot */);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only view of all values of a settings table at a given generation, shared by the
+ * settings provider with client processes so that {@link Settings} reads can be served
+ * without a binder call.
+ * <p>
+ * Layout: magic, generation, entry count, then an index of (name hash, entry offset) pairs
+ * sorted by hash, then the entries themselves as a UTF-16 name and value, each prefixed by
+ * its length in chars (-1 for a null value). Lookups binary search the index in place.
+ * </p>
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final int MAGIC = 0x534e5031; // "SNP1"
+    private static final int HEADER_SIZE = 12;
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mCount;
+
+    private SettingsSnapshot(SharedMemory memory, ByteBuffer buffer) {
+        mMemory = memory;
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        mGeneration = buffer.getInt(4);
+        mCount = buffer.getInt(8);
+        if (mCount < 0 || HEADER_SIZE + (long) mCount * INDEX_ENTRY_SIZE > buffer.limit()) {
+            throw new IllegalArgumentException("Bad settings snapshot size");
+        }
+    }
+
+    /**
+     * Writes the given values into a new read-only shared memory region.
+     */
+    public static @NonNull SharedMemory create(@Nullable String name, int generation,
+            @NonNull ArrayMap<String, String> values) throws ErrnoException {
+        final int count = values.size();
+        long size = HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE;
+        final long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            final String key = values.keyAt(i);
+            final String value = values.valueAt(i);
+            size += 8 + 2L * key.length() + (value != null ? 2L * value.length() : 0);
+            // Sort by hash, keeping the original index in the low bits.
+            order[i] = ((long) key.hashCode() << 32) | i;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Settings too large for a snapshot");
+        }
+        Arrays.sort(order);
+
+        final SharedMemory memory = SharedMemory.create(name, (int) size);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(generation);
+            buffer.putInt(count);
+            int offset = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+            for (int i = 0; i < count; i++) {
+                final int index = (int) order[i];
+                final String key = values.keyAt(index);
+                final String value = values.valueAt(index);
+                buffer.putInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE, key.hashCode());
+                buffer.putInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 4, offset);
+                offset = putString(buffer, offset, key);
+                offset = putString(buffer, offset, value);
+            }
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+        return memory;
+    }
+
+    /**
+     * Maps a snapshot received from the settings provider. The snapshot owns the memory and
+     * releases it in {@link #close()}.
+     */
+    public static @NonNull SettingsSnapshot map(@NonNull SharedMemory memory)
+            throws ErrnoException {
+        final ByteBuffer buffer = memory.mapReadOnly();
+        try {
+            return new SettingsSnapshot(memory, buffer);
+        } catch (IllegalArgumentException e) {
+            SharedMemory.unmap(buffer);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the generation of the settings table this snapshot was taken at.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the value of the given setting, or {@code null} if it has no value or does not
+     * exist, which is the same answer the provider would give.
+     *
+     * @throws IndexOutOfBoundsException if the snapshot is corrupt
+     */
+    public @Nullable String getString(@NonNull String name) {
+        final int hash = name.hashCode();
+        int lo = 0;
+        int hi = mCount - 1;
+        // Find the first index entry with a matching hash.
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (hashAt(mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        for (int i = lo; i < mCount && hashAt(i) == hash; i++) {
+            final int offset = mBuffer.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 4);
+            if (nameEquals(offset, name)) {
+                return getString(offset + 4 + 2 * name.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Unmaps and closes the shared memory.
+     */
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mMemory.close();
+    }
+
+    private int hashAt(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE);
+    }
+
+    private boolean nameEquals(int offset, String name) {
+        final int length = mBuffer.getInt(offset);
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mBuffer.getChar(offset + 4 + 2 * i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        if (length < 0) {
+            return null;
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    private static int putString(ByteBuffer buffer, int offset, String s) {
+        if (s == null) {
+            buffer.putInt(offset, -1);
+            return offset + 4;
+        }
+        final int length = s.length();
+        buffer.putInt(offset, length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(offset + 4 + 2 * i, s.charAt(i));
+        }
+        return offset + 4 + 2 * length;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.text.Layout.Alignment;
+import android.text.TextUtils.TruncateAt;
+
+/**
+ * A text with its layout worked out ahead of time for a given paint, width and layout parameters.
+ * <p>
+ * Measuring text and breaking it into lines is most of the cost of laying it out, and
+ * {@link #create} does both on the thread it is called on, so that it can be done on a
+ * background thread, for instance while loading the items of a list, rather than on the UI
+ * thread while the views showing them are measured.
+ * <p>
+ * A precomputed text is a {@link CharSequence} of the characters of its text, and is handed to
+ * {@link android.widget.TextView#setText(CharSequence)} like any other. The text view uses the
+ * precomputed layout for as long as it lays the text out unchanged, at the width it was
+ * precomputed for and with {@link android.widget.TextView#getPrecomputedTextParams the
+ * parameters} it was precomputed with, and otherwise lays the text out itself as usual.
+ * Text views that keep their text {@link Spannable}, such as those with a
+ * {@link android.widget.TextView.BufferType#SPANNABLE} buffer, copy it and lay it out as usual.
+ * <p>
+ * The text must not change once precomputed.
+ *
+ * @hide
+ */
+public final class PrecomputedText implements CharSequence {
+
+    /**
+     * The parameters a text is laid out with, besides its width.
+     */
+    public static final class Params {
+        private final TextPaint mPaint;
+        private final Alignment mAlignment;
+        private final TextDirectionHeuristic mTextDir;
+        private final float mSpacingAdd;
+        private final float mSpacingMult;
+        private final boolean mIncludePad;
+        private final int mBreakStrategy;
+        private final int mHyphenationFrequency;
+        private final int mJustificationMode;
+        private final TruncateAt mEllipsize;
+        private final int mMaxLines;
+
+        private Params(Builder b) {
+            // Copied, the caller's paint may change or be used on another thread.
+            mPaint = new TextPaint(b.mPaint);
+            mAlignment = b.mAlignment;
+            mTextDir = b.mTextDir;
+            mSpacingAdd = b.mSpacingAdd;
+            mSpacingMult = b.mSpacingMult;
+            mIncludePad = b.mIncludePad;
+            mBreakStrategy = b.mBreakStrategy;
+            mHyphenationFrequency = b.mHyphenationFrequency;
+            mJustificationMode = b.mJustificationMode;
+            mEllipsize = b.mEllipsize;
+            mMaxLines = b.mMaxLines;
+        }
+
+        /**
+         * Returns whether a text laid out with these parameters is laid out as it would be with
+         * the given ones. Only the attributes of the paint that measuring text depends on are
+         * compared.
+         */
+        public boolean isCompatible(@NonNull TextPaint paint, @NonNull Alignment align,
+                @NonNull TextDirectionHeuristic textDir, float spacingAdd, float spacingMult,
+                boolean includePad, int breakStrategy, int hyphenationFrequency,
+                int justificationMode, @Nullable TruncateAt ellipsize, int maxLines) {
+            return mAlignment == align
+                    && mTextDir == textDir
+                    && mSpacingAdd == spacingAdd
+                    && mSpacingMult == spacingMult
+                    && mIncludePad == includePad
+                    && mBreakStrategy == breakStrategy
+                    && mHyphenationFrequency == hyphenationFrequency
+                    && mJustificationMode == justificationMode
+                    && mEllipsize == ellipsize
+                    && mMaxLines == maxLines
+                    && measuresLike(paint);
+        }
+
+        /**
+         * Returns whether text is measured the same with the given paint as with this one.
+         */
+        boolean measuresLike(@NonNull TextPaint paint) {
+            return mPaint.getTypeface() == paint.getTypeface()
+                    && mPaint.getTextSize() == paint.getTextSize()
+                    && mPaint.getTextScaleX() == paint.getTextScaleX()
+                    && mPaint.getTextSkewX() == paint.getTextSkewX()
+                    && mPaint.getLetterSpacing() == paint.getLetterSpacing()
+                    && mPaint.getWordSpacing() == paint.getWordSpacing()
+                    && mPaint.getFlags() == paint.getFlags()
+                    && mPaint.isElegantTextHeight() == paint.isElegantTextHeight()
+                    && mPaint.getHyphenEdit() == paint.getHyphenEdit()
+                    && mPaint.getTextLocales().equals(paint.getTextLocales())
+                    && TextUtils.equals(mPaint.getFontFeatureSettings(),
+                            paint.getFontFeatureSettings())
+                    && TextUtils.equals(mPaint.getFontVariationSettings(),
+                            paint.getFontVariationSettings());
+        }
+
+        /**
+         * Builder for {@link Params}, with the defaults of {@link StaticLayout.Builder}.
+         */
+        public static final class Builder {
+            private final TextPaint mPaint;
+            private Alignment mAlignment = Alignment.ALIGN_NORMAL;
+            private TextDirectionHeuristic mTextDir = TextDirectionHeuristics.FIRSTSTRONG_LTR;
+            private float mSpacingAdd = 0.0f;
+            private float mSpacingMult = 1.0f;
+            private boolean mIncludePad = true;
+            private int mBreakStrategy = Layout.BREAK_STRATEGY_SIMPLE;
+            private int mHyphenationFrequency = Layout.HYPHENATION_FREQUENCY_NONE;
+            private int mJustificationMode = Layout.JUSTIFICATION_MODE_NONE;
+            private TruncateAt mEllipsize;
+            private int mMaxLines = Integer.MAX_VALUE;
+
+            /**
+             * @param paint the paint to measure the text with, copied by {@link #build}
+             */
+            public Builder(@NonNull TextPaint paint) {
+                mPaint = paint;
+            }
+
+            /** @see StaticLayout.Builder#setAlignment */
+            public Builder setAlignment(@NonNull Alignment alignment) {
+                mAlignment = alignment;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setTextDirection */
+            public Builder setTextDirection(@NonNull TextDirectionHeuristic textDir) {
+                mTextDir = textDir;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setLineSpacing */
+            public Builder setLineSpacing(float spacingAdd, float spacingMult) {
+                mSpacingAdd = spacingAdd;
+                mSpacingMult = spacingMult;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setIncludePad */
+            public Builder setIncludePad(boolean includePad) {
+                mIncludePad = includePad;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setBreakStrategy */
+            public Builder setBreakStrategy(int breakStrategy) {
+                mBreakStrategy = breakStrategy;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setHyphenationFrequency */
+            public Builder setHyphenationFrequency(int hyphenationFrequency) {
+                mHyphenationFrequency = hyphenationFrequency;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setJustificationMode */
+            public Builder setJustificationMode(int justificationMode) {
+                mJustificationMode = justificationMode;
+                return this;
+            }
+
+            /**
+             * Sets where the text is ellipsized, at the width it is precomputed for.
+             *
+             * @see StaticLayout.Builder#setEllipsize
+             */
+            public Builder setEllipsize(@Nullable TruncateAt ellipsize) {
+                mEllipsize = ellipsize;
+                return this;
+            }
+
+            /** @see StaticLayout.Builder#setMaxLines */
+            public Builder setMaxLines(int maxLines) {
+                mMaxLines = maxLines;
+                return this;
+            }
+
+            public Params build() {
+                return new Params(this);
+            }
+        }
+    }
+
+    private final CharSequence mText;
+    private final Params mParams;
+    private final int mWidth;
+    private final int mDesiredWidth;
+
+    /** Metrics of text laid out on a single {@link BoringLayout}, null otherwise. */
+    private final BoringLayout.Metrics mBoring;
+    /** The lines of text that isn't boring, null otherwise. */
+    private final StaticLayout mLayout;
+
+    /** The paint of whoever took {@link #mLayout} to draw, guarded by this. */
+    private TextPaint mLayoutPaint;
+
+    private PrecomputedText(CharSequence text, Params params, int width, int desiredWidth,
+            BoringLayout.Metrics boring, StaticLayout layout) {
+        mText = text;
+        mParams = params;
+        mWidth = width;
+        mDesiredWidth = desiredWidth;
+        mBoring = boring;
+        mLayout = layout;
+    }
+
+    /**
+     * Measures the text and breaks it into lines for the given parameters and width, on the
+     * calling thread. The text is first made a String or {@link SpannedString} as
+     * {@link android.widget.TextView} would.
+     *
+     * @param text the text to lay out
+     * @param params the parameters to lay it out with
+     * @param width the width to lay it out at, excluding any padding
+     */
+    public static PrecomputedText create(@NonNull CharSequence text, @NonNull Params params,
+            int width) {
+        if (width < 0) {
+            throw new IllegalArgumentException("width " + width + " < 0");
+        }
+        text = TextUtils.stringOrSpannedString(text);
+        // Layouts write to their paint, which the params may share with other threads.
+        final TextPaint paint = new TextPaint(params.mPaint);
+        final int length = text.length();
+
+        final BoringLayout.Metrics boring =
+                BoringLayout.isBoring(text, paint, params.mTextDir, null);
+        final int desiredWidth = boring != null ? boring.width
+                : (int) Math.ceil(Layout.getDesiredWidth(text, 0, length, paint, params.mTextDir));
+        if (boring != null && boring.width <= width) {
+            // Like TextView, lay it out on a BoringLayout, which is no work once measured.
+            return new PrecomputedText(text, params, width, desiredWidth, boring, null);
+        }
+
+        final StaticLayout layout = StaticLayout.Builder.obtain(text, 0, length, paint, width)
+                .setAlignment(params.mAlignment)
+                .setTextDirection(params.mTextDir)
+                .setLineSpacing(params.mSpacingAdd, params.mSpacingMult)
+                .setIncludePad(params.mIncludePad)
+                .setBreakStrategy(params.mBreakStrategy)
+                .setHyphenationFrequency(params.mHyphenationFrequency)
+                .setJustificationMode(params.mJustificationMode)
+                .setEllipsize(params.mEllipsize)
+                .setEllipsizedWidth(width)
+                .setMaxLines(params.mMaxLines)
+                .build();
+        return new PrecomputedText(text, params, width, desiredWidth, null, layout);
+    }
+
+    /**
+     * @return the text that was precomputed
+     */
+    public @NonNull CharSequence getText() {
+        return mText;
+    }
+
+    /**
+     * @return the parameters the text was precomputed with
+     */
+    public @NonNull Params getParams() {
+        return mParams;
+    }
+
+    /**
+     * @return the width the text was precomputed for
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the width the text needs to fit on lines of its own, as
+     * {@link Layout#getDesiredWidth} rounded up, if it is the given text and the paint and
+     * direction heuristic measure it as it was precomputed, or -1 otherwise.
+     */
+    public int getDesiredWidth(@NonNull CharSequence text, @NonNull TextPaint paint,
+            @NonNull TextDirectionHeuristic textDir) {
+        if (text != mText || textDir != mParams.mTextDir || !mParams.measuresLike(paint)) {
+            return -1;
+        }
+        return mDesiredWidth;
+    }
+
+    /**
+     * Returns the precomputed layout of the given text at the given width, drawing with the
+     * given paint, or null if the text or width aren't the ones that were precomputed. The
+     * caller is expected to have checked the paint and other parameters with
+     * {@link Params#isCompatible}.
+     * <p>
+     * Only one paint draws a precomputed layout, so null is also returned once a different
+     * paint took it; text on a single line is the exception, since its layout is made anew.
+     */
+    public @Nullable Layout getLayout(@NonNull CharSequence text, int width,
+            @NonNull TextPaint paint) {
+        if (text != mText || width != mWidth) {
+            return null;
+        }
+        if (mBoring != null) {
+            return BoringLayout.make(mText, paint, mWidth, mParams.mAlignment,
+                    mParams.mSpacingMult, mParams.mSpacingAdd, mBoring, mParams.mIncludePad);
+        }
+        synchronized (this) {
+            if (mLayoutPaint == null) {
+                // Keeps the text, which is wrapped when ellipsized.
+                mLayout.replaceWith(mLayout.getText(), paint, mWidth, mParams.mAlignment,
+                        mParams.mSpacingMult, mParams.mSpacingAdd);
+                mLayoutPaint = paint;
+            }
+            return mLayoutPaint == paint ? mLayout : null;
+        }
+    }
+
+    @Override
+    public int length() {
+        return mText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mText.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return mText.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return mText.toString();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.os.Process;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the children of a {@link ViewGroup} concurrently, ahead of the group's own
+ * {@link View#onMeasure}, for groups that declared their children independent with
+ * {@link ViewGroup#setMeasureChildrenInParallel}.
+ * <p>
+ * The calling thread measures children too, and the others are measured on a shared fork-join
+ * pool. Each child is measured with the specs {@link ViewGroup#measureChildWithMargins} would
+ * give it, and when the group's {@link View#onMeasure} measures it again with the same specs,
+ * the result is reused instead. Groups measured on the pool measure their own children serially.
+ * <p>
+ * Work a view would do during its measure that must happen on the UI thread, such as touching the
+ * {@link ViewTreeObserver} or invalidating, is to be handed to {@link #runAfterMeasure}, which
+ * runs it once all children are measured.
+ *
+ * @hide
+ */
+public final class ParallelMeasure {
+    private static final String TAG = "ParallelMeasure";
+
+    /** Groups with fewer children to measure than this measure them serially. */
+    private static final int MIN_CHILDREN = 2;
+
+    private static ForkJoinPool sPool;
+
+    /** The measure the current thread is taking part in, null on the UI thread. */
+    private static final ThreadLocal<ParallelMeasure> sCurrent = new ThreadLocal<>();
+
+    private final View[] mChildren;
+    private final int[] mWidthMeasureSpecs;
+    private final int[] mHeightMeasureSpecs;
+    private final int mCount;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final CountDownLatch mDone;
+
+    /** Actions deferred to the UI thread, guarded by itself. */
+    private final ArrayList<Runnable> mDeferred = new ArrayList<>();
+
+    /** The first failure in measuring a child, rethrown on the UI thread. */
+    private volatile Throwable mFailure;
+
+    private ParallelMeasure(View[] children, int[] widthMeasureSpecs, int[] heightMeasureSpecs,
+            int count) {
+        mChildren = children;
+        mWidthMeasureSpecs = widthMeasureSpecs;
+        mHeightMeasureSpecs = heightMeasureSpecs;
+        mCount = count;
+        mDone = new CountDownLatch(count);
+    }
+
+    /**
+     * @return whether the current thread is measuring views on behalf of the UI thread
+     */
+    public static boolean isMeasuring() {
+        return sCurrent.get() != null;
+    }
+
+    /**
+     * Runs the action on the UI thread once the children being measured all are, or right away
+     * if the current thread isn't measuring on behalf of the UI thread.
+     */
+    public static void runAfterMeasure(Runnable action) {
+        final ParallelMeasure current = sCurrent.get();
+        if (current == null) {
+            action.run();
+            return;
+        }
+        synchronized (current.mDeferred) {
+            current.mDeferred.add(action);
+        }
+    }
+
+    /**
+     * Measures the children of the group that are not gone, and marks them as measured for
+     * the specs they were measured with.
+     */
+    static void measureChildren(ViewGroup group, int widthMeasureSpec, int heightMeasureSpec) {
+        if (isMeasuring()) {
+            // Already on the pool, the group's own measure will do.
+            return;
+        }
+        final int childCount = group.getChildCount();
+        final View[] children = new View[childCount];
+        final int[] widthMeasureSpecs = new int[childCount];
+        final int[] heightMeasureSpecs = new int[childCount];
+        final int horizontalPadding = group.mPaddingLeft + group.mPaddingRight;
+        final int verticalPadding = group.mPaddingTop + group.mPaddingBottom;
+        int count = 0;
+        for (int i = 0; i < childCount; i++) {
+            final View child = group.getChildAt(i);
+            if ((child.mViewFlags & View.VISIBILITY_MASK) == View.GONE) {
+                continue;
+            }
+            final ViewGroup.LayoutParams lp = child.getLayoutParams();
+            int horizontalMargins = 0;
+            int verticalMargins = 0;
+            if (lp instanceof ViewGroup.MarginLayoutParams) {
+                final ViewGroup.MarginLayoutParams mlp = (ViewGroup.MarginLayoutParams) lp;
+                horizontalMargins = mlp.leftMargin + mlp.rightMargin;
+                verticalMargins = mlp.topMargin + mlp.bottomMargin;
+            }
+            children[count] = child;
+            widthMeasureSpecs[count] = ViewGroup.getChildMeasureSpec(widthMeasureSpec,
+                    horizontalPadding + horizontalMargins, lp.width);
+            heightMeasureSpecs[count] = ViewGroup.getChildMeasureSpec(heightMeasureSpec,
+                    verticalPadding + verticalMargins, lp.height);
+            count++;
+        }
+        if (count < MIN_CHILDREN) {
+            return;
+        }
+
+        Trace.traceBegin(Trace.TRACE_TAG_VIEW, "parallelMeasure");
+        try {
+            new ParallelMeasure(children, widthMeasureSpecs, heightMeasureSpecs, count).run();
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        }
+    }
+
+    private void run() {
+        final ForkJoinPool pool = getPool();
+        // Helpers that start once all children are taken just return.
+        final int helpers = Math.min(pool.getParallelism(), mCount - 1);
+        for (int i = 0; i < helpers; i++) {
+            pool.execute(this::measureNext);
+        }
+        measureNext();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Back on the UI thread, publish what the children left for it.
+        for (int i = 0; i < mDeferred.size(); i++) {
+            mDeferred.get(i).run();
+        }
+        final Throwable failure = mFailure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void measureNext() {
+        final boolean onPool = Thread.currentThread() instanceof ForkJoinWorkerThread;
+        if (onPool) {
+            sCurrent.set(this);
+        }
+        try {
+            int i;
+            while ((i = mNext.getAndIncrement()) < mCount) {
+                try {
+                    if (mFailure == null) {
+                        mChildren[i].measure(mWidthMeasureSpecs[i], mHeightMeasureSpecs[i]);
+                        mChildren[i].mPrivateFlags3 |= View.PFLAG3_PREMEASURED;
+                    }
+                } catch (Throwable t) {
+                    if (mFailure == null) {
+                        mFailure = t;
+                    }
+                } finally {
+                    mDone.countDown();
+                }
+            }
+        } finally {
+            if (onPool) {
+                sCurrent.remove();
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            // The UI thread measures too.
+            final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            sPool = new ForkJoinPool(parallelism, pool -> {
+                final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                    }
+                };
+                thread.setName(TAG + "-" + thread.getPoolIndex());
+                return thread;
+            }, null /* handler */, false /* asyncMode */);
+        }
+        return sPool;
+    }
+}
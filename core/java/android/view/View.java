@@ -2710,6 +2710,12 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
      */
     private static final int PFLAG3_NO_REVEAL_ON_FOCUS = 0x4000000;
 
+    /**
+     * Flag indicating that the view was measured ahead of its parent's onMeasure by
+     * {@link ParallelMeasure}, so that measuring it again with the same specs can be skipped.
+     */
+    static final int PFLAG3_PREMEASURED = 0x8000000;
+
     /* End of masks for mPrivateFlags3 */
 
     /**
@@ -19872,6 +19878,15 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
             heightMeasureSpec = MeasureSpec.adjust(heightMeasureSpec, optical ? -oHeight : oHeight);
         }
 
+        if ((mPrivateFlags3 & PFLAG3_PREMEASURED) != 0) {
+            mPrivateFlags3 &= ~PFLAG3_PREMEASURED;
+            if (widthMeasureSpec == mOldWidthMeasureSpec
+                    && heightMeasureSpec == mOldHeightMeasureSpec) {
+                // Just measured with these specs, concurrently with its siblings.
+                return;
+            }
+        }
+
         // Suppress sign extension for the low bytes
         long key = (long) widthMeasureSpec << 32 | (long) heightMeasureSpec & 0xffffffffL;
         if (mMeasureCache == null) mMeasureCache = new LongSparseLongArray(2);
@@ -19899,7 +19914,9 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
             int cacheIndex = forceLayout ? -1 : mMeasureCache.indexOfKey(key);
             if (cacheIndex < 0 || sIgnoreMeasureCache) {
                 // measure ourselves, this should set the measured dimension flag back
+                premeasureChildren(widthMeasureSpec, heightMeasureSpec);
                 onMeasure(widthMeasureSpec, heightMeasureSpec);
+                clearPremeasuredChildren();
                 mPrivateFlags3 &= ~PFLAG3_MEASURE_NEEDED_BEFORE_LAYOUT;
             } else {
                 long value = mMeasureCache.valueAt(cacheIndex);
@@ -19927,6 +19944,19 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
                 (long) mMeasuredHeight & 0xffffffffL); // suppress sign extension
     }
 
+    /**
+     * Measures the children ahead of {@link #onMeasure} if they can be measured concurrently.
+     * Views have no children.
+     */
+    void premeasureChildren(int widthMeasureSpec, int heightMeasureSpec) {
+    }
+
+    /**
+     * Forgets the measures {@link #premeasureChildren} took that {@link #onMeasure} didn't use.
+     */
+    void clearPremeasuredChildren() {
+    }
+
     /**
      * <p>
      * Measure the view and its content to determine the measured width and the
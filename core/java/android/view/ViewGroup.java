@@ -508,6 +508,9 @@ public abstract class ViewGroup extends View implements ViewParent, ViewManager
     private List<Integer> mTransientIndices = null;
     private List<View> mTransientViews = null;
 
+    // Whether the children are measured concurrently, see setMeasureChildrenInParallel()
+    private boolean mMeasureChildrenInParallel;
+
 
     /**
      * Empty ActionMode used as a sentinel in recursive entries to startActionModeForChild.
@@ -6023,6 +6026,53 @@ public abstract class ViewGroup extends View implements ViewParent, ViewManager
         return mChildren[index];
     }
 
+    /**
+     * Declares whether the children of this view can be measured concurrently. If they can, they
+     * are measured on a pool of threads and on the UI thread at the same time, ahead of
+     * {@link #onMeasure}, with the specs {@link #measureChildWithMargins} gives them for no used
+     * space. When {@link #onMeasure} then measures a child with the same specs, the result is
+     * reused; otherwise the child is measured again.
+     * <p>
+     * This pays off when the children take long to measure, such as list items with a lot of text,
+     * and the parent gives them such specs, such as a vertical {@link android.widget.LinearLayout}
+     * in a scrolling parent, or a {@link android.widget.FrameLayout}.
+     * <p>
+     * The children must not share any state while measuring, and their measure must not have
+     * effects beyond their own subtrees, other than through
+     * {@link ParallelMeasure#runAfterMeasure}.
+     *
+     * @param inParallel whether the children can be measured concurrently
+     * @hide
+     */
+    public void setMeasureChildrenInParallel(boolean inParallel) {
+        mMeasureChildrenInParallel = inParallel;
+    }
+
+    /**
+     * @return whether the children are measured concurrently
+     * @see #setMeasureChildrenInParallel(boolean)
+     * @hide
+     */
+    public boolean isMeasureChildrenInParallel() {
+        return mMeasureChildrenInParallel;
+    }
+
+    @Override
+    void premeasureChildren(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mMeasureChildrenInParallel) {
+            ParallelMeasure.measureChildren(this, widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+
+    @Override
+    void clearPremeasuredChildren() {
+        if (mMeasureChildrenInParallel) {
+            for (int i = 0; i < mChildrenCount; i++) {
+                mChildren[i].mPrivateFlags3 &= ~PFLAG3_PREMEASURED;
+            }
+        }
+    }
+
     /**
      * Ask all of the children of this view to measure themselves, taking into
      * account both the MeasureSpec requirements for this view and its padding.
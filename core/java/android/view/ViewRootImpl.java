@@ -28,6 +28,7 @@ import android.Manifest;
 import android.animation.LayoutTransition;
 import android.annotation.NonNull;
 import android.app.ActivityManagerNative;
+import android.app.ColdStartPhases;
 import android.app.ResourcesManager;
 import android.content.ClipDescription;
 import android.content.ComponentCallbacks;
@@ -1470,6 +1471,7 @@ public final class ViewRootImpl implements ViewParent,
         if (host == null || !mAdded)
             return;
 
+        ColdStartPhases.note(ColdStartPhases.FIRST_TRAVERSAL);
         mIsInTraversal = true;
         mWillDrawSoon = true;
         boolean windowSizeMayChange = false;
@@ -2642,6 +2644,7 @@ public final class ViewRootImpl implements ViewParent,
         mFullRedrawNeeded = false;
 
         mIsDrawing = true;
+        ColdStartPhases.note(ColdStartPhases.FIRST_DRAW_START);
         Trace.traceBegin(Trace.TRACE_TAG_VIEW, "draw");
         try {
             draw(fullRedrawNeeded);
@@ -2649,6 +2652,7 @@ public final class ViewRootImpl implements ViewParent,
             mIsDrawing = false;
             Trace.traceEnd(Trace.TRACE_TAG_VIEW);
         }
+        ColdStartPhases.note(ColdStartPhases.FIRST_DRAW_END);
 
         // For whatever reason we didn't create a HardwareRenderer, end any
         // hardware animations that are now dangling
@@ -1164,6 +1164,28 @@ public interface WindowManagerPolicy {
      */
     public void getContentRectLw(Rect r);
 
+    /**
+     * Return the rectangle of the screen that stays available to applications when transient
+     * system bars are shown, as computed by the last {@link #beginLayoutLw}.
+     *
+     * @param r The rectangle to be filled with the stable boundaries.
+     */
+    public void getStableRectLw(Rect r);
+
+    /**
+     * Return the rectangle of the screen not covered by the docked system windows, such as the
+     * status and navigation bars, as computed by the last {@link #beginLayoutLw}.
+     *
+     * @param r The rectangle to be filled with the dock boundaries.
+     */
+    public void getDockRectLw(Rect r);
+
+    /**
+     * Return the system UI visibility flags the last {@link #beginLayoutLw} laid out the system
+     * bars with.
+     */
+    public int getLastSystemUiFlagsLw();
+
     /**
      * Called for each window attached to the window manager as layout is
      * proceeding.  The implementation of this function must take care of
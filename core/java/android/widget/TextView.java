@@ -76,6 +76,7 @@ import android.text.InputFilter;
 import android.text.InputType;
 import android.text.Layout;
 import android.text.ParcelableSpan;
+import android.text.PrecomputedText;
 import android.text.Selection;
 import android.text.SpanWatcher;
 import android.text.Spannable;
@@ -130,6 +131,7 @@ import android.view.InputDevice;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.ParallelMeasure;
 import android.view.PointerIcon;
 import android.view.View;
 import android.view.ViewConfiguration;
@@ -618,6 +620,8 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     private CharSequence mText;
     private CharSequence mTransformed;
     private BufferType mBufferType = BufferType.NORMAL;
+    // The precomputed text last set, whose layout is used while it fits the view.
+    private PrecomputedText mPrecomputed;
 
     private CharSequence mHint;
     private Layout mHintLayout;
@@ -3901,6 +3905,38 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
         return mJustificationMode;
     }
 
+    /**
+     * Returns the parameters this view currently lays its text out with, for a
+     * {@link PrecomputedText} to be created with on another thread and then set with
+     * {@link #setText(CharSequence)}. The width to precompute for is the width of the view less
+     * its {@link #getCompoundPaddingLeft() compound} {@link #getCompoundPaddingRight() paddings}.
+     * <p>
+     * Alignment and text direction depend on the layout direction, so the parameters of a view
+     * that is not attached yet may not be the ones it lays out with; the precomputed layout is
+     * then ignored and the text laid out as usual.
+     *
+     * @hide
+     */
+    public PrecomputedText.Params getPrecomputedTextParams() {
+        final boolean shouldEllipsize = mEllipsize != null && getKeyListener() == null;
+        TruncateAt effectiveEllipsize = mEllipsize;
+        if (mEllipsize == TruncateAt.MARQUEE
+                && mMarqueeFadeMode == MARQUEE_FADE_SWITCH_SHOW_ELLIPSIS) {
+            effectiveEllipsize = TruncateAt.END_SMALL;
+        }
+        return new PrecomputedText.Params.Builder(mTextPaint)
+                .setAlignment(getLayoutAlignment())
+                .setTextDirection(mTextDir != null ? mTextDir : getTextDirectionHeuristic())
+                .setLineSpacing(mSpacingAdd, mSpacingMult)
+                .setIncludePad(mIncludePad)
+                .setBreakStrategy(mBreakStrategy)
+                .setHyphenationFrequency(mHyphenationFrequency)
+                .setJustificationMode(mJustificationMode)
+                .setEllipsize(shouldEllipsize ? effectiveEllipsize : null)
+                .setMaxLines(mMaxMode == LINES ? mMaximum : Integer.MAX_VALUE)
+                .build();
+    }
+
     /**
      * Sets font feature settings. The format is the same as the CSS
      * font-feature-settings attribute:
@@ -5257,6 +5293,13 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     private void setText(CharSequence text, BufferType type,
                          boolean notifyBefore, int oldlen) {
         mTextFromResource = false;
+        if (text instanceof PrecomputedText) {
+            // Its layout is used for as long as the text is laid out unchanged.
+            mPrecomputed = (PrecomputedText) text;
+            text = mPrecomputed.getText();
+        } else if (mPrecomputed != null && text != mPrecomputed.getText()) {
+            mPrecomputed = null;
+        }
         if (text == null) {
             text = "";
         }
@@ -6372,6 +6415,11 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
 
     private void registerForPreDraw() {
         if (!mPreDrawRegistered) {
+            if (ParallelMeasure.isMeasuring()) {
+                // The view tree observer is shared with the views measured concurrently.
+                ParallelMeasure.runAfterMeasure(this::registerForPreDraw);
+                return;
+            }
             getViewTreeObserver().addOnPreDrawListener(this);
             mPreDrawRegistered = true;
         }
@@ -7930,17 +7978,25 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
                 final int height = mLayoutParams.height;
                 // If the size of the view does not depend on the size of the text, try to
                 // start the marquee immediately
-                if (height != LayoutParams.WRAP_CONTENT && height != LayoutParams.MATCH_PARENT) {
+                if (height != LayoutParams.WRAP_CONTENT && height != LayoutParams.MATCH_PARENT
+                        && !ParallelMeasure.isMeasuring()) {
                     startMarquee();
                 } else {
-                    // Defer the start of the marquee until we know our width (see setFrame())
+                    // Defer the start of the marquee until we know our width (see setFrame()),
+                    // or until we are back on the UI thread
                     mRestartMarquee = true;
                 }
             }
         }
 
         // CursorControllers need a non-null mLayout
-        if (mEditor != null) mEditor.prepareCursorControllers();
+        if (mEditor != null) {
+            if (ParallelMeasure.isMeasuring()) {
+                ParallelMeasure.runAfterMeasure(mEditor::prepareCursorControllers);
+            } else {
+                mEditor.prepareCursorControllers();
+            }
+        }
     }
 
     /**
@@ -7949,7 +8005,11 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     protected Layout makeSingleLayout(int wantWidth, BoringLayout.Metrics boring, int ellipsisWidth,
             Layout.Alignment alignment, boolean shouldEllipsize, TruncateAt effectiveEllipsize,
             boolean useSaved) {
-        Layout result = null;
+        Layout result = getPrecomputedLayout(wantWidth, alignment, shouldEllipsize,
+                effectiveEllipsize, ellipsisWidth);
+        if (result != null) {
+            return result;
+        }
         if (mText instanceof Spannable) {
             result = new DynamicLayout(mText, mTransformed, mTextPaint, wantWidth,
                     alignment, mTextDir, mSpacingMult, mSpacingAdd, mIncludePad,
@@ -8015,6 +8075,25 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
         return result;
     }
 
+    /**
+     * Returns the layout of the precomputed text set on this view if it was precomputed for the
+     * text as it is now, at this width and with the parameters the view lays it out with, or null.
+     */
+    private Layout getPrecomputedLayout(int wantWidth, Layout.Alignment alignment,
+            boolean shouldEllipsize, TruncateAt effectiveEllipsize, int ellipsisWidth) {
+        if (mPrecomputed == null || mText instanceof Spannable
+                || (shouldEllipsize && ellipsisWidth != wantWidth)) {
+            return null;
+        }
+        if (!mPrecomputed.getParams().isCompatible(mTextPaint, alignment, mTextDir, mSpacingAdd,
+                mSpacingMult, mIncludePad, mBreakStrategy, mHyphenationFrequency,
+                mJustificationMode, shouldEllipsize ? effectiveEllipsize : null,
+                mMaxMode == LINES ? mMaximum : Integer.MAX_VALUE)) {
+            return null;
+        }
+        return mPrecomputed.getLayout(mTransformed, wantWidth, mTextPaint);
+    }
+
     private boolean compressText(float width) {
         if (isHardwareAccelerated()) return false;
 
@@ -8121,13 +8200,18 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
                 des = desired(mLayout);
             }
 
+            if (des >= 0) {
+                fromexisting = true;
+            } else if (mPrecomputed != null) {
+                // Measured along with the precomputed layout.
+                des = mPrecomputed.getDesiredWidth(mTransformed, mTextPaint, mTextDir);
+            }
+
             if (des < 0) {
                 boring = BoringLayout.isBoring(mTransformed, mTextPaint, mTextDir, mBoring);
                 if (boring != null) {
                     mBoring = boring;
                 }
-            } else {
-                fromexisting = true;
             }
 
             if (boring == null || boring == UNKNOWN_BORING) {
@@ -8261,8 +8345,9 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
                 || mLayout.getWidth() > unpaddedWidth
                 || mLayout.getHeight() > unpaddedHeight) {
             registerForPreDraw();
-        } else {
-            scrollTo(0, 0);
+        } else if (mScrollX != 0 || mScrollY != 0) {
+            // Scrolling invalidates, which is left to the UI thread when measuring concurrently.
+            ParallelMeasure.runAfterMeasure(() -> scrollTo(0, 0));
         }
 
         setMeasuredDimension(width, height);
@@ -9219,8 +9304,11 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
     }
 
     private void stopMarquee() {
+        // The marquee runs on the choreographer and invalidates, and so does switching the
+        // fading edge: left to the UI thread when measuring concurrently. The layouts are
+        // swapped right away, the layout being made replaces one of them.
         if (mMarquee != null && !mMarquee.isStopped()) {
-            mMarquee.stop();
+            ParallelMeasure.runAfterMeasure(mMarquee::stop);
         }
 
         if (mMarqueeFadeMode == MARQUEE_FADE_SWITCH_SHOW_FADE) {
@@ -9228,9 +9316,11 @@ public class TextView extends View implements ViewTreeObserver.OnPreDrawListener
             final Layout tmp = mSavedMarqueeModeLayout;
             mSavedMarqueeModeLayout = mLayout;
             mLayout = tmp;
-            setHorizontalFadingEdgeEnabled(false);
-            requestLayout();
-            invalidate();
+            ParallelMeasure.runAfterMeasure(() -> {
+                setHorizontalFadingEdgeEnabled(false);
+                requestLayout();
+                invalidate();
+            });
         }
     }
 
@@ -705,6 +705,63 @@ public final class ProcessStats implements Parcelable {
 
     /** @hide */
     public void writeToParcel(Parcel out, long now, int flags) {
+        writeHeadToParcel(out, now);
+        mTableData.writeToParcel(out);
+        writeTailToParcel(out, now);
+    }
+
+    /**
+     * Captures what {@link #writeToParcel} would write at the given time, doing only the
+     * cheap part of the work: the process and package states are parceled, but the bulk
+     * data arrays are just copied.  The snapshot can then be written out without holding
+     * whatever lock guards this object.
+     *
+     * @hide
+     */
+    public WriteSnapshot snapshotForWrite(long now) {
+        final Parcel head = Parcel.obtain();
+        writeHeadToParcel(head, now);
+        final SparseMappingTable tableData = mTableData.snapshot();
+        final Parcel tail = Parcel.obtain();
+        writeTailToParcel(tail, now);
+        return new WriteSnapshot(head, tableData, tail);
+    }
+
+    /**
+     * The state of a ProcessStats at a given time, see {@link #snapshotForWrite}.
+     *
+     * @hide
+     */
+    public static final class WriteSnapshot {
+        private Parcel mHead;
+        private SparseMappingTable mTableData;
+        private Parcel mTail;
+
+        WriteSnapshot(Parcel head, SparseMappingTable tableData, Parcel tail) {
+            mHead = head;
+            mTableData = tableData;
+            mTail = tail;
+        }
+
+        /**
+         * Writes the same data as {@link ProcessStats#writeToParcel} would have.
+         */
+        public void writeToParcel(Parcel out) {
+            out.appendFrom(mHead, 0, mHead.dataSize());
+            mTableData.writeToParcel(out);
+            out.appendFrom(mTail, 0, mTail.dataSize());
+        }
+
+        public void recycle() {
+            mHead.recycle();
+            mTail.recycle();
+            mHead = null;
+            mTableData = null;
+            mTail = null;
+        }
+    }
+
+    private void writeHeadToParcel(Parcel out, long now) {
         out.writeInt(MAGIC);
         out.writeInt(PARCEL_VERSION);
         out.writeInt(STATE_COUNT);
@@ -758,8 +815,13 @@ public final class ProcessStats implements Parcelable {
         out.writeString(mRuntime);
         out.writeInt(mHasSwappedOutPss ? 1 : 0);
         out.writeInt(mFlags);
+    }
 
-        mTableData.writeToParcel(out);
+    private void writeTailToParcel(Parcel out, long now) {
+        final ArrayMap<String, SparseArray<ProcessState>> procMap = mProcesses.getMap();
+        final int NPROC = procMap.size();
+        final ArrayMap<String, SparseArray<SparseArray<PackageState>>> pkgMap = mPackages.getMap();
+        final int NPKG = pkgMap.size();
 
         if (mMemFactor != STATE_NOTHING) {
             mMemFactorDurations[mMemFactor] += now - mStartTime;
@@ -481,6 +481,26 @@ public class SparseMappingTable {
         mLongs.add(new long[ARRAY_SIZE]);
     }
 
+    private SparseMappingTable(SparseMappingTable copyFrom) {
+        mSequence = copyFrom.mSequence;
+        mNextIndex = copyFrom.mNextIndex;
+        final int N = copyFrom.mLongs.size();
+        for (int i=0; i<N-1; i++) {
+            mLongs.add(copyFrom.mLongs.get(i).clone());
+        }
+        // Only the used part of the last array is ever written out.
+        mLongs.add(Arrays.copyOf(copyFrom.mLongs.get(N-1), mNextIndex));
+    }
+
+    /**
+     * Returns a copy of the data arrays as they are now, for writing to a parcel with
+     * {@link #writeToParcel} while this one keeps changing.  Only the arrays are copied,
+     * the Tables indexing into them are not.
+     */
+    public SparseMappingTable snapshot() {
+        return new SparseMappingTable(this);
+    }
+
     /**
      * Wipe out all the data.
      */
@@ -3958,8 +3958,13 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void noteStartWakeFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type, boolean unimportantForLogging) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteStartWakeFromSourceLocked(ws, pid, name, historyName, type, unimportantForLogging,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteStartWakeFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, boolean unimportantForLogging, long elapsedRealtime,
+            long uptime) {
         final int N = ws.size();
         for (int i=0; i<N; i++) {
             noteStartWakeLocked(ws.get(i), pid, name, historyName, type, unimportantForLogging,
@@ -3970,8 +3975,15 @@ public class BatteryStatsImpl extends BatteryStats {
     public void noteChangeWakelockFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type, WorkSource newWs, int newPid, String newName,
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type, newWs, newPid,
+                newName, newHistoryName, newType, newUnimportantForLogging,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteChangeWakelockFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, WorkSource newWs, int newPid, String newName,
+            String newHistoryName, int newType, boolean newUnimportantForLogging,
+            long elapsedRealtime, long uptime) {
         // For correct semantics, we start the need worksources first, so that we won't
         // make inappropriate history items as if all wake locks went away and new ones
         // appeared.  This is okay because tracking of wake locks allows nesting.
@@ -3988,8 +4000,12 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void noteStopWakeFromSourceLocked(WorkSource ws, int pid, String name,
             String historyName, int type) {
-        final long elapsedRealtime = mClocks.elapsedRealtime();
-        final long uptime = mClocks.uptimeMillis();
+        noteStopWakeFromSourceLocked(ws, pid, name, historyName, type,
+                mClocks.elapsedRealtime(), mClocks.uptimeMillis());
+    }
+
+    public void noteStopWakeFromSourceLocked(WorkSource ws, int pid, String name,
+            String historyName, int type, long elapsedRealtime, long uptime) {
         final int N = ws.size();
         for (int i=0; i<N; i++) {
             noteStopWakeLocked(ws.get(i), pid, name, historyName, type, elapsedRealtime, uptime);
@@ -11497,6 +11513,18 @@ public class BatteryStatsImpl extends BatteryStats {
     Parcel mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    /**
+     * Size of the last summary parcel. The next one is presized from it so that serializing
+     * under the stats lock does not repeatedly grow and copy the parcel buffer.
+     */
+    int mLastWriteSize = 0;
+
+    // Time spent serializing summaries while holding the stats lock, for dumpsys.
+    int mNumWrites = 0;
+    long mLastWriteLockedTimeUs = 0;
+    long mMaxWriteLockedTimeUs = 0;
+    long mTotalWriteLockedTimeUs = 0;
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -11515,10 +11543,34 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
+        // The summary is written under the stats lock on purpose: it evaluates every running
+        // timer and time base at the current time, and the only complete copy of that state is
+        // the parcel itself, so snapshotting it first would cost as much as writing it. What
+        // does not need the lock, marshalling and syncing the file, is done after it.
+        //
+        // Nor is each Uid's section kept from the last write until the Uid changes. A Uid that
+        // saw no note* call can still write differently: a wakelock held since before the last
+        // write, its process state timer and its background time bases keep running. Telling
+        // a clean Uid apart would need dirty marks in every path that touches Uid state, and
+        // checking every one of its timers, which is most of what writing it costs.
+        final long startTimeNs = SystemClock.elapsedRealtimeNanos();
         Parcel out = Parcel.obtain();
+        if (mLastWriteSize > 0) {
+            // Leave some headroom for stats that were added since the last write.
+            out.setDataCapacity(mLastWriteSize + mLastWriteSize / 8);
+        }
         writeSummaryToParcel(out, true);
+        mLastWriteSize = out.dataSize();
         mLastWriteTime = mClocks.elapsedRealtime();
 
+        final long lockedTimeUs = (SystemClock.elapsedRealtimeNanos() - startTimeNs) / 1000;
+        mNumWrites++;
+        mLastWriteLockedTimeUs = lockedTimeUs;
+        mTotalWriteLockedTimeUs += lockedTimeUs;
+        if (lockedTimeUs > mMaxWriteLockedTimeUs) {
+            mMaxWriteLockedTimeUs = lockedTimeUs;
+        }
+
         if (mPendingWrite != null) {
             mPendingWrite.recycle();
         }
@@ -13116,5 +13168,20 @@ public class BatteryStatsImpl extends BatteryStats {
             mCameraOnTimer.logState(pr, "  ");
         }
         super.dumpLocked(context, pw, flags, reqUid, histStart);
+        if (reqUid < 0) {
+            dumpWriteStatsLocked(pw);
+        }
+    }
+
+    private void dumpWriteStatsLocked(PrintWriter pw) {
+        pw.println();
+        pw.print("Summary writes: count="); pw.print(mNumWrites);
+        pw.print(" lastSize="); pw.println(mLastWriteSize);
+        if (mNumWrites > 0) {
+            pw.print("  Lock hold time: last="); pw.print(mLastWriteLockedTimeUs);
+            pw.print("us max="); pw.print(mMaxWriteLockedTimeUs);
+            pw.print("us avg="); pw.print(mTotalWriteLockedTimeUs / mNumWrites);
+            pw.println("us");
+        }
     }
 }
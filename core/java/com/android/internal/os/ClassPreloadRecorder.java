@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.app.ActivityManager;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.Trace;
+import android.text.TextUtils;
+import android.util.Log;
+
+import dalvik.system.DexFile;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+
+/**
+ * Records which boot classpath classes app processes load on top of those the zygote preloaded,
+ * so that the activity manager can rank them by how many apps need them and the zygote can
+ * preload the top of that ranking on its next start, in addition to the static
+ * {@code preloaded-classes} list.
+ * <p>
+ * Recording is off unless {@link #RECORD_PROPERTY} is set, and only takes effect once the zygote
+ * restarts: the zygote snapshots the classes it has loaded at the end of its preload, and app
+ * processes compare against the copy they inherit a while after binding their application.
+ * </p>
+ * Classes are recorded as soon as they are loaded, which is the best approximation of being
+ * initialized the runtime offers.
+ */
+public final class ClassPreloadRecorder {
+    private static final String TAG = "ClassPreloadRecorder";
+
+    /** Whether app processes record and report the classes they load. */
+    public static final String RECORD_PROPERTY = "persist.sys.preload.record";
+
+    /** Ranked list of classes written by the activity manager and read by the zygote. */
+    public static final String ADAPTIVE_LIST_FILE = "/data/system/preloaded-classes-adaptive";
+
+    /** Classes loaded by fewer apps than this are not preloaded. */
+    static final int MIN_APP_COUNT = 3;
+
+    /** How long after binding its application a process reports what it loaded. */
+    private static final long REPORT_DELAY_MILLIS = 30 * 1000;
+
+    /** Classes loaded in the zygote once it was done preloading, null when not recording. */
+    private static HashSet<String> sZygoteClasses;
+
+    private ClassPreloadRecorder() {
+    }
+
+    public static boolean isRecording() {
+        return SystemProperties.getBoolean(RECORD_PROPERTY, false);
+    }
+
+    /**
+     * Snapshots the classes the zygote has loaded, called at the end of its preload when
+     * recording. Forked processes inherit the snapshot.
+     */
+    static void snapshotZygoteClasses() {
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "SnapshotZygoteClasses");
+        final long startTime = SystemClock.uptimeMillis();
+        sZygoteClasses = new HashSet<>(collectLoadedClasses(null));
+        Log.i(TAG, "Snapshot of " + sZygoteClasses.size() + " zygote classes took "
+                + (SystemClock.uptimeMillis() - startTime) + "ms.");
+        Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+    }
+
+    /**
+     * Schedules the report of the classes this process loads, if the zygote it was forked from
+     * was recording.
+     */
+    public static void scheduleReport() {
+        if (sZygoteClasses == null) {
+            return;
+        }
+        BackgroundThread.getHandler().postDelayed(ClassPreloadRecorder::report,
+                REPORT_DELAY_MILLIS);
+    }
+
+    private static void report() {
+        final ArrayList<String> classes = collectLoadedClasses(sZygoteClasses);
+        if (classes.isEmpty()) {
+            return;
+        }
+        try {
+            ActivityManager.getService().reportBootClassUsage(
+                    classes.toArray(new String[classes.size()]));
+        } catch (RemoteException e) {
+            // Only used to tune preloading, nothing to do if the system is gone.
+        }
+    }
+
+    /**
+     * Returns the boot classpath classes loaded in this process, leaving out the given ones.
+     */
+    private static ArrayList<String> collectLoadedClasses(HashSet<String> exclude) {
+        final ArrayList<String> loaded = new ArrayList<>();
+        final String bootClassPath = System.getenv("BOOTCLASSPATH");
+        if (TextUtils.isEmpty(bootClassPath)) {
+            return loaded;
+        }
+        final Method findLoadedClass;
+        final ClassLoader bootClassLoader = Object.class.getClassLoader();
+        try {
+            // Looks a class up without loading it, unlike Class.forName.
+            findLoadedClass = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            findLoadedClass.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "Unable to look up loaded classes", e);
+            return loaded;
+        }
+        for (String path : bootClassPath.split(":")) {
+            DexFile dexFile = null;
+            try {
+                dexFile = new DexFile(path);
+                final Enumeration<String> entries = dexFile.entries();
+                while (entries.hasMoreElements()) {
+                    final String name = entries.nextElement();
+                    if (exclude != null && exclude.contains(name)) {
+                        continue;
+                    }
+                    if (findLoadedClass.invoke(bootClassLoader, name) != null) {
+                        loaded.add(name);
+                    }
+                }
+            } catch (IOException | IllegalAccessException | InvocationTargetException e) {
+                Log.w(TAG, "Unable to list loaded classes of " + path, e);
+            } finally {
+                if (dexFile != null) {
+                    try {
+                        dexFile.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+}
@@ -141,6 +141,56 @@ public final class Zygote {
           int[][] rlimits, int mountExternal, String seInfo, String niceName, int[] fdsToClose,
           int[] fdsToIgnore, boolean startChildZygote, String instructionSet, String appDataDir);
 
+    /**
+     * Forks a new VM instance without specializing it, to be kept in the zygote's process pool
+     * until {@link #specializeAppProcess} turns it into an app process. The child keeps running
+     * as the zygote, with the VM daemons stopped.
+     *
+     * @param fdsToClose an array of ints, holding one or more POSIX
+     * file descriptor numbers that are to be closed by the child
+     * (and replaced by /dev/null) after forking.
+     * @param fdsToIgnore null-ok an array of ints, either null or holding
+     * one or more POSIX file descriptor numbers that are to be ignored
+     * in the file descriptor table check.
+     *
+     * @return 0 if this is the child, pid of the child
+     * if this is the parent, or -1 on error.
+     */
+    static int forkPoolProcess(int[] fdsToClose, int[] fdsToIgnore) {
+        VM_HOOKS.preFork();
+        // Resets nice priority for zygote process.
+        resetNicePriority();
+        int pid = nativeForkPoolProcess(fdsToClose, fdsToIgnore);
+        if (pid != 0) {
+            // The child restarts the daemons once it is specialized.
+            VM_HOOKS.postForkCommon();
+        }
+        return pid;
+    }
+
+    native private static int nativeForkPoolProcess(int[] fdsToClose, int[] fdsToIgnore);
+
+    /**
+     * Specializes a process forked by {@link #forkPoolProcess} into an app process, as
+     * {@link #forkAndSpecialize} does for the child it forks. The parameters are the same.
+     */
+    static void specializeAppProcess(int uid, int gid, int[] gids, int runtimeFlags,
+            int[][] rlimits, int mountExternal, String seInfo, String niceName,
+            String instructionSet, String appDataDir) {
+        nativeSpecializeAppProcess(uid, gid, gids, runtimeFlags, rlimits, mountExternal, seInfo,
+                niceName, instructionSet, appDataDir);
+        // Enable tracing as soon as possible for the child process.
+        Trace.setTracingEnabled(true, runtimeFlags);
+
+        // Note that this event ends at the end of handleChildProc,
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "PostFork");
+        VM_HOOKS.postForkCommon();
+    }
+
+    native private static void nativeSpecializeAppProcess(int uid, int gid, int[] gids,
+            int runtimeFlags, int[][] rlimits, int mountExternal, String seInfo, String niceName,
+            String instructionSet, String appDataDir);
+
     /**
      * Called to do any initialization before starting an application.
      */
@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import libcore.io.IoUtils;
 
 /**
@@ -177,6 +178,15 @@ class ZygoteConnection {
             rlimits = parsedArgs.rlimits.toArray(intArray2d);
         }
 
+        final ZygoteProcessPool processPool = zygoteServer.getProcessPool();
+        if (processPool != null && ZygoteProcessPool.canServe(parsedArgs, descriptors)) {
+            pid = processPool.claim(parsedArgs);
+            if (pid > 0) {
+                handleParentProc(pid, null, null);
+                return null;
+            }
+        }
+
         int[] fdsToIgnore = null;
 
         if (parsedArgs.invokeWith != null) {
@@ -219,6 +229,13 @@ class ZygoteConnection {
 
         fd = null;
 
+        if (processPool != null && processPool.size() > 0) {
+            // The child must not inherit the sockets the pooled processes wait on.
+            final int[] poolFds = processPool.getCommandFds();
+            fdsToClose = appendFds(fdsToClose, poolFds);
+            fdsToIgnore = appendFds(fdsToIgnore, poolFds);
+        }
+
         pid = Zygote.forkAndSpecialize(parsedArgs.uid, parsedArgs.gid, parsedArgs.gids,
                 parsedArgs.runtimeFlags, rlimits, parsedArgs.mountExternal, parsedArgs.seInfo,
                 parsedArgs.niceName, fdsToClose, fdsToIgnore, parsedArgs.startChildZygote,
@@ -249,6 +266,15 @@ class ZygoteConnection {
         }
     }
 
+    private static int[] appendFds(int[] fds, int[] extraFds) {
+        if (fds == null) {
+            return extraFds;
+        }
+        final int[] result = Arrays.copyOf(fds, fds.length + extraFds.length);
+        System.arraycopy(extraFds, 0, result, fds.length, extraFds.length);
+        return result;
+    }
+
     private void handleAbiListQuery() {
         try {
             final byte[] abiListBytes = abiList.getBytes(StandardCharsets.US_ASCII);
@@ -423,6 +449,12 @@ class ZygoteConnection {
          */
         boolean startChildZygote;
 
+        /**
+         * Constructs an empty instance, filled in by the caller.
+         */
+        Arguments() {
+        }
+
         /**
          * Constructs instance and parses args
          * @param args zygote command-line args
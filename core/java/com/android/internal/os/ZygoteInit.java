@@ -26,6 +26,7 @@ import android.icu.text.DecimalFormatSymbols;
 import android.icu.util.ULocale;
 import android.opengl.EGL14;
 import android.os.Build;
+import android.os.Debug;
 import android.os.IInstalld;
 import android.os.Environment;
 import android.os.Process;
@@ -64,11 +65,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Security;
 import java.security.Provider;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Startup class for the zygote process.
@@ -87,6 +91,16 @@ public class ZygoteInit {
 
     private static final String PROPERTY_DISABLE_OPENGL_PRELOADING = "ro.zygote.disable_gl_preload";
     private static final String PROPERTY_GFX_DRIVER = "ro.gfx.driver.0";
+    /**
+     * Maximum number of classes preloaded from the adaptive list, 0 to disable it. The budget is
+     * a class count: what loading a class costs is mostly class metadata outside the Java heap,
+     * which heap usage doesn't show.
+     */
+    private static final String PROPERTY_ADAPTIVE_PRELOAD_CLASSES =
+            "persist.sys.preload.adaptive_classes";
+
+    /** Maximum number of threads loading the adaptive classes in parallel. */
+    private static final int MAX_ADAPTIVE_PRELOAD_THREADS = 4;
 
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
@@ -143,6 +157,9 @@ public class ZygoteInit {
         WebViewFactory.prepareWebViewInZygote();
         endIcuCachePinning();
         warmUpJcaProviders();
+        if (ClassPreloadRecorder.isRecording()) {
+            ClassPreloadRecorder.snapshotZygoteClasses();
+        }
         Log.d(TAG, "end preload");
 
         sPreloadComplete = true;
@@ -250,6 +267,12 @@ public class ZygoteInit {
         Log.i(TAG, "Preloading classes...");
         long startTime = SystemClock.uptimeMillis();
 
+        // The adaptive list is private to the system, read it while still root.
+        final int adaptiveMaxClasses =
+                SystemProperties.getInt(PROPERTY_ADAPTIVE_PRELOAD_CLASSES, 0);
+        final ArrayList<String> adaptiveClassNames =
+                adaptiveMaxClasses > 0 ? readAdaptiveClassList(adaptiveMaxClasses) : null;
+
         // Drop root perms while running static initializers.
         final int reuid = Os.getuid();
         final int regid = Os.getgid();
@@ -318,6 +341,8 @@ public class ZygoteInit {
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis()-startTime) + "ms.");
+
+            preloadAdaptiveClasses(adaptiveClassNames);
         } catch (IOException e) {
             Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
         } finally {
@@ -342,6 +367,99 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Preloads the classes apps used most often beyond the static list, as ranked by the
+     * activity manager from what app processes reported (see {@link ClassPreloadRecorder}). The
+     * list was already cut down to the budget when read.
+     *
+     * Unlike the static list, this one isn't vetted: its classes are only loaded and linked,
+     * which shares their class data with apps, but their static initializers are left for the
+     * apps to run. An initializer could start threads, open files or cache state that must not
+     * be shared between apps, which is what keeps a class off the static list. Loading doesn't
+     * run any app code either, so the classes are loaded in parallel, still in ranking order.
+     */
+    private static void preloadAdaptiveClasses(ArrayList<String> classNames) {
+        if (classNames == null || classNames.isEmpty()) {
+            return;
+        }
+
+        Log.i(TAG, "Preloading adaptive classes...");
+        long startTime = SystemClock.uptimeMillis();
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "LoadAdaptiveClasses");
+        final long startNativeBytes = Debug.getNativeHeapAllocatedSize();
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicInteger count = new AtomicInteger();
+        final int threadCount = Math.min(MAX_ADAPTIVE_PRELOAD_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                int i;
+                while ((i = nextIndex.getAndIncrement()) < classNames.size()) {
+                    try {
+                        Class.forName(classNames.get(i), false, null);
+                        count.incrementAndGet();
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        // Gone since the list was written, or not loadable here; skipped.
+                    }
+                }
+            }, "AdaptivePreload-" + t);
+            threads[t].start();
+        }
+        // The zygote can't fork with other threads around, wait for them to be gone.
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+        // For tuning the budget; class metadata outside the native heap isn't included.
+        final long nativeBytes = Debug.getNativeHeapAllocatedSize() - startNativeBytes;
+        Log.i(TAG, "...preloaded " + count.get() + " of " + classNames.size()
+                + " adaptive classes (native heap +" + Math.max(0, nativeBytes) / 1024 + "K) in "
+                + (SystemClock.uptimeMillis() - startTime) + "ms.");
+    }
+
+    /**
+     * Reads at most {@code maxClasses} class names of the adaptive preload list, most used first,
+     * leaving out those too few apps used. Each line holds a class name followed by how many
+     * apps used it.
+     */
+    private static ArrayList<String> readAdaptiveClassList(int maxClasses) {
+        final ArrayList<String> classNames = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(
+                new FileReader(ClassPreloadRecorder.ADAPTIVE_LIST_FILE), 256)) {
+            String line;
+            while (classNames.size() < maxClasses && (line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#") || line.equals("")) {
+                    continue;
+                }
+                final int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                try {
+                    if (Integer.parseInt(line.substring(space + 1))
+                            < ClassPreloadRecorder.MIN_APP_COUNT) {
+                        // Ranked by count, the rest is below the threshold too.
+                        break;
+                    }
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                classNames.add(line.substring(0, space));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + ClassPreloadRecorder.ADAPTIVE_LIST_FILE + ".", e);
+        }
+        return classNames;
+    }
+
     /**
      * Load in commonly used resources, so they can be shared across
      * processes.
@@ -799,6 +917,10 @@ public class ZygoteInit {
                 }
             }
 
+            // Keep app processes forked ahead of time; the pool only fills once preloading
+            // is done, so a lazily preloading zygote stays empty until it is needed.
+            zygoteServer.enableProcessPool();
+
             Log.i(TAG, "Accepting command socket connections");
 
             // The select loop returns early in the child process after a fork and
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static android.system.OsConstants.AF_UNIX;
+import static android.system.OsConstants.SOCK_STREAM;
+
+import android.os.Process;
+import android.os.SystemProperties;
+import android.os.Trace;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import libcore.io.IoUtils;
+
+/**
+ * Processes forked by the zygote ahead of time and left unspecialized, so that starting an app
+ * process only has to hand one of them its arguments instead of forking on the spot.
+ * <p>
+ * Each pooled process waits on its end of a socket pair for the arguments of the process it is
+ * to become, then specializes itself like a freshly forked child would. The zygote refills the
+ * pool when it has been idle for a little while, so that the fork doesn't compete with the
+ * launch that just claimed a process, and shrinks it when memory gets low.
+ * </p>
+ * Only requests that need nothing from the fork itself are served from the pool: no wrapper,
+ * no child zygote and no stdio descriptors passed along.
+ */
+class ZygoteProcessPool {
+    private static final String TAG = "ZygoteProcessPool";
+
+    /** Maximum number of pooled processes, 0 to disable the pool. */
+    private static final String POOL_SIZE_PROPERTY = "persist.sys.zygote.pool_size";
+    private static final int DEFAULT_POOL_SIZE = 3;
+
+    /** How long the zygote must be idle before refilling the pool. */
+    static final int REFILL_DELAY_MILLIS = 200;
+
+    /** Below this percentage of free memory the pool is kept to a single process. */
+    private static final int LOW_MEMORY_PERCENT = 20;
+    /** Below this percentage of free memory the pool is emptied. */
+    private static final int CRITICAL_MEMORY_PERCENT = 10;
+
+    private static final class Entry {
+        final int pid;
+        /** The zygote's end of the socket pair the process waits on. */
+        final FileDescriptor commandFd;
+
+        Entry(int pid, FileDescriptor commandFd) {
+            this.pid = pid;
+            this.commandFd = commandFd;
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * Returns whether the request can be served by a pooled process.
+     */
+    static boolean canServe(ZygoteConnection.Arguments args, FileDescriptor[] descriptors) {
+        return args.invokeWith == null && !args.startChildZygote && descriptors == null;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the zygote's end of the socket of the pooled process at the given index, readable
+     * only once the process is gone.
+     */
+    FileDescriptor getCommandFd(int index) {
+        return mEntries.get(index).commandFd;
+    }
+
+    /**
+     * Returns the descriptors the zygote holds for the pool. Every child forked by the zygote
+     * must close them, and they are left out of the open file descriptor check.
+     */
+    int[] getCommandFds() {
+        final int[] fds = new int[mEntries.size()];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = mEntries.get(i).commandFd.getInt$();
+        }
+        return fds;
+    }
+
+    /**
+     * Drops the pooled process at the given index, which has died.
+     */
+    void removeAt(int index) {
+        final Entry entry = mEntries.remove(index);
+        Log.w(TAG, "Pooled process " + entry.pid + " died");
+        IoUtils.closeQuietly(entry.commandFd);
+    }
+
+    /**
+     * Returns how many processes the pool should hold given the configured size and how much
+     * memory is free.
+     */
+    int getTargetSize() {
+        final int maxSize = SystemProperties.getInt(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+        if (maxSize <= 0) {
+            return 0;
+        }
+        final long total = Process.getTotalMemory();
+        final long freePercent = total > 0 ? Process.getFreeMemory() * 100 / total : 100;
+        if (freePercent < CRITICAL_MEMORY_PERCENT) {
+            return 0;
+        } else if (freePercent < LOW_MEMORY_PERCENT) {
+            return 1;
+        }
+        return maxSize;
+    }
+
+    /**
+     * Lets pooled processes beyond the given size exit.
+     */
+    void trim(int targetSize) {
+        while (mEntries.size() > targetSize) {
+            // Closing our end makes the process see EOF and exit.
+            IoUtils.closeQuietly(mEntries.remove(mEntries.size() - 1).commandFd);
+        }
+    }
+
+    /**
+     * Forks one more process into the pool.
+     *
+     * @param socketFds the server socket and the peer connections of the zygote, which the
+     *        pooled process must not keep
+     * @return {@code null} in the zygote, and in the pooled process, once claimed, the
+     *         {@code Runnable} that runs the main method of the process it became
+     */
+    Runnable forkOne(ZygoteServer zygoteServer, ArrayList<FileDescriptor> socketFds) {
+        final FileDescriptor zygoteFd = new FileDescriptor();
+        final FileDescriptor childFd = new FileDescriptor();
+        try {
+            Os.socketpair(AF_UNIX, SOCK_STREAM, 0, zygoteFd, childFd);
+        } catch (ErrnoException ex) {
+            Log.e(TAG, "Unable to create socket pair for pooled process", ex);
+            return null;
+        }
+
+        // The child closes the zygote's sockets, the command sockets of the other pooled
+        // processes and our end of its own, and keeps its end. None of the sockets are in the
+        // open file descriptor table.
+        final int[] commandFds = getCommandFds();
+        final int socketCount = socketFds.size();
+        final int[] fdsToClose = new int[socketCount + commandFds.length + 1];
+        for (int i = 0; i < socketCount; i++) {
+            fdsToClose[i] = socketFds.get(i).getInt$();
+        }
+        System.arraycopy(commandFds, 0, fdsToClose, socketCount, commandFds.length);
+        fdsToClose[fdsToClose.length - 1] = zygoteFd.getInt$();
+        final int[] fdsToIgnore = Arrays.copyOf(fdsToClose, fdsToClose.length + 1);
+        fdsToIgnore[fdsToIgnore.length - 1] = childFd.getInt$();
+
+        final int pid = Zygote.forkPoolProcess(fdsToClose, fdsToIgnore);
+        if (pid == 0) {
+            zygoteServer.setForkChild();
+            zygoteServer.closeServerSocket();
+            for (int i = 0; i < mEntries.size(); i++) {
+                IoUtils.closeQuietly(mEntries.get(i).commandFd);
+            }
+            mEntries.clear();
+            IoUtils.closeQuietly(zygoteFd);
+            return runPooledProcess(childFd);
+        }
+
+        IoUtils.closeQuietly(childFd);
+        if (pid < 0) {
+            Log.e(TAG, "Unable to fork pooled process");
+            IoUtils.closeQuietly(zygoteFd);
+            return null;
+        }
+        mEntries.add(new Entry(pid, zygoteFd));
+        return null;
+    }
+
+    /**
+     * Hands the request to a pooled process.
+     *
+     * @return the pid of the process that will run the request, or -1 if the pool had none
+     */
+    int claim(ZygoteConnection.Arguments args) {
+        while (!mEntries.isEmpty()) {
+            final Entry entry = mEntries.remove(mEntries.size() - 1);
+            try {
+                if (!isAlive(entry)) {
+                    Log.w(TAG, "Pooled process " + entry.pid + " died");
+                    continue;
+                }
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(entry.commandFd)));
+                writeArguments(out, args);
+                out.flush();
+                return entry.pid;
+            } catch (IOException | ErrnoException ex) {
+                Log.w(TAG, "Unable to hand request to pooled process " + entry.pid, ex);
+            } finally {
+                IoUtils.closeQuietly(entry.commandFd);
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAlive(Entry entry) throws ErrnoException {
+        // A pooled process never writes, any event on its socket means it is gone.
+        final StructPollfd[] fds = { new StructPollfd() };
+        fds[0].fd = entry.commandFd;
+        fds[0].events = 0;
+        return Os.poll(fds, 0) == 0;
+    }
+
+    /**
+     * Waits for a request and specializes this process to run it.
+     */
+    private static Runnable runPooledProcess(FileDescriptor commandFd) {
+        final ZygoteConnection.Arguments args;
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(commandFd)));
+            args = readArguments(in);
+        } catch (IOException ex) {
+            // The zygote trimmed the pool, or is gone itself.
+            System.exit(0);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(commandFd);
+        }
+
+        final int[][] rlimits = args.rlimits != null ? args.rlimits.toArray(new int[0][0]) : null;
+        Zygote.specializeAppProcess(args.uid, args.gid, args.gids, args.runtimeFlags, rlimits,
+                args.mountExternal, args.seInfo, args.niceName, args.instructionSet,
+                args.appDataDir);
+
+        if (args.niceName != null) {
+            Process.setArgV0(args.niceName);
+        }
+
+        // End of the postFork event.
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        return ZygoteInit.zygoteInit(args.targetSdkVersion, args.remainingArgs,
+                null /* classLoader */);
+    }
+
+    private static void writeArguments(DataOutputStream out, ZygoteConnection.Arguments args)
+            throws IOException {
+        out.writeInt(args.uid);
+        out.writeInt(args.gid);
+        writeIntArray(out, args.gids);
+        out.writeInt(args.runtimeFlags);
+        final int rlimitCount = args.rlimits != null ? args.rlimits.size() : -1;
+        out.writeInt(rlimitCount);
+        for (int i = 0; i < rlimitCount; i++) {
+            writeIntArray(out, args.rlimits.get(i));
+        }
+        out.writeInt(args.mountExternal);
+        writeString(out, args.seInfo);
+        writeString(out, args.niceName);
+        out.writeInt(args.targetSdkVersion);
+        writeString(out, args.instructionSet);
+        writeString(out, args.appDataDir);
+        out.writeInt(args.remainingArgs.length);
+        for (String arg : args.remainingArgs) {
+            writeString(out, arg);
+        }
+    }
+
+    private static ZygoteConnection.Arguments readArguments(DataInputStream in)
+            throws IOException {
+        final ZygoteConnection.Arguments args = new ZygoteConnection.Arguments();
+        args.uid = in.readInt();
+        args.gid = in.readInt();
+        args.gids = readIntArray(in);
+        args.runtimeFlags = in.readInt();
+        final int rlimitCount = in.readInt();
+        if (rlimitCount >= 0) {
+            args.rlimits = new ArrayList<>(rlimitCount);
+            for (int i = 0; i < rlimitCount; i++) {
+                args.rlimits.add(readIntArray(in));
+            }
+        }
+        args.mountExternal = in.readInt();
+        args.seInfo = readString(in);
+        args.niceName = readString(in);
+        args.targetSdkVersion = in.readInt();
+        args.instructionSet = readString(in);
+        args.appDataDir = readString(in);
+        args.remainingArgs = new String[in.readInt()];
+        for (int i = 0; i < args.remainingArgs.length; i++) {
+            args.remainingArgs[i] = readString(in);
+        }
+        return args;
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
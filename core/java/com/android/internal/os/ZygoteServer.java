@@ -63,9 +63,25 @@ class ZygoteServer {
      */
     private boolean mIsForkChild;
 
+    /**
+     * Processes forked ahead of time to serve app starts, null unless enabled.
+     */
+    private ZygoteProcessPool mProcessPool;
+
     ZygoteServer() {
     }
 
+    /**
+     * Keeps a pool of processes forked ahead of time, refilled while the select loop is idle.
+     */
+    void enableProcessPool() {
+        mProcessPool = new ZygoteProcessPool();
+    }
+
+    ZygoteProcessPool getProcessPool() {
+        return mProcessPool;
+    }
+
     void setForkChild() {
         mIsForkChild = true;
     }
@@ -178,18 +194,43 @@ class ZygoteServer {
         peers.add(null);
 
         while (true) {
-            StructPollfd[] pollFds = new StructPollfd[fds.size()];
+            int poolTarget = 0;
+            if (mProcessPool != null && ZygoteInit.isPreloadComplete()) {
+                poolTarget = mProcessPool.getTargetSize();
+                mProcessPool.trim(poolTarget);
+            }
+            final int poolSize = mProcessPool != null ? mProcessPool.size() : 0;
+
+            // The sockets of the pooled processes are polled after the peers; they only ever
+            // report an event when the process on the other end is gone.
+            StructPollfd[] pollFds = new StructPollfd[fds.size() + poolSize];
             for (int i = 0; i < pollFds.length; ++i) {
                 pollFds[i] = new StructPollfd();
-                pollFds[i].fd = fds.get(i);
+                pollFds[i].fd = i < fds.size()
+                        ? fds.get(i) : mProcessPool.getCommandFd(i - fds.size());
                 pollFds[i].events = (short) POLLIN;
             }
+            final int ready;
             try {
-                Os.poll(pollFds, -1);
+                ready = Os.poll(pollFds,
+                        poolSize < poolTarget ? ZygoteProcessPool.REFILL_DELAY_MILLIS : -1);
             } catch (ErrnoException ex) {
                 throw new RuntimeException("poll failed", ex);
             }
-            for (int i = pollFds.length - 1; i >= 0; --i) {
+            if (ready == 0) {
+                // Idle for a while with room in the pool, fork one more process into it.
+                final Runnable command = mProcessPool.forkOne(this, fds);
+                if (mIsForkChild) {
+                    return command;
+                }
+                continue;
+            }
+            for (int i = pollFds.length - 1; i >= fds.size(); --i) {
+                if (pollFds[i].revents != 0) {
+                    mProcessPool.removeAt(i - fds.size());
+                }
+            }
+            for (int i = fds.size() - 1; i >= 0; --i) {
                 if ((pollFds[i].revents & POLLIN) == 0) {
                     continue;
                 }
@@ -509,15 +509,9 @@ static void FillFileDescriptorVector(JNIEnv* env,
   }
 }
 
-// Utility routine to fork zygote and specialize the child process.
-static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArray javaGids,
-                                     jint runtime_flags, jobjectArray javaRlimits,
-                                     jlong permittedCapabilities, jlong effectiveCapabilities,
-                                     jint mount_external,
-                                     jstring java_se_info, jstring java_se_name,
-                                     bool is_system_server, jintArray fdsToClose,
-                                     jintArray fdsToIgnore, bool is_child_zygote,
-                                     jstring instructionSet, jstring dataDir) {
+// Utility routine to fork zygote. The child is left unspecialized: it still runs as the
+// zygote, with the descriptors it must not keep closed and the others reopened.
+static pid_t ForkCommon(JNIEnv* env, jintArray fdsToClose, jintArray fdsToIgnore) {
   SetSignalHandlers();
 
   sigset_t sigchld;
@@ -565,12 +559,24 @@ static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArra
     if (!gOpenFdTable->ReopenOrDetach()) {
       RuntimeAbort(env, __LINE__, "Unable to reopen whitelisted descriptors.");
     }
+  }
 
-    if (sigprocmask(SIG_UNBLOCK, &sigchld, nullptr) == -1) {
-      ALOGE("sigprocmask(SIG_SETMASK, { SIGCHLD }) failed: %s", strerror(errno));
-      RuntimeAbort(env, __LINE__, "Call to sigprocmask(SIG_UNBLOCK, { SIGCHLD }) failed.");
-    }
+  // We blocked SIGCHLD prior to a fork, we unblock it here, in both the parent and the child.
+  if (pid >= 0 && sigprocmask(SIG_UNBLOCK, &sigchld, nullptr) == -1) {
+    ALOGE("sigprocmask(SIG_SETMASK, { SIGCHLD }) failed: %s", strerror(errno));
+    RuntimeAbort(env, __LINE__, "Call to sigprocmask(SIG_UNBLOCK, { SIGCHLD }) failed.");
+  }
+  return pid;
+}
 
+// Utility routine to specialize a child forked by ForkCommon into the given process.
+static void SpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArray javaGids,
+                             jint runtime_flags, jobjectArray javaRlimits,
+                             jlong permittedCapabilities, jlong effectiveCapabilities,
+                             jint mount_external,
+                             jstring java_se_info, jstring java_se_name,
+                             bool is_system_server, bool is_child_zygote,
+                             jstring instructionSet, jstring dataDir) {
     // Must be called when the new process still has CAP_SYS_ADMIN.  The other alternative is to
     // call prctl(PR_SET_NO_NEW_PRIVS, 1) afterward, but that breaks SELinux domain transition (see
     // b/71859146).
@@ -618,7 +624,7 @@ static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArra
             if (rc == -EROFS) {
                 ALOGW("createProcessGroup failed, kernel missing CONFIG_CGROUP_CPUACCT?");
             } else {
-                ALOGE("createProcessGroup(%d, %d) failed: %s", uid, pid, strerror(-rc));
+                ALOGE("createProcessGroup(%d, %d) failed: %s", uid, getpid(), strerror(-rc));
             }
         }
     }
@@ -703,14 +709,23 @@ static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArra
     if (env->ExceptionCheck()) {
       RuntimeAbort(env, __LINE__, "Error calling post fork hooks.");
     }
-  } else if (pid > 0) {
-    // the parent process
+}
 
-    // We blocked SIGCHLD prior to a fork, we unblock it here.
-    if (sigprocmask(SIG_UNBLOCK, &sigchld, nullptr) == -1) {
-      ALOGE("sigprocmask(SIG_SETMASK, { SIGCHLD }) failed: %s", strerror(errno));
-      RuntimeAbort(env, __LINE__, "Call to sigprocmask(SIG_UNBLOCK, { SIGCHLD }) failed.");
-    }
+// Utility routine to fork zygote and specialize the child process.
+static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArray javaGids,
+                                     jint runtime_flags, jobjectArray javaRlimits,
+                                     jlong permittedCapabilities, jlong effectiveCapabilities,
+                                     jint mount_external,
+                                     jstring java_se_info, jstring java_se_name,
+                                     bool is_system_server, jintArray fdsToClose,
+                                     jintArray fdsToIgnore, bool is_child_zygote,
+                                     jstring instructionSet, jstring dataDir) {
+  pid_t pid = ForkCommon(env, fdsToClose, fdsToIgnore);
+  if (pid == 0) {
+    SpecializeCommon(env, uid, gid, javaGids, runtime_flags, javaRlimits,
+                     permittedCapabilities, effectiveCapabilities, mount_external,
+                     java_se_info, java_se_name, is_system_server, is_child_zygote,
+                     instructionSet, dataDir);
   }
   return pid;
 }
@@ -744,12 +759,9 @@ static void com_android_internal_os_Zygote_nativePreApplicationInit(JNIEnv*, jcl
   PreApplicationInit();
 }
 
-static jint com_android_internal_os_Zygote_nativeForkAndSpecialize(
-        JNIEnv* env, jclass, jint uid, jint gid, jintArray gids,
-        jint runtime_flags, jobjectArray rlimits,
-        jint mount_external, jstring se_info, jstring se_name,
-        jintArray fdsToClose, jintArray fdsToIgnore, jboolean is_child_zygote,
-        jstring instructionSet, jstring appDataDir) {
+// Returns the capabilities an app process of the given uid and gids is granted.
+static jlong CalculateCapabilities(JNIEnv* env, jint uid, jint gid, jintArray gids,
+                                   bool is_child_zygote) {
     jlong capabilities = 0;
 
     // Grant CAP_WAKE_ALARM to the Bluetooth process.
@@ -797,12 +809,39 @@ static jint com_android_internal_os_Zygote_nativeForkAndSpecialize(
     // available.
     capabilities &= GetEffectiveCapabilityMask(env);
 
+    return capabilities;
+}
+
+static jint com_android_internal_os_Zygote_nativeForkAndSpecialize(
+        JNIEnv* env, jclass, jint uid, jint gid, jintArray gids,
+        jint runtime_flags, jobjectArray rlimits,
+        jint mount_external, jstring se_info, jstring se_name,
+        jintArray fdsToClose, jintArray fdsToIgnore, jboolean is_child_zygote,
+        jstring instructionSet, jstring appDataDir) {
+    jlong capabilities = CalculateCapabilities(env, uid, gid, gids, is_child_zygote == JNI_TRUE);
+
     return ForkAndSpecializeCommon(env, uid, gid, gids, runtime_flags,
             rlimits, capabilities, capabilities, mount_external, se_info,
             se_name, false, fdsToClose, fdsToIgnore, is_child_zygote == JNI_TRUE,
             instructionSet, appDataDir);
 }
 
+static jint com_android_internal_os_Zygote_nativeForkPoolProcess(
+        JNIEnv* env, jclass, jintArray fdsToClose, jintArray fdsToIgnore) {
+    return ForkCommon(env, fdsToClose, fdsToIgnore);
+}
+
+static void com_android_internal_os_Zygote_nativeSpecializeAppProcess(
+        JNIEnv* env, jclass, jint uid, jint gid, jintArray gids,
+        jint runtime_flags, jobjectArray rlimits,
+        jint mount_external, jstring se_info, jstring se_name,
+        jstring instructionSet, jstring appDataDir) {
+    jlong capabilities = CalculateCapabilities(env, uid, gid, gids, false);
+
+    SpecializeCommon(env, uid, gid, gids, runtime_flags, rlimits, capabilities, capabilities,
+            mount_external, se_info, se_name, false, false, instructionSet, appDataDir);
+}
+
 static jint com_android_internal_os_Zygote_nativeForkSystemServer(
         JNIEnv* env, jclass, uid_t uid, gid_t gid, jintArray gids,
         jint runtime_flags, jobjectArray rlimits, jlong permittedCapabilities,
@@ -887,6 +926,11 @@ static const JNINativeMethod gMethods[] = {
     { "nativeForkAndSpecialize",
       "(II[II[[IILjava/lang/String;Ljava/lang/String;[I[IZLjava/lang/String;Ljava/lang/String;)I",
       (void *) com_android_internal_os_Zygote_nativeForkAndSpecialize },
+    { "nativeForkPoolProcess", "([I[I)I",
+      (void *) com_android_internal_os_Zygote_nativeForkPoolProcess },
+    { "nativeSpecializeAppProcess",
+      "(II[II[[IILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V",
+      (void *) com_android_internal_os_Zygote_nativeSpecializeAppProcess },
     { "nativeForkSystemServer", "(II[II[[IJJ)I",
       (void *) com_android_internal_os_Zygote_nativeForkSystemServer },
     { "nativeAllowFileAcrossFork", "(Ljava/lang/String;)V",
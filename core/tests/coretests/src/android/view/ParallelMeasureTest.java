@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View.MeasureSpec;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for {@link ParallelMeasure}.
+ *
+ * Build: m FrameworksCoreTests
+ * Run: adb shell am instrument -e class android.view.ParallelMeasureTest -w \
+ *     com.android.frameworks.coretests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParallelMeasureTest {
+    private static final int CHILD_COUNT = 8;
+    private static final int CHILD_SIZE = 20;
+    private static final int PARENT_SIZE = 100;
+
+    private static final int EXACTLY_PARENT =
+            MeasureSpec.makeMeasureSpec(PARENT_SIZE, MeasureSpec.EXACTLY);
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+    }
+
+    @Test
+    public void testRunAfterMeasure_notMeasuringRunsRightAway() {
+        final AtomicInteger runs = new AtomicInteger();
+        assertFalse(ParallelMeasure.isMeasuring());
+        ParallelMeasure.runAfterMeasure(runs::incrementAndGet);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testRunAfterMeasure_deferredToCallingThread() {
+        final Thread callingThread = Thread.currentThread();
+        final AtomicInteger measured = new AtomicInteger();
+        final AtomicInteger actionRuns = new AtomicInteger();
+        final FrameLayout parent = newParallelParent();
+        for (int i = 0; i < CHILD_COUNT; i++) {
+            parent.addView(new TestView(mContext) {
+                @Override
+                protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+                    super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+                    measured.incrementAndGet();
+                    final boolean deferred = ParallelMeasure.isMeasuring();
+                    ParallelMeasure.runAfterMeasure(() -> {
+                        assertSame(callingThread, Thread.currentThread());
+                        if (deferred) {
+                            // Only once all the siblings are measured.
+                            assertEquals(CHILD_COUNT, measured.get());
+                        }
+                        actionRuns.incrementAndGet();
+                    });
+                }
+            }, newChildLayoutParams());
+        }
+
+        parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+
+        assertEquals(CHILD_COUNT, measured.get());
+        // Whichever thread measured them, all the actions ran before measure() returned.
+        assertEquals(CHILD_COUNT, actionRuns.get());
+        assertFalse(ParallelMeasure.isMeasuring());
+    }
+
+    @Test
+    public void testMeasure_failurePropagated() {
+        final IllegalStateException failure = new IllegalStateException("measure failed");
+        final FrameLayout parent = newParallelParent();
+        for (int i = 0; i < CHILD_COUNT; i++) {
+            final boolean fails = i == CHILD_COUNT - 1;
+            parent.addView(new TestView(mContext) {
+                @Override
+                protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+                    if (fails) {
+                        throw failure;
+                    }
+                    super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+                }
+            }, newChildLayoutParams());
+        }
+
+        try {
+            parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+            fail("The failure measuring a child was not rethrown");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testMeasure_premeasuredChildrenReused() {
+        final FrameLayout parent = newParallelParent();
+        final TestView[] children = addChildren(parent);
+
+        parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+
+        for (TestView child : children) {
+            assertEquals(1, child.mMeasureCount.get());
+            assertEquals(CHILD_SIZE, child.getMeasuredWidth());
+            assertPremeasuredCleared(child);
+        }
+    }
+
+    @Test
+    public void testMeasure_premeasureWithOtherSpecsCleared() {
+        final int otherSpec = MeasureSpec.makeMeasureSpec(CHILD_SIZE / 2, MeasureSpec.EXACTLY);
+        final ViewGroup parent = new TestViewGroup(mContext) {
+            @Override
+            protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+                // Not the specs the children were premeasured with.
+                for (int i = 0; i < getChildCount(); i++) {
+                    getChildAt(i).measure(otherSpec, otherSpec);
+                }
+                setMeasuredDimension(PARENT_SIZE, PARENT_SIZE);
+            }
+        };
+        parent.setMeasureChildrenInParallel(true);
+        final TestView[] children = addChildren(parent);
+
+        parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+
+        for (TestView child : children) {
+            assertEquals(2, child.mMeasureCount.get());
+            assertEquals(CHILD_SIZE / 2, child.getMeasuredWidth());
+            assertPremeasuredCleared(child);
+        }
+    }
+
+    @Test
+    public void testMeasure_premeasureNotUsedCleared() {
+        final ViewGroup parent = new TestViewGroup(mContext) {
+            @Override
+            protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+                // Leaves the children as premeasured.
+                setMeasuredDimension(PARENT_SIZE, PARENT_SIZE);
+            }
+        };
+        parent.setMeasureChildrenInParallel(true);
+        final TestView[] children = addChildren(parent);
+
+        parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+
+        for (TestView child : children) {
+            assertEquals(1, child.mMeasureCount.get());
+            assertPremeasuredCleared(child);
+        }
+    }
+
+    @Test
+    public void testMeasure_serialWhenNotInParallel() {
+        final FrameLayout parent = new FrameLayout(mContext);
+        final TestView[] children = addChildren(parent);
+
+        parent.measure(EXACTLY_PARENT, EXACTLY_PARENT);
+
+        for (TestView child : children) {
+            assertEquals(1, child.mMeasureCount.get());
+            assertSame(Thread.currentThread(), child.mMeasureThread);
+            assertPremeasuredCleared(child);
+        }
+    }
+
+    private FrameLayout newParallelParent() {
+        final FrameLayout parent = new FrameLayout(mContext);
+        parent.setMeasureChildrenInParallel(true);
+        return parent;
+    }
+
+    private TestView[] addChildren(ViewGroup parent) {
+        final TestView[] children = new TestView[CHILD_COUNT];
+        for (int i = 0; i < CHILD_COUNT; i++) {
+            children[i] = new TestView(mContext);
+            parent.addView(children[i], newChildLayoutParams());
+        }
+        return children;
+    }
+
+    private static FrameLayout.LayoutParams newChildLayoutParams() {
+        return new FrameLayout.LayoutParams(CHILD_SIZE, CHILD_SIZE);
+    }
+
+    private static void assertPremeasuredCleared(View view) {
+        assertEquals(0, view.mPrivateFlags3 & View.PFLAG3_PREMEASURED);
+    }
+
+    private static class TestView extends View {
+        final AtomicInteger mMeasureCount = new AtomicInteger();
+        volatile Thread mMeasureThread;
+
+        TestView(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            mMeasureCount.incrementAndGet();
+            mMeasureThread = Thread.currentThread();
+            setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec),
+                    MeasureSpec.getSize(heightMeasureSpec));
+        }
+    }
+
+    private static class TestViewGroup extends ViewGroup {
+        TestViewGroup(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        }
+    }
+}
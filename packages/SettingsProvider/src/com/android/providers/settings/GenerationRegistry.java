@@ -91,6 +91,28 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Returns the current generation for the key, or -1 if it is not tracked yet.
+     */
+    public int getGeneration(int key) {
+        synchronized (mLock) {
+            if (mBackingStore == null) {
+                return -1;
+            }
+            final int index = mKeyToIndexMap.get(key, -1);
+            if (index < 0) {
+                return -1;
+            }
+            try {
+                return mBackingStore.get(index);
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error reading generation id", e);
+                destroyBackingStore();
+                return -1;
+            }
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
@@ -55,11 +55,16 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.UserManagerInternal;
 import android.provider.Settings;
 import android.provider.Settings.Global;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -92,6 +97,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -183,6 +189,13 @@ public class SettingsProvider extends ContentProvider {
     private static final Bundle NULL_SETTING_BUNDLE = Bundle.forPair(
             Settings.NameValueTable.VALUE, null);
 
+    // Upper bound on the names in one batched read, to stay well below the binder limit.
+    private static final int MAX_BATCHED_READ_NAMES = 256;
+
+    // Whether settings are persisted to the binary log instead of XML, see SettingsState.
+    private static final boolean USE_BINARY_STORE =
+            SystemProperties.getBoolean("persist.sys.settings_binary_store", false);
+
     // Overlay specified settings whitelisted for Instant Apps
     private static final Set<String> OVERLAY_ALLOWED_GLOBAL_INSTANT_APP_SETTINGS = new ArraySet<>();
     private static final Set<String> OVERLAY_ALLOWED_SYSTEM_INSTANT_APP_SETTINGS = new ArraySet<>();
@@ -338,17 +351,27 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                final boolean requestingSnapshot = isRequestingSnapshot(args);
+                Bundle result = packageValueForCallResult(setting,
+                        isTrackingGeneration(args) || requestingSnapshot);
+                if (requestingSnapshot) {
+                    mSettingsRegistry.addGlobalSnapshot(result);
+                }
+                return addRequestedValues(result, args, this::getGlobalSetting);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                Bundle result = packageValueForCallResult(setting, isTrackingGeneration(args));
+                return addRequestedValues(result, args,
+                        (n) -> getSecureSetting(n, requestingUserId));
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                Bundle result = packageValueForCallResult(setting, isTrackingGeneration(args));
+                return addRequestedValues(result, args,
+                        (n) -> getSystemSetting(n, requestingUserId));
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -1900,6 +1923,33 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Answers a batched read: if the caller asked for {@link Settings#CALL_METHOD_NAMES_KEY},
+     * looks up each of those names with the same checks as a single read and returns the
+     * values in {@link Settings#CALL_METHOD_VALUES_KEY}, in request order.
+     */
+    private Bundle addRequestedValues(Bundle result, Bundle args,
+            Function<String, Setting> getter) {
+        final String[] names = (args != null)
+                ? args.getStringArray(Settings.CALL_METHOD_NAMES_KEY) : null;
+        if (names == null) {
+            return result;
+        }
+        if (names.length > MAX_BATCHED_READ_NAMES) {
+            throw new IllegalArgumentException("Cannot read more than "
+                    + MAX_BATCHED_READ_NAMES + " settings at once");
+        }
+        final String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            final Setting setting = getter.apply(names[i]);
+            values[i] = (setting != null && !setting.isNull()) ? setting.getValue() : null;
+        }
+        // NULL_SETTING_BUNDLE is shared, never add to it.
+        final Bundle batched = (result == NULL_SETTING_BUNDLE) ? new Bundle(result) : result;
+        batched.putStringArray(Settings.CALL_METHOD_VALUES_KEY, values);
+        return batched;
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -1910,6 +1960,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isRequestingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2131,6 +2185,22 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        // Snapshot of the global settings handed to clients, see addGlobalSnapshot().
+        @GuardedBy("mLock")
+        private SharedMemory mGlobalSnapshot;
+
+        @GuardedBy("mLock")
+        private int mGlobalSnapshotGeneration;
+
+        // When the last snapshot was started, to limit how often one is built.
+        @GuardedBy("mLock")
+        private long mGlobalSnapshotBuildUptimeMillis = -SNAPSHOT_MIN_INTERVAL_MILLIS;
+
+        // Global settings can change many times in a row, e.g. at boot, and every new snapshot
+        // is mapped again by every client that reads, so they are built at most this often.
+        // In between clients read through the per-key cache as without a snapshot.
+        private static final long SNAPSHOT_MIN_INTERVAL_MILLIS = 1000;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2324,7 +2394,8 @@ public class SettingsProvider extends ContentProvider {
             if (mSettingsStates.get(key) == null) {
                 final int maxBytesPerPackage = getMaxBytesPerPackageForType(getTypeFromKey(key));
                 SettingsState settingsState = new SettingsState(getContext(), mLock,
-                        getSettingsFile(key), key, maxBytesPerPackage, mHandlerThread.getLooper());
+                        getSettingsFile(key), key, maxBytesPerPackage, mHandlerThread.getLooper(),
+                        USE_BINARY_STORE);
                 mSettingsStates.put(key, settingsState);
             }
         }
@@ -2751,6 +2822,81 @@ public class SettingsProvider extends ContentProvider {
             }
         }
 
+        /**
+         * Adds a read-only snapshot of all global settings to a call result, which lets the
+         * client serve further reads without calling us until the generation changes. Only
+         * the global table is shared this way: secure and system reads depend on the caller
+         * (SSAID, restricted settings, profile cloning). Instant apps are left out as they are
+         * only meant to read whitelisted settings.
+         * <p>
+         * Every result gets its own duplicate of the snapshot's file descriptor, owned by
+         * whoever receives it, so a superseded snapshot can be closed right away.
+         * </p>
+         */
+        public void addGlobalSnapshot(Bundle result) {
+            if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                    && getCallingApplicationInfoOrThrow().isInstantApp()) {
+                return;
+            }
+            final int key = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
+            final int generation;
+            final ArrayMap<String, String> values;
+            synchronized (mLock) {
+                generation = mGenerationRegistry.getGeneration(key);
+                if (generation < 0) {
+                    return;
+                }
+                if (mGlobalSnapshot != null && mGlobalSnapshotGeneration == generation) {
+                    putGlobalSnapshotLocked(result);
+                    return;
+                }
+                final long now = SystemClock.uptimeMillis();
+                if (now - mGlobalSnapshotBuildUptimeMillis < SNAPSHOT_MIN_INTERVAL_MILLIS) {
+                    // Also keeps concurrent callers from building the same snapshot.
+                    return;
+                }
+                final SettingsState settingsState = peekSettingsStateLocked(key);
+                if (settingsState == null) {
+                    return;
+                }
+                values = settingsState.getValuesLocked();
+                mGlobalSnapshotBuildUptimeMillis = now;
+            }
+
+            final SharedMemory snapshot;
+            try {
+                snapshot = SettingsSnapshot.create("settings_global", generation, values);
+            } catch (ErrnoException | IllegalArgumentException e) {
+                Slog.e(LOG_TAG, "Cannot create global settings snapshot", e);
+                return;
+            }
+            final SharedMemory superseded;
+            synchronized (mLock) {
+                if (mGlobalSnapshot != null && mGlobalSnapshotGeneration >= generation) {
+                    // A snapshot of a later generation was published while this one was built.
+                    superseded = snapshot;
+                } else {
+                    superseded = mGlobalSnapshot;
+                    mGlobalSnapshot = snapshot;
+                    mGlobalSnapshotGeneration = generation;
+                    putGlobalSnapshotLocked(result);
+                }
+            }
+            if (superseded != null) {
+                superseded.close();
+            }
+        }
+
+        @GuardedBy("mLock")
+        private void putGlobalSnapshotLocked(Bundle result) {
+            try {
+                result.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY,
+                        mGlobalSnapshot.dup());
+            } catch (ErrnoException e) {
+                Slog.e(LOG_TAG, "Cannot share global settings snapshot", e);
+            }
+        }
+
         private void notifyForSettingsChange(int key, String name) {
             final int userId = getUserIdFromKey(key);
             Uri uri = getNotificationUriFor(key, name);
@@ -37,6 +37,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -55,6 +56,13 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -65,12 +73,19 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * This class contains the state for one type of settings. It is responsible
  * for saving the state asynchronously to an XML file after a mutation and
  * loading the from an XML file on construction.
  * <p>
+ * Alternatively the state can be kept in a binary log next to the XML file, see
+ * {@link #getBinaryStateFile(File)}. Each write then appends a record per changed
+ * setting instead of rewriting every setting, and the log is compacted into a
+ * single snapshot of all settings once it holds many superseded records.
+ * </p>
+ * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
  * etc, are atomically persisted since the asynchronous persistence is using
@@ -123,6 +138,21 @@ final class SettingsState {
     // This was used in version 120 and before.
     private static final String NULL_VALUE_OLD_STYLE = "null";
 
+    private static final int BINARY_MAGIC = 0x53535431; // "SST1"
+    private static final byte BINARY_RECORD_PUT = 1;
+    private static final byte BINARY_RECORD_DELETE = 2;
+    private static final byte BINARY_RECORD_VERSION = 3;
+    // Marks the start of a snapshot appended to the log: all records with a lower sequence
+    // number are superseded by it.
+    private static final byte BINARY_RECORD_RESET = 4;
+
+    // The binary log is compacted when it holds more than twice as many records as there are
+    // settings, plus this many.
+    private static final int BINARY_COMPACTION_SLACK = 256;
+
+    // Sanity limit on the size of a record read from the binary log.
+    private static final int MAX_BINARY_RECORD_SIZE = 16 * 1024 * 1024;
+
     private static final int HISTORICAL_OPERATION_COUNT = 20;
     private static final String HISTORICAL_OPERATION_UPDATE = "update";
     private static final String HISTORICAL_OPERATION_DELETE = "delete";
@@ -164,6 +194,34 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    private final boolean mBinaryStore;
+
+    private final File mBinaryPersistFile;
+
+    // Binary store only: settings changed since the last write.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtyNames = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private boolean mVersionDirty;
+
+    // Binary store only: whether the next write must rewrite the whole log.
+    @GuardedBy("mLock")
+    private boolean mCompactionNeeded;
+
+    // Binary store only: approximate number of records in the log.
+    @GuardedBy("mLock")
+    private int mBinaryRecordCount;
+
+    // Binary store only: sequence number of the next write. Each record carries the sequence
+    // number of the write it was part of, so that writes racing each other to the disk can be
+    // replayed in the order they were made.
+    @GuardedBy("mLock")
+    private long mNextWriteSeq;
+
+    @GuardedBy("mWriteLock")
+    private long mLastWrittenSeq;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -197,12 +255,23 @@ final class SettingsState {
 
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
+        this(context, lock, file, key, maxBytesPerAppPackage, looper, false);
+    }
+
+    /**
+     * @param binaryStore whether to persist to the binary log instead of the XML file. The
+     *        state is migrated from whichever of the two files exists.
+     */
+    public SettingsState(Context context, Object lock, File file, int key,
+            int maxBytesPerAppPackage, Looper looper, boolean binaryStore) {
         // It is important that we use the same lock as the settings provider
         // to ensure multiple mutations on this state are atomicaly persisted
         // as the async persistence should be blocked while we make changes.
         mContext = context;
         mLock = lock;
         mStatePersistFile = file;
+        mBinaryStore = binaryStore;
+        mBinaryPersistFile = getBinaryStateFile(file);
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -236,6 +305,7 @@ final class SettingsState {
             return;
         }
         mVersion = version;
+        mVersionDirty = true;
 
         scheduleWriteIfNeededLocked();
     }
@@ -255,6 +325,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                markDirtyLocked(name);
                 removedSomething = true;
             }
         }
@@ -309,6 +380,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            markDirtyLocked(name);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -340,6 +412,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -364,6 +437,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -393,6 +467,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        markDirtyLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -531,6 +606,25 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    /**
+     * Returns a copy of the current values, for {@link android.provider.SettingsSnapshot}.
+     */
+    // The settings provider must hold its lock when calling here.
+    public ArrayMap<String, String> getValuesLocked() {
+        final int settingCount = mSettings.size();
+        final ArrayMap<String, String> values = new ArrayMap<>(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            values.put(mSettings.keyAt(i), mSettings.valueAt(i).getValue());
+        }
+        return values;
+    }
+
+    private void markDirtyLocked(String name) {
+        if (mBinaryStore) {
+            mDirtyNames.add(name);
+        }
+    }
+
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
@@ -569,6 +663,11 @@ final class SettingsState {
     }
 
     private void doWriteState() {
+        if (mBinaryStore) {
+            doWriteBinaryState();
+            return;
+        }
+
         boolean wroteState = false;
         final int version;
         final ArrayMap<String, Setting> settings;
@@ -618,6 +717,9 @@ final class SettingsState {
 
                 wroteState = true;
 
+                // The state may have been migrated from the binary store.
+                new AtomicFile(mBinaryPersistFile).delete();
+
                 if (DEBUG_PERSISTENCE) {
                     Slog.i(LOG_TAG, "[PERSIST END]");
                 }
@@ -636,6 +738,214 @@ final class SettingsState {
         }
     }
 
+    private void doWriteBinaryState() {
+        final long seq;
+        final int version;
+        final boolean versionChanged;
+        // All settings when compacting, otherwise null.
+        final ArrayMap<String, Setting> settings;
+        // Settings changed since the last write, mapped to null if deleted; null when compacting.
+        final ArrayMap<String, Setting> changes;
+
+        synchronized (mLock) {
+            seq = mNextWriteSeq++;
+            version = mVersion;
+            versionChanged = mVersionDirty;
+            final int settingCount = mSettings.size();
+            final int dirtyCount = mDirtyNames.size();
+            if (!mCompactionNeeded && mBinaryRecordCount + dirtyCount + 1
+                    <= 2 * settingCount + BINARY_COMPACTION_SLACK) {
+                settings = null;
+                changes = new ArrayMap<>(dirtyCount);
+                for (int i = 0; i < dirtyCount; i++) {
+                    final String name = mDirtyNames.valueAt(i);
+                    final Setting setting = mSettings.get(name);
+                    changes.put(name, setting != null ? new Setting(setting) : null);
+                }
+                mBinaryRecordCount += dirtyCount + (versionChanged ? 1 : 0);
+            } else {
+                settings = new ArrayMap<>(settingCount);
+                for (int i = 0; i < settingCount; i++) {
+                    settings.put(mSettings.keyAt(i), new Setting(mSettings.valueAt(i)));
+                }
+                changes = null;
+                mBinaryRecordCount = settingCount + 1;
+                mCompactionNeeded = false;
+            }
+            mVersionDirty = false;
+            mDirtyNames.clear();
+            mDirty = false;
+            mWriteScheduled = false;
+        }
+
+        boolean wroteState = false;
+        synchronized (mWriteLock) {
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST START] binary seq=" + seq
+                        + (settings != null ? " compact" : " changes=" + changes.size()));
+            }
+            try {
+                if (settings != null && seq > mLastWrittenSeq) {
+                    writeBinaryLog(seq, version, settings);
+                    // The state may have been migrated from the XML file.
+                    new AtomicFile(mStatePersistFile).delete();
+                } else {
+                    // A later write already made it to the disk. Replacing the log now would
+                    // drop it, so append the snapshot instead and let the sequence numbers
+                    // sort things out on the next read. The snapshot starts with a reset
+                    // record, so settings deleted before it are not brought back by the
+                    // older records still in the log.
+                    appendToBinaryLog(seq, version, versionChanged || settings != null,
+                            settings != null, settings != null ? settings : changes);
+                }
+                mLastWrittenSeq = Math.max(mLastWrittenSeq, seq);
+                wroteState = true;
+            } catch (IOException e) {
+                Slog.wtf(LOG_TAG, "Failed to write settings to " + mBinaryPersistFile, e);
+            }
+        }
+
+        synchronized (mLock) {
+            if (wroteState) {
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            } else {
+                // The changes of this write are lost from the log, rewrite all of it next time.
+                mCompactionNeeded = true;
+            }
+        }
+    }
+
+    /**
+     * Replaces the binary log with a snapshot of all settings.
+     */
+    private void writeBinaryLog(long seq, int version, ArrayMap<String, Setting> settings)
+            throws IOException {
+        final AtomicFile destination = new AtomicFile(mBinaryPersistFile);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(BINARY_MAGIC);
+            writeBinaryRecord(data, encodeVersionRecord(seq, version));
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                final Setting setting = settings.valueAt(i);
+                if (setting.getId() != null) {
+                    writeBinaryRecord(data, encodePutRecord(seq, setting));
+                }
+            }
+            data.flush();
+            destination.finishWrite(out);
+            out = null;
+        } finally {
+            if (out != null) {
+                destination.failWrite(out);
+            }
+        }
+    }
+
+    private void appendToBinaryLog(long seq, int version, boolean writeVersion, boolean reset,
+            ArrayMap<String, Setting> changes) throws IOException {
+        final boolean start = mBinaryPersistFile.length() == 0;
+        final FileOutputStream out = new FileOutputStream(mBinaryPersistFile, !start);
+        try {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            if (start) {
+                data.writeInt(BINARY_MAGIC);
+            }
+            if (reset) {
+                writeBinaryRecord(data, encodeResetRecord(seq));
+            }
+            if (writeVersion) {
+                writeBinaryRecord(data, encodeVersionRecord(seq, version));
+            }
+            final int changeCount = changes.size();
+            for (int i = 0; i < changeCount; i++) {
+                final Setting setting = changes.valueAt(i);
+                if (setting == null) {
+                    writeBinaryRecord(data, encodeDeleteRecord(seq, changes.keyAt(i)));
+                } else if (setting.getId() != null) {
+                    writeBinaryRecord(data, encodePutRecord(seq, setting));
+                }
+            }
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    // Records are framed as length, CRC32 of the payload, payload.
+    private static void writeBinaryRecord(DataOutputStream out, byte[] payload)
+            throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    private static byte[] encodeVersionRecord(long seq, int version) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeByte(BINARY_RECORD_VERSION);
+        out.writeInt(version);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeResetRecord(long seq) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeByte(BINARY_RECORD_RESET);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDeleteRecord(long seq, String name) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeByte(BINARY_RECORD_DELETE);
+        writeBinaryString(out, name);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodePutRecord(long seq, Setting setting) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeByte(BINARY_RECORD_PUT);
+        writeBinaryString(out, setting.getName());
+        writeBinaryString(out, setting.getId());
+        writeBinaryString(out, setting.getValue());
+        writeBinaryString(out, setting.getDefaultValue());
+        writeBinaryString(out, setting.getPackageName());
+        writeBinaryString(out, setting.getTag());
+        out.writeBoolean(setting.isDefaultFromSystem());
+        return bytes.toByteArray();
+    }
+
+    private static void writeBinaryString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = toBytes(s);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readBinaryString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return fromBytes(bytes);
+    }
+
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
             String name, String value, String defaultValue, String packageName,
             String tag, boolean defaultSysSet) throws IOException {
@@ -704,6 +1014,16 @@ final class SettingsState {
     }
 
     private void readStateSyncLocked() {
+        final AtomicFile binaryFile = new AtomicFile(mBinaryPersistFile);
+        if (binaryFile.exists()) {
+            readBinaryStateSyncLocked(binaryFile);
+            if (!mBinaryStore) {
+                // Migrate back to the XML file, which deletes the binary log.
+                scheduleWriteIfNeededLocked();
+            }
+            return;
+        }
+
         FileInputStream in;
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
@@ -723,6 +1043,136 @@ final class SettingsState {
         } finally {
             IoUtils.closeQuietly(in);
         }
+
+        if (mBinaryStore) {
+            // Migrate to the binary log, which deletes the XML file.
+            mCompactionNeeded = true;
+            scheduleWriteIfNeededLocked();
+        }
+    }
+
+    /**
+     * Replays the binary log. A record is only applied if no record with a higher sequence
+     * number was seen for the same setting, and if it is not older than the last reset record.
+     * Reading stops at the first damaged record, which
+     * can only be the tail of an interrupted append; the next write then compacts the log.
+     */
+    private void readBinaryStateSyncLocked(AtomicFile file) {
+        final ArrayMap<String, Long> settingSeqs = new ArrayMap<>();
+        long versionSeq = -1;
+        long resetSeq = -1;
+        long maxSeq = -1;
+        int recordCount = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != BINARY_MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final int expectedCrc = in.readInt();
+                if (length < 0 || length > MAX_BINARY_RECORD_SIZE) {
+                    throw new IOException("Bad record length " + length);
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException("Bad record checksum");
+                }
+
+                final DataInputStream record =
+                        new DataInputStream(new ByteArrayInputStream(payload));
+                final long seq = record.readLong();
+                maxSeq = Math.max(maxSeq, seq);
+                recordCount++;
+                final byte type = record.readByte();
+                if (seq < resetSeq) {
+                    // Superseded by a snapshot later in the log.
+                    continue;
+                }
+                switch (type) {
+                    case BINARY_RECORD_RESET: {
+                        resetSeq = seq;
+                        // Drop what the snapshot supersedes, keeping the records of later
+                        // writes that made it to the log before it.
+                        for (int i = settingSeqs.size() - 1; i >= 0; i--) {
+                            if (settingSeqs.valueAt(i) < seq) {
+                                mSettings.remove(settingSeqs.keyAt(i));
+                                settingSeqs.removeAt(i);
+                            }
+                        }
+                    } break;
+                    case BINARY_RECORD_VERSION: {
+                        final int version = record.readInt();
+                        if (seq >= versionSeq) {
+                            versionSeq = seq;
+                            mVersion = version;
+                        }
+                    } break;
+                    case BINARY_RECORD_DELETE: {
+                        final String name = readBinaryString(record);
+                        final Long lastSeq = settingSeqs.get(name);
+                        if (lastSeq == null || seq >= lastSeq) {
+                            settingSeqs.put(name, seq);
+                            mSettings.remove(name);
+                        }
+                    } break;
+                    case BINARY_RECORD_PUT: {
+                        final String name = readBinaryString(record);
+                        final String id = readBinaryString(record);
+                        final String value = readBinaryString(record);
+                        final String defaultValue = readBinaryString(record);
+                        final String packageName = readBinaryString(record);
+                        final String tag = readBinaryString(record);
+                        final boolean fromSystem = record.readBoolean();
+                        final Long lastSeq = settingSeqs.get(name);
+                        if (lastSeq == null || seq >= lastSeq) {
+                            settingSeqs.put(name, seq);
+                            mSettings.put(name, new Setting(name, value, defaultValue,
+                                    packageName, tag, fromSystem, id));
+                            if (DEBUG_PERSISTENCE) {
+                                Slog.i(LOG_TAG, "[RESTORED] " + name + "=" + value);
+                            }
+                        }
+                    } break;
+                    default: {
+                        throw new IOException("Unknown record type");
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            if (recordCount == 0) {
+                String message = "Failed reading settings file: " + mBinaryPersistFile;
+                Slog.wtf(LOG_TAG, message);
+                throw new IllegalStateException(message, e);
+            }
+            Slog.w(LOG_TAG, "Dropping damaged tail of " + mBinaryPersistFile, e);
+            mCompactionNeeded = true;
+            scheduleWriteIfNeededLocked();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        mNextWriteSeq = maxSeq + 1;
+        mBinaryRecordCount = recordCount;
+    }
+
+    /**
+     * Returns the binary log used instead of the given XML file.
+     */
+    static File getBinaryStateFile(File file) {
+        final String path = file.getPath();
+        return new File(path.endsWith(".xml")
+                ? path.substring(0, path.length() - ".xml".length()) + ".bin"
+                : path + ".bin");
     }
 
     /**
@@ -732,7 +1182,7 @@ final class SettingsState {
      */
     public static boolean stateFileExists(File file) {
         AtomicFile stateFile = new AtomicFile(file);
-        return stateFile.exists();
+        return stateFile.exists() || new AtomicFile(getBinaryStateFile(file)).exists();
     }
 
     private void parseStateLocked(XmlPullParser parser)
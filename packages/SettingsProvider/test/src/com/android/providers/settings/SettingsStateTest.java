@@ -148,6 +148,61 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure settings appended to the binary log can be read back, including deletions,
+     * and that switching back to XML keeps them.
+     */
+    public void testReadWriteBinary() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        SettingsState.getBinaryStateFile(file).delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper(),
+                true /* binaryStore */);
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "\u0000", null, false, "package");
+            ssWriter.insertSettingLocked("k2", "abc", null, false, "p2");
+            ssWriter.insertSettingLocked("k3", null, null, false, "p2");
+            ssWriter.insertSettingLocked("k4", CRAZY_STRING, null, false, "p3");
+            ssWriter.persistSyncLocked();
+
+            ssWriter.insertSettingLocked("k2", "def", null, false, "p2");
+            ssWriter.deleteSettingLocked("k3");
+            ssWriter.persistSyncLocked();
+        }
+        assertFalse(file.exists());
+        assertTrue(SettingsState.stateFileExists(file));
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper(),
+                true /* binaryStore */);
+        synchronized (lock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                    ssReader.getVersionLocked());
+            assertEquals("\u0000", ssReader.getSettingLocked("k1").getValue());
+            assertEquals("def", ssReader.getSettingLocked("k2").getValue());
+            assertTrue(ssReader.getSettingLocked("k3").isNull());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k4").getValue());
+        }
+
+        final SettingsState ssXml = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssXml.persistSyncLocked();
+        }
+        assertTrue(file.exists());
+        assertFalse(SettingsState.getBinaryStateFile(file).exists());
+        final SettingsState ssXmlReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("def", ssXmlReader.getSettingLocked("k2").getValue());
+            assertTrue(ssXmlReader.getSettingLocked("k3").isNull());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
@@ -31,6 +31,7 @@ import android.media.AudioAttributes;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
@@ -61,12 +62,18 @@ import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 
+import libcore.io.IoUtils;
 import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -90,12 +97,37 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
 
+    // Once the op times journal grows past this, the next write folds it back into the xml.
+    static final long MAX_OP_TIMES_FILE_SIZE = 64 * 1024;
+
+    private static final int OP_TIMES_MAGIC = 0x414f5431; // "AOT1"
+
     Context mContext;
     final AtomicFile mFile;
     final Handler mHandler;
 
+    /**
+     * Journal of op time changes appended since the xml file was last written in full; see
+     * {@link #writeState()}. Guarded by {@link #mFile}.
+     */
+    final File mOpTimesFile;
+
+    /**
+     * Generation of the last full write, recorded in both the xml file and the journal header so
+     * a journal left behind by a full write that was interrupted is never replayed on top of it.
+     * Guarded by {@link #mFile}.
+     */
+    long mOpTimesGeneration;
+
     boolean mWriteScheduled;
     boolean mFastWriteScheduled;
+
+    // Whether anything other than op times changed since the last write.
+    boolean mFullWriteNeeded;
+
+    // Ops whose times changed since the last write.
+    final ArraySet<Op> mDirtyOps = new ArraySet<>();
+
     final Runnable mWriteRunner = new Runnable() {
         public void run() {
             synchronized (AppOpsService.this) {
@@ -144,11 +176,90 @@ public class AppOpsService extends IAppOpsService.Stub {
         public final UidState uidState;
         public final boolean isPrivileged;
 
+        // Mirror of the sparse array indexed directly by op code, for the noteOperation path.
+        // Every method of SparseArray that changes its content is overridden to keep it in sync.
+        private Op[] mOpsByCode = new Op[AppOpsManager._NUM_OP];
+
         public Ops(String _packageName, UidState _uidState, boolean _isPrivileged) {
             packageName = _packageName;
             uidState = _uidState;
             isPrivileged = _isPrivileged;
         }
+
+        /**
+         * Returns the op for a code that has already been validated by the caller.
+         */
+        public Op getOp(int code) {
+            return mOpsByCode[code];
+        }
+
+        private void setOp(int code, Op op) {
+            if (code >= 0 && code < mOpsByCode.length) {
+                mOpsByCode[code] = op;
+            }
+        }
+
+        @Override
+        public void put(int key, Op value) {
+            super.put(key, value);
+            setOp(key, value);
+        }
+
+        @Override
+        public void append(int key, Op value) {
+            super.append(key, value);
+            setOp(key, value);
+        }
+
+        @Override
+        public void setValueAt(int index, Op value) {
+            super.setValueAt(index, value);
+            setOp(keyAt(index), value);
+        }
+
+        @Override
+        public void delete(int key) {
+            super.delete(key);
+            setOp(key, null);
+        }
+
+        @Override
+        public Op removeReturnOld(int key) {
+            setOp(key, null);
+            return super.removeReturnOld(key);
+        }
+
+        @Override
+        public void removeAt(int index) {
+            setOp(keyAt(index), null);
+            super.removeAt(index);
+        }
+
+        @Override
+        public void removeAtRange(int index, int size) {
+            // By key: removing by index while reading keys would compact the array under us.
+            final int end = Math.min(size(), index + size);
+            final int[] keys = new int[Math.max(end - index, 0)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = keyAt(index + i);
+            }
+            for (int key : keys) {
+                delete(key);
+            }
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            Arrays.fill(mOpsByCode, null);
+        }
+
+        @Override
+        public Ops clone() {
+            final Ops clone = (Ops) super.clone();
+            clone.mOpsByCode = mOpsByCode.clone();
+            return clone;
+        }
     }
 
     public final static class Op {
@@ -241,6 +352,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath);
+        mOpTimesFile = new File(storagePath.getPath() + ".times");
         mHandler = handler;
         readState();
     }
@@ -1097,6 +1209,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         + " code " + code + " time=" + op.time + " duration=" + op.duration);
             }
             op.duration = 0;
+            scheduleOpTimeWriteLocked(op);
             final int switchCode = AppOpsManager.opToSwitch(code);
             UidState uidState = ops.uidState;
             // If there is a non-default per UID policy (we set UID op mode only if
@@ -1150,6 +1263,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
                 return AppOpsManager.MODE_IGNORED;
             }
+            scheduleOpTimeWriteLocked(op);
             final int switchCode = AppOpsManager.opToSwitch(code);
             UidState uidState = ops.uidState;
             if (uidState.opModes != null) {
@@ -1231,6 +1345,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         + " duration=" + op.duration + " nesting=" + op.nesting);
             }
             op.nesting = 0;
+            scheduleOpTimeWriteLocked(op);
         } else {
             op.nesting--;
         }
@@ -1335,6 +1450,19 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleWriteLocked() {
+        mFullWriteNeeded = true;
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
+        }
+    }
+
+    /**
+     * Like {@link #scheduleWriteLocked()}, for when only the times of an existing op changed.
+     * Unless something else needs a full write, those are appended to {@link #mOpTimesFile}.
+     */
+    private void scheduleOpTimeWriteLocked(Op op) {
+        mDirtyOps.add(op);
         if (!mWriteScheduled) {
             mWriteScheduled = true;
             mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
@@ -1342,6 +1470,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleFastWriteLocked() {
+        mFullWriteNeeded = true;
         if (!mFastWriteScheduled) {
             mWriteScheduled = true;
             mFastWriteScheduled = true;
@@ -1359,15 +1488,14 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private Op getOpLocked(Ops ops, int code, boolean edit) {
-        Op op = ops.get(code);
+        Op op = ops.getOp(code);
         if (op == null) {
             if (!edit) {
                 return null;
             }
             op = new Op(ops.uidState.uid, ops.packageName, code);
             ops.put(code, op);
-        }
-        if (edit) {
+            // Callers schedule writes for the changes they make to existing ops.
             scheduleWriteLocked();
         }
         return op;
@@ -1422,6 +1550,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                         throw new IllegalStateException("no start tag found");
                     }
 
+                    final String generation = parser.getAttributeValue(null, "tg");
+                    mOpTimesGeneration = generation != null ? Long.parseLong(generation) : 0;
+
                     int outerDepth = parser.getDepth();
                     while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
                             && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
@@ -1462,10 +1593,157 @@ public class AppOpsService extends IAppOpsService.Stub {
                     } catch (IOException e) {
                     }
                 }
+                if (success) {
+                    readOpTimesLocked();
+                } else {
+                    mOpTimesFile.delete();
+                }
             }
         }
     }
 
+    /**
+     * Replays {@link #mOpTimesFile} on top of the state just read from the xml file. The journal
+     * is a header (magic, generation) followed by batches of {@link OpTimes}; a batch cut short
+     * by a crash is ignored.
+     */
+    private void readOpTimesLocked() {
+        if (!mOpTimesFile.exists()) {
+            return;
+        }
+        int applied = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mOpTimesFile)))) {
+            if (in.readInt() != OP_TIMES_MAGIC || in.readLong() != mOpTimesGeneration) {
+                Slog.w(TAG, "Discarding stale app op times " + mOpTimesFile);
+                mOpTimesFile.delete();
+                return;
+            }
+            final ArrayList<OpTimes> batch = new ArrayList<>();
+            while (true) {
+                batch.clear();
+                final int count;
+                try {
+                    count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        batch.add(OpTimes.read(in));
+                    }
+                    if (in.readInt() != count) {
+                        Slog.w(TAG, "Truncated app op times batch in " + mOpTimesFile);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    final OpTimes times = batch.get(i);
+                    final Ops ops = getOpsRawLocked(times.uid, times.packageName, false);
+                    final Op op = ops != null ? ops.get(times.op) : null;
+                    if (op != null) {
+                        times.applyTo(op);
+                        applied++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading app op times " + e);
+        }
+        if (DEBUG) Slog.d(TAG, "Applied " + applied + " op times from " + mOpTimesFile);
+        // Fold the journal back into the xml file on the next write.
+        mFullWriteNeeded = true;
+    }
+
+    /**
+     * Appends a batch of op times to {@link #mOpTimesFile}, starting the journal if needed.
+     *
+     * @return whether the batch was durably written
+     */
+    private boolean appendOpTimes(ArrayList<OpTimes> batch) {
+        final boolean start = mOpTimesFile.length() == 0;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mOpTimesFile, !start);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            if (start) {
+                out.writeInt(OP_TIMES_MAGIC);
+                out.writeLong(mOpTimesGeneration);
+            }
+            final int count = batch.size();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                batch.get(i).write(out);
+            }
+            out.writeInt(count);
+            out.flush();
+            FileUtils.sync(fos);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append op times: " + e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Snapshot of the time related fields of an {@link Op}, as stored in the op times journal.
+     */
+    private static final class OpTimes {
+        final int uid;
+        final String packageName;
+        final int op;
+        final long time;
+        final long rejectTime;
+        final int duration;
+        final int proxyUid;
+        final String proxyPackageName;
+
+        OpTimes(Op op) {
+            this(op.uid, op.packageName, op.op, op.time, op.rejectTime, op.duration,
+                    op.proxyUid, op.proxyPackageName);
+        }
+
+        private OpTimes(int uid, String packageName, int op, long time, long rejectTime,
+                int duration, int proxyUid, String proxyPackageName) {
+            this.uid = uid;
+            this.packageName = packageName;
+            this.op = op;
+            this.time = time;
+            this.rejectTime = rejectTime;
+            this.duration = duration;
+            this.proxyUid = proxyUid;
+            this.proxyPackageName = proxyPackageName;
+        }
+
+        void applyTo(Op target) {
+            target.time = time;
+            target.rejectTime = rejectTime;
+            target.duration = duration;
+            target.proxyUid = proxyUid;
+            target.proxyPackageName = proxyPackageName;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(uid);
+            out.writeUTF(packageName);
+            out.writeInt(op);
+            out.writeLong(time);
+            out.writeLong(rejectTime);
+            out.writeInt(duration);
+            out.writeInt(proxyUid);
+            out.writeBoolean(proxyPackageName != null);
+            if (proxyPackageName != null) {
+                out.writeUTF(proxyPackageName);
+            }
+        }
+
+        static OpTimes read(DataInputStream in) throws IOException {
+            return new OpTimes(in.readInt(), in.readUTF(), in.readInt(), in.readLong(),
+                    in.readLong(), in.readInt(), in.readInt(),
+                    in.readBoolean() ? in.readUTF() : null);
+        }
+    }
+
     void readUidOps(XmlPullParser parser) throws NumberFormatException,
             XmlPullParserException, IOException {
         final int uid = Integer.parseInt(parser.getAttributeValue(null, "n"));
@@ -1596,9 +1874,35 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Persists the current state. When only op times changed since the last write, they are
+     * appended to {@link #mOpTimesFile} instead of rewriting the whole xml file, which is what
+     * frequent {@link #noteOperation} calls would otherwise cause.
+     */
     void writeState() {
         synchronized (mFile) {
+            ArrayList<OpTimes> dirtyTimes = null;
+            final boolean journalFull = mOpTimesFile.length() > MAX_OP_TIMES_FILE_SIZE;
+            synchronized (this) {
+                if (!mFullWriteNeeded && !journalFull) {
+                    final int dirtyCount = mDirtyOps.size();
+                    dirtyTimes = new ArrayList<>(dirtyCount);
+                    for (int i = 0; i < dirtyCount; i++) {
+                        dirtyTimes.add(new OpTimes(mDirtyOps.valueAt(i)));
+                    }
+                }
+                mFullWriteNeeded = false;
+                mDirtyOps.clear();
+            }
+            if (dirtyTimes != null) {
+                if (dirtyTimes.isEmpty() || appendOpTimes(dirtyTimes)) {
+                    return;
+                }
+                // Could not append, so fall back to writing everything.
+            }
+
             List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+            final long generation = mOpTimesGeneration + 1;
 
             FileOutputStream stream;
             try {
@@ -1613,6 +1917,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.setOutput(stream, StandardCharsets.UTF_8.name());
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
+                out.attribute(null, "tg", Long.toString(generation));
 
                 final int uidStateCount = mUidStates.size();
                 for (int i = 0; i < uidStateCount; i++) {
@@ -1698,9 +2003,14 @@ public class AppOpsService extends IAppOpsService.Stub {
                 out.endTag(null, "app-ops");
                 out.endDocument();
                 mFile.finishWrite(stream);
+                mOpTimesGeneration = generation;
+                mOpTimesFile.delete();
             } catch (IOException e) {
                 Slog.w(TAG, "Failed to write state, restoring backup.", e);
                 mFile.failWrite(stream);
+                synchronized (this) {
+                    mFullWriteNeeded = true;
+                }
             }
         }
     }
@@ -59,6 +59,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         mFilters.add(f);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        register_scheme_actions(f);
         int numT = register_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             register_intent_filter(f, f.actionsIterator(),
@@ -202,6 +203,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
+        unregister_scheme_actions(f);
         int numT = unregister_mime_types(f, "      Type: ");
         if (numS == 0 && numT == 0) {
             unregister_intent_filter(f, f.actionsIterator(),
@@ -428,8 +430,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // If the intent includes a data URI, then we want to collect all of
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
+        // A filter can only match an intent with an action if it lists that
+        // action, so in that case only filters with both the scheme and the
+        // action are candidates.
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            final String action = intent.getAction();
+            if (action != null) {
+                final ArrayMap<String, F[]> actionToFilter = mSchemeActionToFilter.get(scheme);
+                schemeCut = actionToFilter != null ? actionToFilter.get(action) : null;
+            } else {
+                schemeCut = mSchemeToFilter.get(scheme);
+            }
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
@@ -641,6 +652,40 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return num;
     }
 
+    private final void register_scheme_actions(F filter) {
+        final int numSchemes = filter.countDataSchemes();
+        final int numActions = filter.countActions();
+        for (int i = 0; i < numSchemes; i++) {
+            final String scheme = filter.getDataScheme(i);
+            ArrayMap<String, F[]> actionToFilter = mSchemeActionToFilter.get(scheme);
+            if (actionToFilter == null) {
+                actionToFilter = new ArrayMap<String, F[]>();
+                mSchemeActionToFilter.put(scheme, actionToFilter);
+            }
+            for (int j = 0; j < numActions; j++) {
+                addFilter(actionToFilter, filter.getAction(j), filter);
+            }
+        }
+    }
+
+    private final void unregister_scheme_actions(F filter) {
+        final int numSchemes = filter.countDataSchemes();
+        final int numActions = filter.countActions();
+        for (int i = 0; i < numSchemes; i++) {
+            final String scheme = filter.getDataScheme(i);
+            final ArrayMap<String, F[]> actionToFilter = mSchemeActionToFilter.get(scheme);
+            if (actionToFilter == null) {
+                continue;
+            }
+            for (int j = 0; j < numActions; j++) {
+                remove_all_objects(actionToFilter, filter.getAction(j), filter);
+            }
+            if (actionToFilter.isEmpty()) {
+                mSchemeActionToFilter.remove(scheme);
+            }
+        }
+    }
+
     private final int unregister_intent_filter(F filter, Iterator<String> i,
             ArrayMap<String, F[]> dest, String prefix) {
         if (i == null) {
@@ -838,6 +883,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArrayMap<String, F[]> mSchemeToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * The filters of {@link #mSchemeToFilter}, further keyed by each of their
+     * actions. Used to resolve intents that have both a data URI and an
+     * action, such as the package broadcasts, without matching every filter
+     * registered for the scheme.
+     */
+    private final ArrayMap<String, ArrayMap<String, F[]>> mSchemeActionToFilter =
+            new ArrayMap<String, ArrayMap<String, F[]>>();
+
     /**
      * All of the actions that have been registered, but only those that did
      * not specify data.
@@ -71,6 +71,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManagerInternal;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
@@ -116,6 +117,9 @@ public final class ActiveServices {
 
     final SparseArray<ServiceMap> mServiceMap = new SparseArray<>();
 
+    /** Cached service resolutions. */
+    final ServiceLookupCache mLookupCache = new ServiceLookupCache();
+
     /**
      * All currently bound service connections.  Keys are the IBinder of
      * the client's IServiceConnection.
@@ -1546,6 +1550,9 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            // The process hosting the unbound services, if there is exactly one.
+            ProcessRecord changedApp = null;
+            boolean multipleApps = false;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1566,11 +1573,19 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (changedApp != null && changedApp != r.binding.service.app) {
+                        multipleApps = true;
+                    }
+                    changedApp = r.binding.service.app;
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (multipleApps) {
+                mAm.updateOomAdjLocked();
+            } else {
+                // Only the service host and what it is bound to can be less important now.
+                mAm.updateOomAdjIncrementalLocked(changedApp);
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -1683,11 +1698,8 @@ public final class ActiveServices {
         }
         if (r == null) {
             try {
-                // TODO: come back and remove this assumption to triage all services
-                ResolveInfo rInfo = mAm.getPackageManagerInternalLocked().resolveService(service,
-                        resolvedType, ActivityManagerService.STOCK_PM_FLAGS
-                                | PackageManager.MATCH_DEBUG_TRIAGED_MISSING,
-                        userId, callingUid);
+                ResolveInfo rInfo = resolveServiceLocked(service, resolvedType, userId,
+                        callingUid);
                 ServiceInfo sInfo =
                     rInfo != null ? rInfo.serviceInfo : null;
                 if (sInfo == null) {
@@ -1809,6 +1821,32 @@ public final class ActiveServices {
         return null;
     }
 
+    private ResolveInfo resolveServiceLocked(Intent service, String resolvedType, int userId,
+            int callingUid) {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final boolean cacheable = ServiceLookupCache.isCacheable(service);
+        final PackageManagerInternal pmi = mAm.getPackageManagerInternalLocked();
+        final int generation = pmi.getComponentStateGeneration();
+        if (cacheable) {
+            final ResolveInfo cached = mLookupCache.get(service, resolvedType, userId,
+                    callingUid, generation);
+            if (cached != null) {
+                mLookupCache.noteResolution(true,
+                        SystemClock.elapsedRealtimeNanos() - startTime);
+                return cached;
+            }
+        }
+        // TODO: come back and remove this assumption to triage all services
+        final ResolveInfo rInfo = pmi.resolveService(service, resolvedType,
+                ActivityManagerService.STOCK_PM_FLAGS | PackageManager.MATCH_DEBUG_TRIAGED_MISSING,
+                userId, callingUid);
+        if (cacheable) {
+            mLookupCache.put(service, resolvedType, userId, callingUid, generation, rInfo);
+            mLookupCache.noteResolution(false, SystemClock.elapsedRealtimeNanos() - startTime);
+        }
+        return rInfo;
+    }
+
     private final void bumpServiceExecutingLocked(ServiceRecord r, boolean fg, String why) {
         if (DEBUG_SERVICE) Slog.v(TAG_SERVICE, ">>> EXECUTING "
                 + why + " of " + r + " in app " + r.app);
@@ -2213,7 +2251,7 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.updateOomAdjIncrementalLocked(app);
 
         boolean created = false;
         try {
@@ -3832,6 +3870,10 @@ public final class ActiveServices {
             if (!printedAnything) {
                 pw.println("  (nothing)");
             }
+            if (dumpPackage == null) {
+                pw.println();
+                mLookupCache.dump(pw, "  ");
+            }
         }
     }
 
@@ -66,6 +66,8 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BG_START_TIMEOUT = "service_bg_start_timeout";
     static final String KEY_BOUND_SERVICE_CRASH_RESTART_DURATION = "service_crash_restart_duration";
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
+    private static final String KEY_INCREMENTAL_OOM_ADJ = "incremental_oom_adj";
+    private static final String KEY_BATCH_BROADCAST_DELIVERIES = "batch_broadcast_deliveries";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES = 32;
     private static final long DEFAULT_BACKGROUND_SETTLE_TIME = 60*1000;
@@ -93,6 +95,8 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final long DEFAULT_BG_START_TIMEOUT = 15*1000;
     private static final long DEFAULT_BOUND_SERVICE_CRASH_RESTART_DURATION = 30*60_000;
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
+    private static final boolean DEFAULT_INCREMENTAL_OOM_ADJ = true;
+    private static final boolean DEFAULT_BATCH_BROADCAST_DELIVERIES = true;
 
 
     // Maximum number of cached processes we will allow.
@@ -202,6 +206,15 @@ final class ActivityManagerConstants extends ContentObserver {
     // Maximum number of retries for bound foreground services that crash soon after start
     public long BOUND_SERVICE_MAX_CRASH_RETRY = DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY;
 
+    // Whether a change to a single process only re-evaluates that process and the
+    // processes it is bound to, instead of doing a full oom adj pass.
+    boolean INCREMENTAL_OOM_ADJ = DEFAULT_INCREMENTAL_OOM_ADJ;
+
+    // Whether parallel broadcasts to the same process are sent in one transaction, and
+    // manifest receivers of non-ordered broadcasts in running processes go before those
+    // that need a process start.
+    boolean BATCH_BROADCAST_DELIVERIES = DEFAULT_BATCH_BROADCAST_DELIVERIES;
+
     private final ActivityManagerService mService;
     private ContentResolver mResolver;
     private final KeyValueListParser mParser = new KeyValueListParser(',');
@@ -325,6 +338,10 @@ final class ActivityManagerConstants extends ContentObserver {
                 DEFAULT_BOUND_SERVICE_CRASH_RESTART_DURATION);
             BOUND_SERVICE_MAX_CRASH_RETRY = mParser.getInt(KEY_BOUND_SERVICE_CRASH_MAX_RETRY,
                 DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY);
+            INCREMENTAL_OOM_ADJ = mParser.getBoolean(KEY_INCREMENTAL_OOM_ADJ,
+                DEFAULT_INCREMENTAL_OOM_ADJ);
+            BATCH_BROADCAST_DELIVERIES = mParser.getBoolean(KEY_BATCH_BROADCAST_DELIVERIES,
+                DEFAULT_BATCH_BROADCAST_DELIVERIES);
 
             updateMaxCachedProcesses();
         }
@@ -395,6 +412,10 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(MAX_SERVICE_INACTIVITY);
         pw.print("  "); pw.print(KEY_BG_START_TIMEOUT); pw.print("=");
         pw.println(BG_START_TIMEOUT);
+        pw.print("  "); pw.print(KEY_INCREMENTAL_OOM_ADJ); pw.print("=");
+        pw.println(INCREMENTAL_OOM_ADJ);
+        pw.print("  "); pw.print(KEY_BATCH_BROADCAST_DELIVERIES); pw.print("=");
+        pw.println(BATCH_BROADCAST_DELIVERIES);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
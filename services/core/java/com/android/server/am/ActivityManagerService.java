@@ -211,6 +211,7 @@ import android.app.AppOpsManager;
 import android.app.ApplicationErrorReport;
 import android.app.ApplicationThreadConstants;
 import android.app.BroadcastOptions;
+import android.app.ColdStartPhases;
 import android.app.ContentProviderHolder;
 import android.app.Dialog;
 import android.app.IActivityController;
@@ -353,6 +354,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.Xml;
+import android.util.proto.ProtoOutputStream;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -378,6 +380,7 @@ import com.android.internal.logging.nano.MetricsProto.MetricsEvent;
 import com.android.internal.messages.nano.SystemMessageProto.SystemMessage;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BackgroundThread;
+import com.android.internal.os.ClassPreloadRecorder;
 import com.android.internal.os.BatteryStatsImpl;
 import com.android.internal.os.IResultReceiver;
 import com.android.internal.os.ProcessCpuTracker;
@@ -949,8 +952,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     /**
      * Set of IntentSenderRecord objects that are currently active.
      */
-    final HashMap<PendingIntentRecord.Key, WeakReference<PendingIntentRecord>> mIntentSenderRecords
-            = new HashMap<PendingIntentRecord.Key, WeakReference<PendingIntentRecord>>();
+    final PendingIntentRegistry mPendingIntentRegistry = new PendingIntentRegistry();
 
     /**
      * Fingerprints (hashCode()) of stack traces that we've
@@ -1014,6 +1016,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     };
 
+    /**
+     * Recent results of resolving broadcasts to registered and manifest receivers.
+     */
+    final ReceiverResolutionCache mReceiverResolutionCache = new ReceiverResolutionCache();
+
     /**
      * State of all active sticky broadcasts per user.  Keys are the action of the
      * sticky Intent, values are an ArrayList of all broadcasted intents with
@@ -1085,6 +1092,9 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     private final AtomicFile mGrantFile;
 
+    /** Boot classpath classes apps load beyond the zygote's, ranked for adaptive preloading. */
+    private final PreloadClassUsage mPreloadClassUsage;
+
     /** XML constants used in {@link #mGrantFile} */
     private static final String TAG_URI_GRANTS = "uri-grants";
     private static final String TAG_URI_GRANT = "uri-grant";
@@ -1380,6 +1390,17 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Timings of full and incremental oom_adj passes, for dumpsys.
+     */
+    final OomAdjStats mOomAdjStats = new OomAdjStats();
+
+    /**
+     * Processes visited by an incremental oom_adj update, only used while it runs.
+     */
+    final ArrayList<ProcessRecord> mTmpOomAdjProcs = new ArrayList<>();
+    final ArraySet<ProcessRecord> mTmpOomAdjVisited = new ArraySet<>();
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -1657,7 +1678,6 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int PROC_START_TIMEOUT_MSG = 20;
     static final int DO_PENDING_ACTIVITY_LAUNCHES_MSG = 21;
     static final int KILL_APPLICATION_MSG = 22;
-    static final int FINALIZE_PENDING_INTENT_MSG = 23;
     static final int POST_HEAVY_NOTIFICATION_MSG = 24;
     static final int CANCEL_HEAVY_NOTIFICATION_MSG = 25;
     static final int SHOW_STRICT_MODE_VIOLATION_UI_MSG = 26;
@@ -2077,9 +2097,6 @@ public class ActivityManagerService extends IActivityManager.Stub
                             false, userId, reason);
                 }
             } break;
-            case FINALIZE_PENDING_INTENT_MSG: {
-                ((PendingIntentRecord)msg.obj).completeFinalize();
-            } break;
             case POST_HEAVY_NOTIFICATION_MSG: {
                 INotificationManager inm = NotificationManager.getService();
                 if (inm == null) {
@@ -2743,6 +2760,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mCompatModePackages = null;
         mConstants = null;
         mGrantFile = null;
+        mPreloadClassUsage = null;
         mHandler = null;
         mHandlerThread = null;
         mIntentFirewall = null;
@@ -2832,6 +2850,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                 });
 
         mGrantFile = new AtomicFile(new File(systemDir, "urigrants.xml"));
+        mPreloadClassUsage = new PreloadClassUsage(
+                new File(ClassPreloadRecorder.ADAPTIVE_LIST_FILE),
+                new File(systemDir, "preloaded-classes-usage"));
 
         mUserController = new UserController(this);
 
@@ -3995,6 +4016,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "Start proc: " +
                     app.processName);
             checkTime(startTime, "startProcess: asking zygote to start proc");
+            final long forkStartUptime = SystemClock.uptimeMillis();
             ProcessStartResult startResult;
             if (hostingType.equals("webview_service")) {
                 startResult = startWebView(entryPoint,
@@ -4008,6 +4030,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         app.info.dataDir, invokeWith, entryPointArgs);
             }
             checkTime(startTime, "startProcess: returned from zygote!");
+            final long forkEndUptime = SystemClock.uptimeMillis();
             Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
 
             mBatteryStatsService.noteProcessStart(app.processName, app.info.uid);
@@ -4055,6 +4078,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             app.removed = false;
             app.killed = false;
             app.killedByAm = false;
+            if ("activity".equals(hostingType)) {
+                mStackSupervisor.mActivityMetricsLogger.notifyProcessStarted(app,
+                        forkStartUptime, forkEndUptime);
+            }
             checkTime(startTime, "startProcess: starting to update pids map");
             ProcessRecord oldApp;
             synchronized (mPidsSelfLocked) {
@@ -5038,6 +5065,40 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    @Override
+    public void reportColdStartPhases(int pid, long[] checkpoints) {
+        if (checkpoints == null || checkpoints.length != ColdStartPhases.CHECKPOINT_COUNT) {
+            throw new IllegalArgumentException("Bad cold start checkpoints");
+        }
+        // One way calls don't carry the calling pid, check the given one belongs to the caller.
+        final int callingUid = Binder.getCallingUid();
+        synchronized (this) {
+            final ProcessRecord app;
+            synchronized (mPidsSelfLocked) {
+                app = mPidsSelfLocked.get(pid);
+            }
+            if (app == null || app.uid != callingUid) {
+                return;
+            }
+            mStackSupervisor.mActivityMetricsLogger.notifyColdStartPhases(app, checkpoints);
+        }
+    }
+
+    @Override
+    public void reportBootClassUsage(String[] classNames) {
+        if (classNames == null || !ClassPreloadRecorder.isRecording()) {
+            return;
+        }
+        final int callingUid = Binder.getCallingUid();
+        // Only apps count, the system would skew the ranking towards its own classes. Isolated
+        // processes get a new uid each time, they would get around counting once per app.
+        if (UserHandle.getAppId(callingUid) < Process.FIRST_APPLICATION_UID
+                || Process.isIsolated(callingUid)) {
+            return;
+        }
+        mPreloadClassUsage.noteReport(callingUid, classNames);
+    }
+
     @Override
     public void setRequestedOrientation(IBinder token, int requestedOrientation) {
         synchronized (this) {
@@ -6737,49 +6798,18 @@ public class ActivityManagerService extends IActivityManager.Stub
             // stopping users, because we have some problems when doing this
             // for packages -- app widgets are not currently cleaned up for
             // such packages, so they can be left with bad pending intents.
-            if (mIntentSenderRecords.size() > 0) {
-                Iterator<WeakReference<PendingIntentRecord>> it
-                        = mIntentSenderRecords.values().iterator();
-                while (it.hasNext()) {
-                    WeakReference<PendingIntentRecord> wpir = it.next();
-                    if (wpir == null) {
-                        it.remove();
-                        continue;
-                    }
-                    PendingIntentRecord pir = wpir.get();
-                    if (pir == null) {
-                        it.remove();
-                        continue;
-                    }
-                    if (packageName == null) {
-                        // Stopping user, remove all objects for the user.
-                        if (pir.key.userId != userId) {
-                            // Not the same user, skip it.
-                            continue;
-                        }
-                    } else {
-                        if (UserHandle.getAppId(pir.uid) != appId) {
-                            // Different app id, skip it.
-                            continue;
-                        }
-                        if (userId != UserHandle.USER_ALL && pir.key.userId != userId) {
-                            // Different user, skip it.
-                            continue;
-                        }
-                        if (!pir.key.packageName.equals(packageName)) {
-                            // Different package, skip it.
-                            continue;
-                        }
-                    }
-                    if (!doit) {
-                        return true;
-                    }
-                    didSomething = true;
-                    it.remove();
-                    makeIntentSenderCanceledLocked(pir);
-                    if (pir.key.activity != null && pir.key.activity.pendingResults != null) {
-                        pir.key.activity.pendingResults.remove(pir.ref);
-                    }
+            // When stopping a user, this removes all objects for the user.
+            final ArrayList<PendingIntentRecord> pirs = mPendingIntentRegistry.removeRecords(
+                    packageName, appId, userId, doit);
+            if (!doit && pirs.size() > 0) {
+                return true;
+            }
+            for (int j = 0; j < pirs.size(); j++) {
+                final PendingIntentRecord pir = pirs.get(j);
+                didSomething = true;
+                makeIntentSenderCanceledLocked(pir);
+                if (pir.key.activity != null && pir.key.activity.pendingResults != null) {
+                    pir.key.activity.pendingResults.remove(pir.ref);
                 }
             }
         }
@@ -7770,9 +7800,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         PendingIntentRecord.Key key = new PendingIntentRecord.Key(
                 type, packageName, activity, resultWho,
                 requestCode, intents, resolvedTypes, flags, bOptions, userId);
-        WeakReference<PendingIntentRecord> ref;
-        ref = mIntentSenderRecords.get(key);
-        PendingIntentRecord rec = ref != null ? ref.get() : null;
+        PendingIntentRecord rec = mPendingIntentRegistry.get(key);
         if (rec != null) {
             if (!cancelCurrent) {
                 if (updateCurrent) {
@@ -7792,13 +7820,13 @@ public class ActivityManagerService extends IActivityManager.Stub
                 return rec;
             }
             makeIntentSenderCanceledLocked(rec);
-            mIntentSenderRecords.remove(key);
+            mPendingIntentRegistry.remove(rec);
         }
         if (noCreate) {
             return rec;
         }
         rec = new PendingIntentRecord(this, key, callingUid);
-        mIntentSenderRecords.put(key, rec.ref);
+        mPendingIntentRegistry.put(rec);
         if (type == ActivityManager.INTENT_SENDER_ACTIVITY_RESULT) {
             if (activity.pendingResults == null) {
                 activity.pendingResults
@@ -7874,7 +7902,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     void cancelIntentSenderLocked(PendingIntentRecord rec, boolean cleanActivity) {
         makeIntentSenderCanceledLocked(rec);
-        mIntentSenderRecords.remove(rec.key);
+        mPendingIntentRegistry.remove(rec);
         if (cleanActivity && rec.key.activity != null) {
             rec.key.activity.pendingResults.remove(rec.ref);
         }
@@ -11979,7 +12007,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    updateOomAdjIncrementalLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -15236,6 +15264,21 @@ public class ActivityManagerService extends IActivityManager.Stub
                 synchronized (this) {
                     dumpActivityStarterLocked(pw, dumpPackage);
                 }
+            } else if ("launches".equals(cmd)) {
+                if (opti < args.length && "--proto".equals(args[opti])) {
+                    final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                    synchronized (this) {
+                        mStackSupervisor.mActivityMetricsLogger.dumpColdStartsProto(proto);
+                    }
+                    proto.flush();
+                } else {
+                    synchronized (this) {
+                        dumpColdStartsLocked(pw);
+                    }
+                }
+            } else if ("preload".equals(cmd)) {
+                pw.println("ACTIVITY MANAGER CLASS PRELOAD USAGE (dumpsys activity preload)");
+                mPreloadClassUsage.dump(pw, "  ");
             } else if ("recents".equals(cmd) || "r".equals(cmd)) {
                 synchronized (this) {
                     dumpRecentsLocked(fd, pw, args, opti, true, dumpPackage);
@@ -15571,6 +15614,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    private void dumpColdStartsLocked(PrintWriter pw) {
+        pw.println("ACTIVITY MANAGER COLD LAUNCHES (dumpsys activity launches)");
+        mStackSupervisor.mActivityMetricsLogger.dumpColdStarts(pw, "  ");
+    }
+
     private void dumpActivityStarterLocked(PrintWriter pw, String dumpPackage) {
         pw.println("ACTIVITY MANAGER STARTER (dumpsys activity starter)");
         mActivityStarter.dump(pw, "", dumpPackage);
@@ -15645,6 +15693,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (!printedAnything) {
             pw.println("  (nothing)");
         }
+
+        if (mRecentTasks != null && dumpPackage == null) {
+            pw.println();
+            mRecentTasks.dumpTaskPersisterLocked(pw, "  ");
+        }
     }
 
     void dumpAssociationsLocked(FileDescriptor fd, PrintWriter pw, String[] args,
@@ -16186,6 +16239,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mAllowLowerMemLevel=" + mAllowLowerMemLevel
                         + " mLastMemoryLevel=" + mLastMemoryLevel
                         + " mLastNumProcesses=" + mLastNumProcesses);
+                mOomAdjStats.dump(pw, "  ");
                 long now = SystemClock.uptimeMillis();
                 pw.print("  mLastIdleTime=");
                         TimeUtils.formatDuration(now, mLastIdleTime, pw);
@@ -16517,6 +16571,15 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
+        if (!onlyHistory && dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            mReceiverResolutionCache.dump(pw, "  ");
+            needSep = true;
+            printedAnything = true;
+        }
+
         for (BroadcastQueue q : mBroadcastQueues) {
             needSep = q.dumpLocked(fd, pw, args, opti, dumpAll, dumpPackage, needSep);
             printedAnything |= needSep;
@@ -16713,53 +16776,9 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     void dumpPendingIntentsLocked(FileDescriptor fd, PrintWriter pw, String[] args,
             int opti, boolean dumpAll, String dumpPackage) {
-        boolean printed = false;
-
         pw.println("ACTIVITY MANAGER PENDING INTENTS (dumpsys activity intents)");
 
-        if (mIntentSenderRecords.size() > 0) {
-            // Organize these by package name, so they are easier to read.
-            final ArrayMap<String, ArrayList<PendingIntentRecord>> byPackage = new ArrayMap<>();
-            final ArrayList<WeakReference<PendingIntentRecord>> weakRefs = new ArrayList<>();
-            final Iterator<WeakReference<PendingIntentRecord>> it
-                    = mIntentSenderRecords.values().iterator();
-            while (it.hasNext()) {
-                WeakReference<PendingIntentRecord> ref = it.next();
-                PendingIntentRecord rec = ref != null ? ref.get() : null;
-                if (rec == null) {
-                    weakRefs.add(ref);
-                    continue;
-                }
-                if (dumpPackage != null && !dumpPackage.equals(rec.key.packageName)) {
-                    continue;
-                }
-                ArrayList<PendingIntentRecord> list = byPackage.get(rec.key.packageName);
-                if (list == null) {
-                    list = new ArrayList<>();
-                    byPackage.put(rec.key.packageName, list);
-                }
-                list.add(rec);
-            }
-            for (int i = 0; i < byPackage.size(); i++) {
-                ArrayList<PendingIntentRecord> intents = byPackage.valueAt(i);
-                printed = true;
-                pw.print("  * "); pw.print(byPackage.keyAt(i));
-                pw.print(": "); pw.print(intents.size()); pw.println(" items");
-                for (int j = 0; j < intents.size(); j++) {
-                    pw.print("    #"); pw.print(j); pw.print(": "); pw.println(intents.get(j));
-                    if (dumpAll) {
-                        intents.get(j).dump(pw, "      ");
-                    }
-                }
-            }
-            if (weakRefs.size() > 0) {
-                printed = true;
-                pw.println("  * WEAK REFS:");
-                for (int i = 0; i < weakRefs.size(); i++) {
-                    pw.print("    #"); pw.print(i); pw.print(": "); pw.println(weakRefs.get(i));
-                }
-            }
-        }
+        final boolean printed = mPendingIntentRegistry.dump(pw, dumpAll, dumpPackage);
 
         if (!printed) {
             pw.println("  (nothing)");
@@ -18996,6 +19015,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 Slog.w(TAG, "==> For Dynamic broadcast");
             }
             mReceiverResolver.addFilter(bf);
+            mReceiverResolutionCache.onFilterChanged(bf);
 
             // Enqueue broadcasts for all existing stickies that match
             // this filter.
@@ -19067,6 +19087,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mRegisteredReceivers.remove(rl.receiver.asBinder());
         for (int i = rl.size() - 1; i >= 0; i--) {
             mReceiverResolver.removeFilter(rl.get(i));
+            mReceiverResolutionCache.onFilterChanged(rl.get(i));
         }
     }
 
@@ -19100,8 +19121,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                         && !isPermittedShellBroadcast(intent)) {
                     continue;
                 }
-                List<ResolveInfo> newReceivers = AppGlobals.getPackageManager()
-                        .queryIntentReceivers(intent, resolvedType, pmFlags, user).getList();
+                List<ResolveInfo> newReceivers = queryReceiverComponents(intent, resolvedType,
+                        pmFlags, user);
                 if (user != UserHandle.USER_SYSTEM && newReceivers != null) {
                     // If this is not the system user, we need to check for
                     // any receivers that should be filtered out.
@@ -19164,6 +19185,58 @@ public class ActivityManagerService extends IActivityManager.Stub
         return receivers;
     }
 
+    private List<ResolveInfo> queryReceiverComponents(Intent intent, String resolvedType,
+            int pmFlags, int userId) throws RemoteException {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        // The package manager filters on the binder caller, only cache what it resolves
+        // on behalf of the system itself.
+        final boolean cacheable = ReceiverResolutionCache.isCacheable(intent)
+                && UserHandle.getAppId(Binder.getCallingUid()) == SYSTEM_UID;
+        final int generation = cacheable
+                ? getPackageManagerInternalLocked().getComponentStateGeneration() : 0;
+        if (cacheable) {
+            final List<ResolveInfo> cached = mReceiverResolutionCache.getManifest(intent,
+                    resolvedType, userId, generation);
+            if (cached != null) {
+                mReceiverResolutionCache.noteManifestResolution(true,
+                        SystemClock.elapsedRealtimeNanos() - startNanos);
+                return cached;
+            }
+        }
+        final List<ResolveInfo> receivers = AppGlobals.getPackageManager()
+                .queryIntentReceivers(intent, resolvedType, pmFlags, userId).getList();
+        if (cacheable) {
+            mReceiverResolutionCache.putManifest(intent, resolvedType, userId, generation,
+                    receivers);
+            mReceiverResolutionCache.noteManifestResolution(false,
+                    SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+        return receivers;
+    }
+
+    private List<BroadcastFilter> queryRegisteredReceiversLocked(Intent intent,
+            String resolvedType, int userId) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final boolean cacheable = ReceiverResolutionCache.isCacheable(intent);
+        if (cacheable) {
+            final List<BroadcastFilter> cached = mReceiverResolutionCache.getRegistered(intent,
+                    resolvedType, userId);
+            if (cached != null) {
+                mReceiverResolutionCache.noteRegisteredResolution(true,
+                        SystemClock.elapsedRealtimeNanos() - startNanos);
+                return cached;
+            }
+        }
+        final List<BroadcastFilter> receivers = mReceiverResolver.queryIntent(intent,
+                resolvedType, false /*defaultOnly*/, userId);
+        if (cacheable) {
+            mReceiverResolutionCache.putRegistered(intent, resolvedType, userId, receivers);
+            mReceiverResolutionCache.noteRegisteredResolution(false,
+                    SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+        return receivers;
+    }
+
     private boolean isPermittedShellBroadcast(Intent intent) {
         // remote bugreport should always be allowed to be taken
         return INTENT_REMOTE_BUGREPORT_FINISHED.equals(intent.getAction());
@@ -19720,8 +19793,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         continue;
                     }
                     List<BroadcastFilter> registeredReceiversForUser =
-                            mReceiverResolver.queryIntent(intent,
-                                    resolvedType, false /*defaultOnly*/, users[i]);
+                            queryRegisteredReceiversLocked(intent, resolvedType, users[i]);
                     if (registeredReceivers == null) {
                         registeredReceivers = registeredReceiversForUser;
                     } else if (registeredReceiversForUser != null) {
@@ -19729,8 +19801,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                 }
             } else {
-                registeredReceivers = mReceiverResolver.queryIntent(intent,
-                        resolvedType, false /*defaultOnly*/, userId);
+                registeredReceivers = queryRegisteredReceiversLocked(intent, resolvedType,
+                        userId);
             }
         }
 
@@ -22677,7 +22749,96 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Update OomAdj for a process whose state changed, and for the processes it binds to or
+     * holds providers of, which are the only others whose importance can follow from it.
+     * Does a full update instead if incremental updates are disabled, if too many processes
+     * are reachable, or if the change moves a process in or out of the cached ones or
+     * changes a process state, since cached slots and uid states are only assigned by the
+     * full update.
+     */
+    final void updateOomAdjIncrementalLocked(ProcessRecord app) {
+        if (app == null || app.thread == null || !mConstants.INCREMENTAL_OOM_ADJ) {
+            updateOomAdjLocked();
+            return;
+        }
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final ArrayList<ProcessRecord> procs = mTmpOomAdjProcs;
+        collectOomAdjDependentsLocked(app, procs);
+        final int count = procs.size();
+        if (count > mLruProcesses.size() / 2) {
+            procs.clear();
+            updateOomAdjLocked();
+            return;
+        }
+
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+        boolean needsFullUpdate = false;
+        mAdjSeq++;
+        for (int i = 0; i < count; i++) {
+            final ProcessRecord proc = procs.get(i);
+            final boolean wasCached = proc.cached;
+            final int oldProcState = proc.curProcState;
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || oldProcState != proc.curProcState
+                    || (proc.uidRecord != null
+                            && proc.curProcState < proc.uidRecord.setProcState)) {
+                needsFullUpdate = true;
+                break;
+            }
+        }
+        procs.clear();
+
+        final long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        if (needsFullUpdate) {
+            mOomAdjStats.notePass(OomAdjStats.TYPE_FALLBACK, durationNanos, count);
+            updateOomAdjLocked();
+        } else {
+            mOomAdjStats.notePass(OomAdjStats.TYPE_INCREMENTAL, durationNanos, count);
+        }
+    }
+
+    /**
+     * Collects {@code app} followed by every running process reachable from it through service
+     * bindings and provider connections, in breadth-first order so that clients come before
+     * the processes hosting what they use.
+     */
+    private void collectOomAdjDependentsLocked(ProcessRecord app,
+            ArrayList<ProcessRecord> outProcs) {
+        final ArraySet<ProcessRecord> visited = mTmpOomAdjVisited;
+        outProcs.add(app);
+        visited.add(app);
+        for (int i = 0; i < outProcs.size(); i++) {
+            final ProcessRecord proc = outProcs.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && host.thread != null && visited.add(host)) {
+                    outProcs.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && host.thread != null && visited.add(host)) {
+                    outProcs.add(host);
+                }
+            }
+        }
+        visited.clear();
+    }
+
     final void updateOomAdjLocked() {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        updateAllOomAdjLocked();
+        mOomAdjStats.notePass(OomAdjStats.TYPE_FULL,
+                SystemClock.elapsedRealtimeNanos() - startNanos, mLruProcesses.size());
+    }
+
+    private void updateAllOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -2661,6 +2661,8 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("  WHAT may be one of:");
             pw.println("    a[ctivities]: activity stack state");
             pw.println("    r[recents]: recent activities state");
+            pw.println("    launches [--proto]: phases of recent cold activity launches");
+            pw.println("    preload: boot classes apps load beyond the zygote's preloaded ones");
             pw.println("    b[roadcasts] [PACKAGE_NAME] [history [-s]]: broadcast state");
             pw.println("    broadcast-stats [PACKAGE_NAME]: aggregated broadcast statistics");
             pw.println("    i[ntents] [PACKAGE_NAME]: pending intent state");
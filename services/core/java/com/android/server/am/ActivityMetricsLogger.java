@@ -32,15 +32,20 @@ import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NA
 import static com.android.server.am.ActivityStack.STACK_INVISIBLE;
 
 import android.app.ActivityManager.StackId;
+import android.app.ColdStartPhases;
 import android.content.Context;
 import android.metrics.LogMaker;
 import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.logging.MetricsLogger;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 /**
@@ -60,6 +65,9 @@ class ActivityMetricsLogger {
 
     private static final long INVALID_START_TIME = -1;
 
+    /** Cold launches not complete after this long are dropped, their process likely died. */
+    private static final long COLD_START_TRACE_TIMEOUT_MS = 60 * 1000;
+
     // Preallocated strings we are sending to tron, so we don't have to allocate a new one every
     // time we log.
     private static final String[] TRON_WINDOW_STATE_VARZ_STRINGS = {
@@ -81,6 +89,11 @@ class ActivityMetricsLogger {
     private final SparseArray<StackTransitionInfo> mStackTransitionInfo = new SparseArray<>();
     private final SparseArray<StackTransitionInfo> mLastStackTransitionInfo = new SparseArray<>();
 
+    /** Cold launches being traced, by the process started for them. */
+    private final ArrayMap<ProcessRecord, ColdStartStats.Launch> mColdStarts = new ArrayMap<>();
+    private final ColdStartStats mColdStartStats = new ColdStartStats();
+    private int mNextColdStartId;
+
     private final class StackTransitionInfo {
         private ActivityRecord launchedActivity;
         private int startResult;
@@ -244,6 +257,12 @@ class ActivityMetricsLogger {
         if (info == null || info.loggedWindowsDrawn) {
             return;
         }
+        final ProcessRecord app = info.launchedActivity.app;
+        final ColdStartStats.Launch launch = app != null ? mColdStarts.get(app) : null;
+        if (launch != null) {
+            launch.checkpoints[ColdStartStats.CHECKPOINT_WINDOWS_DRAWN] = timestamp;
+            maybeCompleteColdStart(app, launch);
+        }
         info.windowsDrawnDelayMs = calculateDelay(timestamp);
         info.loggedWindowsDrawn = true;
         if (allStacksWindowsDrawn() && mLoggedTransitionStarting) {
@@ -313,6 +332,11 @@ class ActivityMetricsLogger {
      * @param app The client into which we'll call bindApplication.
      */
     void notifyBindApplication(ProcessRecord app) {
+        final ColdStartStats.Launch launch = mColdStarts.get(app);
+        if (launch != null) {
+            launch.checkpoints[ColdStartStats.CHECKPOINT_BIND_APPLICATION] =
+                    SystemClock.uptimeMillis();
+        }
         for (int i = mStackTransitionInfo.size() - 1; i >= 0; i--) {
             final StackTransitionInfo info = mStackTransitionInfo.valueAt(i);
 
@@ -323,6 +347,80 @@ class ActivityMetricsLogger {
         }
     }
 
+    /**
+     * Notifies the tracker that a process was forked by the zygote for an activity. If an
+     * activity launch is in progress, starts tracing it as a cold launch.
+     *
+     * @param forkStartTime uptime at which the zygote was asked to start the process
+     * @param forkEndTime uptime at which the zygote returned the started process
+     */
+    void notifyProcessStarted(ProcessRecord app, long forkStartTime, long forkEndTime) {
+        if (mCurrentTransitionStartTime == INVALID_START_TIME) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        for (int i = mColdStarts.size() - 1; i >= 0; i--) {
+            final ColdStartStats.Launch launch = mColdStarts.valueAt(i);
+            if (now - launch.checkpoints[ColdStartStats.CHECKPOINT_LAUNCH]
+                    > COLD_START_TRACE_TIMEOUT_MS || mColdStarts.keyAt(i) == app) {
+                mColdStarts.removeAt(i);
+                Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                        "cold launch: " + launch.processName, launch.id);
+                mColdStartStats.noteAbandoned();
+            }
+        }
+        final ColdStartStats.Launch launch = new ColdStartStats.Launch(++mNextColdStartId,
+                app.info.packageName, app.processName, app.pid);
+        launch.checkpoints[ColdStartStats.CHECKPOINT_LAUNCH] = mCurrentTransitionStartTime;
+        launch.checkpoints[ColdStartStats.CHECKPOINT_FORK_START] = forkStartTime;
+        launch.checkpoints[ColdStartStats.CHECKPOINT_FORK_END] = forkEndTime;
+        mColdStarts.put(app, launch);
+        Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                "cold launch: " + launch.processName, launch.id);
+    }
+
+    /**
+     * Notifies the tracker of the checkpoints a process reported reaching while starting up.
+     *
+     * @param checkpoints uptimes indexed by the {@link ColdStartPhases} checkpoints
+     */
+    void notifyColdStartPhases(ProcessRecord app, long[] checkpoints) {
+        final ColdStartStats.Launch launch = mColdStarts.get(app);
+        if (launch == null || launch.appReported) {
+            return;
+        }
+        System.arraycopy(checkpoints, 0, launch.checkpoints, ColdStartStats.CHECKPOINT_APP_BASE,
+                ColdStartPhases.CHECKPOINT_COUNT);
+        launch.appReported = true;
+        maybeCompleteColdStart(app, launch);
+    }
+
+    private void maybeCompleteColdStart(ProcessRecord app, ColdStartStats.Launch launch) {
+        if (!launch.isComplete()) {
+            return;
+        }
+        mColdStarts.remove(app);
+        Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                "cold launch: " + launch.processName, launch.id);
+        mColdStartStats.noteCompleted(launch);
+    }
+
+    void dumpColdStarts(PrintWriter pw, String prefix) {
+        mColdStartStats.dump(pw, prefix);
+        if (mColdStarts.size() > 0) {
+            pw.print(prefix); pw.print("  In progress:");
+            for (int i = 0; i < mColdStarts.size(); i++) {
+                pw.print(" #"); pw.print(mColdStarts.valueAt(i).id);
+                pw.print(" "); pw.print(mColdStarts.valueAt(i).processName);
+            }
+            pw.println();
+        }
+    }
+
+    void dumpColdStartsProto(ProtoOutputStream proto) {
+        mColdStartStats.dumpProto(proto);
+    }
+
     private boolean allStacksWindowsDrawn() {
         for (int index = mStackTransitionInfo.size() - 1; index >= 0; index--) {
             if (!mStackTransitionInfo.valueAt(index).loggedWindowsDrawn) {
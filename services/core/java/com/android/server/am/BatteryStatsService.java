@@ -45,6 +45,7 @@ import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsHelper;
 import com.android.internal.os.BatteryStatsImpl;
@@ -65,8 +66,11 @@ import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * All information we are collecting about things that can happen that impact
@@ -97,6 +101,41 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     private CharBuffer mUtf16BufferStat = CharBuffer.allocate(MAX_LOW_POWER_STATS_SIZE);
     private static final int MAX_LOW_POWER_STATS_SIZE = 512;
 
+    /**
+     * Wakelock notes waiting to be applied to {@link #mStats}. Wakelocks are by far the most
+     * frequent notes, so instead of every binder thread contending on the stats lock, callers
+     * queue their note and whichever caller finds no drain in progress applies the whole queue
+     * under a single lock acquisition. All wakelock notes go through this queue so that their
+     * relative order is preserved, and they are applied with the times they were made at.
+     * Anything else that reads or updates {@link #mStats} goes through {@link #runWithStats} or
+     * {@link #callWithStats}, which apply the queue first so that it stays ordered before it.
+     */
+    private final ConcurrentLinkedQueue<PendingNote> mPendingNotes =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mDrainingNotes = new AtomicBoolean();
+
+    // Times the last queued note was applied at; notes never go back in time.
+    @GuardedBy("mStats")
+    private long mLastNoteElapsedRealtime;
+    @GuardedBy("mStats")
+    private long mLastNoteUptime;
+
+    // Statistics about the batching above, reported by dumpsys batterystats.
+    @GuardedBy("mStats")
+    private long mNumBatchedNotes;
+    @GuardedBy("mStats")
+    private long mNumNoteBatches;
+    @GuardedBy("mStats")
+    private int mMaxNoteBatchSize;
+    @GuardedBy("mStats")
+    private long mTotalNoteLockWaitNs;
+    @GuardedBy("mStats")
+    private long mMaxNoteLockWaitNs;
+    @GuardedBy("mStats")
+    private long mTotalNoteLockHoldNs;
+    @GuardedBy("mStats")
+    private long mMaxNoteLockHoldNs;
+
     /**
      * Replaces the information in the given rpmStats with up-to-date information.
      */
@@ -179,6 +218,126 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         ServiceManager.addService(BatteryStats.SERVICE_NAME, asBinder());
     }
 
+    /** A wakelock note, applied to {@link #mStats} under its lock. */
+    private interface Note {
+        void noteLocked(long elapsedRealtime, long uptime);
+    }
+
+    /** A queued {@link Note} with the times it was made at. */
+    private static final class PendingNote {
+        final Note note;
+        final long elapsedRealtime;
+        final long uptime;
+
+        PendingNote(Note note, long elapsedRealtime, long uptime) {
+            this.note = note;
+            this.elapsedRealtime = elapsedRealtime;
+            this.uptime = uptime;
+        }
+    }
+
+    private void enqueueNote(Note note) {
+        mPendingNotes.add(new PendingNote(note, SystemClock.elapsedRealtime(),
+                SystemClock.uptimeMillis()));
+        drainPendingNotes();
+    }
+
+    /**
+     * Runs {@code action} under the stats lock, after applying the wakelock notes queued before
+     * it.
+     */
+    private void runWithStats(Runnable action) {
+        synchronized (mStats) {
+            drainPendingNotesLocked();
+            action.run();
+        }
+    }
+
+    /**
+     * Like {@link #runWithStats}, returning the result of {@code action}.
+     */
+    private <T> T callWithStats(Supplier<T> action) {
+        synchronized (mStats) {
+            drainPendingNotesLocked();
+            return action.get();
+        }
+    }
+
+    private void drainPendingNotes() {
+        while (!mPendingNotes.isEmpty()) {
+            if (!mDrainingNotes.compareAndSet(false, true)) {
+                // The thread currently draining will pick up our note; it re-checks the queue
+                // after clearing the flag, so nothing is left behind.
+                return;
+            }
+            try {
+                final long waitStart = SystemClock.elapsedRealtimeNanos();
+                synchronized (mStats) {
+                    final long holdStart = SystemClock.elapsedRealtimeNanos();
+                    if (drainPendingNotesLocked() > 0) {
+                        final long now = SystemClock.elapsedRealtimeNanos();
+                        final long waitNs = holdStart - waitStart;
+                        final long holdNs = now - holdStart;
+                        mTotalNoteLockWaitNs += waitNs;
+                        mMaxNoteLockWaitNs = Math.max(mMaxNoteLockWaitNs, waitNs);
+                        mTotalNoteLockHoldNs += holdNs;
+                        mMaxNoteLockHoldNs = Math.max(mMaxNoteLockHoldNs, holdNs);
+                    }
+                }
+            } finally {
+                mDrainingNotes.set(false);
+            }
+        }
+    }
+
+    /**
+     * Applies all queued wakelock notes.
+     *
+     * @return the number of notes applied
+     */
+    @GuardedBy("mStats")
+    private int drainPendingNotesLocked() {
+        int count = 0;
+        PendingNote pending;
+        while ((pending = mPendingNotes.poll()) != null) {
+            // Callers can queue notes in another order than they took their times in.
+            final long elapsedRealtime = Math.max(pending.elapsedRealtime,
+                    mLastNoteElapsedRealtime);
+            final long uptime = Math.max(pending.uptime, mLastNoteUptime);
+            mLastNoteElapsedRealtime = elapsedRealtime;
+            mLastNoteUptime = uptime;
+            // The note may have been queued by another caller, which must not see this one's
+            // failure, nor leave the notes behind it waiting for the next one.
+            try {
+                pending.note.noteLocked(elapsedRealtime, uptime);
+            } catch (RuntimeException e) {
+                Slog.wtf(TAG, "Error applying queued wakelock note", e);
+            }
+            count++;
+        }
+        if (count > 0) {
+            mNumBatchedNotes += count;
+            mNumNoteBatches++;
+            mMaxNoteBatchSize = Math.max(mMaxNoteBatchSize, count);
+        }
+        return count;
+    }
+
+    @GuardedBy("mStats")
+    private void dumpNoteBatchingLocked(PrintWriter pw) {
+        pw.println();
+        pw.println("Wakelock note batching:");
+        pw.print("  Notes: "); pw.print(mNumBatchedNotes);
+        pw.print(" in "); pw.print(mNumNoteBatches);
+        pw.print(" lock acquisitions (max batch "); pw.print(mMaxNoteBatchSize);
+        pw.println(")");
+        final long batches = Math.max(mNumNoteBatches, 1);
+        pw.print("  Lock wait: avg "); pw.print(mTotalNoteLockWaitNs / batches / 1000);
+        pw.print("us max "); pw.print(mMaxNoteLockWaitNs / 1000); pw.println("us");
+        pw.print("  Lock hold: avg "); pw.print(mTotalNoteLockHoldNs / batches / 1000);
+        pw.print("us max "); pw.print(mMaxNoteLockHoldNs / 1000); pw.println("us");
+    }
+
     private static void awaitUninterruptibly(Future<?> future) {
         while (true) {
             try {
@@ -199,11 +358,11 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void initPowerManagement() {
         final PowerManagerInternal powerMgr = LocalServices.getService(PowerManagerInternal.class);
         powerMgr.registerLowPowerModeObserver(this);
-        synchronized (mStats) {
+        runWithStats(() -> {
             mStats.notePowerSaveModeLocked(
                     powerMgr.getLowPowerState(ServiceType.BATTERY_STATS)
                             .batterySaverEnabled);
-        }
+        });
         (new WakeupReasonThread()).start();
     }
 
@@ -212,9 +371,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
         awaitUninterruptibly(mWorker.scheduleSync("shutdown", BatteryExternalStatsWorker.UPDATE_ALL));
 
-        synchronized (mStats) {
-            mStats.shutdownLocked();
-        }
+        runWithStats(() -> mStats.shutdownLocked());
 
         // Shutdown the thread we made.
         mWorker.shutdown();
@@ -236,9 +393,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     @Override
     public void onLowPowerModeChanged(PowerSaveState result) {
-        synchronized (mStats) {
-            mStats.notePowerSaveModeLocked(result.batterySaverEnabled);
-        }
+        runWithStats(() -> mStats.notePowerSaveModeLocked(result.batterySaverEnabled));
     }
 
     /**
@@ -247,6 +402,8 @@ public final class BatteryStatsService extends IBatteryStats.Stub
      * stats object before doing anything with it.
      */
     public BatteryStatsImpl getActiveStatistics() {
+        // Callers lock and update the stats directly; apply what was noted before them.
+        drainPendingNotes();
         return mStats;
     }
 
@@ -264,63 +421,43 @@ public final class BatteryStatsService extends IBatteryStats.Stub
      * Remove a UID from the BatteryStats and BatteryStats' external dependencies.
      */
     void removeUid(int uid) {
-        synchronized (mStats) {
-            mStats.removeUidStatsLocked(uid);
-        }
+        runWithStats(() -> mStats.removeUidStatsLocked(uid));
     }
 
     void onCleanupUser(int userId) {
-        synchronized (mStats) {
-            mStats.onCleanupUserLocked(userId);
-        }
+        runWithStats(() -> mStats.onCleanupUserLocked(userId));
     }
 
     void onUserRemoved(int userId) {
-        synchronized (mStats) {
-            mStats.onUserRemovedLocked(userId);
-        }
+        runWithStats(() -> mStats.onUserRemovedLocked(userId));
     }
 
     void addIsolatedUid(int isolatedUid, int appUid) {
-        synchronized (mStats) {
-            mStats.addIsolatedUidLocked(isolatedUid, appUid);
-        }
+        runWithStats(() -> mStats.addIsolatedUidLocked(isolatedUid, appUid));
     }
 
     void removeIsolatedUid(int isolatedUid, int appUid) {
-        synchronized (mStats) {
-            mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid);
-        }
+        runWithStats(() -> mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid));
     }
 
     void noteProcessStart(String name, int uid) {
-        synchronized (mStats) {
-            mStats.noteProcessStartLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteProcessStartLocked(name, uid));
     }
 
     void noteProcessCrash(String name, int uid) {
-        synchronized (mStats) {
-            mStats.noteProcessCrashLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteProcessCrashLocked(name, uid));
     }
 
     void noteProcessAnr(String name, int uid) {
-        synchronized (mStats) {
-            mStats.noteProcessAnrLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteProcessAnrLocked(name, uid));
     }
 
     void noteProcessFinish(String name, int uid) {
-        synchronized (mStats) {
-            mStats.noteProcessFinishLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteProcessFinishLocked(name, uid));
     }
 
     void noteUidProcessState(int uid, int state) {
-        synchronized (mStats) {
-            mStats.noteUidProcessStateLocked(uid, state);
-        }
+        runWithStats(() -> mStats.noteUidProcessStateLocked(uid, state));
     }
 
     // Public interface...
@@ -332,9 +469,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         //mStats.dumpLocked(new LogPrinter(Log.INFO, "foo", Log.LOG_ID_SYSTEM));
         Parcel out = Parcel.obtain();
         awaitUninterruptibly(mWorker.scheduleSync("get-stats", BatteryExternalStatsWorker.UPDATE_ALL));
-        synchronized (mStats) {
-            mStats.writeToParcel(out, 0);
-        }
+        runWithStats(() -> mStats.writeToParcel(out, 0));
         byte[] data = out.marshall();
         out.recycle();
         return data;
@@ -347,9 +482,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         //mStats.dumpLocked(new LogPrinter(Log.INFO, "foo", Log.LOG_ID_SYSTEM));
         Parcel out = Parcel.obtain();
         awaitUninterruptibly(mWorker.scheduleSync("get-stats", BatteryExternalStatsWorker.UPDATE_ALL));
-        synchronized (mStats) {
-            mStats.writeToParcel(out, 0);
-        }
+        runWithStats(() -> mStats.writeToParcel(out, 0));
         byte[] data = out.marshall();
         out.recycle();
         try {
@@ -361,224 +494,173 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     }
 
     public boolean isCharging() {
-        synchronized (mStats) {
-            return mStats.isCharging();
-        }
+        return callWithStats(() -> mStats.isCharging());
     }
 
     public long computeBatteryTimeRemaining() {
-        synchronized (mStats) {
-            long time = mStats.computeBatteryTimeRemaining(SystemClock.elapsedRealtime());
-            return time >= 0 ? (time/1000) : time;
-        }
+        long time = callWithStats(
+                () -> mStats.computeBatteryTimeRemaining(SystemClock.elapsedRealtime()));
+        return time >= 0 ? (time/1000) : time;
     }
 
     public long computeChargeTimeRemaining() {
-        synchronized (mStats) {
-            long time = mStats.computeChargeTimeRemaining(SystemClock.elapsedRealtime());
-            return time >= 0 ? (time/1000) : time;
-        }
+        long time = callWithStats(
+                () -> mStats.computeChargeTimeRemaining(SystemClock.elapsedRealtime()));
+        return time >= 0 ? (time/1000) : time;
     }
 
     public void noteEvent(int code, String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteEventLocked(code, name, uid);
-        }
+        runWithStats(() -> mStats.noteEventLocked(code, name, uid));
     }
 
     public void noteSyncStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncStartLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteSyncStartLocked(name, uid));
     }
 
     public void noteSyncFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteSyncFinishLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteSyncFinishLocked(name, uid));
     }
 
     public void noteJobStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobStartLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteJobStartLocked(name, uid));
     }
 
     public void noteJobFinish(String name, int uid, int stopReason) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteJobFinishLocked(name, uid, stopReason);
-        }
+        runWithStats(() -> mStats.noteJobFinishLocked(name, uid, stopReason));
     }
 
     public void noteAlarmStart(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAlarmStartLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteAlarmStartLocked(name, uid));
     }
 
     public void noteAlarmFinish(String name, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAlarmFinishLocked(name, uid);
-        }
+        runWithStats(() -> mStats.noteAlarmFinishLocked(name, uid));
     }
 
     public void noteStartWakelock(int uid, int pid, String name, String historyName, int type,
             boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeLocked(uid, pid, name, historyName, type, unimportantForLogging,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        enqueueNote((elapsedRealtime, uptime) -> mStats.noteStartWakeLocked(uid, pid, name,
+                historyName, type, unimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteStopWakelock(int uid, int pid, String name, String historyName, int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeLocked(uid, pid, name, historyName, type,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        enqueueNote((elapsedRealtime, uptime) -> mStats.noteStopWakeLocked(uid, pid, name,
+                historyName, type, elapsedRealtime, uptime));
     }
 
     public void noteStartWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeFromSourceLocked(ws, pid, name, historyName,
-                    type, unimportantForLogging);
-        }
+        // Callers in this process hand us their own WorkSource, which may change after we return.
+        final WorkSource wsCopy = ws != null ? new WorkSource(ws) : null;
+        enqueueNote((elapsedRealtime, uptime) -> mStats.noteStartWakeFromSourceLocked(wsCopy,
+                pid, name, historyName, type, unimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteChangeWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, WorkSource newWs, int newPid, String newName,
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type,
-                    newWs, newPid, newName, newHistoryName, newType, newUnimportantForLogging);
-        }
+        final WorkSource wsCopy = ws != null ? new WorkSource(ws) : null;
+        final WorkSource newWsCopy = newWs != null ? new WorkSource(newWs) : null;
+        enqueueNote((elapsedRealtime, uptime) -> mStats.noteChangeWakelockFromSourceLocked(
+                wsCopy, pid, name, historyName, type, newWsCopy, newPid, newName,
+                newHistoryName, newType, newUnimportantForLogging, elapsedRealtime, uptime));
     }
 
     public void noteStopWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
             int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeFromSourceLocked(ws, pid, name, historyName, type);
-        }
+        final WorkSource wsCopy = ws != null ? new WorkSource(ws) : null;
+        enqueueNote((elapsedRealtime, uptime) -> mStats.noteStopWakeFromSourceLocked(wsCopy,
+                pid, name, historyName, type, elapsedRealtime, uptime));
     }
 
     public void noteLongPartialWakelockStart(String name, String historyName, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteLongPartialWakelockStart(name, historyName, uid);
-        }
+        runWithStats(() -> mStats.noteLongPartialWakelockStart(name, historyName, uid));
     }
 
     public void noteLongPartialWakelockFinish(String name, String historyName, int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteLongPartialWakelockFinish(name, historyName, uid);
-        }
+        runWithStats(() -> mStats.noteLongPartialWakelockFinish(name, historyName, uid));
     }
 
     public void noteStartSensor(int uid, int sensor) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartSensorLocked(uid, sensor);
-        }
+        runWithStats(() -> mStats.noteStartSensorLocked(uid, sensor));
     }
     
     public void noteStopSensor(int uid, int sensor) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopSensorLocked(uid, sensor);
-        }
+        runWithStats(() -> mStats.noteStopSensorLocked(uid, sensor));
     }
     
     public void noteVibratorOn(int uid, long durationMillis) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteVibratorOnLocked(uid, durationMillis);
-        }
+        runWithStats(() -> mStats.noteVibratorOnLocked(uid, durationMillis));
     }
 
     public void noteVibratorOff(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteVibratorOffLocked(uid);
-        }
+        runWithStats(() -> mStats.noteVibratorOffLocked(uid));
     }
 
     public void noteStartGps(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartGpsLocked(uid);
-        }
+        runWithStats(() -> mStats.noteStartGpsLocked(uid));
     }
     
     public void noteStopGps(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopGpsLocked(uid);
-        }
+        runWithStats(() -> mStats.noteStopGpsLocked(uid));
     }
         
     public void noteScreenState(int state) {
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteScreenState");
-        synchronized (mStats) {
-            mStats.noteScreenStateLocked(state);
-        }
+        runWithStats(() -> mStats.noteScreenStateLocked(state));
         if (DBG) Slog.d(TAG, "end noteScreenState");
     }
     
     public void noteScreenBrightness(int brightness) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteScreenBrightnessLocked(brightness);
-        }
+        runWithStats(() -> mStats.noteScreenBrightnessLocked(brightness));
     }
     
     public void noteUserActivity(int uid, int event) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteUserActivityLocked(uid, event);
-        }
+        runWithStats(() -> mStats.noteUserActivityLocked(uid, event));
     }
     
     public void noteWakeUp(String reason, int reasonUid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWakeUpLocked(reason, reasonUid);
-        }
+        runWithStats(() -> mStats.noteWakeUpLocked(reason, reasonUid));
     }
 
     public void noteInteractive(boolean interactive) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteInteractiveLocked(interactive);
-        }
+        runWithStats(() -> mStats.noteInteractiveLocked(interactive));
     }
 
     public void noteConnectivityChanged(int type, String extra) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteConnectivityChangedLocked(type, extra);
-        }
+        runWithStats(() -> mStats.noteConnectivityChangedLocked(type, extra));
     }
 
     public void noteMobileRadioPowerState(int powerState, long timestampNs, int uid) {
         enforceCallingPermission();
-        final boolean update;
-        synchronized (mStats) {
-            update = mStats.noteMobileRadioPowerStateLocked(powerState, timestampNs, uid);
-        }
+        final boolean update = callWithStats(
+                () -> mStats.noteMobileRadioPowerStateLocked(powerState, timestampNs, uid));
 
         if (update) {
             mWorker.scheduleSync("modem-data", BatteryExternalStatsWorker.UPDATE_RADIO);
@@ -587,138 +669,100 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public void notePhoneOn() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePhoneOnLocked();
-        }
+        runWithStats(() -> mStats.notePhoneOnLocked());
     }
     
     public void notePhoneOff() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePhoneOffLocked();
-        }
+        runWithStats(() -> mStats.notePhoneOffLocked());
     }
     
     public void notePhoneSignalStrength(SignalStrength signalStrength) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePhoneSignalStrengthLocked(signalStrength);
-        }
+        runWithStats(() -> mStats.notePhoneSignalStrengthLocked(signalStrength));
     }
     
     public void notePhoneDataConnectionState(int dataType, boolean hasData) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePhoneDataConnectionStateLocked(dataType, hasData);
-        }
+        runWithStats(() -> mStats.notePhoneDataConnectionStateLocked(dataType, hasData));
     }
 
     public void notePhoneState(int state) {
         enforceCallingPermission();
         int simState = TelephonyManager.getDefault().getSimState();
-        synchronized (mStats) {
-            mStats.notePhoneStateLocked(state, simState);
-        }
+        runWithStats(() -> mStats.notePhoneStateLocked(state, simState));
     }
 
     public void noteWifiOn() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiOnLocked();
-        }
+        runWithStats(() -> mStats.noteWifiOnLocked());
     }
     
     public void noteWifiOff() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiOffLocked();
-        }
+        runWithStats(() -> mStats.noteWifiOffLocked());
     }
 
     public void noteStartAudio(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAudioOnLocked(uid);
-        }
+        runWithStats(() -> mStats.noteAudioOnLocked(uid));
     }
 
     public void noteStopAudio(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteAudioOffLocked(uid);
-        }
+        runWithStats(() -> mStats.noteAudioOffLocked(uid));
     }
 
     public void noteStartVideo(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteVideoOnLocked(uid);
-        }
+        runWithStats(() -> mStats.noteVideoOnLocked(uid));
     }
 
     public void noteStopVideo(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteVideoOffLocked(uid);
-        }
+        runWithStats(() -> mStats.noteVideoOffLocked(uid));
     }
 
     public void noteResetAudio() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteResetAudioLocked();
-        }
+        runWithStats(() -> mStats.noteResetAudioLocked());
     }
 
     public void noteResetVideo() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteResetVideoLocked();
-        }
+        runWithStats(() -> mStats.noteResetVideoLocked());
     }
 
     public void noteFlashlightOn(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFlashlightOnLocked(uid);
-        }
+        runWithStats(() -> mStats.noteFlashlightOnLocked(uid));
     }
 
     public void noteFlashlightOff(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFlashlightOffLocked(uid);
-        }
+        runWithStats(() -> mStats.noteFlashlightOffLocked(uid));
     }
 
     public void noteStartCamera(int uid) {
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteStartCamera");
-        synchronized (mStats) {
-            mStats.noteCameraOnLocked(uid);
-        }
+        runWithStats(() -> mStats.noteCameraOnLocked(uid));
         if (DBG) Slog.d(TAG, "end noteStartCamera");
     }
 
     public void noteStopCamera(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteCameraOffLocked(uid);
-        }
+        runWithStats(() -> mStats.noteCameraOffLocked(uid));
     }
 
     public void noteResetCamera() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteResetCameraLocked();
-        }
+        runWithStats(() -> mStats.noteResetCameraLocked());
     }
 
     public void noteResetFlashlight() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteResetFlashlightLocked();
-        }
+        runWithStats(() -> mStats.noteResetFlashlightLocked());
     }
 
     @Override
@@ -727,7 +771,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
         // There was a change in WiFi power state.
         // Collect data now for the past activity.
-        synchronized (mStats) {
+        runWithStats(() -> {
             if (mStats.isOnBattery()) {
                 final String type = (powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_HIGH ||
                         powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_MEDIUM) ? "active"
@@ -735,156 +779,114 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 mWorker.scheduleSync("wifi-data: " + type, BatteryExternalStatsWorker.UPDATE_WIFI);
             }
             mStats.noteWifiRadioPowerState(powerState, tsNanos, uid);
-        }
+        });
     }
 
     public void noteWifiRunning(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiRunningLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiRunningLocked(ws));
     }
 
     public void noteWifiRunningChanged(WorkSource oldWs, WorkSource newWs) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiRunningChangedLocked(oldWs, newWs);
-        }
+        runWithStats(() -> mStats.noteWifiRunningChangedLocked(oldWs, newWs));
     }
 
     public void noteWifiStopped(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiStoppedLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiStoppedLocked(ws));
     }
 
     public void noteWifiState(int wifiState, String accessPoint) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiStateLocked(wifiState, accessPoint);
-        }
+        runWithStats(() -> mStats.noteWifiStateLocked(wifiState, accessPoint));
     }
 
     public void noteWifiSupplicantStateChanged(int supplState, boolean failedAuth) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth);
-        }
+        runWithStats(() -> mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth));
     }
 
     public void noteWifiRssiChanged(int newRssi) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiRssiChangedLocked(newRssi);
-        }
+        runWithStats(() -> mStats.noteWifiRssiChangedLocked(newRssi));
     }
 
     public void noteFullWifiLockAcquired(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFullWifiLockAcquiredLocked(uid);
-        }
+        runWithStats(() -> mStats.noteFullWifiLockAcquiredLocked(uid));
     }
     
     public void noteFullWifiLockReleased(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFullWifiLockReleasedLocked(uid);
-        }
+        runWithStats(() -> mStats.noteFullWifiLockReleasedLocked(uid));
     }
 
     public void noteWifiScanStarted(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiScanStartedLocked(uid);
-        }
+        runWithStats(() -> mStats.noteWifiScanStartedLocked(uid));
     }
 
     public void noteWifiScanStopped(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiScanStoppedLocked(uid);
-        }
+        runWithStats(() -> mStats.noteWifiScanStoppedLocked(uid));
     }
 
     public void noteWifiMulticastEnabled(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiMulticastEnabledLocked(uid);
-        }
+        runWithStats(() -> mStats.noteWifiMulticastEnabledLocked(uid));
     }
 
     public void noteWifiMulticastDisabled(int uid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiMulticastDisabledLocked(uid);
-        }
+        runWithStats(() -> mStats.noteWifiMulticastDisabledLocked(uid));
     }
 
     public void noteFullWifiLockAcquiredFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFullWifiLockAcquiredFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteFullWifiLockAcquiredFromSourceLocked(ws));
     }
 
     public void noteFullWifiLockReleasedFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteFullWifiLockReleasedFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteFullWifiLockReleasedFromSourceLocked(ws));
     }
 
     public void noteWifiScanStartedFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiScanStartedFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiScanStartedFromSourceLocked(ws));
     }
 
     public void noteWifiScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiScanStoppedFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiScanStoppedFromSourceLocked(ws));
     }
 
     public void noteWifiBatchedScanStartedFromSource(WorkSource ws, int csph) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiBatchedScanStartedFromSourceLocked(ws, csph);
-        }
+        runWithStats(() -> mStats.noteWifiBatchedScanStartedFromSourceLocked(ws, csph));
     }
 
     public void noteWifiBatchedScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiBatchedScanStoppedFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiBatchedScanStoppedFromSourceLocked(ws));
     }
 
     public void noteWifiMulticastEnabledFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiMulticastEnabledFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiMulticastEnabledFromSourceLocked(ws));
     }
 
     @Override
     public void noteWifiMulticastDisabledFromSource(WorkSource ws) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteWifiMulticastDisabledFromSourceLocked(ws);
-        }
+        runWithStats(() -> mStats.noteWifiMulticastDisabledFromSourceLocked(ws));
     }
 
     @Override
     public void noteNetworkInterfaceType(String iface, int networkType) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteNetworkInterfaceTypeLocked(iface, networkType);
-        }
+        runWithStats(() -> mStats.noteNetworkInterfaceTypeLocked(iface, networkType));
     }
 
     @Override
@@ -900,55 +902,41 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     @Override
     public void noteDeviceIdleMode(int mode, String activeReason, int activeUid) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid);
-        }
+        runWithStats(() -> mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid));
     }
 
     public void notePackageInstalled(String pkgName, int versionCode) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePackageInstalledLocked(pkgName, versionCode);
-        }
+        runWithStats(() -> mStats.notePackageInstalledLocked(pkgName, versionCode));
     }
 
     public void notePackageUninstalled(String pkgName) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.notePackageUninstalledLocked(pkgName);
-        }
+        runWithStats(() -> mStats.notePackageUninstalledLocked(pkgName));
     }
 
     @Override
     public void noteBleScanStarted(WorkSource ws, boolean isUnoptimized) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteBluetoothScanStartedFromSourceLocked(ws, isUnoptimized);
-        }
+        runWithStats(() -> mStats.noteBluetoothScanStartedFromSourceLocked(ws, isUnoptimized));
     }
 
     @Override
     public void noteBleScanStopped(WorkSource ws, boolean isUnoptimized) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteBluetoothScanStoppedFromSourceLocked(ws, isUnoptimized);
-        }
+        runWithStats(() -> mStats.noteBluetoothScanStoppedFromSourceLocked(ws, isUnoptimized));
     }
 
     @Override
     public void noteResetBleScan() {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteResetBluetoothScanLocked();
-        }
+        runWithStats(() -> mStats.noteResetBluetoothScanLocked());
     }
 
     @Override
     public void noteBleScanResults(WorkSource ws, int numNewResults) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteBluetoothScanResultsFromSourceLocked(ws, numNewResults);
-        }
+        runWithStats(() -> mStats.noteBluetoothScanResultsFromSourceLocked(ws, numNewResults));
     }
 
     @Override
@@ -999,15 +987,19 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         // BatteryService calls us here and we may update external state. It would be wrong
         // to block such a low level service like BatteryService on external stats like WiFi.
         mWorker.scheduleRunnable(() -> {
-            synchronized (mStats) {
+            final boolean stateChanged = callWithStats(() -> {
                 final boolean onBattery = plugType == BatteryStatsImpl.BATTERY_PLUGGED_NONE;
                 if (mStats.isOnBattery() == onBattery) {
                     // The battery state has not changed, so we don't need to sync external
                     // stats immediately.
                     mStats.setBatteryStateLocked(status, health, plugType, level, temp, volt,
                             chargeUAh, chargeFullUAh);
-                    return;
+                    return false;
                 }
+                return true;
+            });
+            if (!stateChanged) {
+                return;
             }
 
             // Sync external stats first as the battery has changed states. If we don't sync
@@ -1016,10 +1008,10 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             // using a single threaded executor.
             mWorker.scheduleSync("battery-state", BatteryExternalStatsWorker.UPDATE_ALL);
             mWorker.scheduleRunnable(() -> {
-                synchronized (mStats) {
+                runWithStats(() -> {
                     mStats.setBatteryStateLocked(status, health, plugType, level, temp, volt,
                             chargeUAh, chargeFullUAh);
-                }
+                });
             });
         });
     }
@@ -1069,9 +1061,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             try {
                 String reason;
                 while ((reason = waitWakeup()) != null) {
-                    synchronized (mStats) {
-                        mStats.noteWakeupReasonLocked(reason);
-                    }
+                    runWithStats(() -> mStats.noteWakeupReasonLocked(reason));
                 }
             } catch (RuntimeException e) {
                 Slog.e(TAG, "Failure reading wakeup reasons", e);
@@ -1140,17 +1130,11 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             return -1;
         }
         if ("full-wake-history".equals(args[i]) || "full-history".equals(args[i])) {
-            synchronized (mStats) {
-                mStats.setRecordAllHistoryLocked(enable);
-            }
+            runWithStats(() -> mStats.setRecordAllHistoryLocked(enable));
         } else if ("no-auto-reset".equals(args[i])) {
-            synchronized (mStats) {
-                mStats.setNoAutoReset(enable);
-            }
+            runWithStats(() -> mStats.setNoAutoReset(enable));
         } else if ("pretend-screen-off".equals(args[i])) {
-            synchronized (mStats) {
-                mStats.setPretendScreenOff(enable);
-            }
+            runWithStats(() -> mStats.setPretendScreenOff(enable));
         } else {
             pw.println("Unknown enable/disable option: " + args[i]);
             dumpHelp(pw);
@@ -1197,32 +1181,32 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 } else if ("--daily".equals(arg)) {
                     flags |= BatteryStats.DUMP_DAILY_ONLY;
                 } else if ("--reset".equals(arg)) {
-                    synchronized (mStats) {
+                    runWithStats(() -> {
                         mStats.resetAllStatsCmdLocked();
                         pw.println("Battery stats reset.");
-                        noOutput = true;
-                    }
+                    });
+                    noOutput = true;
                     mWorker.scheduleSync("dump", BatteryExternalStatsWorker.UPDATE_ALL);
                 } else if ("--write".equals(arg)) {
                     awaitUninterruptibly(mWorker.scheduleSync("dump",
                             BatteryExternalStatsWorker.UPDATE_ALL));
-                    synchronized (mStats) {
+                    runWithStats(() -> {
                         mStats.writeSyncLocked();
                         pw.println("Battery stats written.");
-                        noOutput = true;
-                    }
+                    });
+                    noOutput = true;
                 } else if ("--new-daily".equals(arg)) {
-                    synchronized (mStats) {
+                    runWithStats(() -> {
                         mStats.recordDailyStatsLocked();
                         pw.println("New daily stats written.");
-                        noOutput = true;
-                    }
+                    });
+                    noOutput = true;
                 } else if ("--read-daily".equals(arg)) {
-                    synchronized (mStats) {
+                    runWithStats(() -> {
                         mStats.readDailyStatsLocked();
                         pw.println("Last daily stats read.");
-                        noOutput = true;
-                    }
+                    });
+                    noOutput = true;
                 } else if ("--enable".equals(arg) || "enable".equals(arg)) {
                     i = doEnableOrDisable(pw, i, args, true);
                     if (i < 0) {
@@ -1315,21 +1299,31 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 }
             }
             if (DBG) Slog.d(TAG, "begin dumpCheckinLocked from UID " + Binder.getCallingUid());
-            synchronized (mStats) {
-                mStats.dumpCheckinLocked(mContext, pw, apps, flags, historyStart);
-                if (writeData) {
+            final int dumpFlags = flags;
+            final long dumpHistoryStart = historyStart;
+            final boolean dumpWriteData = writeData;
+            runWithStats(() -> {
+                mStats.dumpCheckinLocked(mContext, pw, apps, dumpFlags, dumpHistoryStart);
+                if (dumpWriteData) {
                     mStats.writeAsyncLocked();
                 }
-            }
+            });
             if (DBG) Slog.d(TAG, "end dumpCheckinLocked");
         } else {
             if (DBG) Slog.d(TAG, "begin dumpLocked from UID " + Binder.getCallingUid());
-            synchronized (mStats) {
-                mStats.dumpLocked(mContext, pw, flags, reqUid, historyStart);
-                if (writeData) {
+            final int dumpFlags = flags;
+            final int dumpReqUid = reqUid;
+            final long dumpHistoryStart = historyStart;
+            final boolean dumpWriteData = writeData;
+            runWithStats(() -> {
+                mStats.dumpLocked(mContext, pw, dumpFlags, dumpReqUid, dumpHistoryStart);
+                if (dumpReqUid < 0) {
+                    dumpNoteBatchingLocked(pw);
+                }
+                if (dumpWriteData) {
                     mStats.writeAsyncLocked();
                 }
-            }
+            });
             if (DBG) Slog.d(TAG, "end dumpLocked");
         }
     }
@@ -1347,9 +1341,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         try {
             awaitUninterruptibly(mWorker.scheduleSync("get-health-stats-for-uids",
                     BatteryExternalStatsWorker.UPDATE_ALL));
-            synchronized (mStats) {
-                return getHealthStatsForUidLocked(requestUid);
-            }
+            return callWithStats(() -> getHealthStatsForUidLocked(requestUid));
         } catch (Exception ex) {
             Slog.w(TAG, "Crashed while writing for takeUidSnapshot(" + requestUid + ")", ex);
             throw ex;
@@ -1368,21 +1360,20 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     android.Manifest.permission.BATTERY_STATS, null);
         }
         long ident = Binder.clearCallingIdentity();
-        int i=-1;
         try {
             awaitUninterruptibly(mWorker.scheduleSync("get-health-stats-for-uids",
                     BatteryExternalStatsWorker.UPDATE_ALL));
-            synchronized (mStats) {
+            return callWithStats(() -> {
                 final int N = requestUids.length;
                 final HealthStatsParceler[] results = new HealthStatsParceler[N];
-                for (i=0; i<N; i++) {
+                for (int i=0; i<N; i++) {
                     results[i] = getHealthStatsForUidLocked(requestUids[i]);
                 }
                 return results;
-            }
+            });
         } catch (Exception ex) {
             if (DBG) Slog.d(TAG, "Crashed while writing for takeUidSnapshots("
-                    + Arrays.toString(requestUids) + ") i=" + i, ex);
+                    + Arrays.toString(requestUids) + ")", ex);
             throw ex;
         } finally {
             Binder.restoreCallingIdentity(ident);
@@ -31,6 +31,7 @@ import android.app.AppGlobals;
 import android.app.AppOpsManager;
 import android.app.BroadcastOptions;
 import android.app.PendingIntent;
+import android.app.ReceiverInfo;
 import android.content.ComponentName;
 import android.content.IIntentReceiver;
 import android.content.IIntentSender;
@@ -47,7 +48,9 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -69,6 +72,11 @@ public final class BroadcastQueue {
     static final int MAX_BROADCAST_SUMMARY_HISTORY
             = ActivityManager.isLowRamDeviceStatic() ? 25 : 300;
 
+    /**
+     * Maximum number of registered receiver deliveries sent to a process in one transaction.
+     */
+    static final int MAX_BATCHED_DELIVERIES = 16;
+
     final ActivityManagerService mService;
 
     /**
@@ -152,6 +160,60 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Set while delivering parallel broadcasts: deliveries to registered receivers are then
+     * collected per process in mBatchedDeliveries instead of being sent right away, and
+     * flushed by flushBatchedDeliveriesLocked() with one transaction per process.
+     */
+    boolean mBatchingDeliveries;
+    final ArrayMap<ProcessRecord, ArrayList<ReceiverInfo>> mBatchedDeliveries = new ArrayMap<>();
+
+    /**
+     * Number of transactions that carried more than one delivery, and the deliveries in them.
+     */
+    long mNumBatchedTransactions;
+    long mNumBatchedDeliveries;
+
+    /**
+     * Time from enqueueing to dispatching, for parallel broadcasts and for the first receiver
+     * of ordered ones.
+     */
+    final DispatchLatencyHistogram mParallelDispatchLatency = new DispatchLatencyHistogram();
+    final DispatchLatencyHistogram mOrderedDispatchLatency = new DispatchLatencyHistogram();
+
+    /**
+     * Number of times a receiver of a non-ordered broadcast that needed its process started
+     * was put behind a receiver whose process was already running.
+     */
+    long mNumColdReceiversDeferred;
+
+    static final class DispatchLatencyHistogram {
+        private static final long[] BUCKET_LIMITS_MS = { 10, 50, 100, 500, 1000, 5000, 10000 };
+        private final long[] mCounts = new long[BUCKET_LIMITS_MS.length + 1];
+
+        void add(long latencyMs) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && latencyMs >= BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+        }
+
+        void dump(PrintWriter pw, String prefix, String name) {
+            pw.print(prefix); pw.print(name); pw.print(":");
+            for (int i = 0; i < mCounts.length; i++) {
+                pw.print(" ");
+                if (i < BUCKET_LIMITS_MS.length) {
+                    pw.print("<"); pw.print(BUCKET_LIMITS_MS[i]);
+                } else {
+                    pw.print(">="); pw.print(BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1]);
+                }
+                pw.print("ms="); pw.print(mCounts[i]);
+            }
+            pw.println();
+        }
+    }
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -228,6 +290,7 @@ public final class BroadcastQueue {
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
         r.enqueueClockTime = System.currentTimeMillis();
+        r.enqueueTime = SystemClock.uptimeMillis();
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -286,7 +349,7 @@ public final class BroadcastQueue {
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
-        mService.updateOomAdjLocked();
+        mService.updateOomAdjIncrementalLocked(app);
 
         // Tell the application to launch this receiver.
         r.intent.setComponent(r.curComponent);
@@ -484,7 +547,15 @@ public final class BroadcastQueue {
             boolean ordered, boolean sticky, int sendingUser) throws RemoteException {
         // Send the intent to the receiver asynchronously using one-way binder calls.
         if (app != null) {
-            if (app.thread != null) {
+            if (app.thread != null && mBatchingDeliveries && !ordered) {
+                ArrayList<ReceiverInfo> deliveries = mBatchedDeliveries.get(app);
+                if (deliveries == null) {
+                    deliveries = new ArrayList<>();
+                    mBatchedDeliveries.put(app, deliveries);
+                }
+                deliveries.add(new ReceiverInfo(receiver, intent, resultCode, data, extras,
+                        ordered, sticky, sendingUser));
+            } else if (app.thread != null) {
                 // If we have an app thread, do the call through that so it is
                 // correctly ordered with other one-way calls.
                 try {
@@ -514,6 +585,53 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Sends the deliveries collected while mBatchingDeliveries was set, in order, with as few
+     * transactions per process as possible.
+     */
+    private void flushBatchedDeliveriesLocked() {
+        for (int i = 0; i < mBatchedDeliveries.size(); i++) {
+            final ProcessRecord app = mBatchedDeliveries.keyAt(i);
+            final ArrayList<ReceiverInfo> deliveries = mBatchedDeliveries.valueAt(i);
+            for (int start = 0; start < deliveries.size(); start += MAX_BATCHED_DELIVERIES) {
+                final int end = Math.min(deliveries.size(), start + MAX_BATCHED_DELIVERIES);
+                if (end - start > 1 && app.thread != null) {
+                    try {
+                        app.thread.scheduleRegisteredReceiverList(
+                                deliveries.subList(start, end), app.repProcState);
+                        mNumBatchedTransactions++;
+                        mNumBatchedDeliveries += end - start;
+                        continue;
+                    } catch (TransactionTooLargeException e) {
+                        // Nothing was delivered, the extras are too large to go together.
+                    } catch (RemoteException e) {
+                        // Failed to call into the process. It's either dying or wedged.
+                        Slog.w(TAG, "Can't deliver broadcast to " + app.processName
+                                + " (pid " + app.pid + "). Crashing it.");
+                        app.scheduleCrash("can't deliver broadcast");
+                        break;
+                    }
+                }
+                try {
+                    sendDeliveriesLocked(app, deliveries, start, end);
+                } catch (RemoteException e) {
+                    Slog.w(TAG, "Failure sending broadcasts to " + app.processName, e);
+                    break;
+                }
+            }
+        }
+        mBatchedDeliveries.clear();
+    }
+
+    private void sendDeliveriesLocked(ProcessRecord app, ArrayList<ReceiverInfo> deliveries,
+            int start, int end) throws RemoteException {
+        for (int i = start; i < end; i++) {
+            final ReceiverInfo info = deliveries.get(i);
+            performReceiveLocked(app, info.mReceiver, info.mIntent, info.mResultCode,
+                    info.mData, info.mExtras, info.mOrdered, info.mSticky, info.mSendingUser);
+        }
+    }
+
     private void deliverToRegisteredReceiverLocked(BroadcastRecord r,
             BroadcastFilter filter, boolean ordered, int index) {
         boolean skip = false;
@@ -833,10 +951,12 @@ public final class BroadcastQueue {
             }
 
             // First, deliver any non-serialized broadcasts right away.
+            mBatchingDeliveries = mService.mConstants.BATCH_BROADCAST_DELIVERIES;
             while (mParallelBroadcasts.size() > 0) {
                 r = mParallelBroadcasts.remove(0);
                 r.dispatchTime = SystemClock.uptimeMillis();
                 r.dispatchClockTime = System.currentTimeMillis();
+                mParallelDispatchLatency.add(r.dispatchTime - r.enqueueTime);
 
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -861,6 +981,8 @@ public final class BroadcastQueue {
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                         + mQueueName + "] " + r);
             }
+            mBatchingDeliveries = false;
+            flushBatchedDeliveriesLocked();
 
             // Now take care of the next serialized one...
 
@@ -990,6 +1112,9 @@ public final class BroadcastQueue {
 
             // Get the next receiver...
             int recIdx = r.nextReceiver++;
+            if (!r.ordered && mService.mConstants.BATCH_BROADCAST_DELIVERIES) {
+                deferColdReceiverLocked(r, recIdx);
+            }
 
             // Keep track of when this receiver started, and make sure there
             // is a timeout message pending to kill it if need be.
@@ -997,6 +1122,7 @@ public final class BroadcastQueue {
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
+                mOrderedDispatchLatency.add(r.dispatchTime - r.enqueueTime);
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                         createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1377,6 +1503,55 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * A broadcast that was not sent as ordered only goes through the ordered queue to have its
+     * manifest receivers run one at a time, and its receivers may run in any order. If the
+     * receiver at {@code recIdx} needs its process started, swap it with the next receiver of
+     * the same priority whose process is already running, so that running receivers are not
+     * held up behind process starts. Receivers of a lower priority still wait for it.
+     */
+    private void deferColdReceiverLocked(BroadcastRecord r, int recIdx) {
+        final Object cold = r.receivers.get(recIdx);
+        if (isReceiverProcessRunningLocked(cold)) {
+            return;
+        }
+        final int priority = getReceiverPriority(cold);
+        final int numReceivers = r.receivers.size();
+        for (int i = recIdx + 1; i < numReceivers; i++) {
+            final Object receiver = r.receivers.get(i);
+            if (getReceiverPriority(receiver) != priority) {
+                // Receivers are sorted by priority, none of the remaining ones may go first.
+                return;
+            }
+            if (isReceiverProcessRunningLocked(receiver)) {
+                r.receivers.set(i, r.receivers.get(recIdx));
+                r.receivers.set(recIdx, receiver);
+                final int delivery = r.delivery[i];
+                r.delivery[i] = r.delivery[recIdx];
+                r.delivery[recIdx] = delivery;
+                mNumColdReceiversDeferred++;
+                return;
+            }
+        }
+    }
+
+    private static int getReceiverPriority(Object receiver) {
+        if (receiver instanceof BroadcastFilter) {
+            return ((BroadcastFilter) receiver).getPriority();
+        }
+        return ((ResolveInfo) receiver).priority;
+    }
+
+    private boolean isReceiverProcessRunningLocked(Object receiver) {
+        if (receiver instanceof BroadcastFilter) {
+            return true;
+        }
+        final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+        final ProcessRecord app = mService.getProcessRecordLocked(info.processName,
+                info.applicationInfo.uid, false);
+        return app != null && app.thread != null && !app.killed && !app.crashing;
+    }
+
     final void setBroadcastTimeoutLocked(long timeoutTime) {
         if (! mPendingBroadcastTimeoutMessage) {
             Message msg = mHandler.obtainMessage(BROADCAST_TIMEOUT_MSG, this);
@@ -1745,6 +1920,19 @@ public final class BroadcastQueue {
             } while (ringIndex != lastIndex);
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Dispatch latency [" + mQueueName + "]:");
+            mParallelDispatchLatency.dump(pw, "    ", "parallel");
+            mOrderedDispatchLatency.dump(pw, "    ", "ordered");
+            pw.print("    batched transactions="); pw.print(mNumBatchedTransactions);
+            pw.print(" deliveries="); pw.print(mNumBatchedDeliveries);
+            pw.print(" cold receivers deferred="); pw.println(mNumColdReceiversDeferred);
+        }
+
         return needSep;
     }
 }
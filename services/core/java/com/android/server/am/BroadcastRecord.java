@@ -61,6 +61,7 @@ final class BroadcastRecord extends Binder {
     final int[] delivery;   // delivery state of each receiver
     IIntentReceiver resultTo; // who receives final result if non-null
     long enqueueClockTime;  // the clock time the broadcast was enqueued
+    long enqueueTime;       // when the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
@@ -273,6 +274,7 @@ final class BroadcastRecord extends Binder {
         delivery = from.delivery;
         resultTo = from.resultTo;
         enqueueClockTime = from.enqueueClockTime;
+        enqueueTime = from.enqueueTime;
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
         receiverTime = from.receiverTime;
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.ColdStartPhases;
+import android.service.coldstart.ColdStartDumpProto;
+import android.service.coldstart.ColdStartHistogramBucketProto;
+import android.service.coldstart.ColdStartLaunchProto;
+import android.service.coldstart.ColdStartPhaseProto;
+import android.util.proto.ProtoOutputStream;
+
+import java.io.PrintWriter;
+
+/**
+ * Phase breakdown of the cold activity launches traced by {@link ActivityMetricsLogger}: how
+ * long each took from the launch request through the zygote fork, application binding, content
+ * providers, {@link android.app.Application#onCreate}, the first traversal and the first frame
+ * until all windows were drawn. The system side checkpoints are noted by the activity manager,
+ * the application side ones are reported by the process itself through {@link ColdStartPhases}.
+ * All methods must be called with the activity manager lock held.
+ */
+final class ColdStartStats {
+
+    /** Number of most recent launches kept for dumping. */
+    private static final int HISTORY_SIZE = 16;
+
+    static final int CHECKPOINT_LAUNCH = 0;
+    static final int CHECKPOINT_FORK_START = 1;
+    static final int CHECKPOINT_FORK_END = 2;
+    static final int CHECKPOINT_BIND_APPLICATION = 3;
+    /** First of the checkpoints reported by the application, in {@link ColdStartPhases} order. */
+    static final int CHECKPOINT_APP_BASE = 4;
+    static final int CHECKPOINT_WINDOWS_DRAWN =
+            CHECKPOINT_APP_BASE + ColdStartPhases.CHECKPOINT_COUNT;
+    static final int CHECKPOINT_COUNT = CHECKPOINT_WINDOWS_DRAWN + 1;
+
+    private static final String[] PHASE_NAMES = {
+            "pre_fork", "fork", "attach", "bind_application", "install_providers",
+            "application_oncreate", "activity_start", "first_traversal", "first_draw",
+            "windows_drawn", "total" };
+    /** Checkpoints each phase starts at. */
+    private static final int[] PHASE_FROM = {
+            CHECKPOINT_LAUNCH,
+            CHECKPOINT_FORK_START,
+            CHECKPOINT_FORK_END,
+            CHECKPOINT_BIND_APPLICATION,
+            CHECKPOINT_APP_BASE + ColdStartPhases.PROVIDERS_START,
+            CHECKPOINT_APP_BASE + ColdStartPhases.PROVIDERS_END,
+            CHECKPOINT_APP_BASE + ColdStartPhases.APPLICATION_CREATED,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_TRAVERSAL,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_DRAW_START,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_DRAW_END,
+            CHECKPOINT_LAUNCH };
+    /** Checkpoints each phase ends at. */
+    private static final int[] PHASE_TO = {
+            CHECKPOINT_FORK_START,
+            CHECKPOINT_FORK_END,
+            CHECKPOINT_BIND_APPLICATION,
+            CHECKPOINT_APP_BASE + ColdStartPhases.PROVIDERS_START,
+            CHECKPOINT_APP_BASE + ColdStartPhases.PROVIDERS_END,
+            CHECKPOINT_APP_BASE + ColdStartPhases.APPLICATION_CREATED,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_TRAVERSAL,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_DRAW_START,
+            CHECKPOINT_APP_BASE + ColdStartPhases.FIRST_DRAW_END,
+            CHECKPOINT_WINDOWS_DRAWN,
+            CHECKPOINT_WINDOWS_DRAWN };
+
+    /** Lower bounds of the histogram buckets in milliseconds. */
+    private static final int[] BUCKET_MILLIS = {
+            0, 5, 10, 25, 50, 100, 200, 400, 800, 1600, 3200 };
+
+    /** A cold launch being traced, from the fork of its process to its windows being drawn. */
+    static final class Launch {
+        final int id;
+        final String packageName;
+        final String processName;
+        final int pid;
+        /** Uptime millis at which each checkpoint was reached, 0 if not (yet) known. */
+        final long[] checkpoints = new long[CHECKPOINT_COUNT];
+        boolean appReported;
+
+        Launch(int id, String packageName, String processName, int pid) {
+            this.id = id;
+            this.packageName = packageName;
+            this.processName = processName;
+            this.pid = pid;
+        }
+
+        boolean isComplete() {
+            return appReported && checkpoints[CHECKPOINT_WINDOWS_DRAWN] != 0;
+        }
+
+        /**
+         * @return how long the phase took, or -1 if either end of it is unknown
+         */
+        long getPhaseMillis(int phase) {
+            final long from = checkpoints[PHASE_FROM[phase]];
+            final long to = checkpoints[PHASE_TO[phase]];
+            return from != 0 && to >= from ? to - from : -1;
+        }
+    }
+
+    private final long[] mCount = new long[PHASE_NAMES.length];
+    private final long[] mTotalMillis = new long[PHASE_NAMES.length];
+    private final long[] mMaxMillis = new long[PHASE_NAMES.length];
+    private final long[][] mHistogram = new long[PHASE_NAMES.length][BUCKET_MILLIS.length];
+    private long mAbandoned;
+
+    private final Launch[] mHistory = new Launch[HISTORY_SIZE];
+    private int mHistoryNext;
+    private int mHistorySize;
+
+    void noteCompleted(Launch launch) {
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            final long millis = launch.getPhaseMillis(phase);
+            if (millis < 0) {
+                continue;
+            }
+            mCount[phase]++;
+            mTotalMillis[phase] += millis;
+            if (millis > mMaxMillis[phase]) {
+                mMaxMillis[phase] = millis;
+            }
+            int bucket = BUCKET_MILLIS.length - 1;
+            while (bucket > 0 && millis < BUCKET_MILLIS[bucket]) {
+                bucket--;
+            }
+            mHistogram[phase][bucket]++;
+        }
+
+        mHistory[mHistoryNext] = launch;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistorySize < HISTORY_SIZE) {
+            mHistorySize++;
+        }
+    }
+
+    /**
+     * Notes a launch whose trace was dropped before its process reported or its windows drew.
+     */
+    void noteAbandoned() {
+        mAbandoned++;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Cold launch phases (abandoned="); pw.print(mAbandoned);
+        pw.println("):");
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            pw.print(prefix); pw.print("  "); pw.print(PHASE_NAMES[phase]);
+            pw.print(": count="); pw.print(mCount[phase]);
+            if (mCount[phase] == 0) {
+                pw.println();
+                continue;
+            }
+            pw.print(" avg="); pw.print(mTotalMillis[phase] / mCount[phase]);
+            pw.print("ms max="); pw.print(mMaxMillis[phase]); pw.println("ms");
+            pw.print(prefix); pw.print("   ");
+            for (int bucket = 0; bucket < BUCKET_MILLIS.length; bucket++) {
+                if (mHistogram[phase][bucket] == 0) {
+                    continue;
+                }
+                pw.print(" >="); pw.print(BUCKET_MILLIS[bucket]);
+                pw.print("ms:"); pw.print(mHistogram[phase][bucket]);
+            }
+            pw.println();
+        }
+        if (mHistorySize == 0) {
+            return;
+        }
+        pw.print(prefix); pw.println("  Recent launches:");
+        for (int i = 0; i < mHistorySize; i++) {
+            final Launch launch = mHistory[(mHistoryNext - 1 - i + HISTORY_SIZE) % HISTORY_SIZE];
+            pw.print(prefix); pw.print("    #"); pw.print(launch.id);
+            pw.print(" "); pw.print(launch.processName);
+            pw.print(" pid="); pw.println(launch.pid);
+            pw.print(prefix); pw.print("     ");
+            for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                pw.print(" "); pw.print(PHASE_NAMES[phase]); pw.print("=");
+                final long millis = launch.getPhaseMillis(phase);
+                if (millis < 0) {
+                    pw.print("?");
+                } else {
+                    pw.print(millis);
+                }
+            }
+            pw.println();
+        }
+    }
+
+    void dumpProto(ProtoOutputStream proto) {
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            final long phaseToken = proto.start(ColdStartDumpProto.PHASES);
+            proto.write(ColdStartPhaseProto.NAME, PHASE_NAMES[phase]);
+            proto.write(ColdStartPhaseProto.COUNT, mCount[phase]);
+            proto.write(ColdStartPhaseProto.TOTAL_MILLIS, mTotalMillis[phase]);
+            proto.write(ColdStartPhaseProto.MAX_MILLIS, mMaxMillis[phase]);
+            for (int bucket = 0; bucket < BUCKET_MILLIS.length; bucket++) {
+                final long bucketToken = proto.start(ColdStartPhaseProto.HISTOGRAM);
+                proto.write(ColdStartHistogramBucketProto.DURATION_MILLIS, BUCKET_MILLIS[bucket]);
+                proto.write(ColdStartHistogramBucketProto.COUNT, mHistogram[phase][bucket]);
+                proto.end(bucketToken);
+            }
+            proto.end(phaseToken);
+        }
+        for (int i = 0; i < mHistorySize; i++) {
+            final Launch launch = mHistory[(mHistoryNext - 1 - i + HISTORY_SIZE) % HISTORY_SIZE];
+            final long launchToken = proto.start(ColdStartDumpProto.RECENT_LAUNCHES);
+            proto.write(ColdStartLaunchProto.LAUNCH_ID, launch.id);
+            proto.write(ColdStartLaunchProto.PACKAGE_NAME, launch.packageName);
+            proto.write(ColdStartLaunchProto.PROCESS_NAME, launch.processName);
+            proto.write(ColdStartLaunchProto.PID, launch.pid);
+            for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                proto.write(ColdStartLaunchProto.PHASE_MILLIS, launch.getPhaseMillis(phase));
+            }
+            proto.end(launchToken);
+        }
+        proto.write(ColdStartDumpProto.ABANDONED_COUNT, mAbandoned);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.SystemClock;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Timings of the oom adj passes done by {@link ActivityManagerService}, both full passes over
+ * all processes and incremental ones over a changed process and the processes it is bound to.
+ * All methods must be called with the activity manager lock held.
+ */
+final class OomAdjStats {
+
+    /** Number of most recent passes kept for dumping. */
+    private static final int HISTORY_SIZE = 32;
+
+    static final int TYPE_FULL = 0;
+    static final int TYPE_INCREMENTAL = 1;
+    /** An incremental pass that found it had to be followed by a full one. */
+    static final int TYPE_FALLBACK = 2;
+
+    private static final String[] TYPE_NAMES = { "full", "incremental", "fallback" };
+
+    private final long[] mCount = new long[TYPE_NAMES.length];
+    private final long[] mTotalNanos = new long[TYPE_NAMES.length];
+    private final long[] mMaxNanos = new long[TYPE_NAMES.length];
+    private final long[] mTotalProcs = new long[TYPE_NAMES.length];
+
+    private final int[] mHistoryType = new int[HISTORY_SIZE];
+    private final long[] mHistoryNanos = new long[HISTORY_SIZE];
+    private final int[] mHistoryProcs = new int[HISTORY_SIZE];
+    private final long[] mHistoryUptime = new long[HISTORY_SIZE];
+    private int mHistoryNext;
+    private int mHistorySize;
+
+    /**
+     * @param procs number of processes whose adj was computed by the pass
+     */
+    void notePass(int type, long durationNanos, int procs) {
+        mCount[type]++;
+        mTotalNanos[type] += durationNanos;
+        mTotalProcs[type] += procs;
+        if (durationNanos > mMaxNanos[type]) {
+            mMaxNanos[type] = durationNanos;
+        }
+
+        mHistoryType[mHistoryNext] = type;
+        mHistoryNanos[mHistoryNext] = durationNanos;
+        mHistoryProcs[mHistoryNext] = procs;
+        mHistoryUptime[mHistoryNext] = SystemClock.uptimeMillis();
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistorySize < HISTORY_SIZE) {
+            mHistorySize++;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Oom adj passes:");
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            pw.print(prefix); pw.print("  "); pw.print(TYPE_NAMES[type]);
+            pw.print(": count="); pw.print(mCount[type]);
+            if (mCount[type] > 0) {
+                pw.print(" avg="); pw.print(mTotalNanos[type] / mCount[type] / 1000);
+                pw.print("us max="); pw.print(mMaxNanos[type] / 1000);
+                pw.print("us avgProcs="); pw.print(mTotalProcs[type] / mCount[type]);
+            }
+            pw.println();
+        }
+        if (mHistorySize == 0) {
+            return;
+        }
+        pw.print(prefix); pw.println("  Recent passes:");
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < mHistorySize; i++) {
+            final int index = (mHistoryNext - 1 - i + HISTORY_SIZE) % HISTORY_SIZE;
+            pw.print(prefix); pw.print("    ");
+            TimeUtils.formatDuration(mHistoryUptime[index], now, pw);
+            pw.print(" "); pw.print(TYPE_NAMES[mHistoryType[index]]);
+            pw.print(" "); pw.print(mHistoryNanos[index] / 1000);
+            pw.print("us procs="); pw.println(mHistoryProcs[index]);
+        }
+    }
+}
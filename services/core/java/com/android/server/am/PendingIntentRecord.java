@@ -35,10 +35,10 @@ import android.util.ArrayMap;
 import android.util.Slog;
 import android.util.TimeUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.IResultReceiver;
 
 import java.io.PrintWriter;
-import java.lang.ref.WeakReference;
 import java.util.Objects;
 
 final class PendingIntentRecord extends IIntentSender.Stub {
@@ -47,7 +47,7 @@ final class PendingIntentRecord extends IIntentSender.Stub {
     final ActivityManagerService owner;
     final Key key;
     final int uid;
-    final WeakReference<PendingIntentRecord> ref;
+    final PendingIntentRegistry.Ref ref;
     boolean sent = false;
     boolean canceled = false;
     private ArrayMap<IBinder, Long> whitelistDuration;
@@ -187,10 +187,16 @@ final class PendingIntentRecord extends IIntentSender.Stub {
     }
 
     PendingIntentRecord(ActivityManagerService _owner, Key _k, int _u) {
+        this(_owner, _owner.mPendingIntentRegistry, _k, _u);
+    }
+
+    @VisibleForTesting
+    PendingIntentRecord(ActivityManagerService _owner, PendingIntentRegistry _registry, Key _k,
+            int _u) {
         owner = _owner;
         key = _k;
         uid = _u;
-        ref = new WeakReference<PendingIntentRecord>(this);
+        ref = _registry.newRef(this);
     }
 
     void setWhitelistDurationLocked(IBinder whitelistToken, long duration) {
@@ -395,28 +401,6 @@ final class PendingIntentRecord extends IIntentSender.Stub {
         return ActivityManager.START_CANCELED;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            if (!canceled) {
-                owner.mHandler.sendMessage(owner.mHandler.obtainMessage(
-                        ActivityManagerService.FINALIZE_PENDING_INTENT_MSG, this));
-            }
-        } finally {
-            super.finalize();
-        }
-    }
-
-    public void completeFinalize() {
-        synchronized(owner) {
-            WeakReference<PendingIntentRecord> current =
-                    owner.mIntentSenderRecords.get(key);
-            if (current == ref) {
-                owner.mIntentSenderRecords.remove(key);
-            }
-        }
-    }
-
     void dump(PrintWriter pw, String prefix) {
         pw.print(prefix); pw.print("uid="); pw.print(uid);
                 pw.print(" packageName="); pw.print(key.packageName);
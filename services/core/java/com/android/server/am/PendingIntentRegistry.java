@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The currently active {@link PendingIntentRecord}s, indexed by their key.
+ * <p>
+ * Records are split into shards by user and creating package, each with its own lock, so that
+ * lookups for one app don't wait on another and scans for a package only look at its own
+ * records. A shard is dropped once its last record is removed, so that shards of packages and
+ * users that are gone don't pile up. Records are held weakly; once one is collected its
+ * reference is enqueued and the entry is dropped on the next registry operation, rather than by
+ * a finalizer bouncing through the activity manager handler.
+ * </p>
+ * None of the methods need the activity manager lock. Canceling records and the bookkeeping on
+ * activities is left to the callers, which do hold it.
+ */
+final class PendingIntentRegistry {
+
+    /** Weak reference to a record that remembers its key, to find it again once cleared. */
+    static final class Ref extends WeakReference<PendingIntentRecord> {
+        final PendingIntentRecord.Key key;
+
+        private Ref(PendingIntentRecord rec, ReferenceQueue<PendingIntentRecord> queue) {
+            super(rec, queue);
+            key = rec.key;
+        }
+    }
+
+    private static final class Shard {
+        final String packageName;
+        final int userId;
+        @GuardedBy("this")
+        final HashMap<PendingIntentRecord.Key, Ref> records = new HashMap<>();
+        /** Set once the shard is no longer in mShards; records must not be added anymore. */
+        @GuardedBy("this")
+        boolean removed;
+
+        Shard(String packageName, int userId) {
+            this.packageName = packageName;
+            this.userId = userId;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    /** Shards keyed by user id, then creating package. */
+    @GuardedBy("mLock")
+    private final SparseArray<ArrayMap<String, Shard>> mShards = new SparseArray<>();
+
+    private final ReferenceQueue<PendingIntentRecord> mQueue = new ReferenceQueue<>();
+
+    Ref newRef(PendingIntentRecord rec) {
+        return new Ref(rec, mQueue);
+    }
+
+    /**
+     * @return the live record for the key, or {@code null}
+     */
+    PendingIntentRecord get(PendingIntentRecord.Key key) {
+        expungeStaleEntries();
+        final Shard shard = getShard(key, false);
+        if (shard == null) {
+            return null;
+        }
+        final Ref ref;
+        synchronized (shard) {
+            ref = shard.records.get(key);
+        }
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Registers the record, replacing any other one with an equal key.
+     */
+    void put(PendingIntentRecord rec) {
+        expungeStaleEntries();
+        while (true) {
+            final Shard shard = getShard(rec.key, true);
+            synchronized (shard) {
+                // The shard may have been pruned since we looked it up, then retry with a new one.
+                if (!shard.removed) {
+                    shard.records.put(rec.key, rec.ref);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the record if it is still the one registered for its key.
+     */
+    void remove(PendingIntentRecord rec) {
+        removeRef(rec.ref);
+    }
+
+    /**
+     * Removes the live records created by the given package whose uid has the given app id,
+     * for the given user or for all users if it is {@link UserHandle#USER_ALL}. Without a
+     * package, removes all records keyed to exactly the given user, as when stopping it;
+     * {@link UserHandle#USER_ALL} then only matches records created for all users.
+     *
+     * @param doit whether to actually remove the records; if not, stops at the first match
+     * @return the matched records
+     */
+    ArrayList<PendingIntentRecord> removeRecords(String packageName, int appId, int userId,
+            boolean doit) {
+        expungeStaleEntries();
+        final ArrayList<Shard> shards = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mShards.size(); i++) {
+                if ((packageName == null || userId != UserHandle.USER_ALL)
+                        && mShards.keyAt(i) != userId) {
+                    continue;
+                }
+                final ArrayMap<String, Shard> byPackage = mShards.valueAt(i);
+                if (packageName == null) {
+                    shards.addAll(byPackage.values());
+                } else {
+                    final Shard shard = byPackage.get(packageName);
+                    if (shard != null) {
+                        shards.add(shard);
+                    }
+                }
+            }
+        }
+
+        final ArrayList<PendingIntentRecord> matched = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            final Shard shard = shards.get(i);
+            synchronized (shard) {
+                final Iterator<Ref> it = shard.records.values().iterator();
+                while (it.hasNext()) {
+                    final PendingIntentRecord rec = it.next().get();
+                    if (rec == null) {
+                        it.remove();
+                        continue;
+                    }
+                    if (packageName != null && UserHandle.getAppId(rec.uid) != appId) {
+                        continue;
+                    }
+                    matched.add(rec);
+                    if (!doit) {
+                        return matched;
+                    }
+                    it.remove();
+                }
+            }
+        }
+        synchronized (mLock) {
+            for (int i = 0; i < shards.size(); i++) {
+                pruneShardLocked(shards.get(i));
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @return whether anything was printed
+     */
+    boolean dump(PrintWriter pw, boolean dumpAll, String dumpPackage) {
+        expungeStaleEntries();
+        final ArrayMap<String, ArrayList<PendingIntentRecord>> byPackage = new ArrayMap<>();
+        final ArrayList<Ref> weakRefs = new ArrayList<>();
+        int shardCount = 0;
+        synchronized (mLock) {
+            for (int i = 0; i < mShards.size(); i++) {
+                final ArrayMap<String, Shard> shards = mShards.valueAt(i);
+                shardCount += shards.size();
+                for (int j = 0; j < shards.size(); j++) {
+                    final Shard shard = shards.valueAt(j);
+                    if (dumpPackage != null && !dumpPackage.equals(shard.packageName)) {
+                        continue;
+                    }
+                    synchronized (shard) {
+                        for (Ref ref : shard.records.values()) {
+                            final PendingIntentRecord rec = ref.get();
+                            if (rec == null) {
+                                weakRefs.add(ref);
+                                continue;
+                            }
+                            ArrayList<PendingIntentRecord> list = byPackage.get(shard.packageName);
+                            if (list == null) {
+                                list = new ArrayList<>();
+                                byPackage.put(shard.packageName, list);
+                            }
+                            list.add(rec);
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean printed = false;
+        for (int i = 0; i < byPackage.size(); i++) {
+            ArrayList<PendingIntentRecord> intents = byPackage.valueAt(i);
+            printed = true;
+            pw.print("  * "); pw.print(byPackage.keyAt(i));
+            pw.print(": "); pw.print(intents.size()); pw.println(" items");
+            for (int j = 0; j < intents.size(); j++) {
+                pw.print("    #"); pw.print(j); pw.print(": "); pw.println(intents.get(j));
+                if (dumpAll) {
+                    intents.get(j).dump(pw, "      ");
+                }
+            }
+        }
+        if (weakRefs.size() > 0) {
+            printed = true;
+            pw.println("  * WEAK REFS:");
+            for (int i = 0; i < weakRefs.size(); i++) {
+                pw.print("    #"); pw.print(i); pw.print(": "); pw.println(weakRefs.get(i));
+            }
+        }
+        if (printed && dumpPackage == null) {
+            pw.print("  Shards: "); pw.println(shardCount);
+        }
+        return printed;
+    }
+
+    @VisibleForTesting
+    int getShardCount() {
+        synchronized (mLock) {
+            int count = 0;
+            for (int i = 0; i < mShards.size(); i++) {
+                count += mShards.valueAt(i).size();
+            }
+            return count;
+        }
+    }
+
+    private Shard getShard(PendingIntentRecord.Key key, boolean create) {
+        synchronized (mLock) {
+            ArrayMap<String, Shard> byPackage = mShards.get(key.userId);
+            if (byPackage == null) {
+                if (!create) {
+                    return null;
+                }
+                byPackage = new ArrayMap<>();
+                mShards.put(key.userId, byPackage);
+            }
+            Shard shard = byPackage.get(key.packageName);
+            if (shard == null && create) {
+                shard = new Shard(key.packageName, key.userId);
+                byPackage.put(key.packageName, shard);
+            }
+            return shard;
+        }
+    }
+
+    private void removeRef(Ref ref) {
+        final Shard shard = getShard(ref.key, false);
+        if (shard == null) {
+            return;
+        }
+        synchronized (shard) {
+            if (shard.records.get(ref.key) != ref) {
+                return;
+            }
+            shard.records.remove(ref.key);
+            if (!shard.records.isEmpty()) {
+                return;
+            }
+        }
+        synchronized (mLock) {
+            pruneShardLocked(shard);
+        }
+    }
+
+    /**
+     * Drops the shard if it has no records left. The shard lock is taken inside mLock, so the
+     * shard can't get a record while being dropped.
+     */
+    @GuardedBy("mLock")
+    private void pruneShardLocked(Shard shard) {
+        synchronized (shard) {
+            if (shard.removed || !shard.records.isEmpty()) {
+                return;
+            }
+            shard.removed = true;
+        }
+        final ArrayMap<String, Shard> byPackage = mShards.get(shard.userId);
+        if (byPackage == null || byPackage.get(shard.packageName) != shard) {
+            return;
+        }
+        byPackage.remove(shard.packageName);
+        if (byPackage.isEmpty()) {
+            mShards.remove(shard.userId);
+        }
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends PendingIntentRecord> ref;
+        while ((ref = mQueue.poll()) != null) {
+            removeRef((Ref) ref);
+        }
+    }
+}
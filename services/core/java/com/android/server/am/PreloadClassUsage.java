@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
+import com.android.internal.os.ClassPreloadRecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Counts how many apps loaded each boot classpath class the zygote didn't preload, from the
+ * reports of {@link ClassPreloadRecorder}, and keeps the resulting ranking in
+ * {@link ClassPreloadRecorder#ADAPTIVE_LIST_FILE} for the zygote to preload from on its next
+ * start.
+ * <p>
+ * The app ids of the apps that loaded each class are kept across boots in a separate usage
+ * file, so that an app is counted once however often, and for however many users, it reports.
+ * A new report from an app replaces what it reported before, and apps that haven't reported
+ * for {@link #EXPIRY_MILLIS} are forgotten, so classes apps stopped using drop out of the
+ * ranking and make room for others.
+ * </p>
+ * Reports arrive on binder threads and don't touch any activity manager state, so this class
+ * has its own lock.
+ */
+final class PreloadClassUsage {
+    private static final String TAG = "PreloadClassUsage";
+
+    /** Classes beyond the first ones of a report are ignored. */
+    private static final int MAX_CLASSES_PER_REPORT = 4096;
+    /** Classes not yet counted are ignored once this many are. */
+    @VisibleForTesting
+    static final int MAX_TRACKED_CLASSES = 8192;
+    private static final int MAX_CLASS_NAME_LENGTH = 256;
+
+    /** How long the report of an app counts without a newer one. */
+    @VisibleForTesting
+    static final long EXPIRY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /** How long reports are batched up before the files are written. */
+    private static final long WRITE_DELAY_MILLIS = 60 * 1000;
+
+    private final AtomicFile mRankingFile;
+    private final AtomicFile mUsageFile;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** App ids of the apps that loaded each class. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, SparseBooleanArray> mUsers = new ArrayMap<>();
+
+    /** When each app that is counted last reported, in wall clock time, by app id. */
+    @GuardedBy("mLock")
+    private final SparseLongArray mLastReportTimes = new SparseLongArray();
+
+    /** App ids of the apps that reported since boot. */
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mReportedAppIds = new SparseBooleanArray();
+
+    @GuardedBy("mLock")
+    private boolean mWritePending;
+    @GuardedBy("mLock")
+    private long mReports;
+    @GuardedBy("mLock")
+    private long mIgnoredReports;
+
+    private final Runnable mWriteRunnable = this::write;
+
+    PreloadClassUsage(File rankingFile, File usageFile) {
+        mRankingFile = new AtomicFile(rankingFile);
+        mUsageFile = new AtomicFile(usageFile);
+        mHandler = BackgroundThread.getHandler();
+        synchronized (mLock) {
+            readUsageLocked();
+        }
+    }
+
+    /**
+     * Counts the classes an app loaded on top of the zygote's, at most once per app per boot
+     * whichever user it runs as.
+     */
+    void noteReport(int uid, String[] classNames) {
+        noteReport(uid, classNames, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    void noteReport(int uid, String[] classNames, long nowMillis) {
+        final int appId = UserHandle.getAppId(uid);
+        synchronized (mLock) {
+            if (mReportedAppIds.get(appId)) {
+                mIgnoredReports++;
+                return;
+            }
+            mReportedAppIds.put(appId, true);
+            mReports++;
+
+            // Make room first, and what the app loaded before doesn't count anymore.
+            expireLocked(nowMillis);
+            removeAppLocked(appId);
+            mLastReportTimes.put(appId, nowMillis);
+            final int count = Math.min(classNames.length, MAX_CLASSES_PER_REPORT);
+            for (int i = 0; i < count; i++) {
+                final String name = classNames[i];
+                if (!isValidClassName(name)) {
+                    continue;
+                }
+                SparseBooleanArray users = mUsers.get(name);
+                if (users == null) {
+                    if (mUsers.size() >= MAX_TRACKED_CLASSES) {
+                        continue;
+                    }
+                    users = new SparseBooleanArray();
+                    mUsers.put(name, users);
+                }
+                users.put(appId, true);
+            }
+            if (!mWritePending) {
+                mWritePending = true;
+                mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * @return the tracked classes, used by most apps first
+     */
+    @VisibleForTesting
+    ArrayList<String> getRanking() {
+        synchronized (mLock) {
+            return getRankingLocked();
+        }
+    }
+
+    /**
+     * @return the number of apps counted as having loaded the class
+     */
+    @VisibleForTesting
+    int getAppCount(String className) {
+        synchronized (mLock) {
+            final SparseBooleanArray users = mUsers.get(className);
+            return users != null ? users.size() : 0;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("recording="); pw.print(ClassPreloadRecorder.isRecording());
+            pw.print(" reports="); pw.print(mReports);
+            pw.print(" ignored="); pw.print(mIgnoredReports);
+            pw.print(" apps="); pw.print(mLastReportTimes.size());
+            pw.print(" tracked="); pw.println(mUsers.size());
+            final ArrayList<String> ranking = getRankingLocked();
+            final int count = Math.min(ranking.size(), 20);
+            if (count > 0) {
+                pw.print(prefix); pw.println("Most used:");
+            }
+            for (int i = 0; i < count; i++) {
+                final String name = ranking.get(i);
+                pw.print(prefix); pw.print("  "); pw.print(mUsers.get(name).size());
+                pw.print(" "); pw.println(name);
+            }
+        }
+    }
+
+    private static boolean isValidClassName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_CLASS_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (c <= ' ' || c == '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void removeAppLocked(int appId) {
+        mLastReportTimes.delete(appId);
+        for (int i = mUsers.size() - 1; i >= 0; i--) {
+            final SparseBooleanArray users = mUsers.valueAt(i);
+            users.delete(appId);
+            if (users.size() == 0) {
+                mUsers.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Forgets the apps that haven't reported for {@link #EXPIRY_MILLIS}, and the classes no app
+     * counted uses anymore.
+     */
+    @GuardedBy("mLock")
+    private void expireLocked(long nowMillis) {
+        for (int i = mLastReportTimes.size() - 1; i >= 0; i--) {
+            if (nowMillis - mLastReportTimes.valueAt(i) > EXPIRY_MILLIS) {
+                removeAppLocked(mLastReportTimes.keyAt(i));
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private ArrayList<String> getRankingLocked() {
+        final ArrayList<String> ranking = new ArrayList<>(mUsers.keySet());
+        ranking.sort((a, b) -> Integer.compare(mUsers.get(b).size(), mUsers.get(a).size()));
+        return ranking;
+    }
+
+    /**
+     * Reads the usage file, made of "app <app id> <last report time>" lines for the apps counted
+     * and "class <name> <app id>..." lines for the classes they loaded. Files written before
+     * apps were keyed by app id have "uid" lines and uids instead, which are folded into the
+     * app ids they belong to.
+     */
+    @GuardedBy("mLock")
+    private void readUsageLocked() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(mUsageFile.openRead(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split(" ");
+                try {
+                    if (("app".equals(fields[0]) || "uid".equals(fields[0]))
+                            && fields.length == 3) {
+                        final int appId = UserHandle.getAppId(Integer.parseInt(fields[1]));
+                        final long time = Long.parseLong(fields[2]);
+                        mLastReportTimes.put(appId,
+                                Math.max(time, mLastReportTimes.get(appId, time)));
+                    } else if ("class".equals(fields[0]) && fields.length > 2
+                            && isValidClassName(fields[1])
+                            && mUsers.size() < MAX_TRACKED_CLASSES) {
+                        final SparseBooleanArray users = new SparseBooleanArray(fields.length - 2);
+                        for (int i = 2; i < fields.length; i++) {
+                            users.put(UserHandle.getAppId(Integer.parseInt(fields[i])), true);
+                        }
+                        mUsers.put(fields[1], users);
+                    } else {
+                        Slog.w(TAG, "Bad line in " + mUsageFile.getBaseFile() + ": " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    Slog.w(TAG, "Bad line in " + mUsageFile.getBaseFile() + ": " + line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet.
+        } catch (IOException e) {
+            Slog.e(TAG, "Error reading " + mUsageFile.getBaseFile(), e);
+        }
+        // Drop the uses of apps without a report time, which the file can't explain.
+        for (int i = mUsers.size() - 1; i >= 0; i--) {
+            final SparseBooleanArray users = mUsers.valueAt(i);
+            for (int j = users.size() - 1; j >= 0; j--) {
+                if (mLastReportTimes.indexOfKey(users.keyAt(j)) < 0) {
+                    users.removeAt(j);
+                }
+            }
+            if (users.size() == 0) {
+                mUsers.removeAt(i);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void write() {
+        final StringBuilder usage = new StringBuilder();
+        final StringBuilder ranking = new StringBuilder();
+        synchronized (mLock) {
+            mWritePending = false;
+            usage.append("# Apps counted with their last report time, then the classes they\n")
+                    .append("# loaded with the app ids of the apps that did.\n");
+            for (int i = 0; i < mLastReportTimes.size(); i++) {
+                usage.append("app ").append(mLastReportTimes.keyAt(i)).append(' ')
+                        .append(mLastReportTimes.valueAt(i)).append('\n');
+            }
+            ranking.append("# Boot classpath classes apps loaded beyond the zygote's,\n")
+                    .append("# most used first, with the number of apps that loaded them.\n");
+            for (String name : getRankingLocked()) {
+                final SparseBooleanArray users = mUsers.get(name);
+                usage.append("class ").append(name);
+                for (int i = 0; i < users.size(); i++) {
+                    usage.append(' ').append(users.keyAt(i));
+                }
+                usage.append('\n');
+                ranking.append(name).append(' ').append(users.size()).append('\n');
+            }
+        }
+        writeFile(mUsageFile, usage);
+        writeFile(mRankingFile, ranking);
+    }
+
+    private static void writeFile(AtomicFile file, StringBuilder contents) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(contents.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing " + file.getBaseFile(), e);
+            file.failWrite(fos);
+        }
+    }
+}
@@ -76,7 +76,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
     final ReentrantLock mWriteLock = new ReentrantLock();
     final Object mPendingWriteLock = new Object();
     AtomicFile mPendingWriteFile;
-    Parcel mPendingWrite;
+    ProcessStats.WriteSnapshot mPendingWrite;
     boolean mPendingWriteCommitted;
     long mLastWriteTime;
 
@@ -218,13 +218,17 @@ public final class ProcessStatsService extends IProcessStats.Stub {
         synchronized (mPendingWriteLock) {
             long now = SystemClock.uptimeMillis();
             if (mPendingWrite == null || !mPendingWriteCommitted) {
-                mPendingWrite = Parcel.obtain();
+                if (mPendingWrite != null) {
+                    mPendingWrite.recycle();
+                }
                 mProcessStats.mTimePeriodEndRealtime = SystemClock.elapsedRealtime();
                 mProcessStats.mTimePeriodEndUptime = now;
                 if (commit) {
                     mProcessStats.mFlags |= ProcessStats.FLAG_COMPLETE;
                 }
-                mProcessStats.writeToParcel(mPendingWrite, 0);
+                // Only snapshot the stats here, the bulk of the parceling happens in
+                // performWriteState() without the activity manager lock.
+                mPendingWrite = mProcessStats.snapshotForWrite(now);
                 mPendingWriteFile = new AtomicFile(mFile.getBaseFile());
                 mPendingWriteCommitted = commit;
             }
@@ -256,13 +260,13 @@ public final class ProcessStatsService extends IProcessStats.Stub {
 
     void performWriteState() {
         if (DEBUG) Slog.d(TAG, "Performing write to " + mFile.getBaseFile());
-        Parcel data;
+        ProcessStats.WriteSnapshot snapshot;
         AtomicFile file;
         synchronized (mPendingWriteLock) {
-            data = mPendingWrite;
+            snapshot = mPendingWrite;
             file = mPendingWriteFile;
             mPendingWriteCommitted = false;
-            if (data == null) {
+            if (snapshot == null) {
                 return;
             }
             mPendingWrite = null;
@@ -270,8 +274,10 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             mWriteLock.lock();
         }
 
+        final Parcel data = Parcel.obtain();
         FileOutputStream stream = null;
         try {
+            snapshot.writeToParcel(data);
             stream = file.startWrite();
             stream.write(data.marshall());
             stream.flush();
@@ -282,6 +288,7 @@ public final class ProcessStatsService extends IProcessStats.Stub {
             file.failWrite(stream);
         } finally {
             data.recycle();
+            snapshot.recycle();
             trimHistoricStatesWriteLocked();
             mWriteLock.unlock();
         }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Caches the receivers a broadcast resolves to, both the dynamically registered ones from the
+ * activity manager's receiver resolver and the manifest ones from the package manager, so that
+ * the same system broadcasts sent over and over don't redo the matching each time.
+ * <p>
+ * Only intents whose resolution depends on nothing but their action, type, categories and flags
+ * are cached: no component, package, selector or data. Registered receiver results are dropped
+ * per action as filters come and go; manifest receiver results are dropped when the package
+ * manager reports a different receiver state generation.
+ * </p>
+ * All methods must be called with the activity manager lock held. Lists handed out are copies
+ * that callers are free to modify.
+ */
+final class ReceiverResolutionCache {
+
+    /** Beyond this many entries a table is simply cleared before adding another one. */
+    private static final int MAX_ENTRIES = 128;
+
+    private static final int TYPE_REGISTERED = 0;
+    private static final int TYPE_MANIFEST = 1;
+    private static final String[] TYPE_NAMES = { "registered", "manifest" };
+
+    private final ArrayMap<Key, ArrayList<BroadcastFilter>> mRegistered = new ArrayMap<>();
+    private final ArrayMap<Key, ManifestEntry> mManifest = new ArrayMap<>();
+
+    private final long[] mHits = new long[TYPE_NAMES.length];
+    private final long[] mMisses = new long[TYPE_NAMES.length];
+    private final long[] mHitNanos = new long[TYPE_NAMES.length];
+    private final long[] mMissNanos = new long[TYPE_NAMES.length];
+    private final long[] mInvalidations = new long[TYPE_NAMES.length];
+
+    private static final class Key {
+        final String action;
+        final String resolvedType;
+        final Set<String> categories;
+        final int flags;
+        final int userId;
+        private final int mHashCode;
+
+        Key(Intent intent, String resolvedType, int userId) {
+            this.action = intent.getAction();
+            this.resolvedType = resolvedType;
+            final Set<String> categories = intent.getCategories();
+            this.categories = categories != null ? new ArraySet<>(categories) : null;
+            this.flags = intent.getFlags();
+            this.userId = userId;
+            int hash = Objects.hashCode(action);
+            hash = 31 * hash + Objects.hashCode(resolvedType);
+            hash = 31 * hash + Objects.hashCode(this.categories);
+            hash = 31 * hash + flags;
+            mHashCode = 31 * hash + userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return flags == other.flags
+                    && userId == other.userId
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class ManifestEntry {
+        final ArrayList<ResolveInfo> receivers;
+        final int generation;
+
+        ManifestEntry(ArrayList<ResolveInfo> receivers, int generation) {
+            this.receivers = receivers;
+            this.generation = generation;
+        }
+    }
+
+    static boolean isCacheable(Intent intent) {
+        return intent.getComponent() == null && intent.getPackage() == null
+                && intent.getSelector() == null && intent.getData() == null;
+    }
+
+    /**
+     * @return a copy of the cached registered receivers for the intent, or {@code null} if
+     *         nothing is cached
+     */
+    List<BroadcastFilter> getRegistered(Intent intent, String resolvedType, int userId) {
+        final ArrayList<BroadcastFilter> cached = mRegistered.get(
+                new Key(intent, resolvedType, userId));
+        return cached != null ? new ArrayList<>(cached) : null;
+    }
+
+    void putRegistered(Intent intent, String resolvedType, int userId,
+            List<BroadcastFilter> receivers) {
+        if (mRegistered.size() >= MAX_ENTRIES) {
+            mRegistered.clear();
+        }
+        mRegistered.put(new Key(intent, resolvedType, userId), receivers != null
+                ? new ArrayList<>(receivers) : new ArrayList<>());
+    }
+
+    /**
+     * Drops the cached registered receivers that the given filter could be part of, i.e. those
+     * for intents with one of its actions and those for intents without an action, which match
+     * any filter.
+     */
+    void onFilterChanged(BroadcastFilter filter) {
+        for (int i = mRegistered.size() - 1; i >= 0; i--) {
+            final String action = mRegistered.keyAt(i).action;
+            if (action == null || filter.hasAction(action)) {
+                mRegistered.removeAt(i);
+                mInvalidations[TYPE_REGISTERED]++;
+            }
+        }
+    }
+
+    /**
+     * @param generation the package manager's current receiver state generation
+     * @return the cached manifest receivers as new {@link ResolveInfo} copies, an empty list if
+     *         there were none, or {@code null} if nothing usable is cached
+     */
+    List<ResolveInfo> getManifest(Intent intent, String resolvedType, int userId,
+            int generation) {
+        final Key key = new Key(intent, resolvedType, userId);
+        final ManifestEntry entry = mManifest.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation) {
+            // Simpler to drop everything than to sort out which other entries are stale too.
+            mManifest.clear();
+            mInvalidations[TYPE_MANIFEST]++;
+            return null;
+        }
+        final int N = entry.receivers.size();
+        final ArrayList<ResolveInfo> receivers = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            // Broadcast dispatch may replace the activity info of these, don't share them.
+            receivers.add(new ResolveInfo(entry.receivers.get(i)));
+        }
+        return receivers;
+    }
+
+    void putManifest(Intent intent, String resolvedType, int userId, int generation,
+            List<ResolveInfo> receivers) {
+        if (mManifest.size() >= MAX_ENTRIES) {
+            mManifest.clear();
+        }
+        final int N = receivers != null ? receivers.size() : 0;
+        final ArrayList<ResolveInfo> copy = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            copy.add(new ResolveInfo(receivers.get(i)));
+        }
+        mManifest.put(new Key(intent, resolvedType, userId), new ManifestEntry(copy, generation));
+    }
+
+    void noteRegisteredResolution(boolean hit, long durationNanos) {
+        noteResolution(TYPE_REGISTERED, hit, durationNanos);
+    }
+
+    void noteManifestResolution(boolean hit, long durationNanos) {
+        noteResolution(TYPE_MANIFEST, hit, durationNanos);
+    }
+
+    private void noteResolution(int type, boolean hit, long durationNanos) {
+        if (hit) {
+            mHits[type]++;
+            mHitNanos[type] += durationNanos;
+        } else {
+            mMisses[type]++;
+            mMissNanos[type] += durationNanos;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Receiver resolution cache:");
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            final long lookups = mHits[type] + mMisses[type];
+            pw.print(prefix); pw.print("  "); pw.print(TYPE_NAMES[type]);
+            pw.print(": entries=");
+            pw.print(type == TYPE_REGISTERED ? mRegistered.size() : mManifest.size());
+            pw.print(" hits="); pw.print(mHits[type]);
+            pw.print(" misses="); pw.print(mMisses[type]);
+            if (lookups > 0) {
+                pw.print(" hitRate="); pw.print(mHits[type] * 100 / lookups); pw.print("%");
+            }
+            pw.print(" invalidations="); pw.println(mInvalidations[type]);
+            pw.print(prefix); pw.print("    avgHit=");
+            pw.print(mHits[type] > 0 ? mHitNanos[type] / mHits[type] / 1000 : 0);
+            pw.print("us avgMiss=");
+            pw.print(mMisses[type] > 0 ? mMissNanos[type] / mMisses[type] / 1000 : 0);
+            pw.println("us");
+        }
+    }
+}
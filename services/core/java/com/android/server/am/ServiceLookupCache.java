@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * Caches what the package manager resolved a service intent to, so that apps binding to and
+ * starting the same services over and over don't redo that work each time.
+ * <p>
+ * Resolutions are keyed by the intent's filter, resolved type, flags, user and calling uid, and
+ * dropped when the package manager reports a different component state generation. Permission
+ * checks are not cached: grants and revocations don't all change that generation, and a stale
+ * grant would let a caller in.
+ * </p>
+ * All methods must be called with the activity manager lock held.
+ */
+final class ServiceLookupCache {
+
+    /** Beyond this many entries the table is simply cleared before adding another one. */
+    private static final int MAX_ENTRIES = 128;
+
+    private final ArrayMap<Key, Entry> mResolutions = new ArrayMap<>();
+
+    private long mHits;
+    private long mMisses;
+    private long mHitNanos;
+    private long mMissNanos;
+    private long mInvalidations;
+
+    private static final class Key {
+        final Intent.FilterComparison filter;
+        final String resolvedType;
+        final int flags;
+        final int userId;
+        final int callingUid;
+        private final int mHashCode;
+
+        Key(Intent intent, String resolvedType, int userId, int callingUid) {
+            // The filter doesn't cover the flags, which do affect resolution.
+            this.filter = new Intent.FilterComparison(intent.cloneFilter());
+            this.resolvedType = resolvedType;
+            this.flags = intent.getFlags();
+            this.userId = userId;
+            this.callingUid = callingUid;
+            int hash = filter.hashCode();
+            hash = 31 * hash + Objects.hashCode(resolvedType);
+            hash = 31 * hash + flags;
+            hash = 31 * hash + userId;
+            mHashCode = 31 * hash + callingUid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return flags == other.flags
+                    && userId == other.userId
+                    && callingUid == other.callingUid
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class Entry {
+        final ResolveInfo resolveInfo;
+        final int generation;
+
+        Entry(ResolveInfo resolveInfo, int generation) {
+            this.resolveInfo = resolveInfo;
+            this.generation = generation;
+        }
+    }
+
+    static boolean isCacheable(Intent intent) {
+        return intent.getSelector() == null;
+    }
+
+    /**
+     * @param generation the package manager's current component state generation
+     * @return a copy of the cached resolution, or {@code null} if nothing usable is cached
+     */
+    ResolveInfo get(Intent intent, String resolvedType, int userId, int callingUid,
+            int generation) {
+        final Entry entry = mResolutions.get(new Key(intent, resolvedType, userId, callingUid));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation) {
+            // Simpler to drop everything than to sort out which other entries are stale too.
+            mResolutions.clear();
+            mInvalidations++;
+            return null;
+        }
+        return copyOf(entry.resolveInfo);
+    }
+
+    /**
+     * Caches a successful resolution; failed ones are not cached, they are rare and usually
+     * followed by the service being installed.
+     */
+    void put(Intent intent, String resolvedType, int userId, int callingUid, int generation,
+            ResolveInfo resolveInfo) {
+        if (resolveInfo == null || resolveInfo.serviceInfo == null) {
+            return;
+        }
+        if (mResolutions.size() >= MAX_ENTRIES) {
+            mResolutions.clear();
+        }
+        mResolutions.put(new Key(intent, resolvedType, userId, callingUid),
+                new Entry(copyOf(resolveInfo), generation));
+    }
+
+    void noteResolution(boolean hit, long durationNanos) {
+        if (hit) {
+            mHits++;
+            mHitNanos += durationNanos;
+        } else {
+            mMisses++;
+            mMissNanos += durationNanos;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Service lookup cache:");
+        final long lookups = mHits + mMisses;
+        pw.print(prefix); pw.print("  resolutions: entries="); pw.print(mResolutions.size());
+        pw.print(" hits="); pw.print(mHits);
+        pw.print(" misses="); pw.print(mMisses);
+        if (lookups > 0) {
+            pw.print(" hitRate="); pw.print(mHits * 100 / lookups); pw.print("%");
+        }
+        pw.print(" invalidations="); pw.println(mInvalidations);
+        pw.print(prefix); pw.print("    avgHit=");
+        pw.print(mHits > 0 ? mHitNanos / mHits / 1000 : 0);
+        pw.print("us avgMiss=");
+        pw.print(mMisses > 0 ? mMissNanos / mMisses / 1000 : 0);
+        pw.println("us");
+    }
+
+    private static ResolveInfo copyOf(ResolveInfo resolveInfo) {
+        final ResolveInfo copy = new ResolveInfo(resolveInfo);
+        // Callers may hold on to the service info, e.g. in a new ServiceRecord; don't share it.
+        copy.serviceInfo = new ServiceInfo(resolveInfo.serviceInfo);
+        return copy;
+    }
+}
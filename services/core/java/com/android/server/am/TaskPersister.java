@@ -24,11 +24,14 @@ import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Process;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+import android.util.TimeUtils;
 import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -40,6 +43,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -48,11 +52,14 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import static android.app.ActivityManager.StackId.HOME_STACK_ID;
 import static android.app.ActivityManager.StackId.INVALID_STACK_ID;
@@ -78,6 +85,9 @@ public class TaskPersister {
     /** Special value for mWriteTime to mean don't wait, just write */
     private static final long FLUSH_QUEUE = -1;
 
+    /** Buffer size for encoding images, so the encoder doesn't issue a write per row. */
+    private static final int IMAGE_BUFFER_SIZE = 64 * 1024;
+
     private static final String TASKS_DIRNAME = "recent_tasks";
     private static final String TASK_FILENAME_SUFFIX = "_task.xml";
     private static final String IMAGES_DIRNAME = "recent_images";
@@ -127,6 +137,43 @@ public class TaskPersister {
 
     ArrayList<WriteQueueItem> mWriteQueue = new ArrayList<WriteQueueItem>();
 
+    /**
+     * The batch taken off mWriteQueue that the writer thread is currently writing out, so that
+     * its images can still be found until they are on disk. Guarded by this.
+     */
+    private ArrayList<WriteQueueItem> mWritingItems;
+
+    private static class WrittenImage {
+        final WeakReference<Bitmap> mImage;
+        final int mGenerationId;
+
+        WrittenImage(Bitmap image) {
+            mImage = new WeakReference<>(image);
+            mGenerationId = image.getGenerationId();
+        }
+
+        boolean isSameAs(Bitmap image) {
+            return mImage.get() == image && mGenerationId == image.getGenerationId();
+        }
+    }
+
+    // What was last written for each task and image, to skip rewriting them unchanged. Only
+    // accessed on the writer thread.
+    private final SparseLongArray mWrittenTaskDigests = new SparseLongArray();
+    private final ArrayMap<String, WrittenImage> mWrittenImages = new ArrayMap<>();
+
+    // Write statistics, guarded by this.
+    private long mBatchCount;
+    private long mBatchItems;
+    private long mTotalBatchNanos;
+    private long mMaxBatchNanos;
+    private long mLastBatchUptime;
+    private long mBytesWritten;
+    private int mTasksWritten;
+    private int mTasksUnchanged;
+    private int mImagesWritten;
+    private int mImagesUnchanged;
+
     TaskPersister(File systemDir, ActivityStackSupervisor stackSupervisor,
             ActivityManagerService service, RecentTasks recentTasks) {
 
@@ -345,17 +392,26 @@ public class TaskPersister {
 
     Bitmap getImageFromWriteQueue(String filePath) {
         synchronized (this) {
-            for (int queueNdx = mWriteQueue.size() - 1; queueNdx >= 0; --queueNdx) {
-                final WriteQueueItem item = mWriteQueue.get(queueNdx);
-                if (item instanceof ImageWriteQueueItem) {
-                    ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
-                    if (imageWriteQueueItem.mFilePath.equals(filePath)) {
-                        return imageWriteQueueItem.mImage;
-                    }
+            // Anything still queued is newer than what is being written.
+            final Bitmap image = findImageLocked(mWriteQueue, filePath);
+            if (image != null || mWritingItems == null) {
+                return image;
+            }
+            return findImageLocked(mWritingItems, filePath);
+        }
+    }
+
+    private static Bitmap findImageLocked(ArrayList<WriteQueueItem> items, String filePath) {
+        for (int queueNdx = items.size() - 1; queueNdx >= 0; --queueNdx) {
+            final WriteQueueItem item = items.get(queueNdx);
+            if (item instanceof ImageWriteQueueItem) {
+                ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
+                if (imageWriteQueueItem.mFilePath.equals(filePath)) {
+                    return imageWriteQueueItem.mImage;
                 }
             }
-            return null;
         }
+        return null;
     }
 
     private StringWriter saveToXml(TaskRecord task) throws IOException, XmlPullParserException {
@@ -397,6 +453,25 @@ public class TaskPersister {
         }
     }
 
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.print(prefix); pw.print("Task persister: batches="); pw.print(mBatchCount);
+            if (mBatchCount > 0) {
+                pw.print(" avgItems="); pw.print(mBatchItems / mBatchCount);
+                pw.print(" avgDuration="); pw.print(mTotalBatchNanos / mBatchCount / 1000000);
+                pw.print("ms maxDuration="); pw.print(mMaxBatchNanos / 1000000);
+                pw.print("ms last=");
+                TimeUtils.formatDuration(mLastBatchUptime, SystemClock.uptimeMillis(), pw);
+            }
+            pw.println();
+            pw.print(prefix); pw.print("  bytesWritten="); pw.print(mBytesWritten);
+            pw.print(" tasksWritten="); pw.print(mTasksWritten);
+            pw.print(" tasksUnchanged="); pw.print(mTasksUnchanged);
+            pw.print(" imagesWritten="); pw.print(mImagesWritten);
+            pw.print(" imagesUnchanged="); pw.println(mImagesUnchanged);
+        }
+    }
+
     private TaskRecord taskIdToTask(int taskId, ArrayList<TaskRecord> tasks) {
         if (taskId < 0) {
             return null;
@@ -676,21 +751,22 @@ public class TaskPersister {
                                 mRecentTasks.usersWithRecentsLoadedLocked());
                     }
                     removeObsoleteFiles(persistentTaskIds);
+                    pruneWrittenState(persistentTaskIds);
                 }
                 writeTaskIdsFiles();
 
-                processNextItem();
+                processNextItems();
             }
         }
 
-        private void processNextItem() {
+        private void processNextItems() {
             // This part is extracted into a method so that the GC can clearly see the end of the
-            // scope of the variable 'item'.  If this part was in the loop above, the last item
+            // scope of the variable 'items'.  If this part was in the loop above, the last items
             // it processed would always "leak".
             // See https://b.corp.google.com/issues/64438652#comment7
 
             // If mNextWriteTime, then don't delay between each call to saveToXml().
-            final WriteQueueItem item;
+            final ArrayList<WriteQueueItem> items;
             synchronized (TaskPersister.this) {
                 if (mNextWriteTime != FLUSH_QUEUE) {
                     // The next write we don't have to wait so long.
@@ -712,7 +788,6 @@ public class TaskPersister {
                     // Invariant: mNextWriteTime is either FLUSH_QUEUE or PRE_WRITE_DELAY_MS
                     // from now.
                 }
-                item = mWriteQueue.remove(0);
 
                 long now = SystemClock.uptimeMillis();
                 if (DEBUG) Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" +
@@ -727,63 +802,183 @@ public class TaskPersister {
                     now = SystemClock.uptimeMillis();
                 }
 
-                // Got something to do.
+                // Got something to do. Everything queued by now goes out in this one batch.
+                items = new ArrayList<>(mWriteQueue);
+                mWriteQueue.clear();
+                mWritingItems = items;
             }
-
-            if (item instanceof ImageWriteQueueItem) {
-                ImageWriteQueueItem imageWriteQueueItem = (ImageWriteQueueItem) item;
-                final String filePath = imageWriteQueueItem.mFilePath;
-                if (!createParentDirectory(filePath)) {
-                    Slog.e(TAG, "Error while creating images directory for file: " + filePath);
-                    return;
+            if (items.isEmpty()) {
+                // Everything queued was dropped while waiting.
+                synchronized (TaskPersister.this) {
+                    mWritingItems = null;
                 }
-                final Bitmap bitmap = imageWriteQueueItem.mImage;
-                if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
-                FileOutputStream imageFile = null;
-                try {
-                    imageFile = new FileOutputStream(new File(filePath));
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
-                } catch (Exception e) {
-                    Slog.e(TAG, "saveImage: unable to save " + filePath, e);
-                } finally {
-                    IoUtils.closeQuietly(imageFile);
+                return;
+            }
+
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            final int N = items.size();
+
+            // Serialize the tasks of the batch, taking the mService lock for one task at a time
+            // so that a large batch doesn't hold up the activity manager.
+            final String[] taskXml = new String[N];
+            for (int i = 0; i < N; i++) {
+                final WriteQueueItem item = items.get(i);
+                if (!(item instanceof TaskWriteQueueItem)) {
+                    continue;
                 }
-            } else if (item instanceof TaskWriteQueueItem) {
-                // Write out one task.
-                StringWriter stringWriter = null;
-                TaskRecord task = ((TaskWriteQueueItem) item).mTask;
+                final TaskRecord task = ((TaskWriteQueueItem) item).mTask;
                 if (DEBUG) Slog.d(TAG, "Writing task=" + task);
                 synchronized (mService) {
                     if (task.inRecents) {
                         // Still there.
                         try {
                             if (DEBUG) Slog.d(TAG, "Saving task=" + task);
-                            stringWriter = saveToXml(task);
+                            taskXml[i] = saveToXml(task).toString();
                         } catch (IOException e) {
                         } catch (XmlPullParserException e) {
                         }
                     }
                 }
-                if (stringWriter != null) {
-                    // Write out xml file while not holding mService lock.
-                    FileOutputStream file = null;
-                    AtomicFile atomicFile = null;
-                    try {
-                        atomicFile = new AtomicFile(new File(
-                                getUserTasksDir(task.userId),
-                                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                        file = atomicFile.startWrite();
-                        file.write(stringWriter.toString().getBytes());
-                        file.write('\n');
-                        atomicFile.finishWrite(file);
-                    } catch (IOException e) {
-                        if (file != null) {
-                            atomicFile.failWrite(file);
-                        }
-                        Slog.e(TAG,
-                                "Unable to open " + atomicFile + " for persisting. " + e);
+            }
+
+            // Write out the files while not holding mService lock.
+            long bytesWritten = 0;
+            int tasksWritten = 0;
+            int tasksUnchanged = 0;
+            int imagesWritten = 0;
+            int imagesUnchanged = 0;
+            for (int i = 0; i < N; i++) {
+                final WriteQueueItem item = items.get(i);
+                if (item instanceof ImageWriteQueueItem) {
+                    final long written = writeImage((ImageWriteQueueItem) item);
+                    if (written > 0) {
+                        bytesWritten += written;
+                        imagesWritten++;
+                    } else if (written == 0) {
+                        imagesUnchanged++;
+                    }
+                } else if (item instanceof TaskWriteQueueItem && taskXml[i] != null) {
+                    final long written = writeTask(((TaskWriteQueueItem) item).mTask, taskXml[i]);
+                    if (written > 0) {
+                        bytesWritten += written;
+                        tasksWritten++;
+                    } else if (written == 0) {
+                        tasksUnchanged++;
+                    }
+                }
+            }
+
+            final long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+            synchronized (TaskPersister.this) {
+                // The images of the batch can be read back from disk now.
+                mWritingItems = null;
+                mBatchCount++;
+                mBatchItems += N;
+                mTotalBatchNanos += durationNanos;
+                mMaxBatchNanos = Math.max(mMaxBatchNanos, durationNanos);
+                mLastBatchUptime = SystemClock.uptimeMillis();
+                mBytesWritten += bytesWritten;
+                mTasksWritten += tasksWritten;
+                mTasksUnchanged += tasksUnchanged;
+                mImagesWritten += imagesWritten;
+                mImagesUnchanged += imagesUnchanged;
+            }
+        }
+
+        /**
+         * @return the number of bytes written, 0 if the image on disk is already current, or -1
+         *         if writing failed
+         */
+        private long writeImage(ImageWriteQueueItem item) {
+            final String filePath = item.mFilePath;
+            final Bitmap bitmap = item.mImage;
+            final File file = new File(filePath);
+            final WrittenImage written = mWrittenImages.get(filePath);
+            if (written != null && written.isSameAs(bitmap) && file.exists()) {
+                if (DEBUG) Slog.d(TAG, "bitmap unchanged: filename=" + filePath);
+                return 0;
+            }
+            if (!createParentDirectory(filePath)) {
+                Slog.e(TAG, "Error while creating images directory for file: " + filePath);
+                return -1;
+            }
+            if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
+            BufferedOutputStream imageFile = null;
+            try {
+                imageFile = new BufferedOutputStream(new FileOutputStream(file),
+                        IMAGE_BUFFER_SIZE);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
+                imageFile.flush();
+            } catch (Exception e) {
+                Slog.e(TAG, "saveImage: unable to save " + filePath, e);
+                mWrittenImages.remove(filePath);
+                return -1;
+            } finally {
+                IoUtils.closeQuietly(imageFile);
+            }
+            mWrittenImages.put(filePath, new WrittenImage(bitmap));
+            return file.length();
+        }
+
+        /**
+         * @return the number of bytes written, 0 if the file on disk is already current, or -1
+         *         if writing failed
+         */
+        private long writeTask(TaskRecord task, String xml) {
+            final byte[] bytes = xml.getBytes();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            final long digest = ((long) bytes.length << 32) ^ crc.getValue();
+            final File taskFile = new File(getUserTasksDir(task.userId),
+                    String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX);
+            final int index = mWrittenTaskDigests.indexOfKey(task.taskId);
+            if (index >= 0 && mWrittenTaskDigests.valueAt(index) == digest
+                    && taskFile.exists()) {
+                if (DEBUG) Slog.d(TAG, "task unchanged: task=" + task);
+                return 0;
+            }
+            FileOutputStream file = null;
+            AtomicFile atomicFile = null;
+            try {
+                atomicFile = new AtomicFile(taskFile);
+                file = atomicFile.startWrite();
+                file.write(bytes);
+                file.write('\n');
+                atomicFile.finishWrite(file);
+            } catch (IOException e) {
+                if (file != null) {
+                    atomicFile.failWrite(file);
+                }
+                Slog.e(TAG,
+                        "Unable to open " + atomicFile + " for persisting. " + e);
+                mWrittenTaskDigests.delete(task.taskId);
+                return -1;
+            }
+            mWrittenTaskDigests.put(task.taskId, digest);
+            return bytes.length + 1;
+        }
+
+        /**
+         * Forgets what was written for tasks that are no longer persisted, whose files are
+         * about to be removed.
+         */
+        private void pruneWrittenState(ArraySet<Integer> persistentTaskIds) {
+            for (int i = mWrittenTaskDigests.size() - 1; i >= 0; i--) {
+                if (!persistentTaskIds.contains(mWrittenTaskDigests.keyAt(i))) {
+                    mWrittenTaskDigests.removeAt(i);
+                }
+            }
+            for (int i = mWrittenImages.size() - 1; i >= 0; i--) {
+                final String filename = new File(mWrittenImages.keyAt(i)).getName();
+                final int taskIdEnd = filename.indexOf('_');
+                try {
+                    if (taskIdEnd > 0 && persistentTaskIds.contains(
+                            Integer.parseInt(filename.substring(0, taskIdEnd)))) {
+                        continue;
                     }
+                } catch (NumberFormatException e) {
                 }
+                mWrittenImages.removeAt(i);
             }
         }
     }
@@ -20,6 +20,8 @@ import android.graphics.Region;
 import android.view.InputChannel;
 import android.view.IWindow;
 
+import java.util.Objects;
+
 /**
  * Functions as a handle for a window that can receive input.
  * Enables the native input dispatcher to refer indirectly to the window manager's window state.
@@ -94,6 +96,15 @@ public final class InputWindowHandle {
     // Display this input is on.
     public final int displayId;
 
+    // Whether any of the fields above changed since the handle was last sent to the input
+    // dispatcher, as of the last call to updateSentState().  Read by the native handle, which
+    // keeps its copy of the fields when it is false.
+    @SuppressWarnings("unused")
+    private boolean infoChanged = true;
+
+    // The fields as of the last call to updateSentState(), null before the first one.
+    private SentState mSentState;
+
     private native void nativeDispose();
 
     public InputWindowHandle(InputApplicationHandle inputApplicationHandle,
@@ -104,6 +115,27 @@ public final class InputWindowHandle {
         this.displayId = displayId;
     }
 
+    /**
+     * Compares the fields with the ones the handle had when last sent to the input dispatcher
+     * and records them as sent.  Must be called before the handle is sent, the native handle
+     * only reads the fields again if this returned true.
+     *
+     * @return whether any field changed since the handle was last sent
+     */
+    public boolean updateSentState() {
+        if (mSentState == null) {
+            mSentState = new SentState();
+            mSentState.set(this);
+            infoChanged = true;
+            return true;
+        }
+        infoChanged = !mSentState.matches(this);
+        if (infoChanged) {
+            mSentState.set(this);
+        }
+        return infoChanged;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder(name)
@@ -124,4 +156,73 @@ public final class InputWindowHandle {
             super.finalize();
         }
     }
+
+    private static final class SentState {
+        InputChannel inputChannel;
+        String name;
+        int layoutParamsFlags;
+        int layoutParamsType;
+        long dispatchingTimeoutNanos;
+        int frameLeft;
+        int frameTop;
+        int frameRight;
+        int frameBottom;
+        float scaleFactor;
+        final Region touchableRegion = new Region();
+        boolean visible;
+        boolean canReceiveKeys;
+        boolean hasFocus;
+        boolean hasWallpaper;
+        boolean paused;
+        int layer;
+        int ownerPid;
+        int ownerUid;
+        int inputFeatures;
+
+        void set(InputWindowHandle h) {
+            inputChannel = h.inputChannel;
+            name = h.name;
+            layoutParamsFlags = h.layoutParamsFlags;
+            layoutParamsType = h.layoutParamsType;
+            dispatchingTimeoutNanos = h.dispatchingTimeoutNanos;
+            frameLeft = h.frameLeft;
+            frameTop = h.frameTop;
+            frameRight = h.frameRight;
+            frameBottom = h.frameBottom;
+            scaleFactor = h.scaleFactor;
+            touchableRegion.set(h.touchableRegion);
+            visible = h.visible;
+            canReceiveKeys = h.canReceiveKeys;
+            hasFocus = h.hasFocus;
+            hasWallpaper = h.hasWallpaper;
+            paused = h.paused;
+            layer = h.layer;
+            ownerPid = h.ownerPid;
+            ownerUid = h.ownerUid;
+            inputFeatures = h.inputFeatures;
+        }
+
+        boolean matches(InputWindowHandle h) {
+            return inputChannel == h.inputChannel
+                    && layoutParamsFlags == h.layoutParamsFlags
+                    && layoutParamsType == h.layoutParamsType
+                    && dispatchingTimeoutNanos == h.dispatchingTimeoutNanos
+                    && frameLeft == h.frameLeft
+                    && frameTop == h.frameTop
+                    && frameRight == h.frameRight
+                    && frameBottom == h.frameBottom
+                    && scaleFactor == h.scaleFactor
+                    && visible == h.visible
+                    && canReceiveKeys == h.canReceiveKeys
+                    && hasFocus == h.hasFocus
+                    && hasWallpaper == h.hasWallpaper
+                    && paused == h.paused
+                    && layer == h.layer
+                    && ownerPid == h.ownerPid
+                    && ownerUid == h.ownerUid
+                    && inputFeatures == h.inputFeatures
+                    && Objects.equals(name, h.name)
+                    && touchableRegion.equals(h.touchableRegion);
+        }
+    }
 }
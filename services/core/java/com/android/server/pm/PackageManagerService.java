@@ -927,6 +927,14 @@ public class PackageManagerService extends IPackageManager.Stub
     final ActivityIntentResolver mReceivers =
             new ActivityIntentResolver();
 
+    /**
+     * Bumped whenever receivers or services are added or removed. Together with
+     * {@link PackageSettingBase#getUserStateGeneration()}, which follows the per-user package
+     * state (installed, hidden, suspended, stopped, enabled), it lets the activity manager tell
+     * when a cached broadcast or service resolution has gone stale.
+     */
+    private volatile int mComponentStateGeneration;
+
     // All available services, for your resolving pleasure.
     final ServiceIntentResolver mServices = new ServiceIntentResolver();
 
@@ -1418,6 +1426,8 @@ public class PackageManagerService extends IPackageManager.Stub
     private final PackageUsage mPackageUsage = new PackageUsage();
     private final CompilerStats mCompilerStats = new CompilerStats();
 
+    private final PackageParseStats mPackageParseStats = new PackageParseStats();
+
     class PackageHandler extends Handler {
         private boolean mBound = false;
         final ArrayList<HandlerParams> mPendingInstalls =
@@ -1750,30 +1760,45 @@ public class PackageManagerService extends IPackageManager.Stub
                 } break;
                 case WRITE_SETTINGS: {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                    final Settings.PendingWriteAll write;
                     synchronized (mPackages) {
                         removeMessages(WRITE_SETTINGS);
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        mSettings.writeLPr();
+                        write = mSettings.prepareWriteLPr();
                         mDirtyUsers.clear();
                     }
+                    // Only serialization needs the lock; disk writes happen outside of it.
+                    if (write != null) {
+                        mSettings.commitWrites(write);
+                    }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
                 case WRITE_PACKAGE_RESTRICTIONS: {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                    final ArrayList<Settings.PendingSettingsWrite> writes = new ArrayList<>();
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
+                            final Settings.PendingSettingsWrite write =
+                                    mSettings.preparePackageRestrictionsWriteLPr(userId);
+                            if (write != null) {
+                                writes.add(write);
+                            }
                         }
                         mDirtyUsers.clear();
                     }
+                    mSettings.commitWrites(writes);
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
                 case WRITE_PACKAGE_LIST: {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                    final Settings.PendingPackageListWrite write;
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_LIST);
-                        mSettings.writePackageListLPr(msg.arg1);
+                        write = mSettings.preparePackageListWriteLPr(msg.arg1);
+                    }
+                    if (write != null) {
+                        mSettings.commitPackageListWrite(write);
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -9053,6 +9078,7 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + dir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        final long scanStartTime = SystemClock.uptimeMillis();
         ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
@@ -9070,12 +9096,17 @@ public class PackageManagerService extends IPackageManager.Stub
             fileCount++;
         }
 
-        // Process results one by one
+        // Process results one by one, in the order in which parsing finishes
+        final int packageCount = fileCount;
+        long totalParseTime = 0;
         for (; fileCount > 0; fileCount--) {
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
             Throwable throwable = parseResult.throwable;
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
+            mPackageParseStats.onPackageParsed(parseResult.scanFile, parseResult.parseTimeMs);
+            totalParseTime += parseResult.parseTimeMs;
+
             if (throwable == null) {
                 // Static shared libraries have synthetic package names
                 if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
@@ -9109,6 +9140,9 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         parallelPackageParser.close();
+
+        mPackageParseStats.onDirScanned(dir, packageCount, parallelPackageParser.getThreadCount(),
+                SystemClock.uptimeMillis() - scanStartTime, totalParseTime);
     }
 
     private static File getSettingsProblemFile() {
@@ -11766,6 +11800,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 s.info.processName = fixProcessName(pkg.applicationInfo.processName,
                         s.info.processName);
                 mServices.addService(s);
+                mComponentStateGeneration++;
                 if (chatty) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -11786,6 +11821,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 a.info.processName = fixProcessName(pkg.applicationInfo.processName,
                         a.info.processName);
                 mReceivers.addActivity(a, "receiver");
+                mComponentStateGeneration++;
                 if (chatty) {
                     if (r == null) {
                         r = new StringBuilder(256);
@@ -12648,6 +12684,7 @@ public class PackageManagerService extends IPackageManager.Stub
         for (i=0; i<N; i++) {
             PackageParser.Service s = pkg.services.get(i);
             mServices.removeService(s);
+            mComponentStateGeneration++;
             if (chatty) {
                 if (r == null) {
                     r = new StringBuilder(256);
@@ -12666,6 +12703,7 @@ public class PackageManagerService extends IPackageManager.Stub
         for (i=0; i<N; i++) {
             PackageParser.Activity a = pkg.receivers.get(i);
             mReceivers.removeActivity(a, "receiver");
+            mComponentStateGeneration++;
             if (DEBUG_REMOVE && chatty) {
                 if (r == null) {
                     r = new StringBuilder(256);
@@ -22476,6 +22514,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         public static final int DUMP_COMPILER_STATS = 1 << 21;
         public static final int DUMP_CHANGES = 1 << 22;
         public static final int DUMP_VOLUMES = 1 << 23;
+        public static final int DUMP_PARSE_TIMINGS = 1 << 24;
 
         public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
@@ -22587,6 +22626,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
+                pw.println("    parse-timings: dump package parse times from boot scanning");
                 pw.println("    enabled-overlays: dump list of enabled overlay packages");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -22721,6 +22761,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_COMPILER_STATS);
+            } else if ("parse-timings".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_PARSE_TIMINGS);
             } else if ("changes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("write".equals(cmd)) {
@@ -23128,6 +23170,15 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpCompilerStatsLPr(pw, packageName);
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_PARSE_TIMINGS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                ipw.println();
+                mPackageParseStats.dump(ipw);
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
@@ -25639,6 +25690,12 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 PackageManagerService.this.notifyPackageUseLocked(packageName, reason);
             }
         }
+
+        @Override
+        public int getComponentStateGeneration() {
+            // Both only ever grow, so their sum changes whenever either does.
+            return mComponentStateGeneration + PackageSettingBase.getUserStateGeneration();
+        }
     }
 
     @Override
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Collects per-package parse times and per-directory totals from the package scans done through
+ * {@link ParallelPackageParser}, for {@code dumpsys package parse-timings}.
+ */
+class PackageParseStats {
+
+    /** Number of slowest packages listed by {@link #dump}. */
+    private static final int MAX_SLOWEST_PACKAGES = 20;
+
+    private final Object mLock = new Object();
+
+    /** Parse time in milliseconds, keyed by scanned code path. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Long> mParseTimes = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private final ArrayList<DirScan> mDirScans = new ArrayList<>();
+
+    private static class DirScan {
+        final String dir;
+        final int packageCount;
+        final int threadCount;
+        final long wallTimeMs;
+        final long totalParseTimeMs;
+
+        DirScan(String dir, int packageCount, int threadCount, long wallTimeMs,
+                long totalParseTimeMs) {
+            this.dir = dir;
+            this.packageCount = packageCount;
+            this.threadCount = threadCount;
+            this.wallTimeMs = wallTimeMs;
+            this.totalParseTimeMs = totalParseTimeMs;
+        }
+    }
+
+    void onPackageParsed(File scanFile, long parseTimeMs) {
+        synchronized (mLock) {
+            mParseTimes.put(scanFile.getPath(), parseTimeMs);
+        }
+    }
+
+    /**
+     * @param totalParseTimeMs sum of the parse times of all packages in the directory; compared
+     *         to {@code wallTimeMs} this shows how well the parsing threads were utilized
+     */
+    void onDirScanned(File dir, int packageCount, int threadCount, long wallTimeMs,
+            long totalParseTimeMs) {
+        synchronized (mLock) {
+            mDirScans.add(new DirScan(dir.getPath(), packageCount, threadCount, wallTimeMs,
+                    totalParseTimeMs));
+        }
+    }
+
+    void dump(IndentingPrintWriter ipw) {
+        synchronized (mLock) {
+            ipw.println("Package parse timings:");
+            ipw.increaseIndent();
+            if (mDirScans.isEmpty()) {
+                ipw.println("(none)");
+                ipw.decreaseIndent();
+                return;
+            }
+            for (int i = 0; i < mDirScans.size(); i++) {
+                final DirScan scan = mDirScans.get(i);
+                ipw.print(scan.dir);
+                ipw.print(": packages=");
+                ipw.print(scan.packageCount);
+                ipw.print(" threads=");
+                ipw.print(scan.threadCount);
+                ipw.print(" wall=");
+                ipw.print(scan.wallTimeMs);
+                ipw.print("ms parse=");
+                ipw.print(scan.totalParseTimeMs);
+                ipw.println("ms");
+            }
+
+            final ArrayList<Integer> order = new ArrayList<>(mParseTimes.size());
+            for (int i = 0; i < mParseTimes.size(); i++) {
+                order.add(i);
+            }
+            Collections.sort(order, (a, b) -> Long.compare(mParseTimes.valueAt(b),
+                    mParseTimes.valueAt(a)));
+
+            ipw.println("Slowest packages:");
+            ipw.increaseIndent();
+            final int count = Math.min(order.size(), MAX_SLOWEST_PACKAGES);
+            for (int i = 0; i < count; i++) {
+                final int index = order.get(i);
+                ipw.print(mParseTimes.valueAt(index));
+                ipw.print("ms ");
+                ipw.println(mParseTimes.keyAt(index));
+            }
+            ipw.decreaseIndent();
+            ipw.decreaseIndent();
+        }
+    }
+}
@@ -122,6 +122,9 @@ abstract class PackageSettingBase extends SettingBase {
     // started until explicitly launched by the user.
     private final SparseArray<PackageUserState> userState = new SparseArray<PackageUserState>();
 
+    // Changed with the per-user state of any package, see getUserStateGeneration().
+    private static volatile int sUserStateGeneration;
+
     int installStatus = PKG_INSTALL_COMPLETE;
 
     /**
@@ -265,6 +268,7 @@ abstract class PackageSettingBase extends SettingBase {
         signatures = orig.signatures;
         timeStamp = orig.timeStamp;
         uidError = orig.uidError;
+        sUserStateGeneration++;
         userState.clear();
         for (int i=0; i<orig.userState.size(); i++) {
             userState.put(orig.userState.keyAt(i), orig.userState.valueAt(i));
@@ -282,7 +286,20 @@ abstract class PackageSettingBase extends SettingBase {
         updateAvailable = orig.updateAvailable;
     }
 
+    /**
+     * Returns a counter that changes whenever the per-user state of any package may change,
+     * e.g. it being installed, hidden, suspended, stopped or enabled for a user, which is what
+     * decides whether its components are matched for that user. The setters below all go
+     * through {@link #modifyUserState}, which bumps it; callers hold the package manager lock
+     * across the change, so a query made under that lock after reading the counter never sees
+     * older state than the counter implies.
+     */
+    static int getUserStateGeneration() {
+        return sUserStateGeneration;
+    }
+
     private PackageUserState modifyUserState(int userId) {
+        sUserStateGeneration++;
         PackageUserState state = userState.get(userId);
         if (state == null) {
             state = new PackageUserState();
@@ -534,6 +551,7 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void removeUser(int userId) {
+        sUserStateGeneration++;
         userState.delete(userId);
     }
 
@@ -16,8 +16,10 @@
 
 package com.android.server.pm;
 
+import android.app.ActivityManager;
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
 
@@ -34,13 +36,17 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized from the number of available cores,
+ * between {@link #MIN_THREADS} and {@link #MAX_THREADS}. Results are handed out in completion
+ * order, and at any time at most {@link #QUEUE_CAPACITY_PER_THREAD} results per thread are kept
+ * in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 3;
+    // The fixed pool size this parser had before it was sized from the cores.
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = 8;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,10 +55,11 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final int mThreadCount;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final BlockingQueue<ParseResult> mQueue;
+
+    private final ExecutorService mService;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
@@ -61,6 +68,28 @@ class ParallelPackageParser implements AutoCloseable {
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mThreadCount = computeThreadCount(Runtime.getRuntime().availableProcessors(),
+                ActivityManager.isLowRamDeviceStatic());
+        mQueue = new ArrayBlockingQueue<>(mThreadCount * QUEUE_CAPACITY_PER_THREAD);
+        mService = ConcurrentUtils.newFixedThreadPool(mThreadCount,
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Returns the number of parsing threads to use: one per available core, clamped to
+     * [{@link #MIN_THREADS}, {@link #MAX_THREADS}]. Low-RAM devices keep {@link #MIN_THREADS},
+     * since every extra thread also holds more parsed packages in RAM.
+     */
+    @VisibleForTesting
+    static int computeThreadCount(int availableProcessors, boolean isLowRamDevice) {
+        if (isLowRamDevice) {
+            return MIN_THREADS;
+        }
+        return Math.max(MIN_THREADS, Math.min(availableProcessors, MAX_THREADS));
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
     }
 
     static class ParseResult {
@@ -68,6 +97,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long parseTimeMs; // Time spent parsing on the worker thread
 
         @Override
         public String toString() {
@@ -75,6 +105,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", parseTimeMs=" + parseTimeMs +
                     '}';
         }
     }
@@ -106,6 +137,7 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startTime = SystemClock.uptimeMillis();
             try {
                 PackageParser pp = new PackageParser();
                 pp.setSeparateProcesses(mSeparateProcesses);
@@ -118,6 +150,7 @@ class ParallelPackageParser implements AutoCloseable {
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                pr.parseTimeMs = SystemClock.uptimeMillis() - startTime;
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
             try {
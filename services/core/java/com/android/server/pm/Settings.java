@@ -100,17 +100,18 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -123,6 +124,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Holds information about dynamic settings.
@@ -257,6 +259,109 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+
+    /**
+     * A settings file serialized under the package lock, waiting to be written to disk by
+     * {@link #commitWrite}.
+     */
+    static final class PendingSettingsWrite {
+        final File file;
+        final File backupFile;
+        final byte[] data;
+        final byte[] digest;
+        final String description;
+        final long sequence;
+
+        PendingSettingsWrite(File file, File backupFile, byte[] data, String description) {
+            this.file = file;
+            this.backupFile = backupFile;
+            this.data = data;
+            this.digest = computeDigest(data);
+            this.description = description;
+            this.sequence = sNextWriteSequence.incrementAndGet();
+        }
+    }
+
+    /**
+     * packages.list serialized under the package lock, waiting to be written to disk by
+     * {@link #commitPackageListWrite}.
+     */
+    static final class PendingPackageListWrite {
+        final byte[] data;
+        final long sequence;
+
+        PendingPackageListWrite(byte[] data) {
+            this.data = data;
+            this.sequence = sNextWriteSequence.incrementAndGet();
+        }
+    }
+
+    /**
+     * The kernel package mappings taken under the package lock, waiting to be pushed to
+     * sdcardfs by {@link #commitKernelMappingWrite}.
+     */
+    static final class PendingKernelMappingWrite {
+        final ArrayMap<String, KernelPackageState> packages;
+        final long sequence;
+
+        PendingKernelMappingWrite(ArrayMap<String, KernelPackageState> packages) {
+            this.packages = packages;
+            this.sequence = sNextWriteSequence.incrementAndGet();
+        }
+    }
+
+    /**
+     * Everything {@link #writeLPr()} writes, serialized under the package lock, waiting to be
+     * written to disk by {@link #commitWrites(PendingWriteAll)}.
+     */
+    static final class PendingWriteAll {
+        final PendingSettingsWrite packagesWrite;
+        final PendingKernelMappingWrite kernelMappingWrite;
+        final PendingPackageListWrite packageListWrite;
+        final List<PendingSettingsWrite> restrictionsWrites;
+
+        PendingWriteAll(PendingSettingsWrite packagesWrite,
+                PendingKernelMappingWrite kernelMappingWrite,
+                PendingPackageListWrite packageListWrite,
+                List<PendingSettingsWrite> restrictionsWrites) {
+            this.packagesWrite = packagesWrite;
+            this.kernelMappingWrite = kernelMappingWrite;
+            this.packageListWrite = packageListWrite;
+            this.restrictionsWrites = restrictionsWrites;
+        }
+    }
+
+    /** State of a settings file as last written by {@link #commitWrite}. */
+    private static final class CommittedFile {
+        long sequence;
+        byte[] digest;
+
+        CommittedFile(long sequence, byte[] digest) {
+            this.sequence = sequence;
+            this.digest = digest;
+        }
+    }
+
+    private static final AtomicLong sNextWriteSequence = new AtomicLong();
+
+    private static byte[] computeDigest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Without a digest every write goes to disk.
+            return null;
+        }
+    }
+
+    /** Serializes {@link #commitWrite}, which runs without the package lock. */
+    private final Object mCommitLock = new Object();
+
+    @GuardedBy("mCommitLock")
+    private final ArrayMap<File, CommittedFile> mCommittedFiles = new ArrayMap<>();
+
+    /** Sequence of the packages.list last written by {@link #commitPackageListWrite}. */
+    @GuardedBy("mCommitLock")
+    private long mCommittedPackageListSequence;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -269,9 +374,14 @@ final class Settings {
     /** List of packages that installed other packages */
     final ArraySet<String> mInstallerPackages = new ArraySet<>();
 
-    /** Map from package name to appId and excluded userids */
+    /** Map from package name to appId and excluded userids, also locking sdcardfs writes */
+    @GuardedBy("mKernelMapping")
     private final ArrayMap<String, KernelPackageState> mKernelMapping = new ArrayMap<>();
 
+    /** Sequence of the mappings last pushed by {@link #commitKernelMappingWrite}. */
+    @GuardedBy("mKernelMapping")
+    private long mCommittedKernelMappingSequence;
+
     // List of replaced system applications
     private final ArrayMap<String, PackageSetting> mDisabledSysPackages =
         new ArrayMap<String, PackageSetting>();
@@ -286,6 +396,8 @@ final class Settings {
     private static final class KernelPackageState {
         int appId;
         int[] excludedUserIds;
+        // Sequence of the package state this was written from.
+        long sequence;
     }
 
     // Bookkeeping for restored user permission grants
@@ -2059,35 +2171,24 @@ final class Settings {
     }
 
     void writePackageRestrictionsLPr(int userId) {
+        final PendingSettingsWrite write = preparePackageRestrictionsWriteLPr(userId);
+        if (write != null) {
+            commitWrite(write);
+        }
+    }
+
+    /**
+     * Serializes the package restrictions of {@code userId} while the package lock is held. The
+     * result can be committed with {@link #commitWrite} once the lock has been released.
+     *
+     * @return the pending write, or {@code null} if serialization failed
+     */
+    PendingSettingsWrite preparePackageRestrictionsWriteLPr(int userId) {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
-        // Keep the old stopped packages around until we know the new ones have
-        // been successfully written.
-        File userPackagesStateFile = getUserPackagesStateFile(userId);
-        File backupFile = getUserPackagesStateBackupFile(userId);
-        new File(userPackagesStateFile.getParent()).mkdirs();
-        if (userPackagesStateFile.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist packages earlier. So preserve the older
-            // backup for future reference since the current packages
-            // might have been corrupted.
-            if (!backupFile.exists()) {
-                if (!userPackagesStateFile.renameTo(backupFile)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup user packages state file, "
-                            + "current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                userPackagesStateFile.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
-            }
-        }
-
         try {
-            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
+            final ByteArrayOutputStream str = new ByteArrayOutputStream();
 
             final XmlSerializer serializer = new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
@@ -2179,33 +2280,15 @@ final class Settings {
 
             serializer.endDocument();
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
-
-            // New settings successfully written, old ones are no longer
-            // needed.
-            backupFile.delete();
-            FileUtils.setPermissions(userPackagesStateFile.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
-
-            // Done, all is good!
-            return;
+            return new PendingSettingsWrite(getUserPackagesStateFile(userId),
+                    getUserPackagesStateBackupFile(userId), str.toByteArray(),
+                    "user packages state");
         } catch(java.io.IOException e) {
             Slog.wtf(PackageManagerService.TAG,
                     "Unable to write package manager user packages state, "
                     + " current changes will be lost at reboot", e);
         }
-
-        // Clean up partially written files
-        if (userPackagesStateFile.exists()) {
-            if (!userPackagesStateFile.delete()) {
-                Log.i(PackageManagerService.TAG, "Failed to clean up mangled file: "
-                        + mStoppedPackagesFilename);
-            }
-        }
+        return null;
     }
 
     void readInstallPermissionsLPr(XmlPullParser parser,
@@ -2452,31 +2535,65 @@ final class Settings {
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
-        // Keep the old settings around until we know the new ones have
-        // been successfully written.
-        if (mSettingsFilename.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist settings earlier. So preserve the older
-            // backup for future reference since the current settings
-            // might have been corrupted.
-            if (!mBackupSettingsFilename.exists()) {
-                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup package manager settings, "
-                            + " current changes will be lost at reboot");
-                    return;
+        final PendingWriteAll write = prepareWriteLPr();
+        if (write != null) {
+            commitWrites(write);
+        }
+        //Debug.stopMethodTracing();
+    }
+
+    /**
+     * Like {@link #writeLPr()}, but only serializes packages.xml, the kernel mappings,
+     * packages.list and the package restrictions of every user into memory while the package
+     * lock is held. The result must be passed to {@link #commitWrites(PendingWriteAll)} after the
+     * lock has been released, so file I/O and fsync no longer happen under the lock.
+     *
+     * @return the pending writes, or {@code null} if packages.xml could not be serialized
+     */
+    PendingWriteAll prepareWriteLPr() {
+        final PendingSettingsWrite packagesWrite = preparePackagesWriteLPr();
+        if (packagesWrite == null) {
+            return null;
+        }
+
+        final ArrayList<PendingSettingsWrite> restrictionsWrites = new ArrayList<>();
+        final List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
+        if (users != null) {
+            for (UserInfo user : users) {
+                final PendingSettingsWrite write = preparePackageRestrictionsWriteLPr(user.id);
+                if (write != null) {
+                    restrictionsWrites.add(write);
                 }
-            } else {
-                mSettingsFilename.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
             }
         }
 
+        return new PendingWriteAll(packagesWrite, prepareKernelMappingWriteLPr(),
+                preparePackageListWriteLPr(-1), restrictionsWrites);
+    }
+
+    /**
+     * Commits what {@link #prepareWriteLPr} serialized. As {@link #writeLPr()} always did, the
+     * other files are only written once packages.xml has been, so they never get ahead of it.
+     */
+    void commitWrites(PendingWriteAll write) {
+        if (!commitWrite(write.packagesWrite)) {
+            return;
+        }
+
+        commitKernelMappingWrite(write.kernelMappingWrite);
+        commitPackageListWrite(write.packageListWrite);
+        commitWrites(write.restrictionsWrites);
+        synchronized (mLock) {
+            // Only schedules the write, which snapshots the permissions under the lock.
+            writeAllRuntimePermissionsLPr();
+        }
+    }
+
+    private PendingSettingsWrite preparePackagesWriteLPr() {
         mPastSignatures.clear();
 
         try {
-            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
-            BufferedOutputStream str = new BufferedOutputStream(fstr);
+            final ByteArrayOutputStream str = new ByteArrayOutputStream();
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
             XmlSerializer serializer = new FastXmlSerializer();
@@ -2585,24 +2702,8 @@ final class Settings {
 
             serializer.endDocument();
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
-
-            // New settings successfully written, old ones are no longer
-            // needed.
-            mBackupSettingsFilename.delete();
-            FileUtils.setPermissions(mSettingsFilename.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
-
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
-            return;
-
+            return new PendingSettingsWrite(mSettingsFilename, mBackupSettingsFilename,
+                    str.toByteArray(), "package manager settings");
         } catch(XmlPullParserException e) {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
                     + "current changes will be lost at reboot", e);
@@ -2610,14 +2711,109 @@ final class Settings {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
                     + "current changes will be lost at reboot", e);
         }
-        // Clean up partially written files
-        if (mSettingsFilename.exists()) {
-            if (!mSettingsFilename.delete()) {
-                Slog.wtf(PackageManagerService.TAG, "Failed to clean up mangled file: "
-                        + mSettingsFilename);
+        return null;
+    }
+
+    /**
+     * Drops writes of {@code file} that were prepared before this call but not yet committed,
+     * so that they do not recreate a file that is being removed.
+     */
+    private void discardPendingWrites(File file) {
+        synchronized (mCommitLock) {
+            mCommittedFiles.put(file,
+                    new CommittedFile(sNextWriteSequence.incrementAndGet(), null));
+        }
+    }
+
+    void commitWrites(List<PendingSettingsWrite> writes) {
+        for (int i = 0; i < writes.size(); i++) {
+            commitWrite(writes.get(i));
+        }
+    }
+
+    /**
+     * Writes serialized settings to disk, keeping the previous file as a backup until the new
+     * one has been synced. Does not need the package lock: writes of the same file are ordered by
+     * their serialization sequence and a write older than the last committed one is dropped.
+     * A write whose content matches what was last committed to the file is skipped entirely.
+     *
+     * @return {@code true} if the file on disk holds the content of {@code write}
+     */
+    boolean commitWrite(PendingSettingsWrite write) {
+        synchronized (mCommitLock) {
+            final CommittedFile committed = mCommittedFiles.get(write.file);
+            if (committed != null) {
+                if (write.sequence < committed.sequence) {
+                    // A newer state has already been committed.
+                    return true;
+                }
+                if (write.digest != null && Arrays.equals(committed.digest, write.digest)
+                        && write.file.exists()
+                        && !write.backupFile.exists()) {
+                    committed.sequence = write.sequence;
+                    return true;
+                }
             }
+
+            // Keep the old file around until we know the new one has
+            // been successfully written.
+            write.file.getParentFile().mkdirs();
+            if (write.file.exists()) {
+                // Presence of backup file indicates that we failed
+                // to persist earlier. So preserve the older
+                // backup for future reference since the current state
+                // might have been corrupted.
+                if (!write.backupFile.exists()) {
+                    if (!write.file.renameTo(write.backupFile)) {
+                        Slog.wtf(PackageManagerService.TAG,
+                                "Unable to backup " + write.description
+                                + ", current changes will be lost at reboot");
+                        return false;
+                    }
+                } else {
+                    write.file.delete();
+                    Slog.w(PackageManagerService.TAG,
+                            "Preserving older " + write.description + " backup");
+                }
+            }
+
+            try {
+                final FileOutputStream fstr = new FileOutputStream(write.file);
+                fstr.write(write.data);
+                FileUtils.sync(fstr);
+                fstr.close();
+
+                // New settings successfully written, old ones are no longer
+                // needed.
+                write.backupFile.delete();
+                FileUtils.setPermissions(write.file.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+
+                if (committed != null) {
+                    committed.sequence = write.sequence;
+                    committed.digest = write.digest;
+                } else {
+                    mCommittedFiles.put(write.file,
+                            new CommittedFile(write.sequence, write.digest));
+                }
+                return true;
+            } catch (java.io.IOException e) {
+                Slog.wtf(PackageManagerService.TAG, "Unable to write " + write.description
+                        + ", current changes will be lost at reboot", e);
+            }
+
+            // Clean up partially written files
+            mCommittedFiles.remove(write.file);
+            if (write.file.exists()) {
+                if (!write.file.delete()) {
+                    Slog.wtf(PackageManagerService.TAG, "Failed to clean up mangled file: "
+                            + write.file);
+                }
+            }
+            return false;
         }
-        //Debug.stopMethodTracing();
     }
 
     private void writeKernelRemoveUserLPr(int userId) {
@@ -2630,54 +2826,112 @@ final class Settings {
     }
 
     void writeKernelMappingLPr() {
-        if (mKernelMappingFilename == null) return;
+        commitKernelMappingWrite(prepareKernelMappingWriteLPr());
+    }
 
-        final String[] known = mKernelMappingFilename.list();
-        final ArraySet<String> knownSet = new ArraySet<>(known.length);
-        for (String name : known) {
-            knownSet.add(name);
-        }
+    /**
+     * Takes the mappings of every package while the package lock is held, for
+     * {@link #commitKernelMappingWrite} to push once it has been released.
+     *
+     * @return the pending write, or {@code null} if there is no sdcardfs to push mappings to
+     */
+    PendingKernelMappingWrite prepareKernelMappingWriteLPr() {
+        if (mKernelMappingFilename == null) return null;
 
+        final ArrayMap<String, KernelPackageState> packages = new ArrayMap<>(mPackages.size());
         for (final PackageSetting ps : mPackages.values()) {
-            // Package is actively claimed
-            knownSet.remove(ps.name);
-            writeKernelMappingLPr(ps);
+            if (ps.name == null) continue;
+            final KernelPackageState state = new KernelPackageState();
+            state.appId = ps.appId;
+            state.excludedUserIds = ps.getNotInstalledUserIds();
+            packages.put(ps.name, state);
         }
+        return new PendingKernelMappingWrite(packages);
+    }
 
-        // Remove any unclaimed mappings
-        for (int i = 0; i < knownSet.size(); i++) {
-            final String name = knownSet.valueAt(i);
-            if (DEBUG_KERNEL) Slog.d(TAG, "Dropping mapping " + name);
+    /**
+     * Pushes the mappings taken by {@link #prepareKernelMappingWriteLPr} and drops those of
+     * packages that are gone. Does not need the package lock: mappings written from a newer
+     * state of a package, and writes older than the last committed one, are left alone.
+     */
+    void commitKernelMappingWrite(PendingKernelMappingWrite write) {
+        if (write == null) return;
+
+        synchronized (mKernelMapping) {
+            if (write.sequence < mCommittedKernelMappingSequence) {
+                // Newer mappings have already been pushed.
+                return;
+            }
+            mCommittedKernelMappingSequence = write.sequence;
+
+            final String[] known = mKernelMappingFilename.list();
+            final ArraySet<String> knownSet = new ArraySet<>(known.length);
+            for (String name : known) {
+                knownSet.add(name);
+            }
 
-            mKernelMapping.remove(name);
-            new File(mKernelMappingFilename, name).delete();
+            for (int i = 0; i < write.packages.size(); i++) {
+                final String name = write.packages.keyAt(i);
+                final KernelPackageState state = write.packages.valueAt(i);
+                // Package is actively claimed
+                knownSet.remove(name);
+                writeKernelMappingLocked(name, state.appId, state.excludedUserIds,
+                        write.sequence);
+            }
+
+            // Remove any unclaimed mappings
+            for (int i = 0; i < knownSet.size(); i++) {
+                final String name = knownSet.valueAt(i);
+                final KernelPackageState cur = mKernelMapping.get(name);
+                if (cur != null && cur.sequence > write.sequence) {
+                    // Claimed since the mappings were taken.
+                    continue;
+                }
+                if (DEBUG_KERNEL) Slog.d(TAG, "Dropping mapping " + name);
+
+                mKernelMapping.remove(name);
+                new File(mKernelMappingFilename, name).delete();
+            }
         }
     }
 
     void writeKernelMappingLPr(PackageSetting ps) {
         if (mKernelMappingFilename == null || ps == null || ps.name == null) return;
 
-        KernelPackageState cur = mKernelMapping.get(ps.name);
+        synchronized (mKernelMapping) {
+            writeKernelMappingLocked(ps.name, ps.appId, ps.getNotInstalledUserIds(),
+                    sNextWriteSequence.incrementAndGet());
+        }
+    }
+
+    @GuardedBy("mKernelMapping")
+    private void writeKernelMappingLocked(String name, int appId, int[] excludedUserIds,
+            long sequence) {
+        KernelPackageState cur = mKernelMapping.get(name);
+        if (cur != null && cur.sequence > sequence) {
+            // Already written from a newer state of the package.
+            return;
+        }
         final boolean firstTime = cur == null;
-        int[] excludedUserIds = ps.getNotInstalledUserIds();
         final boolean userIdsChanged = firstTime
                 || !Arrays.equals(excludedUserIds, cur.excludedUserIds);
 
         // Package directory
-        final File dir = new File(mKernelMappingFilename, ps.name);
+        final File dir = new File(mKernelMappingFilename, name);
 
         if (firstTime) {
             dir.mkdir();
             // Create a new mapping state
             cur = new KernelPackageState();
-            mKernelMapping.put(ps.name, cur);
+            mKernelMapping.put(name, cur);
         }
+        cur.sequence = sequence;
 
         // If mapping is incorrect or non-existent, write the appid file
-        if (cur.appId != ps.appId) {
+        if (cur.appId != appId) {
             final File appIdFile = new File(dir, "appid");
-            writeIntToFile(appIdFile, ps.appId);
-            if (DEBUG_KERNEL) Slog.d(TAG, "Mapping " + ps.name + " to " + ps.appId);
+            writeIntToFile(appIdFile, appId);
+            if (DEBUG_KERNEL) Slog.d(TAG, "Mapping " + name + " to " + appId);
         }
 
         if (userIdsChanged) {
@@ -2687,7 +2941,7 @@ final class Settings {
                         excludedUserIds[i])) {
                     writeIntToFile(new File(dir, "excluded_userids"), excludedUserIds[i]);
                     if (DEBUG_KERNEL) Slog.d(TAG, "Writing " + excludedUserIds[i] + " to "
-                            + ps.name + "/excluded_userids");
+                            + name + "/excluded_userids");
                 }
             }
             // Build the inclusion list -- the ids to remove from the exclusion list
@@ -2697,7 +2951,7 @@ final class Settings {
                         writeIntToFile(new File(dir, "clear_userid"),
                                 cur.excludedUserIds[i]);
                         if (DEBUG_KERNEL) Slog.d(TAG, "Writing " + cur.excludedUserIds[i] + " to "
-                                + ps.name + "/clear_userid");
+                                + name + "/clear_userid");
 
                     }
                 }
@@ -2720,6 +2974,19 @@ final class Settings {
     }
 
     void writePackageListLPr(int creatingUserId) {
+        final PendingPackageListWrite write = preparePackageListWriteLPr(creatingUserId);
+        if (write != null) {
+            commitPackageListWrite(write);
+        }
+    }
+
+    /**
+     * Serializes packages.list while the package lock is held, for
+     * {@link #commitPackageListWrite} to write once it has been released.
+     *
+     * @return the pending write, or {@code null} if serialization failed
+     */
+    PendingPackageListWrite preparePackageListWriteLPr(int creatingUserId) {
         // Only derive GIDs for active users (not dying)
         final List<UserInfo> users = UserManagerService.getInstance().getUsers(true);
         int[] userIds = new int[users.size()];
@@ -2730,18 +2997,8 @@ final class Settings {
             userIds = ArrayUtils.appendInt(userIds, creatingUserId);
         }
 
-        // Write package list file now, use a JournaledFile.
-        File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
-        JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
-
-        final File writeTarget = journal.chooseForWrite();
-        FileOutputStream fstr;
-        BufferedWriter writer = null;
         try {
-            fstr = new FileOutputStream(writeTarget);
-            writer = new BufferedWriter(new OutputStreamWriter(fstr, Charset.defaultCharset()));
-            FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
-
+            final StringBuilder list = new StringBuilder();
             StringBuilder sb = new StringBuilder();
             for (final PackageSetting pkg : mPackages.values()) {
                 if (pkg.pkg == null || pkg.pkg.applicationInfo == null
@@ -2796,16 +3053,46 @@ final class Settings {
                     sb.append("none");
                 }
                 sb.append("\n");
-                writer.append(sb);
+                list.append(sb);
             }
-            writer.flush();
-            FileUtils.sync(fstr);
-            writer.close();
-            journal.commit();
+            return new PendingPackageListWrite(
+                    list.toString().getBytes(Charset.defaultCharset()));
         } catch (Exception e) {
             Slog.wtf(TAG, "Failed to write packages.list", e);
-            IoUtils.closeQuietly(writer);
-            journal.rollback();
+            return null;
+        }
+    }
+
+    /**
+     * Writes packages.list as serialized by {@link #preparePackageListWriteLPr}. Does not need
+     * the package lock: a write older than the last committed one is dropped.
+     */
+    void commitPackageListWrite(PendingPackageListWrite write) {
+        synchronized (mCommitLock) {
+            if (write.sequence < mCommittedPackageListSequence) {
+                // A newer list has already been written.
+                return;
+            }
+
+            // Write package list file now, use a JournaledFile.
+            File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
+            JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
+
+            final File writeTarget = journal.chooseForWrite();
+            FileOutputStream fstr = null;
+            try {
+                fstr = new FileOutputStream(writeTarget);
+                FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
+                fstr.write(write.data);
+                FileUtils.sync(fstr);
+                fstr.close();
+                journal.commit();
+                mCommittedPackageListSequence = write.sequence;
+            } catch (Exception e) {
+                Slog.wtf(TAG, "Failed to write packages.list", e);
+                IoUtils.closeQuietly(fstr);
+                journal.rollback();
+            }
         }
     }
 
@@ -4277,6 +4564,7 @@ final class Settings {
         }
         mPreferredActivities.remove(userId);
         File file = getUserPackagesStateFile(userId);
+        discardPendingWrites(file);
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
@@ -4729,6 +4729,21 @@ public class PhoneWindowManager implements WindowManagerPolicy {
         r.set(mContentLeft, mContentTop, mContentRight, mContentBottom);
     }
 
+    @Override
+    public void getStableRectLw(Rect r) {
+        r.set(mStableLeft, mStableTop, mStableRight, mStableBottom);
+    }
+
+    @Override
+    public void getDockRectLw(Rect r) {
+        r.set(mDockLeft, mDockTop, mDockRight, mDockBottom);
+    }
+
+    @Override
+    public int getLastSystemUiFlagsLw() {
+        return mLastSystemUiFlags;
+    }
+
     void setAttachedWindowFrames(WindowState win, int fl, int adjust, WindowState attached,
             boolean insetDecors, Rect pf, Rect df, Rect of, Rect cf, Rect vf) {
         if (win.getSurfaceLayer() > mDockLayer && attached.getSurfaceLayer() < mDockLayer) {
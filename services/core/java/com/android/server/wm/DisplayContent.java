@@ -44,14 +44,17 @@ import static android.view.WindowManager.LayoutParams.PRIVATE_FLAG_KEYGUARD;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_STARTING;
 import static android.view.WindowManager.LayoutParams.TYPE_BOOT_PROGRESS;
+import static android.view.WindowManager.LayoutParams.TYPE_DOCK_DIVIDER;
 import static android.view.WindowManager.LayoutParams.TYPE_DRAWN_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_DREAM;
 import static android.view.WindowManager.LayoutParams.TYPE_INPUT_METHOD;
 import static android.view.WindowManager.LayoutParams.TYPE_INPUT_METHOD_DIALOG;
+import static android.view.WindowManager.LayoutParams.TYPE_NAVIGATION_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_STATUS_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_DIALOG;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_ERROR;
 import static android.view.WindowManager.LayoutParams.TYPE_TOAST;
+import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 import static android.view.WindowManager.LayoutParams.TYPE_WALLPAPER;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_CONFIG;
@@ -177,6 +180,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    /** Whether the layout in progress only lays out the windows that changed. */
+    private boolean mTmpIncrementalLayout;
+    private int mTmpLaidOutCount;
+    private int mTmpLayoutSkippedCount;
+    private int mTmpSurfaceChangesCount;
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -271,6 +279,30 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+
+    /**
+     * Whether the next layout must lay out every window rather than only those that changed since
+     * the previous one. Set by {@link #setLayoutNeeded}, but not by
+     * {@link #setWindowLayoutNeeded} which only marks the window that changed.
+     */
+    private boolean mFullLayoutNeeded = true;
+
+    /**
+     * The inputs of the last layout that all windows depend on; if any changes, all windows are
+     * laid out again.
+     */
+    private final Rect mLastLayoutContentRect = new Rect();
+    private final Rect mLastLayoutStableRect = new Rect();
+    private final Rect mLastLayoutDockRect = new Rect();
+    private int mLastLayoutSystemUiFlags;
+    private int mLastLayoutWidth;
+    private int mLastLayoutHeight;
+    private int mLastLayoutRotation;
+    private int mLastLayoutUiMode;
+    private boolean mLastLayoutKeyguardShowing;
+    private boolean mLastLayoutKeyguardOccluded;
+    private WindowState mLastLayoutFocus;
+    private WindowState mLastLayoutImeTarget;
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -497,6 +529,15 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w))
                 || w.isGoneForLayoutLw();
+        boolean goneChanged = false;
+        if (!w.mLayoutAttached) {
+            goneChanged = gone != w.mLayoutGone;
+            w.mLayoutGone = gone;
+            if (goneChanged && affectsOtherWindowsLayout(w)) {
+                // The windows below were laid out around this one.
+                mTmpIncrementalLayout = false;
+            }
+        }
 
         if (DEBUG_LAYOUT && !w.mLayoutAttached) {
             Slog.v(TAG, "1ST PASS " + w + ": gone=" + gone + " mHaveFrame=" + w.mHaveFrame
@@ -532,11 +573,29 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     // the status bar we won't get a bad transition when it goes away.
                     mTmpWindow = w;
                 }
+                if (!goneChanged && canSkipLayout(w)) {
+                    // Nothing the frame depends on changed, it is still valid for this layout.
+                    w.mLayoutSeq = mService.mLayoutSeq;
+                    mTmpLayoutSkippedCount++;
+                    return;
+                }
+                final boolean affectsOthers = affectsOtherWindowsLayout(w);
+                final boolean wasDirty = w.mLayoutDirty;
+                if (affectsOthers) {
+                    mTmpRect.set(w.mFrame);
+                }
                 w.mLayoutNeeded = false;
+                w.mLayoutDirty = false;
                 w.prelayout();
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                w.mLayoutComputedSeq = mService.mLayoutSeq;
+                mTmpLaidOutCount++;
+                if (affectsOthers && (wasDirty || !mTmpRect.equals(w.mFrame))) {
+                    // Windows below may have been laid out around the old frame or insets.
+                    mTmpIncrementalLayout = false;
+                }
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -568,16 +627,28 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             if (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w)) {
                 return;
             }
-            if ((w.mViewVisibility != GONE && w.mRelayoutCalled) || !w.mHaveFrame
-                    || w.mLayoutNeeded) {
+            final boolean gone = w.mViewVisibility == GONE || !w.mRelayoutCalled;
+            final boolean goneChanged = gone != w.mLayoutGone;
+            w.mLayoutGone = gone;
+            if (!gone || !w.mHaveFrame || w.mLayoutNeeded) {
                 if (mTmpInitial) {
                     //Slog.i(TAG, "Window " + this + " clearing mContentChanged - initial");
                     w.mContentChanged = false;
                 }
+                if (!goneChanged && canSkipLayout(w)
+                        && w.getParentWindow().mLayoutComputedSeq != mService.mLayoutSeq) {
+                    // Neither this window nor the one it is attached to changed.
+                    w.mLayoutSeq = mService.mLayoutSeq;
+                    mTmpLayoutSkippedCount++;
+                    return;
+                }
                 w.mLayoutNeeded = false;
+                w.mLayoutDirty = false;
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                w.mLayoutComputedSeq = mService.mLayoutSeq;
+                mTmpLaidOutCount++;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -600,6 +671,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     mService.mInputMethodTarget);
 
     private final Consumer<WindowState> mApplySurfaceChangesTransaction = w -> {
+        mTmpSurfaceChangesCount++;
         final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
         final boolean obscuredChanged = w.mObscured !=
                 mTmpApplySurfaceChangesTransactionState.obscured;
@@ -2486,6 +2558,78 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     void setLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = true;
+        mFullLayoutNeeded = true;
+    }
+
+    /**
+     * Like {@link #setLayoutNeeded}, for a change that only affects the layout of the given
+     * window, so that the next layout can leave alone the windows that didn't change.
+     */
+    void setWindowLayoutNeeded(WindowState w) {
+        if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setWindowLayoutNeeded: " + w + " callers="
+                + Debug.getCallers(3));
+        mLayoutNeeded = true;
+        w.mLayoutDirty = true;
+    }
+
+    /**
+     * Returns whether the window's last frame is still valid in the layout in progress: neither
+     * the window nor anything all windows depend on changed since it was computed.
+     */
+    private boolean canSkipLayout(WindowState w) {
+        return mTmpIncrementalLayout && !w.mLayoutDirty && !w.mLayoutNeeded && w.mHaveFrame
+                && w.isLaidOut() && !affectsOtherWindowsLayout(w) && !w.isConfigChanged();
+    }
+
+    /**
+     * Returns whether laying out the window changes the policy state the windows below it are
+     * laid out with, so that it is always laid out and a change to it means the windows below
+     * are laid out again too.
+     */
+    private static boolean affectsOtherWindowsLayout(WindowState w) {
+        final int type = w.mAttrs.type;
+        return type == TYPE_STATUS_BAR || type == TYPE_NAVIGATION_BAR
+                || type == TYPE_INPUT_METHOD || type == TYPE_INPUT_METHOD_DIALOG
+                || type == TYPE_VOICE_INTERACTION || type == TYPE_DREAM
+                || type == TYPE_DOCK_DIVIDER
+                || (w.mAttrs.privateFlags & PRIVATE_FLAG_KEYGUARD) != 0;
+    }
+
+    /**
+     * Records the inputs of the layout in progress that all windows depend on.
+     *
+     * @return whether they are the same as in the previous layout
+     */
+    private boolean updateLayoutInputs(int dw, int dh) {
+        final int uiMode = getConfiguration().uiMode;
+        final boolean keyguardShowing = mService.mPolicy.isKeyguardShowingAndNotOccluded();
+        final boolean keyguardOccluded = mService.mPolicy.isKeyguardOccluded();
+        final int systemUiFlags = mService.mPolicy.getLastSystemUiFlagsLw();
+        mService.mPolicy.getStableRectLw(mTmpRect);
+        mService.mPolicy.getDockRectLw(mTmpRect2);
+        final boolean same = dw == mLastLayoutWidth && dh == mLastLayoutHeight
+                && mRotation == mLastLayoutRotation && uiMode == mLastLayoutUiMode
+                && mContentRect.equals(mLastLayoutContentRect)
+                && mTmpRect.equals(mLastLayoutStableRect)
+                && mTmpRect2.equals(mLastLayoutDockRect)
+                && systemUiFlags == mLastLayoutSystemUiFlags
+                && keyguardShowing == mLastLayoutKeyguardShowing
+                && keyguardOccluded == mLastLayoutKeyguardOccluded
+                && mService.mCurrentFocus == mLastLayoutFocus
+                && mService.mInputMethodTarget == mLastLayoutImeTarget;
+        mLastLayoutWidth = dw;
+        mLastLayoutHeight = dh;
+        mLastLayoutRotation = mRotation;
+        mLastLayoutUiMode = uiMode;
+        mLastLayoutContentRect.set(mContentRect);
+        mLastLayoutStableRect.set(mTmpRect);
+        mLastLayoutDockRect.set(mTmpRect2);
+        mLastLayoutSystemUiFlags = systemUiFlags;
+        mLastLayoutKeyguardShowing = keyguardShowing;
+        mLastLayoutKeyguardOccluded = keyguardOccluded;
+        mLastLayoutFocus = mService.mCurrentFocus;
+        mLastLayoutImeTarget = mService.mInputMethodTarget;
+        return same;
     }
 
     private void clearLayoutNeeded() {
@@ -2776,12 +2920,18 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                         "after finishPostLayoutPolicyLw", pendingLayoutChanges);
             }
         } while (pendingLayoutChanges != 0);
+        final SurfacePlacementStats stats = mService.mRoot.mPlacementStats;
+        stats.noteLayoutRepeats(repeats);
 
         mTmpApplySurfaceChangesTransactionState.reset();
         resetDimming();
 
         mTmpRecoveringMemory = recoveringMemory;
+        final long surfaceChangesStart = SystemClock.elapsedRealtimeNanos();
+        mTmpSurfaceChangesCount = 0;
         forAllWindows(mApplySurfaceChangesTransaction, true /* traverseTopToBottom */);
+        stats.noteSurfaceChanges(mTmpSurfaceChangesCount,
+                SystemClock.elapsedRealtimeNanos() - surfaceChangesStart);
 
         mService.mDisplayManagerInternal.setDisplayProperties(mDisplayId,
                 mTmpApplySurfaceChangesTransactionState.displayHasContent,
@@ -2835,6 +2985,14 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         if (seq < 0) seq = 0;
         mService.mLayoutSeq = seq;
 
+        final long layoutStart = SystemClock.elapsedRealtimeNanos();
+        final boolean inputsUnchanged = updateLayoutInputs(dw, dh);
+        mTmpIncrementalLayout = !mFullLayoutNeeded && inputsUnchanged;
+        final boolean incremental = mTmpIncrementalLayout;
+        mFullLayoutNeeded = false;
+        mTmpLaidOutCount = 0;
+        mTmpLayoutSkippedCount = 0;
+
         // Used to indicate that we have processed the dream window and all additional windows are
         // behind it.
         mTmpWindow = null;
@@ -2852,6 +3010,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // window they are attached to. XXX does not deal with windows that are attached to windows
         // that are themselves attached.
         forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        mService.mRoot.mPlacementStats.noteLayout(incremental, mTmpLaidOutCount,
+                mTmpLayoutSkippedCount, SystemClock.elapsedRealtimeNanos() - layoutStart);
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
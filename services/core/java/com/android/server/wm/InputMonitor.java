@@ -81,6 +81,19 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    // Window handles last provided to the input dispatcher, to tell whether the next ones are
+    // any different.
+    private InputWindowHandle[] mSentInputWindowHandles;
+    private int mSentInputWindowHandleCount;
+    private InputWindowHandle mSentFocusedInputWindowHandle;
+
+    // How often the window handles were rebuilt, how often they turned out to be the same as
+    // the ones the input dispatcher already had, and how many handles were sent and changed.
+    private long mInputWindowsUpdates;
+    private long mInputWindowsUpdatesSkipped;
+    private long mInputWindowHandlesSent;
+    private long mInputWindowHandlesChanged;
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -348,6 +361,48 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         mFocusedInputWindowHandle = null;
     }
 
+    /**
+     * Provides the window handles to the input dispatcher, unless they are the same ones in the
+     * same order and with the same values as the ones it already has.  The native handles only
+     * read the values of the handles that changed.
+     */
+    private void sendInputWindowsLw() {
+        mInputWindowsUpdates++;
+        boolean changed = mInputWindowHandleCount != mSentInputWindowHandleCount
+                || mFocusedInputWindowHandle != mSentFocusedInputWindowHandle;
+        int changedHandles = 0;
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            final InputWindowHandle windowHandle = mInputWindowHandles[i];
+            // Every handle must be updated, it tells the native handle whether to read it again.
+            if (windowHandle.updateSentState()) {
+                changedHandles++;
+                changed = true;
+            } else if (!changed && mSentInputWindowHandles[i] != windowHandle) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            mInputWindowsUpdatesSkipped++;
+            return;
+        }
+        mInputWindowHandlesSent += mInputWindowHandleCount;
+        mInputWindowHandlesChanged += changedHandles;
+
+        mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+
+        if (mSentInputWindowHandles == null
+                || mSentInputWindowHandles.length < mInputWindowHandleCount) {
+            mSentInputWindowHandles = new InputWindowHandle[mInputWindowHandles.length];
+        }
+        System.arraycopy(mInputWindowHandles, 0, mSentInputWindowHandles, 0,
+                mInputWindowHandleCount);
+        for (int i = mInputWindowHandleCount; i < mSentInputWindowHandleCount; i++) {
+            mSentInputWindowHandles[i] = null;
+        }
+        mSentInputWindowHandleCount = mInputWindowHandleCount;
+        mSentFocusedInputWindowHandle = mFocusedInputWindowHandle;
+    }
+
     void setUpdateInputWindowsNeededLw() {
         mUpdateInputWindowsNeeded = true;
     }
@@ -589,6 +644,10 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         if (mInputFreezeReason != null) {
             pw.println(prefix + "mInputFreezeReason=" + mInputFreezeReason);
         }
+        pw.println(prefix + "Input window updates: count=" + mInputWindowsUpdates
+                + " skipped=" + mInputWindowsUpdatesSkipped
+                + " handlesSent=" + mInputWindowHandlesSent
+                + " handlesChanged=" + mInputWindowHandlesChanged);
         final Set<String> inputConsumerKeys = mInputConsumers.keySet();
         if (!inputConsumerKeys.isEmpty()) {
             pw.println(prefix + "InputConsumers:");
@@ -629,7 +688,7 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
             }
 
             // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+            sendInputWindowsLw();
 
             clearInputWindowHandlesLw();
         }
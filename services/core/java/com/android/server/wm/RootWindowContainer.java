@@ -128,6 +128,9 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
 
     private final ArrayList<Integer> mChangedStackList = new ArrayList();
 
+    /** Work done by {@link #performSurfacePlacement}, for dumpsys. */
+    final SurfacePlacementStats mPlacementStats = new SurfacePlacementStats();
+
     // State for the RemoteSurfaceTrace system used in testing. If this is enabled SurfaceControl
     // instances will be replaced with an instance that writes a binary representation of all
     // commands to mSurfaceTraceFd.
@@ -563,6 +566,7 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
     void performSurfacePlacement(boolean recoveringMemory) {
         if (DEBUG_WINDOW_TRACE) Slog.v(TAG, "performSurfacePlacementInner: entry. Called by "
                 + Debug.getCallers(3));
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
 
         int i;
         boolean updateInputWindowsNeeded = false;
@@ -823,6 +827,7 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
 
         mService.scheduleAnimationLocked();
         mService.mWindowPlacerLocked.destroyPendingSurfaces();
+        mPlacementStats.notePass(SystemClock.elapsedRealtimeNanos() - startNanos);
 
         if (DEBUG_WINDOW_TRACE) Slog.e(TAG,
                 "performSurfacePlacementInner exit: animating=" + mService.mAnimator.isAnimating());
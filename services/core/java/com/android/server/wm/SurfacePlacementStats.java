@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import java.io.PrintWriter;
+
+/**
+ * How much work the surface placement passes of {@link RootWindowContainer} do: how many windows
+ * each layout lays out or finds still valid, how many windows the surface changes visit, how
+ * often the layout is repeated, and the time all of it takes. Shown by
+ * {@code dumpsys window layout}. All methods must be called with the window manager lock held.
+ */
+class SurfacePlacementStats {
+
+    /** Layout repeat counts beyond this one are counted together. */
+    private static final int MAX_REPEATS = 7;
+
+    private long mPasses;
+    private long mPassNanos;
+    private long mMaxPassNanos;
+
+    private long mFullLayouts;
+    private long mIncrementalLayouts;
+    private long mWindowsLaidOut;
+    private long mWindowsSkipped;
+    private long mLayoutNanos;
+
+    private long mSurfaceChanges;
+    private long mSurfaceChangesWindows;
+    private long mSurfaceChangesNanos;
+
+    private final long[] mRepeats = new long[MAX_REPEATS + 1];
+
+    /** Totals of the pass in progress, kept for the last pass once it is done. */
+    private int mPassLayouts;
+    private int mPassLaidOut;
+    private int mPassSkipped;
+    private int mPassSurfaceWindows;
+    private int mLastPassLayouts;
+    private int mLastPassLaidOut;
+    private int mLastPassSkipped;
+    private int mLastPassSurfaceWindows;
+    private long mLastPassNanos;
+
+    void noteLayout(boolean incremental, int laidOut, int skipped, long durationNanos) {
+        if (incremental) {
+            mIncrementalLayouts++;
+        } else {
+            mFullLayouts++;
+        }
+        mWindowsLaidOut += laidOut;
+        mWindowsSkipped += skipped;
+        mLayoutNanos += durationNanos;
+        mPassLayouts++;
+        mPassLaidOut += laidOut;
+        mPassSkipped += skipped;
+    }
+
+    void noteLayoutRepeats(int repeats) {
+        mRepeats[Math.min(repeats, MAX_REPEATS)]++;
+    }
+
+    void noteSurfaceChanges(int windows, long durationNanos) {
+        mSurfaceChanges++;
+        mSurfaceChangesWindows += windows;
+        mSurfaceChangesNanos += durationNanos;
+        mPassSurfaceWindows += windows;
+    }
+
+    void notePass(long durationNanos) {
+        mPasses++;
+        mPassNanos += durationNanos;
+        if (durationNanos > mMaxPassNanos) {
+            mMaxPassNanos = durationNanos;
+        }
+        mLastPassLayouts = mPassLayouts;
+        mLastPassLaidOut = mPassLaidOut;
+        mLastPassSkipped = mPassSkipped;
+        mLastPassSurfaceWindows = mPassSurfaceWindows;
+        mLastPassNanos = durationNanos;
+        mPassLayouts = 0;
+        mPassLaidOut = 0;
+        mPassSkipped = 0;
+        mPassSurfaceWindows = 0;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Surface placement:");
+        pw.print(prefix); pw.print("  passes="); pw.print(mPasses);
+        pw.print(" avg="); pw.print(mPasses > 0 ? mPassNanos / mPasses / 1000 : 0);
+        pw.print("us max="); pw.print(mMaxPassNanos / 1000); pw.println("us");
+        final long layouts = mFullLayouts + mIncrementalLayouts;
+        pw.print(prefix); pw.print("  layouts: full="); pw.print(mFullLayouts);
+        pw.print(" incremental="); pw.print(mIncrementalLayouts);
+        pw.print(" laidOut="); pw.print(mWindowsLaidOut);
+        pw.print(" skipped="); pw.print(mWindowsSkipped);
+        pw.print(" avg="); pw.print(layouts > 0 ? mLayoutNanos / layouts / 1000 : 0);
+        pw.println("us");
+        pw.print(prefix); pw.print("  surface changes: count="); pw.print(mSurfaceChanges);
+        pw.print(" windows="); pw.print(mSurfaceChangesWindows);
+        pw.print(" avg=");
+        pw.print(mSurfaceChanges > 0 ? mSurfaceChangesNanos / mSurfaceChanges / 1000 : 0);
+        pw.println("us");
+        pw.print(prefix); pw.print("  layout repeats:");
+        for (int i = 1; i <= MAX_REPEATS; i++) {
+            pw.print(" "); pw.print(i); pw.print(i == MAX_REPEATS ? "+=" : "=");
+            pw.print(mRepeats[i]);
+        }
+        pw.println();
+        pw.print(prefix); pw.print("  last pass: layouts="); pw.print(mLastPassLayouts);
+        pw.print(" laidOut="); pw.print(mLastPassLaidOut);
+        pw.print(" skipped="); pw.print(mLastPassSkipped);
+        pw.print(" surfaceWindows="); pw.print(mLastPassSurfaceWindows);
+        pw.print(" took="); pw.print(mLastPassNanos / 1000); pw.println("us");
+    }
+}
@@ -16,30 +16,69 @@
 
 package com.android.server.wm;
 
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.graphics.Rect;
 import android.util.ArrayMap;
-import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * The snapshots are kept within a budget of bytes. Once over it, the least recently used ones are
+ * first replaced by their reduced resolution variant, then by its JPEG, which the persister hands
+ * back once it has written the snapshot, and dropped last. Smaller variants are brought back to
+ * the resolution asked for when the snapshot is requested again.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Bytes of snapshots to keep in memory at most, unless they haven't been persisted yet. */
+    @VisibleForTesting
+    static final long DEFAULT_BUDGET_BYTES =
+            (ActivityManager.isLowRamDeviceStatic() ? 12 : 48) * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final ArrayList<CacheEntry> mTmpEntries = new ArrayList<>();
+    private final long mBudgetBytes;
+
+    /** Increases with each use of an entry, to find the least recently used ones. */
+    private long mUseSeq;
+
+    private int mLastTrimLevel;
+    private long mFullDropped;
+    private long mReducedDropped;
+    private long mEvicted;
+    private long mDecoded;
+    private long mUpgraded;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, DEFAULT_BUDGET_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader, long budgetBytes) {
         mService = service;
         mLoader = loader;
+        mBudgetBytes = budgetBytes;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
@@ -49,7 +88,31 @@ class TaskSnapshotCache {
         }
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        final CacheEntry newEntry = new CacheEntry(snapshot, task.getTopChild());
+        newEntry.lastUsed = ++mUseSeq;
+        mRunningCache.put(task.mTaskId, newEntry);
+        trimToSizeLocked(mBudgetBytes, false /* dropUnpersisted */);
+    }
+
+    /**
+     * Called when the persister has written a snapshot, from its thread. The persister runs at
+     * background priority, so rather than contending for the window manager lock there, the
+     * handoff is posted to the window manager handler.
+     *
+     * @param reducedJpeg The reduced resolution variant of the snapshot, kept as the smallest
+     *                    variant if the snapshot is still the cached one.
+     */
+    void onSnapshotPersisted(int taskId, TaskSnapshot snapshot, byte[] reducedJpeg) {
+        mService.mH.post(() -> {
+            synchronized (mService.mWindowMap) {
+                final CacheEntry entry = mRunningCache.get(taskId);
+                if (entry == null || entry.snapshot != snapshot) {
+                    return;
+                }
+                entry.compressed = reducedJpeg;
+                trimToSizeLocked(mBudgetBytes, false /* dropUnpersisted */);
+            }
+        });
     }
 
     /**
@@ -58,19 +121,65 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean reducedResolution) {
 
+        final CacheEntry entry;
+        final TaskSnapshot reducedSnapshot;
+        final byte[] compressed;
         synchronized (mService.mWindowMap) {
             // Try the running cache.
-            final CacheEntry entry = mRunningCache.get(taskId);
+            entry = mRunningCache.get(taskId);
             if (entry != null) {
-                return entry.snapshot;
+                entry.lastUsed = ++mUseSeq;
+                if (entry.snapshot != null) {
+                    return entry.snapshot;
+                }
+                if (entry.reducedSnapshot != null && (reducedResolution || !restoreFromDisk)) {
+                    return entry.reducedSnapshot;
+                }
+            }
+            if (!restoreFromDisk) {
+                return null;
             }
+            reducedSnapshot = entry != null ? entry.reducedSnapshot : null;
+            compressed = entry != null ? entry.compressed : null;
         }
 
-        // Try to restore from disk if asked.
-        if (!restoreFromDisk) {
+        if (entry == null) {
+            return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        }
+
+        // Only a smaller variant is in memory, bring back the resolution asked for.
+        if (!reducedResolution) {
+            final TaskSnapshot snapshot = tryRestoreFromDisk(taskId, userId,
+                    false /* reducedResolution */);
+            if (snapshot != null) {
+                synchronized (mService.mWindowMap) {
+                    if (mRunningCache.get(taskId) == entry && entry.snapshot == null) {
+                        entry.snapshot = snapshot;
+                        mUpgraded++;
+                        trimToSizeLocked(mBudgetBytes, false /* dropUnpersisted */);
+                    }
+                }
+                return snapshot;
+            }
+            if (reducedSnapshot != null) {
+                return reducedSnapshot;
+            }
+        }
+        if (compressed == null) {
             return null;
         }
-        return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        final TaskSnapshot snapshot = mLoader.decodeReducedSnapshot(taskId, compressed,
+                entry.orientation, entry.contentInsets);
+        if (snapshot != null) {
+            synchronized (mService.mWindowMap) {
+                if (mRunningCache.get(taskId) == entry && entry.reducedSnapshot == null) {
+                    entry.reducedSnapshot = snapshot;
+                    mDecoded++;
+                    trimToSizeLocked(mBudgetBytes, false /* dropUnpersisted */);
+                }
+            }
+        }
+        return snapshot;
     }
 
     /**
@@ -108,6 +217,25 @@ class TaskSnapshotCache {
         removeRunningEntry(taskId);
     }
 
+    /**
+     * Called when the system is asked to trim its memory, see
+     * {@link android.content.ComponentCallbacks2#onTrimMemory}. Shrinks the cache below its
+     * budget for the level; it grows back to the full budget as snapshots are used again.
+     */
+    void onTrimMemory(int level) {
+        mLastTrimLevel = level;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            // Everything can be restored from disk, or will be shortly.
+            trimToSizeLocked(0, true /* dropUnpersisted */);
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSizeLocked(0, false /* dropUnpersisted */);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSizeLocked(mBudgetBytes / 4, false /* dropUnpersisted */);
+        } else if (level == TRIM_MEMORY_RUNNING_MODERATE || level == TRIM_MEMORY_UI_HIDDEN) {
+            trimToSizeLocked(mBudgetBytes / 2, false /* dropUnpersisted */);
+        }
+    }
+
     private void removeRunningEntry(int taskId) {
         final CacheEntry entry = mRunningCache.get(taskId);
         if (entry != null) {
@@ -116,29 +244,126 @@ class TaskSnapshotCache {
         }
     }
 
+    /**
+     * Replaces the least recently used snapshots by smaller variants, and then drops them, until
+     * the cache takes less than {@param maxBytes}. Snapshots that haven't been persisted yet have
+     * no smaller variant and are only dropped if {@param dropUnpersisted} is true.
+     */
+    private void trimToSizeLocked(long maxBytes, boolean dropUnpersisted) {
+        long size = getSizeLocked();
+        if (size <= maxBytes) {
+            return;
+        }
+        mTmpEntries.clear();
+        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+            mTmpEntries.add(mRunningCache.valueAt(i));
+        }
+        mTmpEntries.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+
+        // Full resolution snapshots first, as they are the largest.
+        for (int i = 0; i < mTmpEntries.size() && size > maxBytes; i++) {
+            final CacheEntry entry = mTmpEntries.get(i);
+            if (entry.snapshot != null && (entry.reducedSnapshot != null
+                    || entry.compressed != null)) {
+                size -= getSize(entry.snapshot);
+                entry.snapshot = null;
+                mFullDropped++;
+            }
+        }
+        for (int i = 0; i < mTmpEntries.size() && size > maxBytes; i++) {
+            final CacheEntry entry = mTmpEntries.get(i);
+            if (entry.reducedSnapshot != null && entry.compressed != null) {
+                size -= getSize(entry.reducedSnapshot);
+                entry.reducedSnapshot = null;
+                mReducedDropped++;
+            }
+        }
+        for (int i = 0; i < mTmpEntries.size() && size > maxBytes; i++) {
+            final CacheEntry entry = mTmpEntries.get(i);
+            if (entry.compressed != null || dropUnpersisted) {
+                size -= entry.getSize();
+                removeRunningEntry(mRunningCache.keyAt(mRunningCache.indexOfValue(entry)));
+                mEvicted++;
+            }
+        }
+        mTmpEntries.clear();
+    }
+
+    private long getSizeLocked() {
+        long size = 0;
+        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+            size += mRunningCache.valueAt(i).getSize();
+        }
+        return size;
+    }
+
+    private static long getSize(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        if (buffer == null || buffer.isDestroyed()) {
+            return 0;
+        }
+        // Snapshots are screenshots or hardware bitmaps, both RGBA_8888.
+        return (long) buffer.getWidth() * buffer.getHeight() * 4;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        pw.println(doublePrefix + "size=" + getSizeLocked() + " budget=" + mBudgetBytes
+                + " lastTrimLevel=" + mLastTrimLevel);
+        pw.println(doublePrefix + "fullDropped=" + mFullDropped
+                + " reducedDropped=" + mReducedDropped + " evicted=" + mEvicted
+                + " decoded=" + mDecoded + " upgraded=" + mUpgraded);
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
+            pw.println(triplePrefix + "reducedSnapshot=" + entry.reducedSnapshot);
+            pw.println(triplePrefix + "compressedBytes="
+                    + (entry.compressed != null ? entry.compressed.length : 0)
+                    + " size=" + entry.getSize() + " lastUsed=" + entry.lastUsed);
         }
     }
 
     private static final class CacheEntry {
 
-        /** The snapshot. */
-        final TaskSnapshot snapshot;
+        /** The snapshot, null once replaced by a smaller variant. */
+        TaskSnapshot snapshot;
+
+        /** The reduced resolution variant, decoded from {@link #compressed} when needed. */
+        TaskSnapshot reducedSnapshot;
+
+        /** The reduced resolution variant as written to disk, once it has been. */
+        byte[] compressed;
+
+        /** The orientation and insets of the snapshot, to restore it from its variants. */
+        final int orientation;
+        final Rect contentInsets;
 
         /** The app token that was on top of the task when the snapshot was taken */
         final AppWindowToken topApp;
 
+        /** When the entry was last used, see {@link #mUseSeq}. */
+        long lastUsed;
+
         CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            orientation = snapshot.getOrientation();
+            contentInsets = new Rect(snapshot.getContentInsets());
+        }
+
+        long getSize() {
+            long size = compressed != null ? compressed.length : 0;
+            if (snapshot != null) {
+                size += TaskSnapshotCache.getSize(snapshot);
+            }
+            if (reducedSnapshot != null) {
+                size += TaskSnapshotCache.getSize(reducedSnapshot);
+            }
+            return size;
         }
     }
 }
@@ -81,18 +81,48 @@ class TaskSnapshotLoader {
                 Slog.w(TAG, "Failed to load bitmap: " + bitmapFile.getPath());
                 return null;
             }
-            final GraphicBuffer buffer = bitmap.createGraphicBufferHandle();
-            if (buffer == null) {
-                Slog.w(TAG, "Failed to retrieve gralloc buffer for bitmap: "
-                        + bitmapFile.getPath());
-                return null;
-            }
-            return new TaskSnapshot(buffer, proto.orientation,
+            return createSnapshot(bitmap, bitmapFile.getPath(), proto.orientation,
                     new Rect(proto.insetLeft, proto.insetTop, proto.insetRight, proto.insetBottom),
-                    reducedResolution, reducedResolution ? REDUCED_SCALE : 1f);
+                    reducedResolution);
         } catch (IOException e) {
             Slog.w(TAG, "Unable to load task snapshot data for taskId=" + taskId);
             return null;
         }
     }
+
+    /**
+     * Decodes the compressed reduced resolution variant of a snapshot the cache keeps in memory.
+     * <p>
+     * Do not hold the window manager lock when calling this method, decoding the image might be
+     * slow.
+     *
+     * @param taskId The id of the task the snapshot belongs to, for logging.
+     * @param jpeg The compressed image, as written by {@link TaskSnapshotPersister}.
+     * @param orientation The orientation of the snapshot.
+     * @param contentInsets The content insets of the snapshot.
+     * @return The decoded {@link TaskSnapshot} or {@code null} if it couldn't be decoded.
+     */
+    TaskSnapshot decodeReducedSnapshot(int taskId, byte[] jpeg, int orientation,
+            Rect contentInsets) {
+        final Options options = new Options();
+        options.inPreferredConfig = Config.HARDWARE;
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            Slog.w(TAG, "Failed to decode cached bitmap for taskId=" + taskId);
+            return null;
+        }
+        return createSnapshot(bitmap, "taskId=" + taskId, orientation, new Rect(contentInsets),
+                true /* reducedResolution */);
+    }
+
+    private static TaskSnapshot createSnapshot(Bitmap bitmap, String source, int orientation,
+            Rect contentInsets, boolean reducedResolution) {
+        final GraphicBuffer buffer = bitmap.createGraphicBufferHandle();
+        if (buffer == null) {
+            Slog.w(TAG, "Failed to retrieve gralloc buffer for bitmap: " + source);
+            return null;
+        }
+        return new TaskSnapshot(buffer, orientation, contentInsets, reducedResolution,
+                reducedResolution ? REDUCED_SCALE : 1f);
+    }
 }
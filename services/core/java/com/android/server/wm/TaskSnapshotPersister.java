@@ -37,6 +37,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.AtomicFile;
 import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -72,6 +73,7 @@ class TaskSnapshotPersister {
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
+    private PersistListener mPersistListener;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -84,6 +86,14 @@ class TaskSnapshotPersister {
         mDirectoryResolver = resolver;
     }
 
+    /**
+     * Sets the listener to be told about each snapshot written. Must be called before any snapshot
+     * is persisted.
+     */
+    void setPersistListener(PersistListener listener) {
+        mPersistListener = listener;
+    }
+
     /**
      * Starts persisting.
      */
@@ -219,6 +229,18 @@ class TaskSnapshotPersister {
         File getSystemDirectoryForUser(int userId);
     }
 
+    interface PersistListener {
+
+        /**
+         * Called on the persister thread once a snapshot has been written.
+         *
+         * @param taskId The id of the task the snapshot belongs to.
+         * @param snapshot The snapshot that was written.
+         * @param reducedJpeg The reduced resolution variant of the snapshot, as written.
+         */
+        void onSnapshotPersisted(int taskId, TaskSnapshot snapshot, byte[] reducedJpeg);
+    }
+
     private Thread mPersister = new Thread("TaskSnapshotPersister") {
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -301,11 +323,14 @@ class TaskSnapshotPersister {
             if (!writeProto()) {
                 failed = true;
             }
-            if (!writeBuffer()) {
+            final byte[] reducedJpeg = writeBuffer();
+            if (reducedJpeg == null) {
                 failed = true;
             }
             if (failed) {
                 deleteSnapshot(mTaskId, mUserId);
+            } else if (mPersistListener != null) {
+                mPersistListener.onSnapshotPersisted(mTaskId, mSnapshot, reducedJpeg);
             }
         }
 
@@ -332,11 +357,14 @@ class TaskSnapshotPersister {
             return true;
         }
 
-        boolean writeBuffer() {
+        /**
+         * @return the reduced resolution variant as written, or {@code null} if writing failed
+         */
+        byte[] writeBuffer() {
             final Bitmap bitmap = Bitmap.createHardwareBitmap(mSnapshot.getSnapshot());
             if (bitmap == null) {
                 Slog.e(TAG, "Invalid task snapshot hw bitmap");
-                return false;
+                return null;
             }
 
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
@@ -346,18 +374,22 @@ class TaskSnapshotPersister {
                     : Bitmap.createScaledBitmap(swBitmap,
                             (int) (bitmap.getWidth() * REDUCED_SCALE),
                             (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
+            // Compressed in memory first, the cache keeps it as the smallest variant.
+            final ByteArrayOutputStream reducedJpeg = new ByteArrayOutputStream();
+            reduced.compress(JPEG, QUALITY, reducedJpeg);
+            final byte[] reducedBytes = reducedJpeg.toByteArray();
             try {
                 FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
+                reducedFos.write(reducedBytes);
                 reducedFos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
-                return false;
+                return null;
             }
 
             // For snapshots with reduced resolution, do not create or save full sized bitmaps
             if (mSnapshot.isReducedResolution()) {
-                return true;
+                return reducedBytes;
             }
 
             final File file = getBitmapFile(mTaskId, mUserId);
@@ -367,9 +399,9 @@ class TaskSnapshotPersister {
                 fos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
-                return false;
+                return null;
             }
-            return true;
+            return reducedBytes;
         }
     }
 
@@ -6686,6 +6686,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 pw.print("  mInputMethodWindow="); pw.println(mInputMethodWindow);
             }
             mWindowPlacerLocked.dump(pw, "  ");
+            mRoot.mPlacementStats.dump(pw, "  ");
             mRoot.mWallpaperController.dump(pw, "  ");
             pw.print("  mSystemBooted="); pw.print(mSystemBooted);
                     pw.print(" mDisplayEnabled="); pw.println(mDisplayEnabled);
@@ -6827,6 +6828,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 pw.println("    d[isplays]: active display contents");
                 pw.println("    t[okens]: token list");
                 pw.println("    w[indows]: window list");
+                pw.println("    layout: surface placement and layout work");
                 pw.println("  cmd may also be a NAME to dump windows.  NAME may");
                 pw.println("    be a partial substring in a window name, a");
                 pw.println("    Window hex object identifier, or");
@@ -6889,6 +6891,11 @@ public class WindowManagerService extends IWindowManager.Stub
                     dumpWindowsLocked(pw, true, null);
                 }
                 return;
+            } else if ("layout".equals(cmd)) {
+                synchronized(mWindowMap) {
+                    mRoot.mPlacementStats.dump(pw, "");
+                }
+                return;
             } else if ("containers".equals(cmd)) {
                 synchronized(mWindowMap) {
                     StringBuilder output = new StringBuilder();
@@ -427,6 +427,22 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
      */
     boolean mLayoutNeeded;
 
+    /**
+     * Set when something this window's frame depends on changed since it was last computed, so
+     * that an incremental layout of the display doesn't leave the window out.
+     * @see DisplayContent#setWindowLayoutNeeded
+     */
+    boolean mLayoutDirty;
+
+    /** Whether the window was gone for layout when the display was last laid out. */
+    boolean mLayoutGone;
+
+    /**
+     * The layout sequence in which the frame was last computed, rather than found to be still
+     * valid like {@link #mLayoutSeq} also records.
+     */
+    int mLayoutComputedSeq = -1;
+
     /** Currently running an exit animation? */
     boolean mAnimatingExit;
 
@@ -2216,7 +2232,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     void setDisplayLayoutNeeded() {
         final DisplayContent dc = getDisplayContent();
         if (dc != null) {
-            dc.setLayoutNeeded();
+            dc.setWindowLayoutNeeded(this);
         }
     }
 
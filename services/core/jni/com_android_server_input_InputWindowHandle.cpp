@@ -54,6 +54,7 @@ static struct {
     jfieldID ownerUid;
     jfieldID inputFeatures;
     jfieldID displayId;
+    jfieldID infoChanged;
 } gInputWindowHandleClassInfo;
 
 static Mutex gHandleMutex;
@@ -86,6 +87,10 @@ bool NativeInputWindowHandle::updateInfo() {
 
     if (!mInfo) {
         mInfo = new InputWindowInfo();
+    } else if (!env->GetBooleanField(obj, gInputWindowHandleClassInfo.infoChanged)) {
+        // Nothing changed since the fields were last read, keep our copy.
+        env->DeleteLocalRef(obj);
+        return true;
     } else {
         mInfo->touchableRegion.clear();
     }
@@ -302,6 +307,9 @@ int register_android_server_InputWindowHandle(JNIEnv* env) {
 
     GET_FIELD_ID(gInputWindowHandleClassInfo.displayId, clazz,
             "displayId", "I");
+
+    GET_FIELD_ID(gInputWindowHandleClassInfo.infoChanged, clazz,
+            "infoChanged", "Z");
     return 0;
 }
 
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link IntentResolver}
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String TAG = "IntentResolverTest";
+
+    private static final Uri PACKAGE_URI = Uri.fromParts("package", "com.example", null);
+
+    private static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+    }
+
+    private static IntentFilter newSchemeFilter(String action, String scheme) {
+        final IntentFilter filter = new IntentFilter(action);
+        filter.addDataScheme(scheme);
+        return filter;
+    }
+
+    @Test
+    public void testSchemeAndAction() {
+        final IntentFilter changed = newSchemeFilter(Intent.ACTION_PACKAGE_CHANGED, "package");
+        final IntentFilter added = newSchemeFilter(Intent.ACTION_PACKAGE_ADDED, "package");
+        final IntentFilter both = newSchemeFilter(Intent.ACTION_PACKAGE_ADDED, "package");
+        both.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        mResolver.addFilter(changed);
+        mResolver.addFilter(added);
+        mResolver.addFilter(both);
+
+        final List<IntentFilter> result = mResolver.queryIntent(
+                new Intent(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_URI), null, false, 0);
+        assertEquals(2, result.size());
+        assertTrue(result.contains(changed));
+        assertTrue(result.contains(both));
+
+        mResolver.removeFilter(both);
+        final List<IntentFilter> afterRemove = mResolver.queryIntent(
+                new Intent(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_URI), null, false, 0);
+        assertEquals(1, afterRemove.size());
+        assertTrue(afterRemove.contains(changed));
+    }
+
+    @Test
+    public void testSchemeWithoutAction() {
+        final IntentFilter changed = newSchemeFilter(Intent.ACTION_PACKAGE_CHANGED, "package");
+        final IntentFilter noAction = new IntentFilter();
+        noAction.addDataScheme("package");
+        mResolver.addFilter(changed);
+        mResolver.addFilter(noAction);
+
+        final Intent intent = new Intent();
+        intent.setData(PACKAGE_URI);
+        final List<IntentFilter> result = mResolver.queryIntent(intent, null, false, 0);
+        assertEquals(2, result.size());
+
+        // A filter without actions never matches an intent that has one.
+        final List<IntentFilter> withAction = mResolver.queryIntent(
+                new Intent(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_URI), null, false, 0);
+        assertEquals(1, withAction.size());
+        assertTrue(withAction.contains(changed));
+    }
+
+    @Test
+    public void testPrioritySorted() {
+        final IntentFilter low = newSchemeFilter(Intent.ACTION_PACKAGE_CHANGED, "package");
+        low.setPriority(-1);
+        final IntentFilter high = newSchemeFilter(Intent.ACTION_PACKAGE_CHANGED, "package");
+        high.setPriority(10);
+        mResolver.addFilter(low);
+        mResolver.addFilter(high);
+
+        final List<IntentFilter> result = mResolver.queryIntent(
+                new Intent(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_URI), null, false, 0);
+        assertEquals(2, result.size());
+        assertEquals(high, result.get(0));
+        assertEquals(low, result.get(1));
+    }
+
+    /**
+     * Logs the latency of resolving a package broadcast with 5000 filters registered for the
+     * "package" scheme, spread over a handful of actions as on a real device.
+     */
+    @LargeTest
+    @Test
+    public void testQueryLatencyWithManyFilters() {
+        final String[] actions = {
+                Intent.ACTION_PACKAGE_ADDED,
+                Intent.ACTION_PACKAGE_REMOVED,
+                Intent.ACTION_PACKAGE_CHANGED,
+                Intent.ACTION_PACKAGE_REPLACED,
+                Intent.ACTION_PACKAGE_FULLY_REMOVED,
+        };
+        final int filterCount = 5000;
+        for (int i = 0; i < filterCount; i++) {
+            mResolver.addFilter(newSchemeFilter(actions[i % actions.length], "package"));
+        }
+
+        final Intent intent = new Intent(Intent.ACTION_PACKAGE_CHANGED, PACKAGE_URI);
+        final int iterations = 1000;
+        List<IntentFilter> result = null;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            result = mResolver.queryIntent(intent, null, false, 0);
+        }
+        final long perQueryNanos = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+        Log.i(TAG, "queryIntent with " + filterCount + " filters: " + perQueryNanos + "ns");
+
+        assertEquals(filterCount / actions.length, result.size());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.ActivityManager;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link PendingIntentRegistry}.
+ *
+ * Build: m FrameworksServicesTests
+ * Run: adb shell am instrument -e class com.android.server.am.PendingIntentRegistryTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PendingIntentRegistryTest {
+    private static final String PACKAGE_1 = "com.android.test.one";
+    private static final String PACKAGE_2 = "com.android.test.two";
+
+    private static final int APP_ID_1 = 10001;
+    private static final int APP_ID_2 = 10002;
+
+    private static final int USER_0 = UserHandle.USER_SYSTEM;
+    private static final int USER_10 = 10;
+
+    private static final long GC_TIMEOUT_MILLIS = 10000;
+
+    private PendingIntentRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        mRegistry = new PendingIntentRegistry();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        final PendingIntentRecord rec = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        mRegistry.put(rec);
+        assertSame(rec, mRegistry.get(newKey(PACKAGE_1, USER_0, 0)));
+        assertNull(mRegistry.get(newKey(PACKAGE_1, USER_0, 1)));
+        assertNull(mRegistry.get(newKey(PACKAGE_1, USER_10, 0)));
+
+        mRegistry.remove(rec);
+        assertNull(mRegistry.get(rec.key));
+        assertEquals(0, mRegistry.getShardCount());
+    }
+
+    @Test
+    public void testRemoveReplacedRecord_keepsSuccessor() {
+        final PendingIntentRecord rec = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        final PendingIntentRecord successor = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        mRegistry.put(rec);
+        mRegistry.put(successor);
+
+        mRegistry.remove(rec);
+        assertSame(successor, mRegistry.get(rec.key));
+        assertEquals(1, mRegistry.getShardCount());
+    }
+
+    @Test
+    public void testRemoveRecords_package() {
+        final PendingIntentRecord user0 = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        final PendingIntentRecord user10 = newRecord(PACKAGE_1, APP_ID_1, USER_10, 0);
+        final PendingIntentRecord otherAppId = newRecord(PACKAGE_1, APP_ID_2, USER_0, 1);
+        final PendingIntentRecord otherPackage = newRecord(PACKAGE_2, APP_ID_1, USER_0, 0);
+        mRegistry.put(user0);
+        mRegistry.put(user10);
+        mRegistry.put(otherAppId);
+        mRegistry.put(otherPackage);
+
+        final ArrayList<PendingIntentRecord> removed =
+                mRegistry.removeRecords(PACKAGE_1, APP_ID_1, UserHandle.USER_ALL, true);
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(user0));
+        assertTrue(removed.contains(user10));
+        assertNull(mRegistry.get(user0.key));
+        assertNull(mRegistry.get(user10.key));
+        assertSame(otherAppId, mRegistry.get(otherAppId.key));
+        assertSame(otherPackage, mRegistry.get(otherPackage.key));
+        // The shard of user 10 had nothing left.
+        assertEquals(2, mRegistry.getShardCount());
+    }
+
+    @Test
+    public void testRemoveRecords_user() {
+        final PendingIntentRecord user0 = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        final PendingIntentRecord user10 = newRecord(PACKAGE_1, APP_ID_1, USER_10, 0);
+        final PendingIntentRecord user10Other = newRecord(PACKAGE_2, APP_ID_2, USER_10, 0);
+        final PendingIntentRecord allUsers =
+                newRecord(PACKAGE_1, APP_ID_1, UserHandle.USER_ALL, 0);
+        mRegistry.put(user0);
+        mRegistry.put(user10);
+        mRegistry.put(user10Other);
+        mRegistry.put(allUsers);
+
+        ArrayList<PendingIntentRecord> removed =
+                mRegistry.removeRecords(null, 0, USER_10, true);
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(user10));
+        assertTrue(removed.contains(user10Other));
+        assertSame(user0, mRegistry.get(user0.key));
+        assertSame(allUsers, mRegistry.get(allUsers.key));
+
+        // Without a package, USER_ALL only matches the records created for all users.
+        removed = mRegistry.removeRecords(null, 0, UserHandle.USER_ALL, true);
+        assertEquals(1, removed.size());
+        assertSame(allUsers, removed.get(0));
+        assertSame(user0, mRegistry.get(user0.key));
+        assertEquals(1, mRegistry.getShardCount());
+    }
+
+    @Test
+    public void testRemoveRecords_notDoit() {
+        final PendingIntentRecord rec1 = newRecord(PACKAGE_1, APP_ID_1, USER_0, 0);
+        final PendingIntentRecord rec2 = newRecord(PACKAGE_1, APP_ID_1, USER_0, 1);
+        mRegistry.put(rec1);
+        mRegistry.put(rec2);
+
+        final ArrayList<PendingIntentRecord> removed =
+                mRegistry.removeRecords(PACKAGE_1, APP_ID_1, USER_0, false);
+        assertEquals(1, removed.size());
+        assertSame(rec1, mRegistry.get(rec1.key));
+        assertSame(rec2, mRegistry.get(rec2.key));
+    }
+
+    @Test
+    public void testCollectedRecordsExpunged() {
+        final PendingIntentRecord.Key key = newKey(PACKAGE_1, USER_0, 0);
+        putUnreferencedRecord(key);
+        final long deadline = SystemClock.uptimeMillis() + GC_TIMEOUT_MILLIS;
+        while (mRegistry.getShardCount() > 0 && SystemClock.uptimeMillis() < deadline) {
+            Runtime.getRuntime().gc();
+            Runtime.getRuntime().runFinalization();
+            // Drops the entries of the records that were enqueued as collected.
+            mRegistry.get(key);
+        }
+        assertNull(mRegistry.get(key));
+        assertEquals(0, mRegistry.getShardCount());
+    }
+
+    private void putUnreferencedRecord(PendingIntentRecord.Key key) {
+        mRegistry.put(new PendingIntentRecord(null, mRegistry, key,
+                UserHandle.getUid(key.userId, APP_ID_1)));
+    }
+
+    private PendingIntentRecord newRecord(String packageName, int appId, int userId,
+            int requestCode) {
+        return new PendingIntentRecord(null, mRegistry, newKey(packageName, userId, requestCode),
+                UserHandle.getUid(userId, appId));
+    }
+
+    private static PendingIntentRecord.Key newKey(String packageName, int userId,
+            int requestCode) {
+        return new PendingIntentRecord.Key(ActivityManager.INTENT_SENDER_BROADCAST, packageName,
+                null, null, requestCode, new Intent[] { new Intent("com.android.test.ACTION") },
+                null, 0, null, userId);
+    }
+}
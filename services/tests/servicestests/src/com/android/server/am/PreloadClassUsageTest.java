@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for {@link PreloadClassUsage}.
+ *
+ * Build: m FrameworksServicesTests
+ * Run: adb shell am instrument -e class com.android.server.am.PreloadClassUsageTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PreloadClassUsageTest {
+    private static final int APP_UID_1 = 10001;
+    private static final int APP_UID_2 = 10002;
+    private static final int APP_UID_3 = 10003;
+
+    private static final int SECONDARY_USER = 10;
+
+    private static final String CLASS_A = "android.test.A";
+    private static final String CLASS_B = "android.test.B";
+    private static final String CLASS_C = "android.test.C";
+
+    private static final long NOW = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mRankingFile;
+    private File mUsageFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mRankingFile = new File(mTemporaryFolder.getRoot(), "preloaded-classes-adaptive");
+        mUsageFile = new File(mTemporaryFolder.getRoot(), "preloaded-classes-usage");
+    }
+
+    @Test
+    public void testRanking_mostUsedFirst() {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A, CLASS_B, CLASS_C }, NOW);
+        usage.noteReport(APP_UID_2, new String[] { CLASS_B, CLASS_C }, NOW);
+        usage.noteReport(APP_UID_3, new String[] { CLASS_C }, NOW);
+
+        assertEquals(Arrays.asList(CLASS_C, CLASS_B, CLASS_A), usage.getRanking());
+        assertEquals(3, usage.getAppCount(CLASS_C));
+        assertEquals(2, usage.getAppCount(CLASS_B));
+        assertEquals(1, usage.getAppCount(CLASS_A));
+    }
+
+    @Test
+    public void testRanking_ignoresInvalidNames() {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A, null, "", "a b", "#c" }, NOW);
+
+        assertEquals(Arrays.asList(CLASS_A), usage.getRanking());
+    }
+
+    @Test
+    public void testRanking_secondReportInBootIgnored() {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A }, NOW);
+        usage.noteReport(APP_UID_1, new String[] { CLASS_B }, NOW);
+
+        assertEquals(Arrays.asList(CLASS_A), usage.getRanking());
+    }
+
+    @Test
+    public void testRanking_appCountedOnceAcrossBoots() {
+        for (int boot = 0; boot < 3; boot++) {
+            final PreloadClassUsage usage = newUsage();
+            usage.noteReport(APP_UID_1, new String[] { CLASS_A }, NOW + boot);
+            usage.write();
+        }
+
+        assertEquals(1, newUsage().getAppCount(CLASS_A));
+    }
+
+    @Test
+    public void testRanking_appCountedOnceAcrossUsers() {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A }, NOW);
+        usage.noteReport(UserHandle.getUid(SECONDARY_USER, APP_UID_1),
+                new String[] { CLASS_A, CLASS_B }, NOW);
+
+        assertEquals(1, usage.getAppCount(CLASS_A));
+        assertEquals(0, usage.getAppCount(CLASS_B));
+    }
+
+    @Test
+    public void testRead_uidsFoldedIntoAppIds() throws Exception {
+        final int secondaryUid = UserHandle.getUid(SECONDARY_USER, APP_UID_1);
+        Files.write(mUsageFile.toPath(), Arrays.asList(
+                "uid " + APP_UID_1 + " " + NOW,
+                "uid " + secondaryUid + " " + (NOW + 1),
+                "class " + CLASS_A + " " + APP_UID_1 + " " + secondaryUid),
+                StandardCharsets.UTF_8);
+
+        final PreloadClassUsage usage = newUsage();
+        assertEquals(1, usage.getAppCount(CLASS_A));
+        // Written back keyed by app id.
+        usage.write();
+        assertEquals(1, newUsage().getAppCount(CLASS_A));
+    }
+
+    @Test
+    public void testRanking_newReportReplacesPrevious() {
+        PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A, CLASS_B }, NOW);
+        usage.noteReport(APP_UID_2, new String[] { CLASS_A }, NOW);
+        usage.write();
+
+        usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_C }, NOW + 1);
+
+        assertEquals(1, usage.getAppCount(CLASS_A));
+        assertEquals(0, usage.getAppCount(CLASS_B));
+        assertEquals(1, usage.getAppCount(CLASS_C));
+        assertEquals(2, usage.getRanking().size());
+    }
+
+    @Test
+    public void testRanking_expiredAppsForgotten() {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A, CLASS_B }, NOW);
+        usage.noteReport(APP_UID_2, new String[] { CLASS_A },
+                NOW + PreloadClassUsage.EXPIRY_MILLIS + 1);
+
+        assertEquals(1, usage.getAppCount(CLASS_A));
+        assertEquals(0, usage.getAppCount(CLASS_B));
+        assertEquals(Arrays.asList(CLASS_A), usage.getRanking());
+    }
+
+    @Test
+    public void testRanking_expiryFreesTrackedClasses() {
+        final PreloadClassUsage usage = newUsage();
+        final String[] classNames = new String[PreloadClassUsage.MAX_TRACKED_CLASSES];
+        for (int i = 0; i < classNames.length; i++) {
+            classNames[i] = "android.test.Class" + i;
+        }
+        usage.noteReport(APP_UID_1, classNames, NOW);
+        usage.noteReport(APP_UID_2, new String[] { CLASS_A }, NOW);
+        assertEquals(0, usage.getAppCount(CLASS_A));
+
+        usage.noteReport(APP_UID_3, new String[] { CLASS_A },
+                NOW + PreloadClassUsage.EXPIRY_MILLIS + 1);
+        assertEquals(1, usage.getAppCount(CLASS_A));
+        assertEquals(Arrays.asList(CLASS_A), usage.getRanking());
+    }
+
+    @Test
+    public void testWrite_rankingFile() throws Exception {
+        final PreloadClassUsage usage = newUsage();
+        usage.noteReport(APP_UID_1, new String[] { CLASS_A, CLASS_B }, NOW);
+        usage.noteReport(APP_UID_2, new String[] { CLASS_B }, NOW);
+        usage.write();
+
+        final List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(mRankingFile.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        assertEquals(Arrays.asList(CLASS_B + " 2", CLASS_A + " 1"), lines);
+        assertTrue(mUsageFile.exists());
+    }
+
+    private PreloadClassUsage newUsage() {
+        return new PreloadClassUsage(mRankingFile, mUsageFile);
+    }
+}
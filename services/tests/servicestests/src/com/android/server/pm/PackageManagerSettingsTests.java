@@ -261,6 +261,45 @@ public class PackageManagerSettingsTests {
     }
 
     /** Update package */
+    /** Make sure per-user package state changes invalidate cached intent resolutions */
+    @Test
+    public void testUserStateGeneration() {
+        final int userId = UserHandle.USER_SYSTEM;
+        final PackageSetting testPkgSetting01 =
+                createPackageSetting(0 /*sharedUserId*/, 0 /*pkgFlags*/);
+        testPkgSetting01.setInstalled(true, userId);
+        assertThat(PackageParser.isAvailable(testPkgSetting01.readUserState(userId)), is(true));
+
+        // Receivers of a hidden package are no longer matched, which makes any cached
+        // resolution taken before stale.
+        int generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.setHidden(true, userId);
+        assertThat(PackageParser.isAvailable(testPkgSetting01.readUserState(userId)), is(false));
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+
+        generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.setHidden(false, userId);
+        assertThat(PackageParser.isAvailable(testPkgSetting01.readUserState(userId)), is(true));
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+
+        generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.setInstalled(false, userId);
+        assertThat(PackageParser.isAvailable(testPkgSetting01.readUserState(userId)), is(false));
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+
+        generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.setSuspended(true, userId);
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+
+        generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.addDisabledComponent("com.android.bar.Receiver", userId);
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+
+        generation = PackageSettingBase.getUserStateGeneration();
+        testPkgSetting01.removeUser(userId);
+        assertThat(PackageSettingBase.getUserStateGeneration(), is(not(generation)));
+    }
+
     @Test
     public void testUpdatePackageSetting01() throws PackageManagerException {
         final PackageSetting testPkgSetting01 =
@@ -66,6 +66,17 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testComputeThreadCount() {
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(1, false));
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(4, false));
+        Assert.assertEquals(6, ParallelPackageParser.computeThreadCount(6, false));
+        Assert.assertEquals(8, ParallelPackageParser.computeThreadCount(8, false));
+        Assert.assertEquals(8, ParallelPackageParser.computeThreadCount(16, false));
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(2, true));
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(8, true));
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
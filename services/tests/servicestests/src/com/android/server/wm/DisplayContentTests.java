@@ -21,11 +21,14 @@ import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE;
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_PORTRAIT;
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED;
 import static android.view.Display.DEFAULT_DISPLAY;
+import static android.view.View.SYSTEM_UI_FLAG_HIDE_NAVIGATION;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_ATTACHED_DIALOG;
 import static android.view.WindowManager.LayoutParams.TYPE_BASE_APPLICATION;
 import static android.view.WindowManager.LayoutParams.TYPE_STATUS_BAR;
+import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_ALERT;
 import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
+import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_LAYOUT;
 
 import static com.android.server.wm.WindowContainer.POSITION_TOP;
 import static org.junit.Assert.assertEquals;
@@ -42,8 +45,11 @@ import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.DisplayMetrics;
+import android.util.MergedConfiguration;
 import android.util.SparseIntArray;
 import android.view.MotionEvent;
+import android.view.View;
+import android.view.WindowManagerPolicy;
 
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -409,6 +415,103 @@ public class DisplayContentTests extends WindowTestsBase {
                 SCREEN_ORIENTATION_LANDSCAPE, dc.getOrientation());
     }
 
+    @Test
+    public void testLayout_skipsUnchangedWindows() throws Exception {
+        final WindowState window = createLaidOutWindow("window");
+        final WindowState other = createLaidOutWindow("other");
+
+        assertEquals(Arrays.asList(other), layOutAfterChangeTo(other, () -> { }));
+    }
+
+    @Test
+    public void testLayout_stableRectChangeLaysOutAllWindows() throws Exception {
+        final WindowState window = createLaidOutWindow("window");
+        final WindowState other = createLaidOutWindow("other");
+
+        assertTrue(layOutAfterChangeTo(other, () -> getPolicy().mStableRect.set(0, 50, 100, 200))
+                .contains(window));
+    }
+
+    @Test
+    public void testLayout_dockRectChangeLaysOutAllWindows() throws Exception {
+        final WindowState window = createLaidOutWindow("window");
+        final WindowState other = createLaidOutWindow("other");
+
+        assertTrue(layOutAfterChangeTo(other, () -> getPolicy().mDockRect.set(0, 50, 100, 200))
+                .contains(window));
+    }
+
+    @Test
+    public void testLayout_systemUiFlagsChangeLaysOutAllWindows() throws Exception {
+        final WindowState window = createLaidOutWindow("window");
+        final WindowState other = createLaidOutWindow("other");
+
+        assertTrue(layOutAfterChangeTo(other,
+                () -> getPolicy().mLastSystemUiFlags = SYSTEM_UI_FLAG_HIDE_NAVIGATION)
+                .contains(window));
+    }
+
+    @Test
+    public void testLayout_redoLayoutLaysOutAllWindows() throws Exception {
+        final WindowState window = createLaidOutWindow("window");
+        final TestWindowManagerPolicy policy = getPolicy();
+
+        synchronized (sWm.mWindowMap) {
+            policy.mLaidOutWindows.clear();
+            mDisplayContent.pendingLayoutChanges = FINISH_LAYOUT_REDO_LAYOUT;
+            mDisplayContent.applySurfaceChangesTransaction(false /* recoveringMemory */);
+        }
+        assertTrue(policy.mLaidOutWindows.contains(window));
+    }
+
+    private TestWindowManagerPolicy getPolicy() {
+        return (TestWindowManagerPolicy) sWm.mPolicy;
+    }
+
+    /**
+     * Creates a visible window and lays out the display in full, so that the window is only laid
+     * out again when it or the layout inputs change.
+     */
+    private WindowState createLaidOutWindow(String name) {
+        final WindowState window = createWindow(null, TYPE_SYSTEM_ALERT, mDisplayContent, name);
+        window.mViewVisibility = View.VISIBLE;
+        window.mRelayoutCalled = true;
+        window.mHaveFrame = true;
+        final MergedConfiguration config = new MergedConfiguration();
+        window.getMergedConfiguration(config);
+        window.setLastReportedMergedConfiguration(config);
+
+        final TestWindowManagerPolicy policy = getPolicy();
+        synchronized (sWm.mWindowMap) {
+            mDisplayContent.setLayoutNeeded();
+            mDisplayContent.performLayout(true /* initial */, false /* updateInputWindows */);
+        }
+        assertTrue(policy.mLaidOutWindows.contains(window));
+        return window;
+    }
+
+    /**
+     * Applies the change, marks the window as changed and lays out the display.
+     *
+     * @return the windows created by the test that were laid out
+     */
+    private List<WindowState> layOutAfterChangeTo(WindowState changed, Runnable change) {
+        final TestWindowManagerPolicy policy = getPolicy();
+        synchronized (sWm.mWindowMap) {
+            policy.mLaidOutWindows.clear();
+            change.run();
+            mDisplayContent.setWindowLayoutNeeded(changed);
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        }
+        final List<WindowState> laidOut = new LinkedList<>();
+        for (WindowManagerPolicy.WindowState w : policy.mLaidOutWindows) {
+            if (!mCommonWindows.contains(w)) {
+                laidOut.add((WindowState) w);
+            }
+        }
+        return laidOut;
+    }
+
     private static void verifySizes(DisplayContent displayContent, int expectedBaseWidth,
                              int expectedBaseHeight, int expectedBaseDensity) {
         assertEquals(displayContent.mBaseDisplayWidth, expectedBaseWidth);
@@ -16,10 +16,17 @@
 
 package com.android.server.wm;
 
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
+import static com.android.server.wm.TaskSnapshotPersister.REDUCED_SCALE;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
+import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -108,4 +115,87 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testOverBudget_dropsFullResolutionOfLeastRecentlyUsed() throws Exception {
+        // Room for one 100x100 snapshot and the compressed variants.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* budgetBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final int taskId1 = window1.getTask().mTaskId;
+        final int taskId2 = window2.getTask().mTaskId;
+        final TaskSnapshot snapshot1 = createSnapshot();
+        mCache.putSnapshot(window1.getTask(), snapshot1);
+        mCache.onSnapshotPersisted(taskId1, snapshot1, new byte[100]);
+        waitUntilHandlersIdle();
+        final TaskSnapshot snapshot2 = createSnapshot();
+        mCache.putSnapshot(window2.getTask(), snapshot2);
+
+        // The first snapshot only has its compressed variant left, which needs decoding.
+        assertNull(mCache.getSnapshot(taskId1, 0 /* userId */, false /* restoreFromDisk */,
+                true /* reducedResolution */));
+        assertSame(snapshot2, mCache.getSnapshot(taskId2, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testOverBudget_keepsUnpersisted() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* budgetBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testTrimMemory() throws Exception {
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final TaskSnapshot snapshot1 = createSnapshot();
+        mCache.putSnapshot(window1.getTask(), snapshot1);
+        mCache.onSnapshotPersisted(window1.getTask().mTaskId, snapshot1, new byte[100]);
+        waitUntilHandlersIdle();
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+
+        // Persisted snapshots are shrunk, the others kept until the memory is really needed.
+        mCache.onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+        assertNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        mCache.onTrimMemory(TRIM_MEMORY_COMPLETE);
+        assertNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testRestoreReducedFromCompressed() throws Exception {
+        // Too small for the snapshot once it has smaller variants.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 30000 /* budgetBytes */);
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), snapshot);
+        mPersister.setPersistListener(mCache::onSnapshotPersisted);
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, snapshot);
+        mPersister.waitForQueueEmpty();
+        waitUntilHandlersIdle();
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        final TaskSnapshot reduced = mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reduced);
+        assertTrue(reduced.isReducedResolution());
+        final int reducedWidth = (int) (snapshot.getSnapshot().getWidth() * REDUCED_SCALE);
+        assertEquals(reducedWidth, reduced.getSnapshot().getWidth());
+
+        // The decoded variant is kept.
+        assertSame(reduced, mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
 }
@@ -56,6 +56,7 @@ import com.android.server.input.InputManagerService;
 import com.android.server.LocalServices;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 
 class TestWindowManagerPolicy implements WindowManagerPolicy {
     private static final String TAG = "TestWindowManagerPolicy";
@@ -64,6 +65,13 @@ class TestWindowManagerPolicy implements WindowManagerPolicy {
 
     int rotationToReport = 0;
 
+    /** What the policy reports as the inputs of the layout, and the windows it laid out. */
+    final Rect mStableRect = new Rect();
+    final Rect mDockRect = new Rect();
+    int mLastSystemUiFlags;
+    final ArrayList<WindowState> mLaidOutWindows = new ArrayList<>();
+    int mFinishPostLayoutChanges;
+
     private Runnable mRunnableWhenAddingSplashScreen;
 
     static synchronized WindowManagerService getWindowManagerService(Context context) {
@@ -304,10 +312,25 @@ class TestWindowManagerPolicy implements WindowManagerPolicy {
 
     }
 
+    @Override
+    public void getStableRectLw(Rect r) {
+        r.set(mStableRect);
+    }
+
+    @Override
+    public void getDockRectLw(Rect r) {
+        r.set(mDockRect);
+    }
+
+    @Override
+    public int getLastSystemUiFlagsLw() {
+        return mLastSystemUiFlags;
+    }
+
     @Override
     public void layoutWindowLw(WindowState win,
             WindowState attached) {
-
+        mLaidOutWindows.add(win);
     }
 
     @Override
@@ -334,7 +357,9 @@ class TestWindowManagerPolicy implements WindowManagerPolicy {
 
     @Override
     public int finishPostLayoutPolicyLw() {
-        return 0;
+        final int changes = mFinishPostLayoutChanges;
+        mFinishPostLayoutChanges = 0;
+        return changes;
     }
 
     @Override